@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import magma.tools.proxy.impl.ProxyLog;
+
+/**
+ * Lets administrators run the commands of the command line interface while
+ * the proxy runs in the background, e.g. with
+ * <code>nc localhost 3200</code>. The admin socket only listens on the
+ * loopback interface. Each line received is executed as one command, its
+ * output is followed by an empty line. Each connection is served by a thread
+ * of its own and the output of a command is written to the connection after
+ * it finished, so a slow client does not hold up others. At most
+ * {@link #MAX_SESSIONS} connections are served at a time, further ones are
+ * closed. Commands never pause the forwarders.
+ * <p>
+ * There is no authentication: every user of the host can connect and run all
+ * commands, including <code>quit</code>, which shuts the proxy down. Only
+ * enable the admin socket on hosts whose users are trusted.
+ *
+ * @author agent
+ */
+public class AdminServer extends Thread
+{
+	/** maximum number of connections served at the same time */
+	public static final int MAX_SESSIONS = 4;
+
+	/** first time to wait after accepting a connection failed in ms */
+	private static final long MIN_ACCEPT_BACKOFF = 10;
+
+	/** maximum time to wait after accepting a connection failed in ms */
+	private static final long MAX_ACCEPT_BACKOFF = 1000;
+
+	/** the socket administrators connect to */
+	private final ServerSocket serverSocket;
+
+	/** executes the commands received */
+	private final CommandInterpreter interpreter;
+
+	/** shuts the proxy down if asked to quit */
+	private final Runnable shutdown;
+
+	/** permits of the connections that can still be served */
+	private final Semaphore sessions = new Semaphore(MAX_SESSIONS);
+
+	/**
+	 * Binds the admin socket.
+	 * @param port the port to listen on, 0 for any free port
+	 * @param interpreter executes the commands received
+	 * @param shutdown shuts the proxy down if asked to quit
+	 * @throws IOException if the port can not be bound
+	 */
+	public AdminServer(int port, CommandInterpreter interpreter, Runnable shutdown) throws IOException
+	{
+		super("admin-server");
+		setDaemon(true);
+		this.interpreter = interpreter;
+		this.shutdown = shutdown;
+		serverSocket = new ServerSocket(port, 5, InetAddress.getLoopbackAddress());
+	}
+
+	@Override
+	public void run()
+	{
+		ProxyLog.info("Admin server listening on port: " + getLocalPort());
+		long backoff = MIN_ACCEPT_BACKOFF;
+		while (!serverSocket.isClosed()) {
+			Socket client;
+			try {
+				client = serverSocket.accept();
+			} catch (IOException e) {
+				if (serverSocket.isClosed()) {
+					break;
+				}
+				// e.g. out of file descriptors, accepting right away would fail again
+				ProxyLog.warn("Accepting admin connection failed, retrying in " + backoff + "ms: " + e.getMessage());
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException interrupted) {
+					break;
+				}
+				backoff = Math.min(2 * backoff, MAX_ACCEPT_BACKOFF);
+				continue;
+			}
+			backoff = MIN_ACCEPT_BACKOFF;
+
+			if (!sessions.tryAcquire()) {
+				refuse(client);
+				continue;
+			}
+			Thread session = new Thread(() -> {
+				try {
+					serve(client);
+				} finally {
+					sessions.release();
+				}
+			}, "admin-" + client.getPort());
+			session.setDaemon(true);
+			session.start();
+		}
+	}
+
+	/**
+	 * Tells an administrator that too many connections are open and closes the
+	 * connection.
+	 * @param client the connection of the administrator
+	 */
+	private void refuse(Socket client)
+	{
+		try (Socket socket = client;
+				PrintWriter out =
+						new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+			out.println("Too many admin connections, at most " + MAX_SESSIONS + " are served");
+			out.println();
+		} catch (IOException e) {
+			ProxyLog.warn("Admin connection closed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Executes the commands of one connection until it is closed.
+	 * @param client the connection of the administrator
+	 */
+	private void serve(Socket client)
+	{
+		try (Socket socket = client;
+				BufferedReader in = new BufferedReader(
+						new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				PrintWriter out =
+						new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				boolean quit = interpreter.execute(line, out);
+				out.println();
+				out.flush();
+				if (quit) {
+					shutdown.run();
+					break;
+				}
+			}
+		} catch (IOException e) {
+			ProxyLog.warn("Admin connection closed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the port the admin socket listens on
+	 */
+	public int getLocalPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Stops accepting connections, open connections are served until closed.
+	 */
+	public void close()
+	{
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			ProxyLog.warn("Closing admin socket failed: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,297 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Locale;
+import magma.tools.proxy.impl.AgentProxy;
+import magma.tools.proxy.impl.BudgetPolicy;
+import magma.tools.proxy.impl.ProxyLog;
+import magma.tools.proxy.impl.SimsparkAgentProxyServer;
+
+/**
+ * Executes the commands of the command line interface and the admin socket on
+ * a proxy server. Commands only read the statistics of the agent proxies or
+ * ask the forwarders to change something, so the forwarders are never paused.
+ *
+ * @author agent
+ */
+public class CommandInterpreter
+{
+	private final SimsparkAgentProxyServer proxy;
+
+	/**
+	 * @param proxy the proxy server the commands are executed on
+	 */
+	public CommandInterpreter(SimsparkAgentProxyServer proxy)
+	{
+		this.proxy = proxy;
+	}
+
+	/**
+	 * Executes one command. Commands may have an argument after the first word.
+	 * Commands of concurrent sessions run one after another. The output is
+	 * collected in memory and written after the command finished, so a slow
+	 * receiver does not hold up the commands of other sessions.
+	 * @param input the command line
+	 * @param out receives the output of the command
+	 * @return true if the proxy should shut down
+	 */
+	public boolean execute(String input, PrintWriter out)
+	{
+		StringWriter output = new StringWriter();
+		boolean shutdown;
+		synchronized (this) {
+			shutdown = executeCommand(input, new PrintWriter(output));
+		}
+		out.print(output);
+		out.flush();
+		return shutdown;
+	}
+
+	private boolean executeCommand(String input, PrintWriter out)
+	{
+		List<AgentProxy> agentProxies = proxy.getAgentProxies();
+		String[] command = input.trim().split("\\s+", 2);
+		boolean shutdown = false;
+
+		switch (command[0]) {
+		case "q":
+		case "quit":
+			// shutdown
+			shutdown = true;
+			break;
+
+		case "l":
+		case "list":
+			// list active agent proxies
+			out.println("Active agents:");
+			for (int i = 0; i < agentProxies.size(); i++) {
+				AgentProxy agentProxy = agentProxies.get(i);
+				if (agentProxy.isActive()) {
+					out.println((i + 1) + ". " + agentProxy);
+				}
+			}
+			break;
+
+		case "v":
+		case "verbose":
+			// verbosely list active agent proxies
+			out.println("Active agents:");
+			for (int i = 0; i < agentProxies.size(); i++) {
+				AgentProxy agentProxy = agentProxies.get(i);
+				if (agentProxy.isActive()) {
+					out.println((i + 1) + ". " + agentProxy.toStringVerbose());
+				}
+			}
+			break;
+
+		case "s":
+		case "status":
+			// print proxy status
+			out.println("Proxy thread alive: " + proxy.isAlive());
+			out.println("Log messages dropped: " + ProxyLog.getDroppedCount());
+			if (proxy.getSyncScheduler() != null) {
+				out.println("Sync scheduler " + proxy.getSyncScheduler().getStatistics());
+			}
+			if (proxy.getJitterMonitor() != null) {
+				out.println("Host jitter " + proxy.getJitterMonitor().getStatistics());
+			}
+			out.println("Proxy CPU " + proxy.getCpuUsage());
+			out.println("All agents (" + agentProxies.size() + "):");
+			for (int i = 0; i < agentProxies.size(); i++) {
+				out.println((i + 1) + ". " + agentProxies.get(i));
+			}
+			break;
+
+		case "j":
+		case "json":
+			// print the statistics of all agent proxies machine readable
+			printSnapshot(agentProxies, out);
+			break;
+
+		case "r":
+		case "reset":
+			// start the statistics of all agent proxies from scratch
+			for (AgentProxy agentProxy : agentProxies) {
+				agentProxy.resetStatistics();
+			}
+			out.println("Statistics of " + agentProxies.size() + " agents reset with their next cycle");
+			break;
+
+		case "t":
+		case "timeline":
+			// export cycle timelines of active agent proxies
+			exportTimelines(agentProxies, out);
+			break;
+
+		case "d":
+		case "dump":
+			// print the cycle timelines of one or all active agent proxies
+			dumpTimelines(agentProxies, command.length > 1 ? command[1] : null, out);
+			break;
+
+		case "a":
+		case "align":
+			// print which agents hold up the server
+			out.println("Current match: " + proxy.getCycleAligner().getCurrent());
+			out.println("Last match: " + proxy.getCycleAligner().getLastMatch());
+			break;
+
+		case "b":
+		case "budget":
+			// print or change the think time budgets of all agents
+			if (command.length > 1) {
+				try {
+					proxy.setBudgetPolicy(BudgetPolicy.parse(command[1]));
+				} catch (IllegalArgumentException e) {
+					out.println("Invalid budget: " + e.getMessage());
+				}
+			}
+			out.println("Budget policy: " + proxy.getBudgetPolicy());
+			for (int i = 0; i < agentProxies.size(); i++) {
+				AgentProxy agentProxy = agentProxies.get(i);
+				if (agentProxy.isActive()) {
+					out.println((i + 1) + ". budget: " + agentProxy.getCycleBudget() + "ms");
+				}
+			}
+			break;
+
+		case "m":
+			// switch messages on/off
+			out.println("Proxy thread alive: " + proxy.isAlive());
+			for (AgentProxy agentProxy : agentProxies) {
+				agentProxy.toggleClientMessageDisplay();
+			}
+			break;
+
+		case "n":
+			// switch messages on/off
+			out.println("Proxy thread alive: " + proxy.isAlive());
+			for (AgentProxy agentProxy : agentProxies) {
+				agentProxy.toggleServerMessageDisplay();
+			}
+			break;
+
+		default:
+			out.println("Command \"" + input + "\" unknown!");
+			out.println("Known commands:");
+			out.println("q; quit\t\t--> exit proxy server application");
+			out.println("l; list\t\t--> list active agent proxy instances");
+			out.println("v; verbose\t--> list active agent proxy instances verbosely");
+			out.println("s; status\t--> print proxy status");
+			out.println("j; json\t\t--> print the statistics of all agents as one line of JSON");
+			out.println("r; reset\t--> start the statistics of all agents from scratch");
+			out.println("t; timeline\t--> export cycle timelines of active agents to csv files");
+			out.println("d; dump [i]\t--> print the cycle timeline of agent i or of all active agents as csv");
+			out.println("a; align\t--> print agents the server waits for (stragglers)");
+			out.println("b; budget [p]\t--> print or set the think time budget policy (see --budget)");
+			out.println("m; \t--> print start of all client messages");
+			out.println("n; \t--> print start of all server messages");
+			break;
+		}
+		return shutdown;
+	}
+
+	/**
+	 * Prints the statistics of all agent proxies as one JSON object on one
+	 * line.
+	 */
+	private void printSnapshot(List<AgentProxy> agentProxies, PrintWriter out)
+	{
+		StringBuilder result = new StringBuilder();
+		result.append("{\"time\":").append(System.currentTimeMillis());
+		result.append(",\"alive\":").append(proxy.isAlive());
+		result.append(",\"droppedLogMessages\":").append(ProxyLog.getDroppedCount());
+		SimsparkAgentProxyServer.CpuUsage cpuUsage = proxy.getCpuUsage();
+		result.append(String.format(Locale.ROOT, ",\"cpuMicrosPerCycle\":%.1f,\"cpuMicrosPerKilobyte\":%.1f",
+				cpuUsage.cpuMicrosPerCycle(), cpuUsage.cpuMicrosPerKilobyte()));
+		result.append(",\"agents\":[");
+		for (int i = 0; i < agentProxies.size(); i++) {
+			if (i > 0) {
+				result.append(',');
+			}
+			result.append(agentProxies.get(i).getStatistics().toJson());
+		}
+		out.println(result.append("]}"));
+	}
+
+	/**
+	 * Writes the cycle timeline of each active agent proxy to a csv file in the
+	 * working directory.
+	 * @param agentProxies the agent proxies to export
+	 */
+	private void exportTimelines(List<AgentProxy> agentProxies, PrintWriter out)
+	{
+		String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+		for (int i = 0; i < agentProxies.size(); i++) {
+			AgentProxy agentProxy = agentProxies.get(i);
+			if (!agentProxy.isActive()) {
+				continue;
+			}
+
+			Path file = Paths.get("timeline-" + timestamp + "-" + (i + 1) + ".csv");
+			try (Writer writer = Files.newBufferedWriter(file)) {
+				int cycles = agentProxy.exportTimeline(writer);
+				out.println((i + 1) + ". " + cycles + " cycles written to " + file.toAbsolutePath());
+			} catch (IOException e) {
+				out.println((i + 1) + ". export failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Prints the cycle timelines as csv, each preceded by a comment line
+	 * naming the agent.
+	 * @param agent the number of the agent as in the list command, null for
+	 *        all active agents
+	 */
+	private void dumpTimelines(List<AgentProxy> agentProxies, String agent, PrintWriter out)
+	{
+		int selected;
+		try {
+			selected = agent == null ? 0 : Integer.parseInt(agent);
+		} catch (NumberFormatException e) {
+			out.println("Invalid agent: " + agent);
+			return;
+		}
+		for (int i = 0; i < agentProxies.size(); i++) {
+			AgentProxy agentProxy = agentProxies.get(i);
+			if (selected == 0 ? !agentProxy.isActive() : selected != i + 1) {
+				continue;
+			}
+			out.println("# " + (i + 1) + ". " + agentProxy);
+			try {
+				agentProxy.exportTimeline(out);
+			} catch (IOException e) {
+				out.println("# dump failed: " + e.getMessage());
+			}
+		}
+	}
+}
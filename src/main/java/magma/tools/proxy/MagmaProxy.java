@@ -22,9 +22,16 @@ package magma.tools.proxy;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
-import magma.tools.proxy.impl.AgentProxy;
+import magma.tools.proxy.client.SharedMemoryRing.WaitStrategy;
+import magma.tools.proxy.impl.AgentProxy.FrameLimits;
+import magma.tools.proxy.impl.BudgetPolicy;
+import magma.tools.proxy.impl.JitterMonitor;
+import magma.tools.proxy.impl.ProxyLog;
+import magma.tools.proxy.impl.ProxyWarmUp;
+import magma.tools.proxy.impl.RateLimitStage;
 import magma.tools.proxy.impl.SimsparkAgentProxyServer;
 import magma.tools.proxy.impl.SimsparkAgentProxyServer.SimsparkAgentProxyServerParameter;
 
@@ -48,6 +55,10 @@ public class MagmaProxy
 	 *        <td>Proxy server port</td>
 	 *        </tr>
 	 *        <tr>
+	 *        <td>--proxysocket=</td>
+	 *        <td>Path of a Unix domain socket to listen on in addition</td>
+	 *        </tr>
+	 *        <tr>
 	 *        <td>--server=</td>
 	 *        <td>Simspark server IP</td>
 	 *        </tr>
@@ -63,13 +74,90 @@ public class MagmaProxy
 	 *        <td>--daemon</td>
 	 *        <td>Disables the command line interface</td>
 	 *        </tr>
+	 *        <tr>
+	 *        <td>--sanitizesay</td>
+	 *        <td>Removes invalid say messages instead of only counting them</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--timeline=</td>
+	 *        <td>Number of cycles kept per agent for the timeline export</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--shm=</td>
+	 *        <td>Wait strategy on shared memory agents can ask for (park, spin,
+	 *        off), spin is replaced by park on single core machines</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--scheduler=</td>
+	 *        <td>Who sends the proxy syncs (thread: each perception forwarder,
+	 *        edf: one scheduler in earliest deadline first order)</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--maxaction=</td>
+	 *        <td>Maximum length of messages from agents in bytes</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--maxperception=</td>
+	 *        <td>Maximum length of messages from the server in bytes</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--oversize=</td>
+	 *        <td>What to do with longer messages (reject: close the connection,
+	 *        stream: forward them in chunks)</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--catchup=</td>
+	 *        <td>Number of the newest perceptions forwarded if the server sent
+	 *        several since the last sync (0: all)</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--ratelimit=</td>
+	 *        <td>Maximum action bytes per cycle of each agent, optionally
+	 *        followed by the maximum actions per cycle and the cycles of unused
+	 *        limits saved (bytes[,frames[,cycles]])</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--throttle=</td>
+	 *        <td>What to do with actions exceeding the rate limit (delay,
+	 *        merge, drop)</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--budget=</td>
+	 *        <td>Think time budget of the agents in ms, adaptive[:max] to learn
+	 *        it per agent or a default followed by budgets per address or proxy
+	 *        port (20,192.168.1.5=30,:3111=15)</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--adminport=</td>
+	 *        <td>Port of the admin socket on localhost accepting the commands of
+	 *        the command line interface, also in daemon mode</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--statsdir=</td>
+	 *        <td>Directory of the store keeping the summary of each agent and
+	 *        match, see {@link StatsQuery}</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--jitter[=]</td>
+	 *        <td>Measures how late the host wakes up threads and tags missed
+	 *        cycles, optionally with the threshold in microseconds</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--warmup[=]</td>
+	 *        <td>Runs the forwarding path before agents connect until it is
+	 *        compiled, optionally with the maximum number of cycles</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--loglevel=</td>
+	 *        <td>Maximum level of log messages (error, warn, info, debug)</td>
+	 *        </tr>
 	 *        </table>
 	 */
 	public static void main(String[] args)
 	{
 		SimsparkAgentProxyServerParameter parameterObject = parseParameters(args);
 		SimsparkAgentProxyServer proxy = new SimsparkAgentProxyServer(parameterObject);
-		new MagmaProxy(proxy).run(parameterObject.daemon());
+		new MagmaProxy(proxy).run(parameterObject.daemon(), parameterObject.adminPort());
 	}
 
 	/**
@@ -80,29 +168,112 @@ public class MagmaProxy
 	 */
 	public static SimsparkAgentProxyServerParameter parseParameters(String[] args, List<String> unknownParameters)
 	{
-		int proxyPort = 3110;
-		String ssHost = "127.0.0.1";
-		int ssPort = 3100;
-		boolean showMessages = false;
-		boolean daemon = false;
+		SimsparkAgentProxyServerParameter.Builder builder =
+				new SimsparkAgentProxyServerParameter.Builder(3110, "127.0.0.1", 3100);
+		int maxActionSize = FrameLimits.DEFAULT.maxActionSize();
+		int maxPerceptionSize = FrameLimits.DEFAULT.maxPerceptionSize();
+		boolean streamOversized = FrameLimits.DEFAULT.streamOversized();
+		String rateLimit = null;
+		RateLimitStage.Policy throttlePolicy = RateLimitStage.Policy.DELAY;
+		String throttle = null;
 
 		for (String arg : args) {
 			if (arg.startsWith("--proxyport=")) {
-				proxyPort = Integer.parseInt(arg.replaceFirst("--proxyport=", ""));
+				builder.proxyPort(Integer.parseInt(arg.replaceFirst("--proxyport=", "")));
+			} else if (arg.startsWith("--proxysocket=")) {
+				builder.proxySocketPath(arg.replaceFirst("--proxysocket=", ""));
 			} else if (arg.startsWith("--server=")) {
-				ssHost = arg.replaceFirst("--server=", "");
+				builder.ssHost(arg.replaceFirst("--server=", ""));
 			} else if (arg.startsWith("--serverport=")) {
-				ssPort = Integer.parseInt(arg.replaceFirst("--serverport=", ""));
+				builder.ssPort(Integer.parseInt(arg.replaceFirst("--serverport=", "")));
 			} else if (arg.startsWith("--verbose")) {
-				showMessages = true;
+				builder.showMessages(true);
 			} else if (arg.startsWith("--daemon")) {
-				daemon = true;
+				builder.daemon(true);
+			} else if (arg.startsWith("--sanitizesay")) {
+				builder.sanitizeSay(true);
+			} else if (arg.startsWith("--timeline=")) {
+				builder.timelineCapacity(Integer.parseInt(arg.replaceFirst("--timeline=", "")));
+			} else if (arg.startsWith("--shm=")) {
+				String wait = arg.replaceFirst("--shm=", "").toUpperCase();
+				try {
+					WaitStrategy sharedMemoryWait = wait.equals("OFF") ? null : WaitStrategy.valueOf(wait);
+					if (sharedMemoryWait == WaitStrategy.SPIN && Runtime.getRuntime().availableProcessors() < 2) {
+						// a spinning thread would hold the only core until its time slice runs out
+						ProxyLog.warn("Spinning on shared memory needs more than one core, parking instead");
+						sharedMemoryWait = WaitStrategy.PARK;
+					}
+					builder.sharedMemoryWait(sharedMemoryWait);
+				} catch (IllegalArgumentException e) {
+					unknownParameters.add(arg);
+				}
+			} else if (arg.equals("--scheduler=edf")) {
+				builder.edfScheduling(true);
+			} else if (arg.equals("--scheduler=thread")) {
+				builder.edfScheduling(false);
+			} else if (arg.startsWith("--maxaction=")) {
+				maxActionSize = Integer.parseInt(arg.replaceFirst("--maxaction=", ""));
+			} else if (arg.startsWith("--maxperception=")) {
+				maxPerceptionSize = Integer.parseInt(arg.replaceFirst("--maxperception=", ""));
+			} else if (arg.equals("--oversize=reject")) {
+				streamOversized = false;
+			} else if (arg.equals("--oversize=stream")) {
+				streamOversized = true;
+			} else if (arg.startsWith("--catchup=")) {
+				builder.catchUpDepth(Integer.parseInt(arg.replaceFirst("--catchup=", "")));
+			} else if (arg.startsWith("--ratelimit=")) {
+				rateLimit = arg.replaceFirst("--ratelimit=", "");
+			} else if (arg.startsWith("--throttle=")) {
+				String policy = arg.replaceFirst("--throttle=", "").toUpperCase();
+				try {
+					throttlePolicy = RateLimitStage.Policy.valueOf(policy);
+					throttle = arg;
+				} catch (IllegalArgumentException e) {
+					unknownParameters.add(arg);
+				}
+			} else if (arg.startsWith("--budget=")) {
+				try {
+					builder.budgetPolicy(BudgetPolicy.parse(arg.replaceFirst("--budget=", "")));
+				} catch (IllegalArgumentException e) {
+					unknownParameters.add(arg);
+				}
+			} else if (arg.startsWith("--adminport=")) {
+				builder.adminPort(Integer.parseInt(arg.replaceFirst("--adminport=", "")));
+			} else if (arg.startsWith("--statsdir=")) {
+				builder.statsDir(arg.replaceFirst("--statsdir=", ""));
+			} else if (arg.equals("--jitter")) {
+				builder.jitterThreshold((int) (JitterMonitor.DEFAULT_THRESHOLD / 1000));
+			} else if (arg.startsWith("--jitter=")) {
+				builder.jitterThreshold(Integer.parseInt(arg.replaceFirst("--jitter=", "")));
+			} else if (arg.equals("--warmup")) {
+				builder.warmUpCycles(ProxyWarmUp.DEFAULT_CYCLES);
+			} else if (arg.startsWith("--warmup=")) {
+				builder.warmUpCycles(Integer.parseInt(arg.replaceFirst("--warmup=", "")));
+			} else if (arg.startsWith("--loglevel=")) {
+				String level = arg.replaceFirst("--loglevel=", "").toUpperCase();
+				try {
+					ProxyLog.setLevel(ProxyLog.Level.valueOf(level));
+				} catch (IllegalArgumentException e) {
+					unknownParameters.add(arg);
+				}
 			} else {
 				unknownParameters.add(arg);
 			}
 		}
 
-		return new SimsparkAgentProxyServerParameter(proxyPort, ssHost, ssPort, showMessages, daemon);
+		builder.frameLimits(new FrameLimits(maxActionSize, maxPerceptionSize, streamOversized));
+		if (rateLimit != null) {
+			String[] values = rateLimit.split(",");
+			int bytesPerCycle = Integer.parseInt(values[0]);
+			int framesPerCycle = values.length > 1 ? Integer.parseInt(values[1]) : 0;
+			int burstCycles =
+					values.length > 2 ? Integer.parseInt(values[2]) : RateLimitStage.Limits.DEFAULT_BURST_CYCLES;
+			builder.rateLimits(new RateLimitStage.Limits(bytesPerCycle, framesPerCycle, burstCycles, throttlePolicy));
+		} else if (throttle != null) {
+			ProxyLog.warn("Ignoring " + throttle + " without --ratelimit");
+		}
+
+		return builder.build();
 	}
 
 	/**
@@ -132,10 +303,32 @@ public class MagmaProxy
 	}
 
 	public void run(boolean daemon)
+	{
+		run(daemon, 0);
+	}
+
+	/**
+	 * Starts the proxy server and reads commands from standard input until
+	 * asked to quit.
+	 * @param daemon true to not read from standard input
+	 * @param adminPort the port of the admin socket on localhost, 0 for none
+	 */
+	public void run(boolean daemon, int adminPort)
 	{
 		System.out.println("Starting magmaProxy version " + PROXY_VERSION);
+		proxy.warmUp();
 		proxy.start();
 
+		CommandInterpreter interpreter = new CommandInterpreter(proxy);
+		if (adminPort > 0) {
+			try {
+				AdminServer adminServer = new AdminServer(adminPort, interpreter, this::shutdown);
+				adminServer.start();
+			} catch (IOException e) {
+				System.out.println("Admin socket not available: " + e.getMessage());
+			}
+		}
+
 		if (daemon) {
 			// Don't try to read from stdin while running in the background
 			// Doing so will result in receiving SIGTTIN
@@ -145,6 +338,7 @@ public class MagmaProxy
 
 		// open up standard input
 		BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+		PrintWriter out = new PrintWriter(System.out, true);
 		String input;
 		boolean shutdown = false;
 
@@ -156,79 +350,20 @@ public class MagmaProxy
 				System.out.println("IO error. Shutdown...");
 				break;
 			}
-
-			ArrayList<AgentProxy> agentProxies = proxy.getAgentProxies();
-
-			switch (input) {
-			case "q":
-			case "quit":
-				// shutdown
-				shutdown = true;
-				break;
-
-			case "l":
-			case "list":
-				// list active agent proxies
-				System.out.println("Active agents:");
-				for (int i = 0; i < agentProxies.size(); i++) {
-					AgentProxy agentProxy = agentProxies.get(i);
-					if (agentProxy.isActive()) {
-						System.out.println((i + 1) + ". " + agentProxy);
-					}
-				}
-				break;
-
-			case "v":
-			case "verbose":
-				// verbosely list active agent proxies
-				System.out.println("Active agents:");
-				for (int i = 0; i < agentProxies.size(); i++) {
-					AgentProxy agentProxy = agentProxies.get(i);
-					if (agentProxy.isActive()) {
-						System.out.println((i + 1) + ". " + agentProxy.toStringVerbose());
-					}
-				}
-				break;
-
-			case "s":
-			case "status":
-				// print proxy status
-				System.out.println("Proxy thread alive: " + proxy.isAlive());
-				System.out.println("All agents (" + agentProxies.size() + "):");
-				for (int i = 0; i < agentProxies.size(); i++) {
-					System.out.println((i + 1) + ". " + agentProxies.get(i));
-				}
-				break;
-
-			case "m":
-				// switch messages on/off
-				System.out.println("Proxy thread alive: " + proxy.isAlive());
-				for (AgentProxy agentProxy : agentProxies) {
-					agentProxy.toggleClientMessageDisplay();
-				}
-				break;
-
-			case "n":
-				// switch messages on/off
-				System.out.println("Proxy thread alive: " + proxy.isAlive());
-				for (AgentProxy agentProxy : agentProxies) {
-					agentProxy.toggleServerMessageDisplay();
-				}
-				break;
-
-			default:
-				System.out.println("Command \"" + input + "\" unknown!");
-				System.out.println("Known commands:");
-				System.out.println("q; quit\t\t--> exit proxy server application");
-				System.out.println("l; list\t\t--> list active agent proxy instances");
-				System.out.println("v; verbose\t--> list active agent proxy instances verbosely");
-				System.out.println("s; status\t--> print proxy status");
-				System.out.println("m; \t--> print start of all client messages");
-				System.out.println("n; \t--> print start of all server messages");
-				break;
+			if (input == null) {
+				// standard input closed, keep running like a daemon
+				return;
 			}
+
+			shutdown = interpreter.execute(input, out);
 		}
 
+		shutdown();
+	}
+
+	private void shutdown()
+	{
 		proxy.shutdown();
+		ProxyLog.flush();
 	}
 }
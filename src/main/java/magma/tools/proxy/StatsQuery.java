@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import magma.tools.proxy.impl.AgentSummary;
+import magma.tools.proxy.impl.StatsStore;
+import magma.tools.proxy.impl.StatsStore.IndexEntry;
+
+/**
+ * Sums up the agent summaries kept by the proxy with --statsdir across
+ * matches, e.g. to compare the timing of teams during a tournament.
+ * @author agent
+ */
+public class StatsQuery
+{
+	/**
+	 * Prints the totals of the summaries selected.
+	 *
+	 * @param args Command line arguments <br>
+	 *        <table>
+	 *        <tr>
+	 *        <td>--statsdir=</td>
+	 *        <td>Directory of the store (default: stats)</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--team=</td>
+	 *        <td>Only agents of this team</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--address=</td>
+	 *        <td>Only agents connected from this address</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--from=</td>
+	 *        <td>Only matches started on or after this date (yyyy-mm-dd)</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--to=</td>
+	 *        <td>Only matches started on or before this date (yyyy-mm-dd)</td>
+	 *        </tr>
+	 *        <tr>
+	 *        <td>--by=</td>
+	 *        <td>What to sum up per line (team, address, date, all), default
+	 *        team</td>
+	 *        </tr>
+	 *        </table>
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		Path directory = Paths.get("stats");
+		String team = null;
+		String address = null;
+		LocalDate from = LocalDate.MIN;
+		LocalDate to = LocalDate.MAX;
+		String groupBy = "team";
+
+		for (String arg : args) {
+			if (arg.startsWith("--statsdir=")) {
+				directory = Paths.get(arg.replaceFirst("--statsdir=", ""));
+			} else if (arg.startsWith("--team=")) {
+				team = arg.replaceFirst("--team=", "");
+			} else if (arg.startsWith("--address=")) {
+				address = arg.replaceFirst("--address=", "");
+			} else if (arg.startsWith("--from=")) {
+				from = LocalDate.parse(arg.replaceFirst("--from=", ""));
+			} else if (arg.startsWith("--to=")) {
+				to = LocalDate.parse(arg.replaceFirst("--to=", ""));
+			} else if (arg.startsWith("--by=")) {
+				groupBy = arg.replaceFirst("--by=", "");
+			} else {
+				System.out.println("Unknown Parameter: " + arg);
+				System.out.println("Usage example: --statsdir=stats --team=magma --from=2026-07-01 --by=date");
+				return;
+			}
+		}
+
+		long start = System.nanoTime();
+		List<AgentSummary> summaries = StatsStore.query(directory, filter(team, address, from, to));
+		Map<String, AgentSummary.Totals> totals = sum(summaries, groupKey(groupBy));
+		double queryTime = (System.nanoTime() - start) / 1000000.0;
+
+		for (Map.Entry<String, AgentSummary.Totals> entry : totals.entrySet()) {
+			System.out.println(entry.getKey() + ": " + entry.getValue());
+		}
+		System.out.println(String.format(Locale.ROOT, "%d summaries in %.1f(ms)", summaries.size(), queryTime));
+	}
+
+	/**
+	 * @param team the team to select, null for all
+	 * @param address the client address to select, null for all
+	 * @param from the first date to select
+	 * @param to the last date to select
+	 * @return the filter selecting index entries
+	 */
+	public static Predicate<IndexEntry> filter(String team, String address, LocalDate from, LocalDate to)
+	{
+		return entry -> (team == null || team.equals(entry.team())) &&
+				(address == null || address.equals(entry.clientAddress())) && !entry.date().isBefore(from) &&
+				!entry.date().isAfter(to);
+	}
+
+	/**
+	 * @param groupBy what to sum up per line (team, address, date, all)
+	 * @return the function returning the line a summary is added to
+	 */
+	public static Function<AgentSummary, String> groupKey(String groupBy)
+	{
+		switch (groupBy) {
+		case "team":
+			return summary -> "team " + summary.team();
+		case "address":
+			return summary -> "address " + summary.clientAddress();
+		case "date":
+			return summary -> summary.matchDate().toString();
+		case "all":
+			return summary -> "all";
+		default:
+			throw new IllegalArgumentException("Unknown grouping: " + groupBy);
+		}
+	}
+
+	/**
+	 * @param summaries the summaries to sum up
+	 * @param groupKey returns the line a summary is added to
+	 * @return the totals of each line ordered by key
+	 */
+	public static Map<String, AgentSummary.Totals> sum(
+			List<AgentSummary> summaries, Function<AgentSummary, String> groupKey)
+	{
+		Map<String, AgentSummary.Totals> result = new TreeMap<>();
+		for (AgentSummary summary : summaries) {
+			result.computeIfAbsent(groupKey.apply(summary), key -> new AgentSummary.Totals()).add(summary);
+		}
+		return result;
+	}
+}
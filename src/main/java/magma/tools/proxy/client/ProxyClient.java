@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.client;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import magma.tools.proxy.client.SharedMemoryRing.WaitStrategy;
+
+/**
+ * Reference client for agents connecting to the magma proxy. Messages are
+ * exchanged with the usual 4 byte length prefix over TCP. If requested, the
+ * client asks the proxy to switch to shared memory rings after connecting.
+ * The TCP connection is then kept open only to detect if one side died. If
+ * the proxy refuses, the client stays on TCP, so agents can always use it.
+ * <p>
+ * Handshake: the first message the client sends is
+ * {@value #SHARED_MEMORY_REQUEST}. The proxy answers with
+ * {@code (magmaProxyShm <path>)} naming the file containing the rings, or with
+ * {@code (magmaProxyShm refused)}. All further messages use the rings. Sending
+ * and receiving can be done by different threads, but each by only one.
+ *
+ * @author agent
+ */
+public class ProxyClient implements Closeable
+{
+	/** first message of an agent asking to switch to shared memory */
+	public static final String SHARED_MEMORY_REQUEST = "(magmaProxyShm)";
+
+	/** start of the proxy's answer to the shared memory request */
+	public static final String SHARED_MEMORY_REPLY = "(magmaProxyShm ";
+
+	/** answer of the proxy if shared memory is not available */
+	public static final String SHARED_MEMORY_REFUSED = SHARED_MEMORY_REPLY + "refused)";
+
+	private final Socket socket;
+
+	private final DataInputStream in;
+
+	private final DataOutputStream out;
+
+	/** the file of the rings, null if using TCP */
+	private MappedByteBuffer sharedMemory;
+
+	/** the path of the file of the rings as sent by the proxy, null if using TCP */
+	private Path sharedMemoryPath;
+
+	private SharedMemoryRing toProxy;
+
+	private SharedMemoryRing toAgent;
+
+	/**
+	 * Connects to the proxy using TCP only.
+	 * @param host the host of the proxy
+	 * @param port the port of the proxy
+	 */
+	public ProxyClient(String host, int port) throws IOException
+	{
+		this(host, port, null);
+	}
+
+	/**
+	 * Connects to the proxy.
+	 * @param host the host of the proxy
+	 * @param port the port of the proxy
+	 * @param sharedMemoryWait how to wait on the shared memory rings, null to
+	 *        use TCP only
+	 */
+	public ProxyClient(String host, int port, WaitStrategy sharedMemoryWait) throws IOException
+	{
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(socket.getInputStream());
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		if (sharedMemoryWait != null) {
+			requestSharedMemory(sharedMemoryWait);
+		}
+	}
+
+	private void requestSharedMemory(WaitStrategy waitStrategy) throws IOException
+	{
+		sendTcp(SHARED_MEMORY_REQUEST.getBytes(StandardCharsets.US_ASCII), 0, SHARED_MEMORY_REQUEST.length());
+		byte[] reply = receiveTcp();
+		String answer = reply == null ? "" : new String(reply, StandardCharsets.US_ASCII);
+		if (!answer.startsWith(SHARED_MEMORY_REPLY) || answer.equals(SHARED_MEMORY_REFUSED)) {
+			return;
+		}
+
+		Path path = Paths.get(answer.substring(SHARED_MEMORY_REPLY.length(), answer.length() - 1));
+		sharedMemory = SharedMemoryRing.open(path);
+		sharedMemoryPath = path;
+		toProxy = new SharedMemoryRing(sharedMemory, SharedMemoryRing.TO_PROXY, waitStrategy, this::isProxyAlive);
+		toAgent = new SharedMemoryRing(sharedMemory, SharedMemoryRing.TO_AGENT, waitStrategy, this::isProxyAlive);
+	}
+
+	/**
+	 * @return true if messages are exchanged using shared memory
+	 */
+	public boolean isSharedMemory()
+	{
+		return sharedMemory != null;
+	}
+
+	/**
+	 * @return the path of the file of the rings the proxy sent, null if using
+	 *         TCP. The proxy removes the file after the first message.
+	 */
+	public Path getSharedMemoryPath()
+	{
+		return sharedMemoryPath;
+	}
+
+	/**
+	 * Sends a message to the proxy.
+	 * @param message the message
+	 */
+	public void send(byte[] message) throws IOException
+	{
+		send(message, 0, message.length);
+	}
+
+	/**
+	 * Sends a message to the proxy.
+	 * @param message the buffer containing the message
+	 * @param offset the start of the message
+	 * @param length the length of the message
+	 */
+	public void send(byte[] message, int offset, int length) throws IOException
+	{
+		if (sharedMemory == null) {
+			sendTcp(message, offset, length);
+		} else if (!toProxy.write(message, offset, length)) {
+			throw new IOException("Connection to proxy closed");
+		}
+	}
+
+	/**
+	 * Receives the next message from the proxy. Blocking call.
+	 * @return the message, null if the connection was closed
+	 */
+	public byte[] receive() throws IOException
+	{
+		if (sharedMemory == null) {
+			return receiveTcp();
+		}
+
+		int length = toAgent.awaitMessage();
+		if (length < 0) {
+			return null;
+		}
+		byte[] message = new byte[length];
+		toAgent.readMessage(message, 0);
+		return message;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (sharedMemory != null) {
+			SharedMemoryRing.close(sharedMemory);
+		}
+		socket.close();
+	}
+
+	private void sendTcp(byte[] message, int offset, int length) throws IOException
+	{
+		synchronized (out) {
+			out.writeInt(length);
+			out.write(message, offset, length);
+			out.flush();
+		}
+	}
+
+	private byte[] receiveTcp() throws IOException
+	{
+		byte[] header = in.readNBytes(4);
+		if (header.length < 4) {
+			return null;
+		}
+		int length = (header[0] & 0xFF) << 24 | (header[1] & 0xFF) << 16 | (header[2] & 0xFF) << 8 | (header[3] & 0xFF);
+		byte[] message = new byte[length];
+		in.readFully(message);
+		return message;
+	}
+
+	/**
+	 * @return false if the proxy closed the TCP connection
+	 */
+	private synchronized boolean isProxyAlive()
+	{
+		try {
+			socket.setSoTimeout(1);
+			InputStream stream = socket.getInputStream();
+			return stream.read() >= 0;
+		} catch (SocketTimeoutException e) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
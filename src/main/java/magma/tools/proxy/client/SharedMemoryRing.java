@@ -0,0 +1,349 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.client;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Single producer, single consumer ring buffer of length prefixed messages in
+ * a memory mapped file, e.g. under /dev/shm. A file holds two rings, one for
+ * each direction between an agent and the proxy.
+ * <p>
+ * File layout: a header (magic, version, capacity of each ring, closed flag),
+ * the control blocks of both rings (write and read position, each on its own
+ * cache line) and the data of both rings. Messages are stored as a 4 byte
+ * length followed by the message, padded to a multiple of 4 bytes so the
+ * length never wraps around the end of the ring. The producer publishes the
+ * write position with release semantics after copying the message, the
+ * consumer publishes the read position after copying it out.
+ * <p>
+ * Waiting for messages or free space either spins or, after a short spin,
+ * yields the core for a while and then parks the thread for a few
+ * microseconds. While waiting the liveness check
+ * passed is called every {@link #LIVENESS_INTERVAL} ns, so a peer that died
+ * without closing the file is detected.
+ *
+ * @author agent
+ */
+public final class SharedMemoryRing
+{
+	/** How to wait for messages or free space */
+	public enum WaitStrategy {
+		/** busy spin, lowest latency but needs a core per waiting thread */
+		SPIN,
+		/** spin shortly, then yield the core, then park for a few microseconds */
+		PARK
+	}
+
+	/** default capacity of each ring in bytes */
+	public static final int DEFAULT_CAPACITY = 256 * 1024;
+
+	/** time between two liveness checks while waiting in ns */
+	public static final long LIVENESS_INTERVAL = 100000000;
+
+	/** ring from the agent to the proxy */
+	public static final int TO_PROXY = 0;
+
+	/** ring from the proxy to the agent */
+	public static final int TO_AGENT = 1;
+
+	private static final int MAGIC = 0x4D50534D;
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 64;
+
+	private static final int CAPACITY_OFFSET = 8;
+
+	private static final int CLOSED_OFFSET = 12;
+
+	private static final int CONTROL_SIZE = 128;
+
+	private static final int READ_POSITION_OFFSET = 64;
+
+	/** number of spins before yielding */
+	private static final int SPIN_LIMIT = 200;
+
+	/** number of spins before parking */
+	private static final int PARK_LIMIT = SPIN_LIMIT + 100;
+
+	private static final long PARK_NANOS = 20000;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	private final MappedByteBuffer buffer;
+
+	/** offset of the control block of this ring */
+	private final int control;
+
+	/** offset of the data of this ring */
+	private final int data;
+
+	private final int capacity;
+
+	private final WaitStrategy waitStrategy;
+
+	private final BooleanSupplier liveness;
+
+	/** the write position if producer, the read position if consumer */
+	private long position;
+
+	/** the last read position seen by the producer */
+	private long cachedReadPosition;
+
+	/** the time (nanoTime) of the next liveness check while waiting */
+	private long nextLivenessCheck;
+
+	/**
+	 * @param buffer the mapped file
+	 * @param ring {@link #TO_PROXY} or {@link #TO_AGENT}
+	 * @param waitStrategy how to wait
+	 * @param liveness returns false if the peer died, called while waiting
+	 */
+	public SharedMemoryRing(MappedByteBuffer buffer, int ring, WaitStrategy waitStrategy, BooleanSupplier liveness)
+	{
+		this.buffer = buffer;
+		this.waitStrategy = waitStrategy;
+		this.liveness = liveness;
+		capacity = (int) INTS.getAcquire(buffer, CAPACITY_OFFSET);
+		if (Integer.bitCount(capacity) != 1 || buffer.capacity() < HEADER_SIZE + 2 * (CONTROL_SIZE + (long) capacity)) {
+			throw new IllegalArgumentException("Invalid ring capacity: " + capacity);
+		}
+		control = HEADER_SIZE + ring * CONTROL_SIZE;
+		data = HEADER_SIZE + 2 * CONTROL_SIZE + ring * capacity;
+	}
+
+	/**
+	 * Creates and maps a new file for two rings. Where supported, only the
+	 * owner may read and write the file.
+	 * @param path the file to create, must not exist
+	 * @param capacity the capacity of each ring, a power of two
+	 * @return the mapped file
+	 */
+	public static MappedByteBuffer create(Path path, int capacity) throws IOException
+	{
+		if (Integer.bitCount(capacity) != 1 || capacity < 1024) {
+			throw new IllegalArgumentException("Capacity has to be a power of two of at least 1024: " + capacity);
+		}
+		Set<StandardOpenOption> options =
+				EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		FileAttribute<?>[] attributes = new FileAttribute<?>[0];
+		if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			attributes = new FileAttribute<?>[] {
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))};
+		}
+		try (FileChannel file = FileChannel.open(path, options, attributes)) {
+			MappedByteBuffer buffer =
+					file.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2 * (CONTROL_SIZE + (long) capacity));
+			INTS.set(buffer, 4, VERSION);
+			INTS.set(buffer, CAPACITY_OFFSET, capacity);
+			INTS.setRelease(buffer, 0, MAGIC);
+			return buffer;
+		}
+	}
+
+	/**
+	 * Maps an existing file created by {@link #create(Path, int)}.
+	 * @param path the file to map
+	 * @return the mapped file
+	 */
+	public static MappedByteBuffer open(Path path) throws IOException
+	{
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, file.size());
+			if (file.size() < HEADER_SIZE || (int) INTS.getAcquire(buffer, 0) != MAGIC ||
+					(int) INTS.get(buffer, 4) != VERSION) {
+				throw new IOException("Not a shared memory ring file: " + path);
+			}
+			return buffer;
+		}
+	}
+
+	/**
+	 * Marks both rings of the file as closed, waiting threads of both sides
+	 * return.
+	 * @param buffer the mapped file
+	 */
+	public static void close(MappedByteBuffer buffer)
+	{
+		INTS.setRelease(buffer, CLOSED_OFFSET, 1);
+	}
+
+	/**
+	 * @return true if one side closed the file or the peer died
+	 */
+	public boolean isClosed()
+	{
+		return (int) INTS.getAcquire(buffer, CLOSED_OFFSET) != 0;
+	}
+
+	/**
+	 * @return the maximum length of a message
+	 */
+	public int getMaxMessageLength()
+	{
+		return capacity - 4;
+	}
+
+	/**
+	 * Writes a message, waits while the ring is full. Only to be called by the
+	 * producer.
+	 * @param message the buffer containing the message
+	 * @param offset the start of the message
+	 * @param length the length of the message
+	 * @return false if the ring was closed
+	 */
+	public boolean write(byte[] message, int offset, int length)
+	{
+		if (length > getMaxMessageLength()) {
+			throw new IllegalArgumentException("Message too long for ring: " + length);
+		}
+		int size = padded(length);
+
+		int spins = 0;
+		while (capacity - (position - cachedReadPosition) < size) {
+			cachedReadPosition = (long) LONGS.getAcquire(buffer, control + READ_POSITION_OFFSET);
+			if (capacity - (position - cachedReadPosition) >= size) {
+				break;
+			}
+			if (isClosed() || !idle(spins++)) {
+				return false;
+			}
+		}
+
+		int index = (int) (position & (capacity - 1));
+		INTS.set(buffer, data + index, length);
+		copyIn(index + 4, message, offset, length);
+		position += size;
+		LONGS.setRelease(buffer, control, position);
+		return true;
+	}
+
+	/**
+	 * Waits for the next message. Only to be called by the consumer.
+	 * @return the length of the next message, -1 if the ring was closed
+	 */
+	public int awaitMessage()
+	{
+		int spins = 0;
+		while (true) {
+			long writePosition = (long) LONGS.getAcquire(buffer, control);
+			if (writePosition != position) {
+				return (int) INTS.get(buffer, data + (int) (position & (capacity - 1)));
+			}
+			if (isClosed() || !idle(spins++)) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * @return true if a message can be read without waiting
+	 */
+	public boolean isMessageAvailable()
+	{
+		return (long) LONGS.getAcquire(buffer, control) != position;
+	}
+
+	/**
+	 * Copies the message returned by {@link #awaitMessage()} and removes it
+	 * from the ring. Only to be called by the consumer.
+	 * @param destination the buffer to copy the message to
+	 * @param offset the position to copy the message to
+	 */
+	public void readMessage(byte[] destination, int offset)
+	{
+		int index = (int) (position & (capacity - 1));
+		int length = (int) INTS.get(buffer, data + index);
+		copyOut(index + 4, destination, offset, length);
+		position += padded(length);
+		LONGS.setRelease(buffer, control + READ_POSITION_OFFSET, position);
+	}
+
+	/**
+	 * Waits a moment and checks from time to time if the peer is alive.
+	 * @param spins the number of times waited before for the same condition
+	 * @return false if the peer died
+	 */
+	private boolean idle(int spins)
+	{
+		boolean parking = waitStrategy == WaitStrategy.PARK && spins >= SPIN_LIMIT;
+		if (parking && spins >= PARK_LIMIT) {
+			LockSupport.parkNanos(PARK_NANOS);
+		} else if (parking) {
+			// a park takes far longer than asked for, so give the peer the core first
+			Thread.yield();
+		} else {
+			Thread.onSpinWait();
+		}
+
+		if (spins == 0) {
+			nextLivenessCheck = System.nanoTime() + LIVENESS_INTERVAL;
+		} else if (parking || (spins & 0xFF) == 0) {
+			long now = System.nanoTime();
+			if (now > nextLivenessCheck) {
+				nextLivenessCheck = now + LIVENESS_INTERVAL;
+				if (!liveness.getAsBoolean()) {
+					close(buffer);
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private void copyIn(int index, byte[] source, int offset, int length)
+	{
+		int first = Math.min(length, capacity - index);
+		buffer.put(data + index, source, offset, first);
+		if (first < length) {
+			buffer.put(data, source, offset + first, length - first);
+		}
+	}
+
+	private void copyOut(int index, byte[] destination, int offset, int length)
+	{
+		int first = Math.min(length, capacity - index);
+		buffer.get(data + index, destination, offset, first);
+		if (first < length) {
+			buffer.get(data, destination, offset + first, length - first);
+		}
+	}
+
+	private static int padded(int length)
+	{
+		return (length + 4 + 3) & ~3;
+	}
+}
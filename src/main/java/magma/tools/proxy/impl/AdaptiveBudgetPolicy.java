@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+/**
+ * Learns the think time distribution of each agent and sends the sync as soon
+ * as the agent is reliably done, so more cycles are simulated per second of
+ * wall clock time. The budget of an agent is the 99th percentile of its think
+ * times of the last cycles plus a margin, so only about one cycle in a
+ * hundred is expected to be missed. Cycles the agent did not act in count as
+ * taking the maximum budget. Think times are the time until the first action
+ * of a cycle, so the policy suits agents sending one action per cycle.
+ *
+ * @author agent
+ */
+public class AdaptiveBudgetPolicy implements BudgetPolicy
+{
+	/** number of cycles the think times are kept of */
+	static final int WINDOW = 250;
+
+	/** number of cycles observed before the budget is lowered */
+	static final int MIN_SAMPLES = 50;
+
+	/** fraction of cycles allowed to take longer than the budget */
+	private static final double LATE_FRACTION = 0.01;
+
+	/** time in ms added to the percentile */
+	private static final int MARGIN = 1;
+
+	/** the smallest budget in ms */
+	private static final int MIN_BUDGET = 2;
+
+	/** the budget while learning and the upper limit in ms */
+	private final int maxBudget;
+
+	/**
+	 * @param maxBudget the budget while learning and the upper limit in ms
+	 */
+	public AdaptiveBudgetPolicy(int maxBudget)
+	{
+		this.maxBudget = maxBudget;
+	}
+
+	@Override
+	public Budget create(AgentProxy agent)
+	{
+		return new AdaptiveBudget(maxBudget);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "adaptive max " + maxBudget + "ms";
+	}
+
+	/**
+	 * The learned budget of one agent.
+	 */
+	static class AdaptiveBudget implements Budget
+	{
+		private final int maxBudget;
+
+		/** think times of the last cycles in whole ms, maxBudget + 1 if longer */
+		private final int[] window = new int[WINDOW];
+
+		/** number of cycles in the window by think time in ms */
+		private final int[] counts;
+
+		/** the next position to write to in the window */
+		private int position;
+
+		/** the number of think times in the window */
+		private int samples;
+
+		/** the budget of the next cycle in ms */
+		private int budget;
+
+		AdaptiveBudget(int maxBudget)
+		{
+			this.maxBudget = maxBudget;
+			counts = new int[maxBudget + 2];
+			budget = maxBudget;
+		}
+
+		@Override
+		public int nextBudget()
+		{
+			return budget;
+		}
+
+		@Override
+		public void cycleFinished(long thinkTime)
+		{
+			int time = thinkTime < 0 ? maxBudget + 1 : (int) Math.min(maxBudget + 1, (thinkTime + 999999) / 1000000);
+			if (samples == WINDOW) {
+				counts[window[position]]--;
+			} else {
+				samples++;
+			}
+			window[position] = time;
+			counts[time]++;
+			position = (position + 1) % WINDOW;
+
+			budget = samples < MIN_SAMPLES ? maxBudget : learnedBudget();
+		}
+
+		/**
+		 * @return the percentile of the think times plus the margin
+		 */
+		private int learnedBudget()
+		{
+			int allowedLate = (int) (samples * LATE_FRACTION);
+			int late = 0;
+			int time = counts.length - 1;
+			while (time > 0) {
+				late += counts[time];
+				if (late > allowedLate) {
+					break;
+				}
+				time--;
+			}
+			return Math.max(MIN_BUDGET, Math.min(maxBudget, time + MARGIN));
+		}
+	}
+}
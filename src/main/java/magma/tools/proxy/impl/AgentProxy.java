@@ -20,8 +20,12 @@
 package magma.tools.proxy.impl;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import magma.tools.proxy.client.SharedMemoryRing.WaitStrategy;
 
 /**
  * This Class represents a proxy implementation for one client agent. One agent
@@ -42,21 +46,42 @@ public class AgentProxy
 
 	/**
 	 * The maximum time between receiving a perception and responding a
-	 * sync-message
+	 * sync-message if no other {@link BudgetPolicy} is set
 	 */
 	public static final int MAX_WAIT_TIME = 20;
 
+	/**
+	 * First message an agent may send to ask for its think time budget in ms,
+	 * e.g. (magmaProxyBudget 30). It is not forwarded to the server.
+	 */
+	public static final byte[] BUDGET_REQUEST = "(magmaProxyBudget ".getBytes(StandardCharsets.US_ASCII);
+
+	/** The part of the init message of the agent preceding its team name */
+	public static final byte[] TEAM_NAME = "(teamname ".getBytes(StandardCharsets.US_ASCII);
+
+	/** number of first actions searched for the team name */
+	private static final int TEAM_NAME_ACTIONS = 8;
+
+	/** number of times a statistics snapshot is read until consistent */
+	private static final int SNAPSHOT_TRIES = 10;
+
+	/**
+	 * The stack size of the forwarding threads. They only need a shallow stack,
+	 * so less than the platform default is reserved per agent.
+	 */
+	public static final long FORWARDER_STACK_SIZE = 256 * 1024;
+
 	/** The connection to the Simspark server */
 	private Connection serverConnection;
 
-	/** The connection to the client agent */
-	private Connection clientConnection;
+	/** The connection to the client agent, replaced if switching transport */
+	private volatile Transport clientConnection;
 
 	/** Simspark server perception forwarding and server-sync managing thread */
-	private ServerPerceptionsForwarder serverForwarder;
+	private volatile ServerPerceptionsForwarder serverForwarder;
 
 	/** Client agent action forwarding thread */
-	private ClientActionsForwarder clientForwarder;
+	private volatile ClientActionsForwarder clientForwarder;
 
 	/** statistics of messages sent to server */
 	private final MessageInfo sentMessages;
@@ -70,8 +95,29 @@ public class AgentProxy
 	/** the number of cycles missed to send a message to the server */
 	private int missedCycles;
 
+	/** the number of missed cycles in each play mode */
+	private final int[] missedCyclesByPlayMode;
+
+	/** the sim time of the last missed cycle in ms */
+	private int lastMissedSimTime;
+
+	/** number of times a reset of the statistics was requested */
+	private volatile int resetRequests;
+
+	/** the number of missed cycles the host jittered in */
+	private int hostJitterMissedCycles;
+
+	/** tells if the host jittered when a cycle was missed, null if unknown */
+	private JitterMonitor jitterMonitor;
+
+	/** extracts sim time and play mode of perceptions */
+	private final PerceptionScanner perceptionScanner;
+
 	/** true if we have received a syn message from this agent in this cycle */
-	private boolean haveSynMessage;
+	private volatile boolean haveSynMessage;
+
+	/** number of perceptions forwarded, identifies the cycle of a scheduled sync */
+	private volatile long perceptionCycle;
 
 	/** if true prints out sent and received messages */
 	protected boolean showMessages;
@@ -79,44 +125,442 @@ public class AgentProxy
 	/** counts how many invalid say messages have been sent by client */
 	private int invalidSayMessageCount;
 
+	/** if true invalid say messages are removed before forwarding */
+	private boolean sanitizeSay;
+
+	/** timing of the last cycles */
+	private CycleTimeline timeline;
+
+	/** source of time and sleeping of the forwarders */
+	private ProxyClock clock;
+
+	/** the time (nanoTime) this proxy was created, time base of the timeline */
+	private long creationTime;
+
+	/** the time (nanoTime) the connection of the client agent was accepted */
+	private volatile long acceptTime;
+
+	/** the time (nanoTime) the agent proxy was started */
+	private long startedTime;
+
+	/** the time (nanoTime) the first perception was forwarded to the agent */
+	private volatile long firstPerceptionTime;
+
+	/** true after the proxy has been stopped */
+	private volatile boolean closed;
+
+	/** the port of the client agent, used to identify events */
+	private int clientPort;
+
+	/** how to wait on shared memory if agents ask for it, null to refuse */
+	private WaitStrategy sharedMemoryWait;
+
+	/** sends the proxy syncs of all agents, null if the forwarder waits itself */
+	private SyncScheduler syncScheduler;
+
+	/** the pending sync of this agent proxy in the sync scheduler */
+	private SyncScheduler.Task syncTask;
+
+	/** the maximum length of received messages */
+	private FrameLimits frameLimits = FrameLimits.DEFAULT;
+
+	/** number of newest backlogged perceptions forwarded, 0 to forward all */
+	private int catchUpDepth;
+
+	/** number of backlogged perceptions not forwarded to the agent */
+	private volatile int skippedPerceptions;
+
+	/** number of times a backlog of perceptions was worked off */
+	private int catchUps;
+
+	/** sum of the times from a backlog until the agent acted again in ns */
+	private long catchUpTime;
+
+	/** maximum time from a backlog until the agent acted again in ns */
+	private long maxCatchUpTime;
+
+	/** the time (nanoTime) the first perception of a backlog was received */
+	private volatile long catchUpStart;
+
+	/** true if the backlog was forwarded and the agent has not acted since */
+	private volatile boolean catchUpPending;
+
+	/** bytes allocated by the server forwarder thread since its first cycle */
+	private volatile long perceptionForwarderBytes;
+
+	/** bytes allocated by the client forwarder thread since its first action */
+	private volatile long actionForwarderBytes;
+
+	/** decides the think time budgets of this agent */
+	private volatile BudgetPolicy budgetPolicy = BudgetPolicy.DEFAULT;
+
+	/** the think time budgets of this agent, only used by the server forwarder */
+	private volatile BudgetPolicy.Budget thinkTimeBudget = BudgetPolicy.DEFAULT.create(this);
+
+	/** the think time budget of the current cycle in ms */
+	private volatile int cycleBudget = MAX_WAIT_TIME;
+
+	/** the budget in ms the agent asked for in its handshake, 0 if none */
+	private volatile int requestedBudget;
+
+	/** the perception cycle the client agent acted in last */
+	private volatile long actionCycle;
+
+	/** the time in ns from perception to first action in the action cycle */
+	private volatile long firstThinkTime;
+
+	/** the host address of the client agent, null if not connected by TCP */
+	private String clientAddress;
+
+	/** the local port of the proxy the client agent connected to, -1 if none */
+	private int proxyPort = -1;
+
+	/** CPU time in ns used by the server forwarder thread */
+	private volatile long perceptionForwarderCpu;
+
+	/** CPU time in ns used by the client forwarder thread */
+	private volatile long actionForwarderCpu;
+
+	/** CPU time in ns shared threads like the sync scheduler used for this agent */
+	private volatile long pooledCpu;
+
+	/** number of perception bytes forwarded to the client agent */
+	private volatile long perceptionBytes;
+
+	/** number of action bytes forwarded to the server */
+	private volatile long actionBytes;
+
+	/** stages all messages from the client agent pass */
+	private FramePipeline clientPipeline;
+
+	/** stages all messages from the Simspark server pass */
+	private FramePipeline serverPipeline;
+
+	/** the team name of the init message of the agent, null if not yet sent */
+	private volatile String teamName;
+
+	/** think times of the cycles, written by the server forwarder */
+	private final ThinkTimeHistogram thinkTimes = new ThinkTimeHistogram();
+
+	/** think times of the cycles before the last reset of the statistics */
+	private final ThinkTimeHistogram thinkTimesBeforeReset = new ThinkTimeHistogram();
+
+	/** missed cycles before the last reset, written while holding the lock */
+	private int missedCyclesBeforeReset;
+
+	/** host jitter missed cycles before the last reset, written with the lock */
+	private int hostJitterMissedCyclesBeforeReset;
+
+	/** skipped perceptions before the last reset of the statistics */
+	private volatile int skippedPerceptionsBeforeReset;
+
+	/** invalid says before the last reset of the statistics */
+	private volatile int invalidSaysBeforeReset;
+
+	/** the time the proxy was stopped (epoch ms), 0 while running */
+	private volatile long closeTime;
+
 	public AgentProxy(Socket clientSocket, String ssHost, int ssPort, boolean showMessages)
 	{
 		this.showMessages = showMessages;
 		sentMessages = new MessageInfo(false);
 		receivedMessages = new MessageInfo(true);
 		missedCycles = 0;
+		missedCyclesByPlayMode = new int[PerceptionScanner.getPlayModeCount()];
+		lastMissedSimTime = PerceptionScanner.NO_SIM_TIME;
+		perceptionScanner = new PerceptionScanner();
 		haveSynMessage = false;
 		invalidSayMessageCount = 0;
+		timeline = new CycleTimeline(CycleTimeline.DEFAULT_CAPACITY);
+		clock = ProxyClock.SYSTEM;
+		creationTime = clock.nanoTime();
+		clientPipeline = FramePipeline.create(FramePipeline.defaultClientStages());
+		serverPipeline = FramePipeline.create(FramePipeline.defaultServerStages());
 	}
 
-	public void start(Socket clientSocket, String ssHost, int ssPort, boolean showMessages)
+	/**
+	 * Sets the number of cycles kept in the timeline. Has to be called before
+	 * the proxy is started.
+	 * @param capacity the number of cycles to keep, 0 to switch recording off
+	 */
+	public void setTimelineCapacity(int capacity)
 	{
-		try {
-			System.out.print("Starting agent proxy for " + clientSocket + "... ");
-			clientConnection = new Connection(clientSocket);
-			serverConnection = new Connection(ssHost, ssPort);
-			if (showMessages) {
-				clientConnection.toggleMessageDisplay();
-				serverConnection.toggleMessageDisplay();
-			}
+		timeline = new CycleTimeline(capacity);
+	}
 
-			clientForwarder = new ClientActionsForwarder();
+	/**
+	 * Allows agents to switch to the shared memory transport. Has to be called
+	 * before the proxy is started.
+	 * @param sharedMemoryWait how to wait on the shared memory rings, null to
+	 *        refuse shared memory
+	 */
+	public void setSharedMemoryWait(WaitStrategy sharedMemoryWait)
+	{
+		this.sharedMemoryWait = sharedMemoryWait;
+	}
+
+	/**
+	 * Limits of the length of messages received by an agent proxy. Oversized
+	 * messages are rejected, closing the connection, or streamed through in
+	 * chunks without passing the stages and statistics of the proxy. A
+	 * streamed perception does not start a cycle: it is not counted, not
+	 * recorded in the timeline and no sync is sent for it if the agent misses
+	 * one. Agents using shared memory can only send and receive messages up to
+	 * the capacity of the rings.
+	 * @param maxActionSize maximum length of messages from the client agent
+	 * @param maxPerceptionSize maximum length of messages from the server
+	 * @param streamOversized true to stream oversized messages through, false
+	 *        to reject them
+	 */
+	public record FrameLimits(int maxActionSize, int maxPerceptionSize, boolean streamOversized)
+	{
+		/** rejects actions above 64KB and perceptions above 1MB */
+		public static final FrameLimits DEFAULT = new FrameLimits(64 * 1024, 1024 * 1024, false);
+	}
+
+	/**
+	 * Limits the length of received messages. Has to be called before the
+	 * proxy is started.
+	 * @param frameLimits the maximum length of messages in each direction
+	 */
+	public void setFrameLimits(FrameLimits frameLimits)
+	{
+		this.frameLimits = frameLimits;
+		if (clientConnection != null) {
+			applyFrameLimits();
+		}
+	}
 
-			clientForwarder.start();
+	private void applyFrameLimits()
+	{
+		boolean stream = frameLimits.streamOversized();
+		clientConnection.setMaxFrameSize(frameLimits.maxActionSize(), stream ? serverConnection : null);
+		serverConnection.setMaxFrameSize(frameLimits.maxPerceptionSize(), stream ? clientConnection : null);
+	}
 
-			System.out.println("done.");
+	/**
+	 * Lets the proxy skip outdated perceptions if the server sent more than
+	 * one since the last sync, e.g. after the agent stalled. Has to be called
+	 * before the proxy is started.
+	 * @param catchUpDepth the number of the newest backlogged perceptions to
+	 *        forward, 0 to forward all
+	 */
+	public void setCatchUpDepth(int catchUpDepth)
+	{
+		this.catchUpDepth = catchUpDepth;
+	}
+
+	/**
+	 * Lets a scheduler shared by all agent proxies send the proxy syncs. Has to
+	 * be called before the proxy is started.
+	 * @param syncScheduler sends the proxy syncs in deadline order, null to let
+	 *        the perception forwarder wait for the deadline itself
+	 */
+	public void setSyncScheduler(SyncScheduler syncScheduler)
+	{
+		this.syncScheduler = syncScheduler;
+		syncTask = syncScheduler == null ? null : syncScheduler.createTask(this);
+	}
+
+	/**
+	 * Lets missed cycles be tagged with whether the host jittered during the
+	 * cycle. Has to be called before the proxy is started.
+	 * @param jitterMonitor measures the jitter of the host, null to not tag
+	 *        missed cycles
+	 */
+	public void setJitterMonitor(JitterMonitor jitterMonitor)
+	{
+		this.jitterMonitor = jitterMonitor;
+	}
+
+	/**
+	 * Replaces the clock used for all times and waiting of this proxy. Has to
+	 * be called before the proxy is started.
+	 * @param clock the clock to use
+	 */
+	public void setClock(ProxyClock clock)
+	{
+		this.clock = clock;
+		creationTime = clock.nanoTime();
+	}
+
+	/**
+	 * @return the clock used for all times and waiting of this proxy
+	 */
+	ProxyClock getClock()
+	{
+		return clock;
+	}
+
+	/**
+	 * Replaces the stages messages pass before being forwarded. Has to be
+	 * called before the proxy is started.
+	 * @param clientPipeline the stages of messages from the client agent
+	 * @param serverPipeline the stages of messages from the Simspark server
+	 */
+	public void setPipelines(FramePipeline clientPipeline, FramePipeline serverPipeline)
+	{
+		this.clientPipeline = clientPipeline;
+		this.serverPipeline = serverPipeline;
+	}
+
+	public void start(Socket clientSocket, String ssHost, int ssPort, boolean showMessages)
+	{
+		setClientEndpoint(clientSocket.getInetAddress().getHostAddress(), clientSocket.getLocalPort());
+		try {
+			start(new Connection(clientSocket), clientSocket.getPort(), ssHost, ssPort, showMessages);
 		} catch (IOException e) {
-			System.out.println("FAILED! (" + e.getMessage() + ")");
+			ProxyLog.error("Starting agent proxy for " + clientSocket + "... FAILED! (" + e.getMessage() + ")");
 			stopProxy();
 		}
 	}
 
+	/**
+	 * Starts the proxy on an established connection to the client agent.
+	 * @param clientConnection the connection to the client agent
+	 * @param clientPort the port of the client agent, a running number for
+	 *        connections without port
+	 * @param ssHost Simspark server IP
+	 * @param ssPort Simspark server port
+	 * @param showMessages true if messages should be printed
+	 */
+	public void start(Transport clientConnection, int clientPort, String ssHost, int ssPort, boolean showMessages)
+	{
+		this.clientPort = clientPort;
+		setConnections(clientConnection, new Connection(ssHost, ssPort));
+		if (showMessages) {
+			clientConnection.toggleMessageDisplay();
+			serverConnection.toggleMessageDisplay();
+		}
+
+		clientForwarder = new ClientActionsForwarder();
+
+		clientForwarder.start();
+		startedTime = clock.nanoTime();
+
+		ProxyLog.info("Starting agent proxy for " + clientConnection + "... done.");
+	}
+
+	/**
+	 * Records where the client agent connected from and to, used by budget
+	 * policies. Has to be called before the connections are set.
+	 * @param clientAddress the host address of the client agent
+	 * @param proxyPort the local port of the proxy the agent connected to
+	 */
+	void setClientEndpoint(String clientAddress, int proxyPort)
+	{
+		this.clientAddress = clientAddress;
+		this.proxyPort = proxyPort;
+	}
+
+	/**
+	 * Sets the connections the forwarders work on. Used instead of start to
+	 * drive the forwarders step by step.
+	 * @param clientConnection the connection to the client agent
+	 * @param serverConnection the connection to the Simspark server
+	 */
+	void setConnections(Transport clientConnection, Connection serverConnection)
+	{
+		this.clientConnection = clientConnection;
+		this.serverConnection = serverConnection;
+		applyFrameLimits();
+		// the policy may depend on the address of the agent
+		thinkTimeBudget = budgetPolicy.create(this);
+	}
+
+	/**
+	 * Replaces the policy deciding the think time budgets of this agent. Can be
+	 * called while the proxy is running, the new budget applies from the next
+	 * cycle on.
+	 * @param budgetPolicy the policy to use
+	 */
+	public void setBudgetPolicy(BudgetPolicy budgetPolicy)
+	{
+		this.budgetPolicy = budgetPolicy;
+		thinkTimeBudget = budgetPolicy.create(this);
+	}
+
+	/**
+	 * @return the policy deciding the think time budgets of this agent
+	 */
+	public BudgetPolicy getBudgetPolicy()
+	{
+		return budgetPolicy;
+	}
+
+	/**
+	 * @return the think time budget of the current cycle in ms
+	 */
+	public int getCycleBudget()
+	{
+		return cycleBudget;
+	}
+
+	/**
+	 * @return the budget in ms the agent asked for in its handshake, 0 if none
+	 */
+	public int getRequestedBudget()
+	{
+		return requestedBudget;
+	}
+
+	/**
+	 * @return the host address of the client agent, null if not connected by
+	 *         TCP
+	 */
+	public String getClientAddress()
+	{
+		return clientAddress;
+	}
+
+	/**
+	 * @return the local port of the proxy the client agent connected to, -1 if
+	 *         not connected by TCP
+	 */
+	public int getProxyPort()
+	{
+		return proxyPort;
+	}
+
+	/**
+	 * @return the team name of the init message of the agent, null if not sent
+	 *         yet
+	 */
+	public String getTeamName()
+	{
+		return teamName;
+	}
+
+	/**
+	 * @return a copy of the think times of the cycles per ms, see
+	 *         {@link ThinkTimeHistogram}
+	 */
+	public int[] getThinkTimes()
+	{
+		return thinkTimes.getCounts();
+	}
+
+	/**
+	 * @return the time the proxy was stopped (epoch ms), 0 while running
+	 */
+	public long getCloseTime()
+	{
+		return closeTime;
+	}
+
 	/**
 	 * Stop proxy. Close connections to Simspark server and client agent.
 	 */
 	public void stopProxy()
 	{
 		boolean success = false;
+		if (!closed) {
+			closeTime = System.currentTimeMillis();
+		}
+		closed = true;
+		if (syncScheduler != null) {
+			syncScheduler.cancel(syncTask);
+		}
 
 		if (clientConnection != null && clientConnection.isConnected()) {
 			clientConnection.disconnect();
@@ -129,8 +573,8 @@ public class AgentProxy
 		}
 
 		if (success) {
-			System.out.println(this);
-			System.out.println("Closed   agent proxy for " + clientConnection);
+			ProxyLog.info(this.toString());
+			ProxyLog.info("Closed   agent proxy for " + clientConnection);
 		}
 	}
 
@@ -145,26 +589,151 @@ public class AgentProxy
 				clientForwarder.isAlive();
 	}
 
+	/**
+	 * @return true if this proxy has been stopped
+	 */
+	public boolean isClosed()
+	{
+		return closed;
+	}
+
+	/**
+	 * @return true if this proxy has been stopped and its forwarders have
+	 *         ended, so its timeline does not change anymore
+	 */
+	public boolean isTerminated()
+	{
+		return closed && (serverForwarder == null || !serverForwarder.isAlive()) &&
+				(clientForwarder == null || !clientForwarder.isAlive());
+	}
+
+	/**
+	 * @param acceptTime the time (nanoTime) the connection of the client agent
+	 *        was accepted
+	 */
+	public void setAcceptTime(long acceptTime)
+	{
+		this.acceptTime = acceptTime;
+	}
+
+	/**
+	 * @return the time in ms from accepting the connection of the agent until
+	 *         its first perception was forwarded, -1 if not known (yet)
+	 */
+	public double getTimeToFirstPerception()
+	{
+		if (acceptTime == 0 || firstPerceptionTime == 0) {
+			return -1;
+		}
+		return (firstPerceptionTime - acceptTime) / 1000000.0;
+	}
+
 	/**
 	 * Send a message to the Simspark server.
 	 *
 	 * @param msg - the message to send
 	 */
-	private synchronized void sendServerMsg(byte[] msg)
+	private void sendServerMsg(byte[] msg)
+	{
+		sendServerMsg(msg, 0, msg.length);
+	}
+
+	/**
+	 * Send a message frame to the Simspark server.
+	 *
+	 * @param msg - the frame containing the message to send
+	 */
+	private synchronized void sendServerMsg(Frame msg)
 	{
 		serverConnection.sendMessage(msg);
-		// check if a cycle was missed by the agent
-		if (sentMessages.count == sentMessagesWhenReceiving && msg == SYNC_BYTES) {
-			missedCycles++;
+	}
+
+	/**
+	 * Send a part of a message buffer to the Simspark server.
+	 *
+	 * @param msg - the buffer containing the message to send
+	 * @param offset - the start of the message
+	 * @param length - the length of the message
+	 */
+	private synchronized void sendServerMsg(byte[] msg, int offset, int length)
+	{
+		serverConnection.sendMessage(msg, offset, length);
+		if (msg == SYNC_BYTES) {
+			// check if a cycle was missed by the agent
+			boolean missed = sentMessages.count == sentMessagesWhenReceiving;
+			if (missed) {
+				missedCycleDetected();
+			}
+			syncSent(CycleTimeline.SYNC_PROXY, missed);
+		}
+	}
+
+	/**
+	 * Counts a cycle the agent did not send an action in.
+	 */
+	private void missedCycleDetected()
+	{
+		int simTime = perceptionScanner.getSimTime();
+		byte playMode = perceptionScanner.getPlayMode();
+		missedCycles++;
+		missedCyclesByPlayMode[playMode]++;
+		lastMissedSimTime = simTime;
+		boolean hostJitter = jitterMonitor != null && jitterMonitor.jitterSince(receivedMessages.lastMessageTime);
+		if (hostJitter) {
+			hostJitterMissedCycles++;
+			timeline.hostJitterDetected();
+		}
+
+		if (ProxyLog.isEnabled(ProxyLog.Level.DEBUG)) {
+			ProxyLog.debug("Missed cycle of agent " + clientPort + " at " + PerceptionScanner.formatSimTime(simTime) +
+					"(s) " + PerceptionScanner.getPlayModeName(playMode) + (hostJitter ? " host jitter" : ""));
+		}
+
+		if (ProxyEvents.isRecording()) {
+			ProxyEvents.MissedCycle event = new ProxyEvents.MissedCycle();
+			if (event.isEnabled()) {
+				event.agentPort = clientPort;
+				event.missedCycles = missedCycles;
+				event.simTime = simTime;
+				event.playMode = PerceptionScanner.getPlayModeName(playMode);
+				event.hostJitter = hostJitter;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Records a sync sent to the server in the current cycle. Synchronized,
+	 * since the timeline expects one writer of its sync columns at a time.
+	 * @param source who sent the sync, one of the CycleTimeline.SYNC_* constants
+	 * @param missed true if the agent missed the cycle
+	 */
+	private synchronized void syncSent(byte source, boolean missed)
+	{
+		long time = clock.nanoTime();
+		timeline.syncSent(time, source, missed);
+
+		if (ProxyEvents.isRecording()) {
+			ProxyEvents.SyncSent event = new ProxyEvents.SyncSent();
+			if (event.isEnabled()) {
+				// the first sync is sent before any perception was received
+				long perceptionTime = receivedMessages.lastMessageTime;
+				long latency = perceptionTime > 0 ? time - perceptionTime : 0;
+				event.agentPort = clientPort;
+				event.source = source == CycleTimeline.SYNC_CLIENT ? "client" : "proxy";
+				event.latency = latency;
+				event.lateness = perceptionTime > 0 ? latency - cycleBudget * 1000000L : 0;
+				event.commit();
+			}
 		}
 	}
 
 	/**
 	 * Send a message to the client agent.
 	 *
-	 * @param msg - the message to send
+	 * @param msg - the frame containing the message to send
 	 */
-	private void sendClientMsg(byte[] msg)
+	private void sendClientMsg(Frame msg)
 	{
 		clientConnection.sendMessage(msg);
 	}
@@ -172,21 +741,138 @@ public class AgentProxy
 	/**
 	 * Receive a message from the Simspark sevrer. Blocking call.
 	 *
-	 * @return the next, complete message received from the Simspark server
+	 * @param msg - the frame to receive the message to
+	 * @return false if the connection was closed
 	 */
-	private byte[] receiveServerMsg()
+	private boolean receiveServerMsg(Frame msg)
 	{
-		return serverConnection.receiveMessage();
+		return serverConnection.receiveMessage(msg);
 	}
 
 	/**
 	 * Receive a message from the client agent. Blocking call.
 	 *
-	 * @return the next, complete message received from the client agent
+	 * @param msg - the frame to receive the message to
+	 * @return false if the connection was closed
+	 */
+	private boolean receiveClientMsg(Frame msg)
+	{
+		return clientConnection.receiveMessage(msg);
+	}
+
+	/**
+	 * Counters of an agent proxy read at one moment.
+	 * @param clientPort the port of the client agent
+	 * @param clientAddress the host address of the client agent, null if not
+	 *        connected by TCP
+	 * @param active true if both forwarders are running
+	 * @param cycle the number of perceptions forwarded so far
+	 * @param perceptions the number of perceptions received since the last
+	 *        reset
+	 * @param actions the number of actions forwarded since the last reset
+	 * @param missedCycles cycles without action since the last reset
+	 * @param hostJitterMissedCycles missed cycles the host jittered in
+	 * @param invalidSays actions with an invalid say since the last reset
+	 * @param skippedPerceptions backlogged perceptions not forwarded
+	 * @param catchUps number of times a backlog was worked off
+	 * @param budget the think time budget of the current cycle in ms
+	 * @param allocatedBytesPerCycle bytes allocated by the forwarders per cycle
+	 * @param cpuMicrosPerCycle CPU time used for the agent per cycle in us
+	 * @param cpuMicrosPerKilobyte CPU time used for the agent per KB forwarded
+	 *        in us
+	 */
+	public record Statistics(int clientPort, String clientAddress, boolean active, long cycle, int perceptions,
+			int actions, int missedCycles, int hostJitterMissedCycles, int invalidSays, int skippedPerceptions,
+			int catchUps, int budget, double allocatedBytesPerCycle, double cpuMicrosPerCycle,
+			double cpuMicrosPerKilobyte)
+	{
+		/**
+		 * @return the statistics as a JSON object on one line
+		 */
+		public String toJson()
+		{
+			return String.format(Locale.ROOT,
+					"{\"port\":%d,\"address\":%s,\"active\":%b,\"cycle\":%d,\"perceptions\":%d,\"actions\":%d," +
+							"\"missedCycles\":%d,\"hostJitterMissedCycles\":%d,\"invalidSays\":%d," +
+							"\"skippedPerceptions\":%d,\"catchUps\":%d,\"budget\":%d,\"allocatedBytesPerCycle\":%.1f," +
+							"\"cpuMicrosPerCycle\":%.1f,\"cpuMicrosPerKilobyte\":%.1f}",
+					clientPort, clientAddress == null ? "null" : "\"" + clientAddress + "\"", active, cycle,
+					perceptions, actions, missedCycles, hostJitterMissedCycles, invalidSays, skippedPerceptions,
+					catchUps, budget, allocatedBytesPerCycle, cpuMicrosPerCycle, cpuMicrosPerKilobyte);
+		}
+	}
+
+	/**
+	 * Reads the counters of this proxy without locking or pausing the
+	 * forwarders. The read is repeated if a cycle started meanwhile, so all
+	 * counters belong to the same cycle, but may already include actions and
+	 * the sync of that cycle.
+	 * @return the counters of this proxy
 	 */
-	private byte[] receiveClientMsg()
+	public Statistics getStatistics()
 	{
-		return clientConnection.receiveMessage();
+		Statistics result;
+		long cycle;
+		int tries = 0;
+		do {
+			cycle = perceptionCycle;
+			result = new Statistics(clientPort, clientAddress, isActive(), cycle, receivedMessages.getCount(),
+					sentMessages.getCount(), missedCycles, hostJitterMissedCycles, invalidSayMessageCount,
+					skippedPerceptions, catchUps, cycleBudget, getAllocatedBytesPerCycle(), getCpuMicrosPerCycle(),
+					getCpuMicrosPerKilobyte());
+			tries++;
+		} while (cycle != perceptionCycle && tries < SNAPSHOT_TRIES);
+		return result;
+	}
+
+	/**
+	 * Counters of the agent since it connected, i.e. of the whole match. Other
+	 * than {@link #getStatistics()} they are not affected by
+	 * {@link #resetStatistics()}.
+	 * @param perceptions the number of perceptions forwarded
+	 * @param actions the number of actions forwarded
+	 * @param missedCycles cycles without action
+	 * @param hostJitterMissedCycles missed cycles the host jittered in
+	 * @param invalidSays actions with an invalid say
+	 * @param skippedPerceptions backlogged perceptions not forwarded
+	 * @param thinkTimes the think times per ms, see {@link ThinkTimeHistogram}
+	 */
+	public record MatchCounters(int perceptions, int actions, int missedCycles, int hostJitterMissedCycles,
+			int invalidSays, int skippedPerceptions, int[] thinkTimes)
+	{
+	}
+
+	/**
+	 * Reads the counters of the whole match. Only consistent after the proxy
+	 * has terminated, while running they may be slightly behind.
+	 * @return the counters since the agent connected
+	 */
+	public MatchCounters getMatchCounters()
+	{
+		int[] thinkTimeCounts = thinkTimes.getCounts();
+		int[] thinkTimeCountsBeforeReset = thinkTimesBeforeReset.getCounts();
+		for (int i = 0; i < thinkTimeCounts.length; i++) {
+			thinkTimeCounts[i] += thinkTimeCountsBeforeReset[i];
+		}
+		synchronized (this) {
+			return new MatchCounters(receivedMessages.count, sentMessages.count,
+					missedCyclesBeforeReset + missedCycles, hostJitterMissedCyclesBeforeReset + hostJitterMissedCycles,
+					invalidSaysBeforeReset + invalidSayMessageCount, skippedPerceptionsBeforeReset + skippedPerceptions,
+					thinkTimeCounts);
+		}
+	}
+
+	/**
+	 * Starts the statistics of messages, missed cycles, invalid says and catch
+	 * ups from scratch, e.g. at the start of a match. The counters of the whole
+	 * match are kept, see {@link #getMatchCounters()}. Each forwarder resets the
+	 * counters it writes itself, the perception forwarder when the next cycle
+	 * starts and the action forwarder with the next action, so the forwarders
+	 * are not locked. Timeline, allocation and rate limit counters are kept.
+	 */
+	public void resetStatistics()
+	{
+		resetRequests++;
 	}
 
 	@Override
@@ -200,7 +886,96 @@ public class AgentProxy
 
 	public String toStringVerbose()
 	{
-		return this + "\nsent: " + sentMessages + "\nreceived: " + receivedMessages;
+		return this + "\nsent: " + sentMessages + "\nreceived: " + receivedMessages + "\nonboarding: " +
+				onboardingInfo() + "\nsim time: " + PerceptionScanner.formatSimTime(perceptionScanner.getSimTime()) +
+				"(s) play mode: " + PerceptionScanner.getPlayModeName(perceptionScanner.getPlayMode()) +
+				"\nmissed: " + missedCyclesInfo() + "\noversized actions: " + oversizedInfo(clientConnection) +
+				" perceptions: " + oversizedInfo(serverConnection) + "\ncatch ups: " + catchUpInfo() +
+				"\nallocated: " + allocationInfo() + "\ncpu: " + cpuInfo() + rateLimitInfo() + "\nbudget: " +
+				cycleBudget + "ms policy: " + budgetPolicy +
+				"\nclient stages:" + clientPipeline + "\nserver stages:" + serverPipeline;
+	}
+
+	private String rateLimitInfo()
+	{
+		RateLimitStage rateLimit = clientPipeline.getStage(RateLimitStage.class);
+		return rateLimit == null ? "" : "\nthrottled: " + rateLimit;
+	}
+
+	private String cpuInfo()
+	{
+		if (!ThreadCpuTime.isSupported()) {
+			return "not supported";
+		}
+		return String.format(Locale.ROOT, "%.1f(ms) per cycle: %.1f(us) per KB: %.1f(us) forwarded: %d KB",
+				getCpuTime() / 1000000.0, getCpuMicrosPerCycle(), getCpuMicrosPerKilobyte(),
+				getForwardedBytes() / 1024);
+	}
+
+	private String allocationInfo()
+	{
+		if (!ThreadAllocation.isSupported()) {
+			return "not supported";
+		}
+		return String.format(Locale.ROOT, "perceptions: %d bytes actions: %d bytes per cycle: %.1f bytes",
+				perceptionForwarderBytes, actionForwarderBytes, getAllocatedBytesPerCycle());
+	}
+
+	private void firstPerceptionReceived()
+	{
+		firstPerceptionTime = clock.nanoTime();
+		ProxyLog.info("First perception for " + clientConnection + " " + onboardingInfo());
+	}
+
+	private String missedCyclesInfo()
+	{
+		StringBuilder result = new StringBuilder();
+		for (int playMode = 0; playMode < missedCyclesByPlayMode.length; playMode++) {
+			if (missedCyclesByPlayMode[playMode] > 0) {
+				result.append(PerceptionScanner.getPlayModeName((byte) playMode))
+						.append(": ")
+						.append(missedCyclesByPlayMode[playMode])
+						.append(" ");
+			}
+		}
+		if (missedCycles > 0) {
+			result.append("last at ").append(PerceptionScanner.formatSimTime(lastMissedSimTime)).append("(s)");
+		}
+		if (jitterMonitor != null) {
+			result.append(" host jitter: ").append(hostJitterMissedCycles);
+		}
+		return result.toString();
+	}
+
+	private static String oversizedInfo(Transport connection)
+	{
+		if (connection == null) {
+			return "-";
+		}
+		return "rejected: " + connection.getRejectedFrames() + " streamed: " + connection.getStreamedFrames();
+	}
+
+	private String onboardingInfo()
+	{
+		if (acceptTime == 0) {
+			return "accept time unknown";
+		}
+		String result = String.format("started after %4.2f(ms)", (startedTime - acceptTime) / 1000000.0);
+		if (firstPerceptionTime != 0) {
+			result += String.format(" first perception after %4.2f(ms)", getTimeToFirstPerception());
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the timing of the last cycles as CSV. Can be called from any
+	 * thread without pausing the forwarders.
+	 * @param out the writer to write to
+	 * @return the number of cycles written
+	 */
+	public int exportTimeline(Writer out) throws IOException
+	{
+		return timeline.exportCsv(out, creationTime);
 	}
 
 	/**
@@ -212,6 +987,29 @@ public class AgentProxy
 	 */
 	class ServerPerceptionsForwarder extends Thread
 	{
+		/** the frame perceptions are received to */
+		private Frame perception = new Frame();
+
+		/** number of statistics resets done by this forwarder */
+		private int resetsApplied;
+
+		/** the newest backlogged perceptions not forwarded yet, a ring */
+		private Frame[] backlog;
+
+		/** index of the oldest perception in the backlog */
+		private int backlogStart;
+
+		/** number of perceptions in the backlog */
+		private int backlogCount;
+
+		/** the time (nanoTime) the current perception was received */
+		private long receiveTime;
+
+		public ServerPerceptionsForwarder()
+		{
+			super(null, null, "perceptions-" + clientPort, FORWARDER_STACK_SIZE);
+		}
+
 		@Override
 		public void run()
 		{
@@ -219,45 +1017,256 @@ public class AgentProxy
 			// string and not getting a server message
 			sendServerMsg(SYNC_BYTES);
 
-			while (true) {
-				byte[] perception = receiveServerMsg();
-				if (perception == null) {
-					// shutdown when receiving null-message
-					break;
+			long allocationBase = ThreadAllocation.currentThreadBytes();
+			long cpuBase = ThreadCpuTime.currentThreadNanos();
+			while (forwardPerception()) {
+				awaitSyncUnlessBacklogged();
+				long allocated = ThreadAllocation.currentThreadBytes() - allocationBase;
+				if (ThreadAllocation.isSupported()) {
+					timeline.allocationMeasured(allocated - perceptionForwarderBytes);
+				}
+				perceptionForwarderBytes = allocated;
+				perceptionForwarderCpu = ThreadCpuTime.currentThreadNanos() - cpuBase;
+			}
+
+			stopProxy();
+		}
+
+		/**
+		 * Receives the next perception from the server and forwards it to the
+		 * client agent. Blocking call.
+		 * @return false if the connection was closed
+		 */
+		boolean forwardPerception()
+		{
+			if (!receivePerception()) {
+				return false;
+			}
+			if (resetsApplied != resetRequests) {
+				resetPerceptionStatistics();
+			}
+			perceptionScanner.scan(perception);
+			int simTime = perceptionScanner.getSimTime();
+			timeline.startCycle(receiveTime, simTime, perceptionScanner.getPlayMode());
+			ProxyEvents.PerceptionForwarded event = null;
+			if (ProxyEvents.isRecording()) {
+				event = new ProxyEvents.PerceptionForwarded();
+				event.begin();
+			}
+
+			if (serverPipeline.process(AgentProxy.this, perception)) {
+				receivedMessages.newMessage(
+						perception.getLength(), clock.nanoTime(), receivedMessages.lastMessageTime, simTime);
+
+				// forward perception message to client agent
+				sentMessagesWhenReceiving = sentMessages.count;
+				startBudgetCycle();
+				perceptionCycle++;
+				haveSynMessage = false;
+				sendClientMsg(perception);
+				perceptionBytes += perception.getLength();
+				timeline.perceptionForwarded(clock.nanoTime());
+				if (firstPerceptionTime == 0) {
+					firstPerceptionReceived();
+				}
+
+				if (event != null) {
+					event.end();
+					if (event.shouldCommit()) {
+						event.agentPort = clientPort;
+						event.size = perception.getLength();
+						event.simTime = simTime;
+						event.commit();
+					}
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Resets the statistics written when perceptions are received and syncs
+		 * are sent. Missed cycles and catch ups are written by other threads
+		 * too, while holding the lock of the proxy.
+		 */
+		private void resetPerceptionStatistics()
+		{
+			resetsApplied = resetRequests;
+			receivedMessages.reset();
+			thinkTimesBeforeReset.add(thinkTimes);
+			thinkTimes.reset();
+			skippedPerceptionsBeforeReset += skippedPerceptions;
+			skippedPerceptions = 0;
+			synchronized (AgentProxy.this) {
+				missedCyclesBeforeReset += missedCycles;
+				hostJitterMissedCyclesBeforeReset += hostJitterMissedCycles;
+				missedCycles = 0;
+				Arrays.fill(missedCyclesByPlayMode, 0);
+				lastMissedSimTime = PerceptionScanner.NO_SIM_TIME;
+				hostJitterMissedCycles = 0;
+				catchUps = 0;
+				catchUpTime = 0;
+				maxCatchUpTime = 0;
+			}
+		}
+
+		/**
+		 * Reports the think time of the finished cycle to the budget and the
+		 * histogram and takes the budget of the cycle starting.
+		 */
+		private void startBudgetCycle()
+		{
+			BudgetPolicy.Budget budget = thinkTimeBudget;
+			if (perceptionCycle > 0) {
+				boolean acted = actionCycle == perceptionCycle;
+				budget.cycleFinished(acted ? firstThinkTime : -1);
+				if (acted) {
+					thinkTimes.record(firstThinkTime);
+				}
+			}
+			cycleBudget = budget.nextBudget();
+		}
+
+		/**
+		 * Waits for the sync of the cycle unless more perceptions are
+		 * backlogged.
+		 * @return true if waited, i.e. running synchronous again
+		 */
+		boolean awaitSyncUnlessBacklogged()
+		{
+			// If there is already another message in the input channel, skip
+			// waiting time and sending of sync-message, until we run
+			// synchronous again.
+			if (isBacklogged()) {
+				backlogDetected();
+				return false;
+			}
+			backlogDone();
+			awaitSync();
+			return true;
+		}
+
+		/**
+		 * @return true if more perceptions have been received or are available
+		 */
+		boolean isBacklogged()
+		{
+			return backlogCount > 0 || serverConnection.inputAvailable();
+		}
+
+		/**
+		 * Receives the next perception to forward. In catch-up mode all
+		 * backlogged perceptions are read and only the newest are kept.
+		 * @return false if the connection was closed
+		 */
+		private boolean receivePerception()
+		{
+			if (backlogCount == 0) {
+				if (!receiveServerMsg(perception)) {
+					return false;
+				}
+				receiveTime = clock.nanoTime();
+				if (catchUpDepth == 0 || !serverConnection.inputAvailable()) {
+					return true;
+				}
+				if (backlog == null) {
+					backlog = new Frame[catchUpDepth];
+					for (int i = 0; i < catchUpDepth; i++) {
+						backlog[i] = new Frame();
+					}
+				}
+
+				// keep the newest perceptions in the ring, frames are swapped
+				backlogDetected();
+				backlogStart = 0;
+				backlogCount = 1;
+				perception = swapFrame(0, perception);
+				while (serverConnection.inputAvailable()) {
+					if (backlogCount == catchUpDepth) {
+						backlogStart = (backlogStart + 1) % catchUpDepth;
+						backlogCount--;
+						skippedPerceptions++;
+					}
+					if (!receiveServerMsg(backlog[(backlogStart + backlogCount) % catchUpDepth])) {
+						return false;
+					}
+					backlogCount++;
 				}
+				receiveTime = clock.nanoTime();
+			}
 
-				perception = onNewServerMessage(perception);
-				if (perception != null) {
-					receivedMessages.newMessage(perception.length, receivedMessages.lastMessageTime);
+			perception = swapFrame(backlogStart, perception);
+			backlogStart = (backlogStart + 1) % catchUpDepth;
+			backlogCount--;
+			return true;
+		}
 
-					// forward perception message to client agent
-					sentMessagesWhenReceiving = sentMessages.count;
-					haveSynMessage = false;
-					sendClientMsg(perception);
-				}
+		/**
+		 * Puts a frame into the backlog.
+		 * @return the frame that was at the passed index of the backlog
+		 */
+		private Frame swapFrame(int index, Frame frame)
+		{
+			Frame previous = backlog[index];
+			backlog[index] = frame;
+			return previous;
+		}
 
-				// If there is already another message in the input channel, skip
-				// waiting time and sending of sync-message, until we run
-				// synchronous again.
-				if (!serverConnection.inputAvailable()) {
-					// wait for 20ms
-					try {
-						Thread.sleep(MAX_WAIT_TIME / 2);
-						if (!haveSynMessage) {
-							Thread.sleep(MAX_WAIT_TIME / 2);
-						}
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
+		/**
+		 * Starts measuring the time until the agent is in sync again.
+		 */
+		private void backlogDetected()
+		{
+			if (catchUpStart == 0) {
+				catchUpStart = receiveTime;
+				catchUpPending = false;
+			}
+		}
 
-					// send sync message to Simspark server
-					if (!haveSynMessage) {
-						sendServerMsg(SYNC_BYTES);
-					}
+		/**
+		 * All backlogged perceptions have been forwarded, the agent is in sync
+		 * again with its next action.
+		 */
+		private void backlogDone()
+		{
+			if (!catchUpPending && catchUpStart != 0) {
+				catchUpPending = true;
+			}
+		}
+
+		/**
+		 * Waits until the agent sent a sync-message or the think time budget of
+		 * the cycle is over. In the latter case the proxy sends the
+		 * sync-message to the server. If there is a sync scheduler, the sync is
+		 * scheduled instead and the method returns immediately.
+		 */
+		void awaitSync()
+		{
+			if (syncScheduler != null) {
+				// the scheduler sends the sync, most urgent agents first
+				syncScheduler.schedule(syncTask, receiveTime + cycleBudget * 1000000L, perceptionCycle);
+				return;
+			}
+
+			// wait for the budget, checking for the sync half way
+			int budget = cycleBudget;
+			long sleepStart = clock.nanoTime();
+			try {
+				clock.sleep(budget / 2);
+				if (!haveSynMessage) {
+					clock.sleep(budget - budget / 2);
 				}
+			} catch (InterruptedException e) {
+				ProxyLog.warn("Interrupted while waiting for sync: " + e);
 			}
 
-			stopProxy();
+			// send sync message to Simspark server
+			if (!haveSynMessage) {
+				if (jitterMonitor != null) {
+					long now = clock.nanoTime();
+					jitterMonitor.wakeUpMeasured(now, now - sleepStart - budget * 1000000L);
+				}
+				sendServerMsg(SYNC_BYTES);
+			}
 		}
 	}
 
@@ -268,121 +1277,187 @@ public class AgentProxy
 	 */
 	class ClientActionsForwarder extends Thread
 	{
+		/** the frame actions are received to */
+		private final Frame action = new Frame();
+
+		/** number of statistics resets done by this forwarder */
+		private int resetsApplied;
+
+		public ClientActionsForwarder()
+		{
+			super(null, null, "actions-" + clientPort, FORWARDER_STACK_SIZE);
+		}
+
 		@Override
 		public void run()
 		{
-			while (true) {
-				// receive next client action message
-				byte[] action = receiveClientMsg();
-				if (action == null) {
-					// shutdown when receiving null-message
-					break;
+			long cpuBase = ThreadCpuTime.currentThreadNanos();
+			boolean connected = forwardFirstAction();
+
+			long allocationBase = 0;
+			while (connected) {
+				if (serverForwarder == null && sentMessages.count > 0) {
+					// with lazy connect we have to wait to listen for
+					// server messages until here
+					serverForwarder = new ServerPerceptionsForwarder();
+					serverForwarder.start();
+					allocationBase = ThreadAllocation.currentThreadBytes();
+				}
+				connected = forwardAction();
+				if (serverForwarder != null) {
+					actionForwarderBytes = ThreadAllocation.currentThreadBytes() - allocationBase;
 				}
+				actionForwarderCpu = ThreadCpuTime.currentThreadNanos() - cpuBase;
+			}
+
+			stopProxy();
+		}
 
-				if (findBytes(action, SYNC_BYTES)) {
-					haveSynMessage = true;
-					// prefix (syn) to avoid server from hanging in case of bad
-					// say messages
-					action = prependSyn(action);
+		/**
+		 * Receives the first messages of the client agent, which may ask for a
+		 * think time budget and to switch the transport, and forwards the first
+		 * action. Blocking call.
+		 * @return false if the connection was closed
+		 */
+		boolean forwardFirstAction()
+		{
+			if (!receiveClientMsg(action)) {
+				return false;
+			}
+			if (action.indexOf(BUDGET_REQUEST) == 0) {
+				budgetRequested();
+				if (!receiveClientMsg(action)) {
+					return false;
 				}
+			}
+			if (SharedMemoryConnection.isRequest(action)) {
+				switchToSharedMemory();
+			} else {
+				forwardReceivedAction();
+			}
+			return true;
+		}
 
-				if (action.length > 0) {
-					// forward action message to Simspark server
-					action = onNewClientMessage(action);
-					if (action != null) {
-						action = checkSay(action);
-						sendServerMsg(action);
-						sentMessages.newMessage(action.length, receivedMessages.lastMessageTime);
-
-						if (serverForwarder == null) {
-							// with lazy connect we have to wait to listen for
-							// server messages until here
-							serverForwarder = new ServerPerceptionsForwarder();
-							serverForwarder.start();
-						}
-					}
+		/**
+		 * Applies the think time budget the agent asked for in its handshake.
+		 */
+		private void budgetRequested()
+		{
+			String request = action.toString();
+			try {
+				requestedBudget = BudgetPolicy.checkBudget(
+						request.substring(BUDGET_REQUEST.length, request.lastIndexOf(')')));
+				thinkTimeBudget = budgetPolicy.create(AgentProxy.this);
+				int granted = budgetPolicy.grantRequest(AgentProxy.this);
+				if (granted > 0) {
+					ProxyLog.info("Agent " + clientPort + " requested a think time budget of " + requestedBudget +
+							"ms, granted " + granted + "ms");
 				}
+			} catch (RuntimeException e) {
+				ProxyLog.warn("Invalid budget request of agent " + clientPort + ": " + request);
 			}
+		}
 
-			stopProxy();
+		/**
+		 * Replaces the connection to the agent by shared memory rings if allowed.
+		 */
+		private void switchToSharedMemory()
+		{
+			if (!(clientConnection instanceof Connection)) {
+				return;
+			}
+			Connection control = (Connection) clientConnection;
+			SharedMemoryConnection sharedMemory =
+					SharedMemoryConnection.accept(control, String.valueOf(clientPort), sharedMemoryWait);
+			if (sharedMemory != null) {
+				clientConnection = sharedMemory;
+				applyFrameLimits();
+				ProxyLog.info("Switched agent proxy for " + control + " to " + sharedMemory);
+			}
 		}
 
 		/**
-		 * Prefixes the action string with a (syn) to avoid problems of hanging
-		 * server in case of bad formed say messages.
-		 * @param action the action string
-		 * @return the action string prefixed with (syn)
+		 * Receives the next action from the client agent and forwards it to the
+		 * server. Blocking call.
+		 * @return false if the connection was closed
 		 */
-		protected byte[] prependSyn(byte[] action)
+		boolean forwardAction()
 		{
-			byte[] result = new byte[SYNC_BYTES.length + action.length];
-			System.arraycopy(SYNC_BYTES, 0, result, 0, SYNC_BYTES.length);
-			System.arraycopy(action, 0, result, SYNC_BYTES.length, action.length);
-			return result;
+			// receive next client action message
+			if (!receiveClientMsg(action)) {
+				return false;
+			}
+			forwardReceivedAction();
+			return true;
 		}
 
-		protected byte[] checkSay(byte[] action)
+		/**
+		 * Forwards the action just received to the server.
+		 */
+		private void forwardReceivedAction()
 		{
-			boolean wrongMsgComposition = false;
-			String msg = new String(action, StandardCharsets.UTF_8);
-
-			int initSay = msg.indexOf("(say");
-			int endSay;
-
-			if (initSay != -1) {
-				char nextCharAfterSay;
-				endSay = msg.indexOf(")", initSay);
-				nextCharAfterSay = '(';
-				if (endSay < msg.length() - 1) {
-					nextCharAfterSay = msg.charAt(endSay + 1);
+			long arrivalTime = clock.nanoTime();
+			if (resetsApplied != resetRequests) {
+				resetsApplied = resetRequests;
+				sentMessages.reset();
+				invalidSaysBeforeReset += invalidSayMessageCount;
+				invalidSayMessageCount = 0;
+			}
+			if (catchUpPending) {
+				catchUpFinished(arrivalTime);
+			}
+			if (actionCycle != perceptionCycle) {
+				firstThinkTime = arrivalTime - receivedMessages.lastMessageTime;
+				actionCycle = perceptionCycle;
+			}
+			if (teamName == null && sentMessages.count < TEAM_NAME_ACTIONS) {
+				findTeamName();
+			}
+
+			if (action.getLength() > 0 && clientPipeline.process(AgentProxy.this, action)) {
+				// forward action message to Simspark server
+				int length = action.getLength();
+				sendServerMsg(action);
+				actionBytes += length;
+				sentMessages.newMessage(
+						length, clock.nanoTime(), receivedMessages.lastMessageTime, receivedMessages.lastSimTime);
+				timeline.actionForwarded(arrivalTime, length);
+				if (action.getSyncSource() != CycleTimeline.SYNC_NONE) {
+					syncSent(action.getSyncSource(), false);
 				}
 
-				if (nextCharAfterSay != '(' && nextCharAfterSay != '\0') {
-					endSay = msg.indexOf(")", endSay + 1);
-					wrongMsgComposition = true;
-				} else {
-					for (int i = initSay + 5; i < endSay; i++) {
-						int ascii = msg.charAt(i);
-						// check for invalid character range
-						// the \" is not checked since it is not explicitly
-						// forbidden in the manual
-						if (ascii > 126 || ascii < 32 || ascii == 40 || ascii == 41 ||
-								ascii == 32 /* || ascii == 34 */) {
-							wrongMsgComposition = true;
-							break;
-						}
+				if (ProxyEvents.isRecording()) {
+					ProxyEvents.ClientActionReceived event = new ProxyEvents.ClientActionReceived();
+					if (event.isEnabled()) {
+						event.agentPort = clientPort;
+						event.size = length;
+						event.thinkTime = arrivalTime - receivedMessages.lastMessageTime;
+						event.commit();
 					}
 				}
-				if (wrongMsgComposition) {
-					// System.out.println("Invalid say: " + msg);
-					// switched off changing message
-					// StringBuffer s = new StringBuffer(msg);
-					// s.delete(initSay, endSay + 1);
-					// s.insert(0, "(syn)");
-					// msg = s.toString();
-					invalidSayMessageCount++;
-				}
 			}
-			// switched off to change the message, but we want to count invalid
-			// messages
-			// return msg.getBytes();
-			return action;
 		}
 
-		boolean findBytes(byte[] arrayToSearch, byte[] bytesToFind)
+		/**
+		 * Takes the team name from the init message of the agent, e.g. (init
+		 * (unum 3)(teamname magma)).
+		 */
+		private void findTeamName()
 		{
-			for (int i = 0; i <= arrayToSearch.length - bytesToFind.length; i++) {
-				int j = 0;
-				for (; j < bytesToFind.length; j++) {
-					if (arrayToSearch[i + j] != bytesToFind[j]) {
-						break;
-					}
-				}
-				if (j == bytesToFind.length) {
-					return true;
-				}
+			int start = action.indexOf(TEAM_NAME);
+			if (start < 0) {
+				return;
 			}
-			return false;
+			String message = action.toString();
+			int end = message.indexOf(')', start);
+			if (end > start) {
+				teamName = message.substring(start + TEAM_NAME.length, end).trim();
+			}
+		}
+
+		boolean findBytes(byte[] arrayToSearch, byte[] bytesToFind)
+		{
+			return indexOf(arrayToSearch, 0, arrayToSearch.length, bytesToFind) != -1;
 		}
 	}
 
@@ -400,8 +1475,17 @@ public class AgentProxy
 
 		private long maxMessageDelta;
 
+		/** sim time of the last message in ms */
+		private int lastSimTime = PerceptionScanner.NO_SIM_TIME;
+
+		/** sim time when the maximum time delta occurred in ms */
+		private int maxMessageDeltaSimTime = PerceptionScanner.NO_SIM_TIME;
+
 		private final boolean maxTimeInfoOk;
 
+		/** the count when the statistics were reset last */
+		private int countAtReset;
+
 		public MessageInfo(boolean maxTimeInfoOk)
 		{
 			this.maxTimeInfoOk = maxTimeInfoOk;
@@ -412,37 +1496,94 @@ public class AgentProxy
 			maxMessageDelta = 0;
 		}
 
-		public void newMessage(int size, long referenceTime)
+		/**
+		 * @param size the size of the message
+		 * @param time the time (nanoTime) the message was handled
+		 * @param referenceTime the time the time delta is measured from
+		 * @param simTime the sim time of the cycle of the message in ms
+		 */
+		public void newMessage(int size, long time, long referenceTime, int simTime)
 		{
-			avgMessageSize = (avgMessageSize * count + size) / (count + 1);
+			int statisticsCount = count - countAtReset;
+			avgMessageSize = (avgMessageSize * statisticsCount + size) / (statisticsCount + 1);
 			if (size > maxMessageSize) {
 				maxMessageSize = size;
 			}
 
-			lastMessageTime = System.nanoTime();
-			if (count > 0) {
+			lastMessageTime = time;
+			lastSimTime = simTime;
+			if (statisticsCount > 0) {
 				long delta = lastMessageTime - referenceTime;
-				avgMessageDelta = (avgMessageDelta * count + delta) / (count + 1);
+				avgMessageDelta = (avgMessageDelta * statisticsCount + delta) / (statisticsCount + 1);
 				if (referenceTime > 0 && delta > maxMessageDelta) {
 					maxMessageDelta = delta;
+					maxMessageDeltaSimTime = simTime;
 				}
 			}
 
 			count++;
 		}
 
+		/**
+		 * Starts the statistics from scratch. The total count is kept, since
+		 * missed cycles are detected by it. Only called by the thread adding
+		 * messages.
+		 */
+		public void reset()
+		{
+			countAtReset = count;
+			avgMessageSize = 0;
+			maxMessageSize = 0;
+			avgMessageDelta = 0;
+			maxMessageDelta = 0;
+			maxMessageDeltaSimTime = PerceptionScanner.NO_SIM_TIME;
+		}
+
+		/**
+		 * @return the number of messages since the last reset
+		 */
+		public int getCount()
+		{
+			return count - countAtReset;
+		}
+
 		@Override
 		public String toString()
 		{
-			String result = String.format(" count: %d avgSize: %4.2f maxSize: %d avgTimeDelta: %4.2f(ms)", count,
+			String result = String.format(" count: %d avgSize: %4.2f maxSize: %d avgTimeDelta: %4.2f(ms)", getCount(),
 					avgMessageSize, maxMessageSize, avgMessageDelta / 1000000);
 			if (maxTimeInfoOk) {
-				result += String.format(" maxTimeDelta: %d(ms)", maxMessageDelta / 1000000);
+				result += String.format(" maxTimeDelta: %d(ms) at %s(s)", maxMessageDelta / 1000000,
+						PerceptionScanner.formatSimTime(maxMessageDeltaSimTime));
 			}
 			return result;
 		}
 	}
 
+	/**
+	 * Searches bytes in a part of an array.
+	 * @param array the array to search in
+	 * @param from the index to start searching at
+	 * @param to the index after the last byte to search
+	 * @param bytesToFind the bytes to search for
+	 * @return the index of the first occurrence, -1 if not found
+	 */
+	static int indexOf(byte[] array, int from, int to, byte[] bytesToFind)
+	{
+		for (int i = Math.max(0, from); i <= to - bytesToFind.length; i++) {
+			int j = 0;
+			for (; j < bytesToFind.length; j++) {
+				if (array[i + j] != bytesToFind[j]) {
+					break;
+				}
+			}
+			if (j == bytesToFind.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
 	/**
 	 * Switches on/off messages sent to the client
 	 */
@@ -481,6 +1622,275 @@ public class AgentProxy
 		return message;
 	}
 
+	/**
+	 * Switches removing of invalid say messages on or off. If off, invalid say
+	 * messages are only counted.
+	 * @param sanitizeSay true to remove invalid say messages before forwarding
+	 */
+	public void setSanitizeSay(boolean sanitizeSay)
+	{
+		this.sanitizeSay = sanitizeSay;
+	}
+
+	/**
+	 * @return true if invalid say messages are removed before forwarding
+	 */
+	public boolean isSanitizeSay()
+	{
+		return sanitizeSay;
+	}
+
+	/**
+	 * Records the time it took the agent to act again after a backlog of
+	 * perceptions.
+	 * @param time the time (nanoTime) the first action after the backlog
+	 *        arrived
+	 */
+	private synchronized void catchUpFinished(long time)
+	{
+		long duration = time - catchUpStart;
+		catchUpStart = 0;
+		catchUpPending = false;
+		catchUps++;
+		catchUpTime += duration;
+		maxCatchUpTime = Math.max(maxCatchUpTime, duration);
+	}
+
+	/**
+	 * @return the number of bytes allocated by both forwarder threads since
+	 *         the first cycle, 0 if not supported
+	 */
+	public long getAllocatedBytes()
+	{
+		return perceptionForwarderBytes + actionForwarderBytes;
+	}
+
+	/**
+	 * @return the average number of bytes allocated by both forwarder threads
+	 *         per cycle
+	 */
+	public double getAllocatedBytesPerCycle()
+	{
+		long cycles = perceptionCycle;
+		return cycles == 0 ? 0 : getAllocatedBytes() / (double) cycles;
+	}
+
+	/**
+	 * @return the number of perceptions forwarded to the client agent
+	 */
+	public long getCycle()
+	{
+		return perceptionCycle;
+	}
+
+	/**
+	 * Accounts CPU time a shared thread used for this agent, e.g. the sync
+	 * scheduler sending its sync. Only called by one thread.
+	 * @param cpuTime the CPU time used in ns
+	 */
+	void pooledWorkDone(long cpuTime)
+	{
+		pooledCpu += cpuTime;
+	}
+
+	/**
+	 * @return the CPU time in ns the proxy used for this agent, i.e. by both
+	 *         forwarder threads and by shared threads, 0 if not supported
+	 */
+	public long getCpuTime()
+	{
+		return perceptionForwarderCpu + actionForwarderCpu + pooledCpu;
+	}
+
+	/**
+	 * @return the number of perception and action bytes forwarded
+	 */
+	public long getForwardedBytes()
+	{
+		return perceptionBytes + actionBytes;
+	}
+
+	/**
+	 * @return the CPU time in us the proxy used for this agent per cycle
+	 */
+	public double getCpuMicrosPerCycle()
+	{
+		long cycles = perceptionCycle;
+		return cycles == 0 ? 0 : getCpuTime() / 1000.0 / cycles;
+	}
+
+	/**
+	 * @return the CPU time in us the proxy used for this agent per KB
+	 *         forwarded
+	 */
+	public double getCpuMicrosPerKilobyte()
+	{
+		long bytes = getForwardedBytes();
+		return bytes == 0 ? 0 : getCpuTime() / 1000.0 / (bytes / 1024.0);
+	}
+
+	/**
+	 * @return the number of backlogged perceptions not forwarded to the agent
+	 */
+	public int getSkippedPerceptions()
+	{
+		return skippedPerceptions;
+	}
+
+	/**
+	 * @return the number of times a backlog of perceptions was worked off
+	 */
+	public synchronized int getCatchUps()
+	{
+		return catchUps;
+	}
+
+	/**
+	 * @return the average time in ns from receiving the first perception of a
+	 *         backlog until the agent acted on the newest, 0 if there was none
+	 */
+	public synchronized long getAverageCatchUpTime()
+	{
+		return catchUps == 0 ? 0 : catchUpTime / catchUps;
+	}
+
+	private synchronized String catchUpInfo()
+	{
+		return String.format(Locale.ROOT, "%d avg: %.2f(ms) max: %.2f(ms) skipped: %d", catchUps,
+				getAverageCatchUpTime() / 1000000.0, maxCatchUpTime / 1000000.0, skippedPerceptions);
+	}
+
+	/**
+	 * Sends the sync scheduled for a cycle unless the agent has synced itself
+	 * or the cycle is over. Called by the sync scheduler at the deadline.
+	 * @param cycle the cycle the sync was scheduled for
+	 * @return true if the sync was sent
+	 */
+	synchronized boolean scheduledSyncDue(long cycle)
+	{
+		// read the sync flag first, it is reset after a new cycle started
+		if (closed || haveSynMessage || cycle != perceptionCycle) {
+			return false;
+		}
+		sendServerMsg(SYNC_BYTES);
+		return true;
+	}
+
+	/**
+	 * Called by stages if the current client action contains a sync-message.
+	 */
+	void clientSyncReceived()
+	{
+		haveSynMessage = true;
+	}
+
+	/**
+	 * Called by stages holding back the current client action: sends its sync
+	 * to the server right away, since the server waits for it. The stage has to
+	 * remove the sync from the action.
+	 */
+	synchronized void sendClientSyncAhead()
+	{
+		serverConnection.sendMessage(SYNC_BYTES, 0, SYNC_BYTES.length);
+		syncSent(CycleTimeline.SYNC_CLIENT, false);
+	}
+
+	/**
+	 * Called by stages if the current client action contains an invalid say.
+	 * @param size the size of the action
+	 */
+	void invalidSayReceived(int size)
+	{
+		invalidSayMessageCount++;
+
+		if (ProxyEvents.isRecording()) {
+			ProxyEvents.InvalidSay event = new ProxyEvents.InvalidSay();
+			if (event.isEnabled()) {
+				event.agentPort = clientPort;
+				event.size = size;
+				event.removed = sanitizeSay;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * @return the sim time of the last perception in ms,
+	 *         {@link PerceptionScanner#NO_SIM_TIME} if not known
+	 */
+	public int getSimTime()
+	{
+		return perceptionScanner.getSimTime();
+	}
+
+	/**
+	 * @return the last play mode received, see {@link PerceptionScanner}
+	 */
+	public byte getPlayMode()
+	{
+		return perceptionScanner.getPlayMode();
+	}
+
+	/**
+	 * @param playMode the play mode, see {@link PerceptionScanner}
+	 * @return the number of cycles missed in the passed play mode
+	 */
+	public int getMissedCycles(byte playMode)
+	{
+		return missedCyclesByPlayMode[playMode];
+	}
+
+	/**
+	 * @return the port of the client agent, identifies the agent
+	 */
+	public int getClientPort()
+	{
+		return clientPort;
+	}
+
+	/**
+	 * @return the timing of the last cycles
+	 */
+	CycleTimeline getTimeline()
+	{
+		return timeline;
+	}
+
+	/**
+	 * @return the number of messages of agent and server rejected for their
+	 *         length
+	 */
+	public int getRejectedFrames()
+	{
+		return clientConnection.getRejectedFrames() + serverConnection.getRejectedFrames();
+	}
+
+	/**
+	 * @return the number of messages of agent and server streamed through for
+	 *         their length
+	 */
+	public int getStreamedFrames()
+	{
+		return clientConnection.getStreamedFrames() + serverConnection.getStreamedFrames();
+	}
+
+	/**
+	 * @return the number of cycles the agent missed to send a message
+	 */
+	public int getMissedCycles()
+	{
+		return missedCycles;
+	}
+
+	/**
+	 * @return the number of missed cycles the host jittered in, 0 if there is
+	 *         no jitter monitor
+	 */
+	public int getHostJitterMissedCycles()
+	{
+		return hostJitterMissedCycles;
+	}
+
 	/**
 	 * Accessor for invalid say message count
 	 * @return the number of invalid say messages detected
@@ -0,0 +1,282 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Timing behavior of one agent in one match, kept by the {@link StatsStore}
+ * when the match ends, so agents can be compared across matches. The counters
+ * cover the whole match, resets of the statistics do not affect them.
+ *
+ * @param matchStart the time the first agent of the match connected (epoch
+ *        ms), identifies the match
+ * @param closeTime the time the agent proxy closed (epoch ms)
+ * @param team the team name of the agent's init message, empty if unknown
+ * @param clientAddress the address of the client agent, empty if unknown
+ * @param clientPort the port of the client agent
+ * @param cycles the number of perceptions received from the server
+ * @param perceptions the number of perceptions forwarded
+ * @param actions the number of actions forwarded
+ * @param missedCycles cycles without action
+ * @param hostJitterMissedCycles missed cycles the host jittered in
+ * @param invalidSays actions with an invalid say
+ * @param skippedPerceptions backlogged perceptions not forwarded
+ * @param alignedCycles the number of server cycles the agent was aligned in
+ * @param stragglerCycles the number of aligned cycles the agent synced last
+ * @param heldUpTime the time the agent held up the others as straggler in ns
+ * @param cpuTime the CPU time used for the agent in ns
+ * @param forwardedBytes the number of perception and action bytes forwarded
+ * @param thinkTimes the think times in buckets of one ms, see
+ *        {@link ThinkTimeHistogram}
+ */
+public record AgentSummary(long matchStart, long closeTime, String team, String clientAddress, int clientPort,
+		long cycles, int perceptions, int actions, int missedCycles, int hostJitterMissedCycles, int invalidSays,
+		int skippedPerceptions, long alignedCycles, long stragglerCycles, long heldUpTime, long cpuTime,
+		long forwardedBytes, int[] thinkTimes)
+{
+	/** version of the binary format written */
+	private static final byte VERSION = 1;
+
+	/**
+	 * @param proxy the terminated agent proxy
+	 * @param straggler the final straggler statistics of the agent, null if
+	 *        none
+	 * @param matchStart the time the match started (epoch ms)
+	 * @return the summary of the agent proxy
+	 */
+	public static AgentSummary of(AgentProxy proxy, CycleAligner.AgentStats straggler, long matchStart)
+	{
+		AgentProxy.MatchCounters counters = proxy.getMatchCounters();
+		String team = proxy.getTeamName();
+		String address = proxy.getClientAddress();
+		long closeTime = proxy.getCloseTime() == 0 ? System.currentTimeMillis() : proxy.getCloseTime();
+		return new AgentSummary(matchStart, closeTime, team == null ? "" : team, address == null ? "" : address,
+				proxy.getClientPort(), proxy.getCycle(), counters.perceptions(), counters.actions(),
+				counters.missedCycles(), counters.hostJitterMissedCycles(), counters.invalidSays(),
+				counters.skippedPerceptions(), straggler == null ? 0 : straggler.cycles(),
+				straggler == null ? 0 : straggler.stragglerCycles(), straggler == null ? 0 : straggler.heldUpTime(),
+				proxy.getCpuTime(), proxy.getForwardedBytes(), counters.thinkTimes());
+	}
+
+	/**
+	 * @return the local date the match started
+	 */
+	public LocalDate matchDate()
+	{
+		return LocalDate.ofInstant(Instant.ofEpochMilli(matchStart), ZoneId.systemDefault());
+	}
+
+	/**
+	 * Writes this summary in a compact binary format.
+	 * @param out the output to write to
+	 */
+	public void write(DataOutput out) throws IOException
+	{
+		out.writeByte(VERSION);
+		out.writeLong(matchStart);
+		out.writeLong(closeTime);
+		out.writeUTF(team);
+		out.writeUTF(clientAddress);
+		out.writeInt(clientPort);
+		out.writeLong(cycles);
+		out.writeInt(perceptions);
+		out.writeInt(actions);
+		out.writeInt(missedCycles);
+		out.writeInt(hostJitterMissedCycles);
+		out.writeInt(invalidSays);
+		out.writeInt(skippedPerceptions);
+		out.writeLong(alignedCycles);
+		out.writeLong(stragglerCycles);
+		out.writeLong(heldUpTime);
+		out.writeLong(cpuTime);
+		out.writeLong(forwardedBytes);
+		out.writeByte(thinkTimes.length);
+		for (int count : thinkTimes) {
+			out.writeInt(count);
+		}
+	}
+
+	/**
+	 * Reads a summary written by {@link #write(DataOutput)}.
+	 * @param in the input to read from
+	 * @return the summary read
+	 * @throws IOException if reading failed or the format is unknown
+	 */
+	public static AgentSummary read(DataInput in) throws IOException
+	{
+		byte version = in.readByte();
+		if (version != VERSION) {
+			throw new IOException("Unknown summary version " + version);
+		}
+		long matchStart = in.readLong();
+		long closeTime = in.readLong();
+		String team = in.readUTF();
+		String clientAddress = in.readUTF();
+		int clientPort = in.readInt();
+		long cycles = in.readLong();
+		int perceptions = in.readInt();
+		int actions = in.readInt();
+		int missedCycles = in.readInt();
+		int hostJitterMissedCycles = in.readInt();
+		int invalidSays = in.readInt();
+		int skippedPerceptions = in.readInt();
+		long alignedCycles = in.readLong();
+		long stragglerCycles = in.readLong();
+		long heldUpTime = in.readLong();
+		long cpuTime = in.readLong();
+		long forwardedBytes = in.readLong();
+		int[] thinkTimes = new int[in.readUnsignedByte()];
+		for (int i = 0; i < thinkTimes.length; i++) {
+			thinkTimes[i] = in.readInt();
+		}
+		return new AgentSummary(matchStart, closeTime, team, clientAddress, clientPort, cycles, perceptions,
+				actions, missedCycles, hostJitterMissedCycles, invalidSays, skippedPerceptions, alignedCycles,
+				stragglerCycles, heldUpTime, cpuTime, forwardedBytes, thinkTimes);
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(Locale.ROOT, "%s %s:%d team: %s perceptions: %d missed: %d invalid say: %d straggler: %d",
+				matchDate(), clientAddress, clientPort, team, perceptions, missedCycles, invalidSays, stragglerCycles);
+	}
+
+	/**
+	 * Sums up the summaries of many agents and matches.
+	 */
+	public static class Totals
+	{
+		/** the matches the summaries belong to */
+		private final Set<Long> matches = new HashSet<>();
+
+		/** number of summaries added */
+		private int agents;
+
+		private long perceptions;
+
+		private long missedCycles;
+
+		private long hostJitterMissedCycles;
+
+		private long invalidSays;
+
+		private long alignedCycles;
+
+		private long stragglerCycles;
+
+		private long heldUpTime;
+
+		private long cycles;
+
+		private long cpuTime;
+
+		/** think times of all summaries per ms */
+		private final long[] thinkTimes = new long[ThinkTimeHistogram.BUCKETS];
+
+		/**
+		 * @param summary the summary to add
+		 */
+		public void add(AgentSummary summary)
+		{
+			matches.add(summary.matchStart);
+			agents++;
+			perceptions += summary.perceptions;
+			missedCycles += summary.missedCycles;
+			hostJitterMissedCycles += summary.hostJitterMissedCycles;
+			invalidSays += summary.invalidSays;
+			alignedCycles += summary.alignedCycles;
+			stragglerCycles += summary.stragglerCycles;
+			heldUpTime += summary.heldUpTime;
+			cycles += summary.cycles;
+			cpuTime += summary.cpuTime;
+			for (int i = 0; i < Math.min(thinkTimes.length, summary.thinkTimes.length); i++) {
+				thinkTimes[i] += summary.thinkTimes[i];
+			}
+		}
+
+		/**
+		 * @return the number of different matches added
+		 */
+		public int getMatches()
+		{
+			return matches.size();
+		}
+
+		/**
+		 * @return the number of summaries added
+		 */
+		public int getAgents()
+		{
+			return agents;
+		}
+
+		/**
+		 * @return the number of missed cycles of all summaries
+		 */
+		public long getMissedCycles()
+		{
+			return missedCycles;
+		}
+
+		/**
+		 * @return the number of straggler cycles of all summaries
+		 */
+		public long getStragglerCycles()
+		{
+			return stragglerCycles;
+		}
+
+		/**
+		 * @param percentile the percentile to calculate (0 - 100)
+		 * @return the upper bound of the think time percentile in ms
+		 */
+		public int thinkTimePercentile(double percentile)
+		{
+			return ThinkTimeHistogram.percentile(thinkTimes, percentile);
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.ROOT,
+					"matches: %d agents: %d missed: %d (%.2f%%) host jitter: %d invalid say: %d " +
+							"straggler: %d (%.2f%%) held up: %.2f(ms) think time p50: %d(ms) p90: %d(ms) " +
+							"p99: %d(ms) cpu per cycle: %.1f(us)",
+					matches.size(), agents, missedCycles, percent(missedCycles, perceptions),
+					hostJitterMissedCycles, invalidSays, stragglerCycles, percent(stragglerCycles, alignedCycles),
+					stragglerCycles == 0 ? 0 : heldUpTime / 1000000.0 / stragglerCycles, thinkTimePercentile(50),
+					thinkTimePercentile(90), thinkTimePercentile(99), cycles == 0 ? 0 : cpuTime / 1000.0 / cycles);
+		}
+
+		private static double percent(long count, long total)
+		{
+			return total == 0 ? 0 : 100.0 * count / total;
+		}
+	}
+}
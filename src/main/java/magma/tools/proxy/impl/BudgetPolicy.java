@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+/**
+ * Decides how long the proxy waits for the sync of an agent after forwarding
+ * a perception before it sends the sync itself, the think time budget. Each
+ * agent proxy gets its own {@link Budget} from the policy, which is only used
+ * by the perception forwarder of the agent, so budgets can keep state without
+ * locking. Policies can be changed at runtime, agents then get a new budget.
+ *
+ * @author agent
+ */
+public interface BudgetPolicy
+{
+	/** the largest budget in ms */
+	int MAX_BUDGET = 1000;
+
+	/** the policy of agent proxies if none is set */
+	BudgetPolicy DEFAULT = new FixedBudgetPolicy(AgentProxy.MAX_WAIT_TIME);
+
+	/**
+	 * The think time budget of one agent.
+	 */
+	interface Budget
+	{
+		/**
+		 * Called by the perception forwarder when a cycle starts.
+		 * @return the think time budget of the cycle in ms
+		 */
+		int nextBudget();
+
+		/**
+		 * Called by the perception forwarder before the next cycle starts.
+		 * @param thinkTime the time in ns from forwarding the perception of the
+		 *        finished cycle until the first action of the agent, -1 if the
+		 *        agent did not act in the cycle
+		 */
+		default void cycleFinished(long thinkTime)
+		{
+		}
+	}
+
+	/**
+	 * Creates the budget of an agent. Called when the agent proxy is started,
+	 * when the agent requested a budget and when the policy is changed.
+	 * @param agent the agent proxy the budget is for
+	 * @return the budget of the agent
+	 */
+	Budget create(AgentProxy agent);
+
+	/**
+	 * @param agent an agent proxy that requested a budget in its handshake
+	 * @return the budget in ms the agent gets for its request, 0 if the policy
+	 *         ignores requests
+	 */
+	default int grantRequest(AgentProxy agent)
+	{
+		return 0;
+	}
+
+	/**
+	 * Parses a policy from its description: a number for a fixed budget in ms,
+	 * adaptive[:max] for a learned budget of at most max ms, or a default
+	 * budget followed by rules for single agents separated by commas, e.g.
+	 * 20,192.168.1.5=30,:3111=15 for agents from the address or connected to
+	 * the proxy port. The rule request=40 lets agents request budgets up to
+	 * 40ms instead of up to the default budget.
+	 * @param description the description of the policy
+	 * @return the policy described
+	 * @throws IllegalArgumentException if the description can not be parsed
+	 */
+	static BudgetPolicy parse(String description)
+	{
+		if (description.startsWith("adaptive")) {
+			String max = description.substring("adaptive".length());
+			return new AdaptiveBudgetPolicy(
+					max.isEmpty() ? AgentProxy.MAX_WAIT_TIME : checkBudget(max.replaceFirst(":", "")));
+		}
+
+		String[] rules = description.split(",");
+		if (rules.length == 1) {
+			return new FixedBudgetPolicy(checkBudget(rules[0]));
+		}
+		PerAgentBudgetPolicy result = new PerAgentBudgetPolicy(checkBudget(rules[0]));
+		for (int i = 1; i < rules.length; i++) {
+			String[] rule = rules[i].split("=");
+			if (rule.length != 2) {
+				throw new IllegalArgumentException("Invalid budget rule: " + rules[i]);
+			}
+			int budget = checkBudget(rule[1]);
+			if (rule[0].equals("request")) {
+				result.forRequests(budget);
+			} else if (rule[0].startsWith(":")) {
+				result.forPort(Integer.parseInt(rule[0].substring(1)), budget);
+			} else {
+				result.forAddress(rule[0], budget);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param budget a budget in ms
+	 * @return the budget parsed
+	 * @throws IllegalArgumentException if the budget is not a number between
+	 *         1 and {@link #MAX_BUDGET}
+	 */
+	static int checkBudget(String budget)
+	{
+		int result = Integer.parseInt(budget.trim());
+		if (result < 1 || result > MAX_BUDGET) {
+			throw new IllegalArgumentException("Budget not between 1 and " + MAX_BUDGET + ": " + budget);
+		}
+		return result;
+	}
+}
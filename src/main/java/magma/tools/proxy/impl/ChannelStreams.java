@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking streams on a {@link SocketChannel}, e.g. of a Unix domain socket,
+ * that has no {@link java.net.Socket} to get streams from. Unlike the streams
+ * of {@link java.nio.channels.Channels}, reading and writing do not share a
+ * lock, so one thread can send while another one is blocked receiving. The
+ * byte buffer wrapping the array passed is reused as long as the same array
+ * is passed, so receiving into a frame does not allocate.
+ *
+ * @author agent
+ */
+public final class ChannelStreams
+{
+	private ChannelStreams()
+	{
+	}
+
+	/**
+	 * @param channel a channel in blocking mode
+	 * @return a stream reading from the channel, closing it closes the channel
+	 */
+	public static InputStream input(SocketChannel channel)
+	{
+		return new ChannelInputStream(channel);
+	}
+
+	/**
+	 * @param channel a channel in blocking mode
+	 * @return a stream writing to the channel, closing it closes the channel
+	 */
+	public static OutputStream output(SocketChannel channel)
+	{
+		return new ChannelOutputStream(channel);
+	}
+
+	/**
+	 * @return a buffer wrapping the passed array, the previous one if it wraps
+	 *         the same array
+	 */
+	private static ByteBuffer wrap(ByteBuffer previous, byte[] array, int offset, int length)
+	{
+		ByteBuffer buffer = previous != null && previous.array() == array ? previous : ByteBuffer.wrap(array);
+		buffer.limit(offset + length).position(offset);
+		return buffer;
+	}
+
+	private static class ChannelInputStream extends InputStream
+	{
+		private final SocketChannel channel;
+
+		private final byte[] single = new byte[1];
+
+		private ByteBuffer buffer;
+
+		ChannelInputStream(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (len == 0) {
+				return 0;
+			}
+			buffer = wrap(buffer, b, off, len);
+			return channel.read(buffer);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			channel.close();
+		}
+	}
+
+	private static class ChannelOutputStream extends OutputStream
+	{
+		private final SocketChannel channel;
+
+		private final byte[] single = new byte[1];
+
+		private ByteBuffer buffer;
+
+		ChannelOutputStream(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			single[0] = (byte) b;
+			write(single, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			buffer = wrap(buffer, b, off, len);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			channel.close();
+		}
+	}
+}
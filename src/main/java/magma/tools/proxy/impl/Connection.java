@@ -19,19 +19,31 @@
  *******************************************************************************/
 package magma.tools.proxy.impl;
 
-import java.io.BufferedInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 
 /**
  * A simple connection class, wrapping the communication from and to one socket.
+ * Messages are received directly into the buffer of a {@link Frame}, so no
+ * input buffer is kept per connection.
+ * <p>
+ * The length header of received messages is checked against a maximum frame
+ * size before anything is allocated. Oversized messages are either rejected,
+ * closing the connection since the stream can not be trusted anymore, or
+ * streamed through to a {@link FrameSink} in chunks without being buffered.
  *
  * @author Stefan Glaser
  */
-public class Connection
+public class Connection implements Transport
 {
+	/** the size of the chunks oversized messages are streamed in */
+	public static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
 	/** Network socket */
 	private Socket socket;
 
@@ -56,6 +68,30 @@ public class Connection
 	/** true if message starts should be printed */
 	private boolean messageDisplay;
 
+	/** buffer reused for the header and body of sent messages */
+	private byte[] sendBuffer = new byte[0];
+
+	/** buffer for reading the length header of received messages */
+	private final byte[] header = new byte[4];
+
+	/** the name of a connection without socket */
+	private String name;
+
+	/** messages longer than this are rejected or streamed */
+	private int maxFrameSize = Integer.MAX_VALUE;
+
+	/** where oversized messages are streamed to, null to reject them */
+	private FrameSink streamTarget;
+
+	/** buffer reused for streaming oversized messages */
+	private byte[] streamBuffer;
+
+	/** number of received messages rejected for their size */
+	private volatile int rejectedFrames;
+
+	/** number of received messages streamed through for their size */
+	private volatile int streamedFrames;
+
 	/**
 	 * Constructor to create a connection that does lazy connect on first send.
 	 * @param host host address to connect to
@@ -81,11 +117,26 @@ public class Connection
 		connect();
 	}
 
+	/**
+	 * Constructor to create a connection on existing streams, e.g. to run an
+	 * agent proxy without network in tests.
+	 * @param in the stream to receive messages from
+	 * @param out the stream to send messages to
+	 * @param name the name of the connection
+	 */
+	public Connection(InputStream in, OutputStream out, String name)
+	{
+		this.in = in;
+		this.out = new DataOutputStream(out);
+		this.name = name;
+		connected = true;
+	}
+
 	private void connect() throws IOException
 	{
 		socket.setTcpNoDelay(true);
 
-		in = new BufferedInputStream(socket.getInputStream());
+		in = socket.getInputStream();
 		out = new DataOutputStream(socket.getOutputStream());
 
 		connected = true;
@@ -94,6 +145,7 @@ public class Connection
 	/**
 	 * @return true if this connection is connected
 	 */
+	@Override
 	public boolean isConnected()
 	{
 		return connected;
@@ -102,6 +154,7 @@ public class Connection
 	/**
 	 * Disconnect from connection.
 	 */
+	@Override
 	public void disconnect()
 	{
 		if (connected) {
@@ -112,9 +165,11 @@ public class Connection
 			try {
 				in.close();
 				out.close();
-				socket.close();
+				if (socket != null) {
+					socket.close();
+				}
 			} catch (IOException e) {
-				e.printStackTrace();
+				ProxyLog.warn("Exception when closing connection " + this + ": " + e);
 			}
 		}
 	}
@@ -124,92 +179,325 @@ public class Connection
 	 *
 	 * @param msg Message in ASCII form
 	 */
+	@Override
 	public void sendMessage(byte[] msg)
 	{
-		try {
-			if (!connected && lazyConnect) {
-				// we do a lazy connect to work around a problem that teams
-				// not sending scene immediately cause the server to get stuck
-				this.socket = new Socket(host, port);
-				connect();
-			}
+		sendMessage(msg, 0, msg.length);
+	}
+
+	/**
+	 * Send a part of a message buffer using the given stream
+	 *
+	 * @param msg buffer containing the message in ASCII form
+	 * @param offset the start of the message in the buffer
+	 * @param length the length of the message
+	 */
+	@Override
+	public void sendMessage(byte[] msg, int offset, int length)
+	{
+		send(msg, offset, length, false);
+	}
 
-			if (!connected) {
+	/**
+	 * Send the message of a frame using the given stream. If the frame has space
+	 * in front of the message, the header is written there and the message is
+	 * sent without copying.
+	 *
+	 * @param frame the frame containing the message
+	 */
+	@Override
+	public void sendMessage(Frame frame)
+	{
+		send(frame.getBuffer(), frame.getOffset(), frame.getLength(), frame.getOffset() >= 4);
+	}
+
+	private synchronized void send(byte[] msg, int offset, int length, boolean headerInPlace)
+	{
+		try {
+			if (!ensureConnected()) {
 				return;
 			}
 
 			// do not send empty messages
-			if (msg.length == 0) {
+			if (length == 0) {
 				if (messageDisplay) {
-					System.out.println("<empty message>");
+					ProxyLog.info("<empty message>");
 				}
 				return;
 			}
 
-			if (messageDisplay) {
-				System.out.println(new String(msg).substring(0, Math.min(40, msg.length)));
+			if (messageDisplay && ProxyLog.isEnabled(ProxyLog.Level.INFO)) {
+				ProxyLog.info(new String(msg, offset, Math.min(40, length)));
 			}
 
-			int len = msg.length;
-			byte[] byteMsg = new byte[len + 4];
+			int len = length;
+			byte[] byteMsg;
+			int start;
+			if (headerInPlace) {
+				byteMsg = msg;
+				start = offset - 4;
+			} else {
+				if (sendBuffer.length < len + 4) {
+					sendBuffer = new byte[len + 4];
+				}
+				byteMsg = sendBuffer;
+				start = 0;
+				System.arraycopy(msg, offset, byteMsg, 4, len);
+			}
 
 			// creation of the messages header (4 bytes)
-			byteMsg[0] = (byte) ((len >> 24) & 0xFF);
-			byteMsg[1] = (byte) ((len >> 16) & 0xFF);
-			byteMsg[2] = (byte) ((len >> 8) & 0xFF);
-			byteMsg[3] = (byte) (len & 0xFF);
-			System.arraycopy(msg, 0, byteMsg, 4, len);
+			byteMsg[start] = (byte) ((len >> 24) & 0xFF);
+			byteMsg[start + 1] = (byte) ((len >> 16) & 0xFF);
+			byteMsg[start + 2] = (byte) ((len >> 8) & 0xFF);
+			byteMsg[start + 3] = (byte) (len & 0xFF);
 
-			out.write(byteMsg);
+			out.write(byteMsg, start, len + 4);
 			out.flush();
 		} catch (IOException e) {
 			disconnect();
 		}
 	}
 
+	/**
+	 * @return true if connected, connects first if lazy connecting
+	 */
+	private boolean ensureConnected() throws IOException
+	{
+		if (!connected && lazyConnect) {
+			// we do a lazy connect to work around a problem that teams
+			// not sending scene immediately cause the server to get stuck
+			this.socket = new Socket(host, port);
+			connect();
+		}
+		return connected;
+	}
+
+	/**
+	 * Sends a message read from a stream in chunks, so it is never held in
+	 * memory as a whole. If this connection is closed, the message is still
+	 * read to keep the source in sync. If reading or writing fails, this
+	 * connection is closed since the receiver would wait for the rest of the
+	 * message.
+	 *
+	 * @param source the stream to read the message from
+	 * @param length the length of the message
+	 * @param chunk the buffer to copy through
+	 */
+	@Override
+	public synchronized void streamMessage(InputStream source, int length, byte[] chunk) throws IOException
+	{
+		try {
+			boolean forward = ensureConnected();
+			if (forward) {
+				out.writeInt(length);
+			}
+			int remaining = length;
+			while (remaining > 0) {
+				int part = Math.min(chunk.length, remaining);
+				readFully(source, chunk, 0, part);
+				if (forward) {
+					out.write(chunk, 0, part);
+				}
+				remaining -= part;
+			}
+			if (forward) {
+				out.flush();
+			}
+		} catch (IOException e) {
+			disconnect();
+			throw e;
+		}
+	}
+
 	/**
 	 * Receive a message from the given stream. Blocking call.
 	 *
 	 * @return the next, complete received message, or null if the connection was
 	 *         closed
 	 */
+	@Override
 	public byte[] receiveMessage()
 	{
 		if (!connected) {
 			return null;
 		}
 
-		byte[] result;
-		int length;
+		try {
+			int length = nextMessageLength();
+			if (length < 0) {
+				return null;
+			}
+			byte[] result = new byte[length];
+			readFully(in, result, 0, length);
+			return result;
+
+		} catch (IOException e) {
+			ProxyLog.warn("Exception when receiving message on socket: " + this + " Message: " + e);
+			disconnect();
+			return null;
+		}
+	}
+
+	/**
+	 * Receive a message into the passed frame. Blocking call.
+	 *
+	 * @param frame the frame to receive the message to, its buffer is reused
+	 * @return true if a complete message was received, false if the
+	 *         connection was closed
+	 */
+	@Override
+	public boolean receiveMessage(Frame frame)
+	{
+		if (!connected) {
+			return false;
+		}
 
 		try {
-			int byte0 = in.read();
-			int byte1 = in.read();
-			int byte2 = in.read();
-			int byte3 = in.read();
-			length = byte0 << 24 | byte1 << 16 | byte2 << 8 | byte3;
-			int total = 0;
+			int length = nextMessageLength();
+			if (length < 0) {
+				return false;
+			}
+			byte[] buffer = frame.prepareReceive(length);
+			readFully(in, buffer, frame.getOffset(), length);
 
+		} catch (IOException e) {
+			ProxyLog.warn("Exception when receiving message on socket: " + this + " Message: " + e);
+			disconnect();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads message headers until a message is found that is not too long.
+	 * Oversized messages before are streamed through or, if not possible, the
+	 * connection is closed.
+	 *
+	 * @return the length of the next message, -1 if the connection was closed
+	 */
+	private int nextMessageLength() throws IOException
+	{
+		while (true) {
+			long length = readLength();
 			if (length < 0) {
-				// server was shutdown
-				System.out.println("Invalid message length: " + length);
+				// the peer closed the connection
 				disconnect();
-				return null;
+				return -1;
+			}
+			if (length <= maxFrameSize) {
+				return (int) length;
+			}
+
+			if (streamTarget == null || length > Integer.MAX_VALUE) {
+				rejectedFrames++;
+				ProxyLog.warn("Rejected message of " + length + " bytes on " + this + ", maximum is " + maxFrameSize);
+				disconnect();
+				return -1;
 			}
 
-			result = new byte[length];
-			while (total < length) {
-				total += in.read(result, total, length - total);
+			streamedFrames++;
+			if (ProxyLog.isEnabled(ProxyLog.Level.DEBUG)) {
+				ProxyLog.debug("Streaming message of " + length + " bytes from " + this + " to " + streamTarget);
 			}
+			if (streamBuffer == null) {
+				streamBuffer = new byte[STREAM_CHUNK_SIZE];
+			}
+			streamTarget.streamMessage(in, (int) length, streamBuffer);
+		}
+	}
+
+	/**
+	 * @return the unsigned length read from the message header, -1 if the
+	 *         stream ended before the header
+	 */
+	private long readLength() throws IOException
+	{
+		int read = in.readNBytes(header, 0, 4);
+		if (read == 0) {
+			return -1;
+		}
+		if (read < 4) {
+			throw new EOFException("End of stream within message header");
+		}
+		return (header[0] & 0xFFL) << 24 | (header[1] & 0xFF) << 16 | (header[2] & 0xFF) << 8 | (header[3] & 0xFF);
+	}
+
+	/**
+	 * Reads exactly the passed number of bytes.
+	 * @throws EOFException if the stream ends before
+	 */
+	private static void readFully(InputStream source, byte[] buffer, int offset, int length) throws IOException
+	{
+		if (source.readNBytes(buffer, offset, length) < length) {
+			throw new EOFException("End of stream within message");
+		}
+	}
+
+	/**
+	 * Limits the length of received messages. Has to be called before
+	 * receiving.
+	 * @param maxFrameSize the maximum length of a received message
+	 * @param streamTarget where oversized messages are streamed to, null to
+	 *        reject them
+	 */
+	@Override
+	public void setMaxFrameSize(int maxFrameSize, FrameSink streamTarget)
+	{
+		this.maxFrameSize = maxFrameSize;
+		this.streamTarget = streamTarget;
+	}
 
+	@Override
+	public int getRejectedFrames()
+	{
+		return rejectedFrames;
+	}
+
+	@Override
+	public int getStreamedFrames()
+	{
+		return streamedFrames;
+	}
+
+	/**
+	 * Checks if the peer closed the connection. Reads from the connection and
+	 * drops what it reads, so it must only be used if no messages are
+	 * expected, e.g. on the connection to an agent that switched to another
+	 * transport. The read timeout of the socket is restored afterwards.
+	 * @return false if the peer closed the connection, true if it is open or
+	 *         the check is not supported
+	 */
+	public synchronized boolean isPeerAlive()
+	{
+		if (!connected) {
+			return false;
+		}
+		if (socket == null) {
+			return true;
+		}
+		int timeout;
+		try {
+			timeout = socket.getSoTimeout();
 		} catch (IOException e) {
-			System.out.println("Exception when receiving message on socket: " + socket.toString() + " Message: " + e);
-			disconnect();
-			return null;
+			return false;
+		}
+		try {
+			socket.setSoTimeout(1);
+			return in.read() >= 0;
+		} catch (SocketTimeoutException e) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				socket.setSoTimeout(timeout);
+			} catch (IOException e) {
+				// socket closed, noticed by the next check
+			}
 		}
-		return result;
 	}
 
+	@Override
 	public boolean inputAvailable()
 	{
 		try {
@@ -222,9 +510,10 @@ public class Connection
 	@Override
 	public String toString()
 	{
-		return socket.toString();
+		return socket != null ? socket.toString() : name;
 	}
 
+	@Override
 	public void toggleMessageDisplay()
 	{
 		messageDisplay = !messageDisplay;
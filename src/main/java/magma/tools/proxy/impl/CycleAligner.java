@@ -0,0 +1,430 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lines up the cycles of all agent proxies of a proxy server to find the agent
+ * the Simspark server waits for. In agentSyncMode the server only steps when
+ * all agents have synced, so the last agent to sync in a cycle (the straggler)
+ * holds up all others.
+ * <p>
+ * The aligner is a thread of its own that periodically reads the new cycles
+ * from the timelines of the agent proxies. Timelines are read without locking,
+ * so the forwarders are not affected. Cycles of different agents belong to the
+ * same server cycle if their perceptions have the same sim time or, if the sim
+ * time is not known, arrived within a short time window.
+ * Results are published as immutable snapshots. When all agents have
+ * disconnected, a summary of the match is logged, the final statistics are
+ * passed to the {@link MatchListener} and the statistics start from scratch
+ * for the next match. Agent proxies must stay in the list until
+ * their timeline has been read completely, see {@link #isDrained(AgentProxy)}.
+ * <p>
+ * Only agents connected to this proxy are seen, the server might also wait for
+ * agents connected to other proxies or directly.
+ *
+ * @author agent
+ */
+public class CycleAligner extends Thread
+{
+	/** time between two aggregation runs in ms */
+	public static final int INTERVAL = 500;
+
+	/** maximum time between perceptions of the same server cycle in ns */
+	static final long GROUP_WINDOW = 2000000;
+
+	/** time cycles are held back until all agents have completed them in ns */
+	static final long HOLD_BACK = 200000000;
+
+	/** the agent proxies of the proxy server */
+	private final List<AgentProxy> agentProxies;
+
+	/** the clock used to wait between aggregation runs */
+	private final ProxyClock clock;
+
+	/** the next cycle to read from the timeline of each agent proxy */
+	private final Map<AgentProxy, Long> nextCycles = new HashMap<>();
+
+	/** terminated agent proxies whose timeline has been read completely */
+	private final Set<AgentProxy> drained = ConcurrentHashMap.newKeySet();
+
+	/** the agent proxies of the current match, including retired ones */
+	private final Set<AgentProxy> matchAgents = new LinkedHashSet<>();
+
+	/** informed when a match ends, null if none */
+	private volatile MatchListener matchListener;
+
+	/** cycles read but not yet aligned */
+	private final List<AgentCycle> pending = new ArrayList<>();
+
+	/** statistics of each agent in the current match */
+	private final Map<AgentProxy, AgentCounter> counters = new LinkedHashMap<>();
+
+	/** number of aligned cycles in the current match */
+	private long cycles;
+
+	/** sum of the time all agents waited for the straggler in ns */
+	private long waitTime;
+
+	/** statistics of the current match */
+	private volatile Snapshot current = Snapshot.EMPTY;
+
+	/** statistics of the last finished match */
+	private volatile Snapshot lastMatch = Snapshot.EMPTY;
+
+	/**
+	 * @param agentProxies the agent proxies to align, is iterated while agents
+	 *        connect
+	 * @param clock the clock used to wait between aggregation runs
+	 */
+	public CycleAligner(List<AgentProxy> agentProxies, ProxyClock clock)
+	{
+		super("cycle-aligner");
+		setDaemon(true);
+		this.agentProxies = agentProxies;
+		this.clock = clock;
+	}
+
+	@Override
+	public void run()
+	{
+		while (!isInterrupted()) {
+			try {
+				clock.sleep(INTERVAL);
+			} catch (InterruptedException e) {
+				break;
+			}
+			align(clock.nanoTime());
+		}
+	}
+
+	/**
+	 * Informed by the aligner thread when all agents of a match have
+	 * terminated and their cycles have been aligned.
+	 */
+	@FunctionalInterface
+	public interface MatchListener
+	{
+		/**
+		 * @param match the final statistics of the match
+		 * @param agents the agent proxies of the match, also those not aligned
+		 */
+		void matchFinished(Snapshot match, List<AgentProxy> agents);
+	}
+
+	/**
+	 * @param matchListener informed when a match ends, null for none
+	 */
+	public void setMatchListener(MatchListener matchListener)
+	{
+		this.matchListener = matchListener;
+	}
+
+	/**
+	 * @return the statistics of the current match
+	 */
+	public Snapshot getCurrent()
+	{
+		return current;
+	}
+
+	/**
+	 * @return the statistics of the last finished match
+	 */
+	public Snapshot getLastMatch()
+	{
+		return lastMatch;
+	}
+
+	/**
+	 * @param proxy an agent proxy of the list
+	 * @return true if the agent proxy has terminated and its timeline has been
+	 *         read completely, so it can be removed from the list
+	 */
+	public boolean isDrained(AgentProxy proxy)
+	{
+		return drained.contains(proxy);
+	}
+
+	/**
+	 * Reads the new cycles of all agent proxies and aligns those that all
+	 * agents have completed. Finishes the match if all agent proxies have
+	 * terminated. Only to be called by one thread at a time.
+	 * @param now the current time (nanoTime)
+	 */
+	void align(long now)
+	{
+		align(now, false);
+	}
+
+	/**
+	 * Aligns all remaining cycles and finishes the match, also if agent
+	 * proxies have not terminated yet. Called when the proxy server stops.
+	 * @param now the current time (nanoTime)
+	 */
+	void finish(long now)
+	{
+		align(now, true);
+	}
+
+	private void align(long now, boolean finish)
+	{
+		boolean open = false;
+		for (AgentProxy proxy : agentProxies) {
+			// nothing is added to the timeline of a terminated proxy
+			boolean terminated = proxy.isTerminated();
+			open |= !terminated && !finish;
+			matchAgents.add(proxy);
+			long next = proxy.getTimeline().readCycles(
+					nextCycles.getOrDefault(proxy, 1L), (cycle, perception, simTime, sync) -> {
+						if (sync >= 0) {
+							pending.add(new AgentCycle(proxy, perception, simTime, sync));
+						}
+					});
+			nextCycles.put(proxy, next);
+			if (terminated) {
+				drained.add(proxy);
+			}
+		}
+		// only drained proxies are removed from the list
+		nextCycles.keySet().retainAll(agentProxies);
+		drained.retainAll(agentProxies);
+
+		alignPending(open ? now - HOLD_BACK : Long.MAX_VALUE);
+		current = createSnapshot();
+
+		if (!open && !matchAgents.isEmpty()) {
+			if (cycles > 0) {
+				lastMatch = current;
+				ProxyLog.info("Match summary " + lastMatch);
+			}
+			MatchListener listener = matchListener;
+			if (listener != null) {
+				listener.matchFinished(current, List.copyOf(matchAgents));
+			}
+			cycles = 0;
+			waitTime = 0;
+			counters.clear();
+			matchAgents.clear();
+			current = Snapshot.EMPTY;
+		}
+	}
+
+	/**
+	 * Groups the pending cycles to server cycles and aligns them.
+	 * @param until the latest perception time of cycles to align
+	 */
+	private void alignPending(long until)
+	{
+		pending.sort(Comparator.comparingLong(AgentCycle::perceptionTime));
+		int start = 0;
+		while (start < pending.size() && pending.get(start).perceptionTime <= until) {
+			AgentCycle first = pending.get(start);
+			int end = start + 1;
+			while (end < pending.size() && isSameCycle(first, pending.get(end)) &&
+					!containsAgent(start, end, pending.get(end).proxy)) {
+				end++;
+			}
+			alignCycle(pending.subList(start, end));
+			start = end;
+		}
+		pending.subList(0, start).clear();
+	}
+
+	private static boolean isSameCycle(AgentCycle first, AgentCycle other)
+	{
+		if (first.simTime != PerceptionScanner.NO_SIM_TIME && other.simTime != PerceptionScanner.NO_SIM_TIME) {
+			return first.simTime == other.simTime;
+		}
+		return other.perceptionTime - first.perceptionTime <= GROUP_WINDOW;
+	}
+
+	private boolean containsAgent(int start, int end, AgentProxy proxy)
+	{
+		for (int i = start; i < end; i++) {
+			if (pending.get(i).proxy == proxy) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Finds the straggler of one server cycle.
+	 * @param cycle the cycles of all agents belonging to the same server cycle
+	 */
+	private void alignCycle(List<AgentCycle> cycle)
+	{
+		if (cycle.size() < 2) {
+			// nobody waits for a single agent
+			return;
+		}
+
+		AgentCycle last = cycle.get(0);
+		long secondLastSync = Long.MIN_VALUE;
+		for (AgentCycle agentCycle : cycle) {
+			if (agentCycle != last && agentCycle.syncTime > last.syncTime) {
+				secondLastSync = last.syncTime;
+				last = agentCycle;
+			} else if (agentCycle != last && agentCycle.syncTime > secondLastSync) {
+				secondLastSync = agentCycle.syncTime;
+			}
+		}
+
+		long cycleWait = 0;
+		for (AgentCycle agentCycle : cycle) {
+			cycleWait += last.syncTime - agentCycle.syncTime;
+			counters.computeIfAbsent(agentCycle.proxy, AgentCounter::new).cycles++;
+		}
+		cycles++;
+		waitTime += cycleWait;
+
+		AgentCounter straggler = counters.get(last.proxy);
+		long heldUp = last.syncTime - secondLastSync;
+		straggler.stragglerCycles++;
+		straggler.heldUpTime += heldUp;
+		straggler.maxHeldUpTime = Math.max(straggler.maxHeldUpTime, heldUp);
+		straggler.causedWaitTime += cycleWait;
+	}
+
+	private Snapshot createSnapshot()
+	{
+		List<AgentStats> agents = new ArrayList<>(counters.size());
+		for (AgentCounter counter : counters.values()) {
+			agents.add(new AgentStats(counter.proxy, counter.cycles, counter.stragglerCycles, counter.heldUpTime,
+					counter.maxHeldUpTime, counter.causedWaitTime));
+		}
+		agents.sort(Comparator.comparingLong(AgentStats::stragglerCycles).reversed());
+		return new Snapshot(cycles, waitTime, List.copyOf(agents));
+	}
+
+	/**
+	 * Cycle of one agent read from its timeline.
+	 */
+	private record AgentCycle(AgentProxy proxy, long perceptionTime, int simTime, long syncTime)
+	{
+	}
+
+	/**
+	 * Statistics of one agent, only changed by the aligner.
+	 */
+	private static class AgentCounter
+	{
+		private final AgentProxy proxy;
+
+		private long cycles;
+
+		private long stragglerCycles;
+
+		private long heldUpTime;
+
+		private long maxHeldUpTime;
+
+		private long causedWaitTime;
+
+		AgentCounter(AgentProxy proxy)
+		{
+			this.proxy = proxy;
+		}
+	}
+
+	/**
+	 * Straggler statistics of one agent.
+	 * @param proxy the agent proxy of the agent
+	 * @param cycles the number of aligned cycles the agent took part in
+	 * @param stragglerCycles the number of cycles the agent synced last
+	 * @param heldUpTime the sum of the time from the second last sync until the
+	 *        agent's sync in its straggler cycles in ns
+	 * @param maxHeldUpTime the maximum of these times in ns
+	 * @param causedWaitTime the sum of the time all other agents waited for
+	 *        this agent in its straggler cycles in ns
+	 */
+	public record AgentStats(AgentProxy proxy, long cycles, long stragglerCycles, long heldUpTime,
+			long maxHeldUpTime, long causedWaitTime)
+	{
+		/**
+		 * @return the port of the client agent, the running number of the
+		 *         connection for agents on the Unix domain socket
+		 */
+		public int port()
+		{
+			return proxy.getClientPort();
+		}
+
+		@Override
+		public String toString()
+		{
+			double share = cycles > 0 ? 100.0 * stragglerCycles / cycles : 0;
+			double avgHeldUp = stragglerCycles > 0 ? heldUpTime / 1000000.0 / stragglerCycles : 0;
+			return String.format(Locale.ROOT,
+					"agent %d: straggler in %d of %d cycles (%.1f%%) held up avg: %.2f(ms) max: %.2f(ms)", port(),
+					stragglerCycles, cycles, share, avgHeldUp, maxHeldUpTime / 1000000.0);
+		}
+	}
+
+	/**
+	 * Straggler statistics of all agents of a match.
+	 * @param cycles the number of aligned cycles
+	 * @param waitTime the sum of the time all agents waited for the straggler
+	 *        in ns
+	 * @param agents the statistics of each agent, most frequent straggler
+	 *        first
+	 */
+	public record Snapshot(long cycles, long waitTime, List<AgentStats> agents)
+	{
+		static final Snapshot EMPTY = new Snapshot(0, 0, List.of());
+
+		/**
+		 * @param proxy the agent proxy of the agent
+		 * @return the statistics of the agent, null if it was not aligned
+		 */
+		public AgentStats getAgent(AgentProxy proxy)
+		{
+			for (AgentStats agent : agents) {
+				if (agent.proxy == proxy) {
+					return agent;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder result = new StringBuilder(String.format(Locale.ROOT,
+					"cycles: %d agents: %d waited for straggler: %.2f(ms) per cycle", cycles, agents.size(),
+					cycles > 0 ? waitTime / 1000000.0 / cycles : 0));
+			for (AgentStats agent : agents) {
+				result.append("\n").append(agent);
+			}
+			return result.toString();
+		}
+	}
+}
@@ -0,0 +1,429 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Fixed size ring buffer keeping the timing of the last cycles of one agent
+ * proxy. A cycle starts with the reception of a perception from the server.
+ * All arrays are allocated once when the first cycle starts, so recording does
+ * not create garbage and agents that never start do not cost the memory.
+ * <p>
+ * The columns of a slot are written by three writers, each owning its own
+ * columns, so no field has two writers:
+ * <ul>
+ * <li>the server forwarder opens cycles tagged with sim time and play mode of
+ * the perception and records perception and forward times and the bytes it
+ * allocated</li>
+ * <li>the client forwarder records arrival and size of the actions of the
+ * cycle that is current when the action arrives</li>
+ * <li>whoever sends a sync records the sync time, its source and whether the
+ * cycle was missed or the host jittered, while holding the lock of the agent
+ * proxy</li>
+ * </ul>
+ * The action and sync columns are stamped with the lap of the ring they were
+ * written in, so columns left from an earlier lap are reported as not
+ * recorded. Readers never lock: they only read completed cycles and drop
+ * entries that were overwritten while reading. Since the fields are read
+ * without fences, a row read while it is written may still mix old and new
+ * values, which is acceptable for a diagnostic export.
+ *
+ * @author agent
+ */
+public class CycleTimeline
+{
+	/** default number of cycles kept */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	/** no sync has been sent in a cycle */
+	public static final byte SYNC_NONE = 0;
+
+	/** the sync of a cycle was sent by the client agent */
+	public static final byte SYNC_CLIENT = 1;
+
+	/** the sync of a cycle was sent by the proxy */
+	public static final byte SYNC_PROXY = 2;
+
+	/** marker for a time offset that has not been recorded */
+	private static final int NO_TIME = -1;
+
+	/** marker for allocated bytes that have not been measured */
+	private static final char NOT_MEASURED = 0xFFFF;
+
+	/** allocated bytes recorded if the server forwarder allocated more */
+	private static final char MAX_ALLOCATED = 0xFFFE;
+
+	/** bits of the flags of a slot holding the sync source */
+	private static final int SYNC_SOURCE_MASK = 0x3;
+
+	/** bit of the flags of a slot set if the cycle was missed */
+	private static final int MISSED_FLAG = 0x4;
+
+	/** bit of the flags of a slot set if the host jittered in a missed cycle */
+	private static final int HOST_JITTER_FLAG = 0x8;
+
+	/** number of slots - 1, -1 if recording is switched off */
+	private final int mask;
+
+	/** shift from the cycle number to the lap of the ring */
+	private final int lapShift;
+
+	/** lower 32 bits of the cycle number stored in each slot */
+	private int[] cycles;
+
+	/** time the perception of a cycle was received (nanoTime) */
+	private long[] perceptionTimes;
+
+	/** sim time of the perception of a cycle in ms */
+	private int[] simTimes;
+
+	/** play mode when the perception of a cycle was received */
+	private byte[] playModes;
+
+	/** microseconds from perception reception until forwarded to client */
+	private int[] forwardTimes;
+
+	/** microseconds from perception reception until first action arrived */
+	private int[] actionTimes;
+
+	/** microseconds from perception reception until sync was sent */
+	private int[] syncTimes;
+
+	/** number of action bytes forwarded to the server in a cycle */
+	private int[] actionBytes;
+
+	/** bytes allocated by the server forwarder thread in a cycle, saturated */
+	private char[] allocatedBytes;
+
+	/** who sent the sync of a cycle (SYNC_* constants) and missed flag */
+	private byte[] flags;
+
+	/** lap the action columns of a slot were written in, 0 if never */
+	private char[] actionLaps;
+
+	/** lap the sync columns of a slot were written in, 0 if never */
+	private char[] syncLaps;
+
+	/** the number of the current cycle, 0 if no cycle has started yet */
+	private volatile long currentCycle;
+
+	/**
+	 * Receives the cycles read from a timeline.
+	 */
+	public interface CycleConsumer
+	{
+		/**
+		 * @param cycle the number of the cycle
+		 * @param perceptionTime the time (nanoTime) the perception was received
+		 * @param simTime the sim time of the perception in ms, -1 if unknown
+		 * @param syncTime the time (nanoTime) the sync was sent, -1 if none
+		 */
+		void accept(long cycle, long perceptionTime, int simTime, long syncTime);
+	}
+
+	/**
+	 * @param capacity the number of cycles to keep, 0 to switch recording off.
+	 *        The number of slots is the next power of two greater or equal
+	 *        to it, at least 4, e.g. 4 slots for a capacity of 1 to 4 and 8
+	 *        for 5 to 8. Exports contain all but the current cycle, so at
+	 *        least 3 completed cycles can be exported.
+	 */
+	public CycleTimeline(int capacity)
+	{
+		mask = capacity <= 0 ? -1 : (Integer.highestOneBit(Math.max(2, capacity - 1)) << 1) - 1;
+		lapShift = Integer.bitCount(mask);
+	}
+
+	private void allocate()
+	{
+		int size = mask + 1;
+		cycles = new int[size];
+		perceptionTimes = new long[size];
+		simTimes = new int[size];
+		playModes = new byte[size];
+		forwardTimes = new int[size];
+		actionTimes = new int[size];
+		syncTimes = new int[size];
+		actionBytes = new int[size];
+		allocatedBytes = new char[size];
+		flags = new byte[size];
+		actionLaps = new char[size];
+		syncLaps = new char[size];
+	}
+
+	/**
+	 * @return the stamp of the lap of the ring the cycle is in, never 0. The
+	 *         stamps count from 1 to 65535 and then start again at 1.
+	 */
+	private char lap(long cycle)
+	{
+		return (char) ((cycle >>> lapShift) % Character.MAX_VALUE + 1);
+	}
+
+	/**
+	 * @return the number of slots of this timeline, the capacity rounded up to
+	 *         a power of two of at least 4, 0 if recording is switched off
+	 */
+	public int getCapacity()
+	{
+		return mask + 1;
+	}
+
+	/**
+	 * @return the number of the current cycle, 0 if none has started yet
+	 */
+	public long getCurrentCycle()
+	{
+		return currentCycle;
+	}
+
+	/**
+	 * Starts a new cycle. Called by the server forwarder when a perception was
+	 * received.
+	 * @param time the time (nanoTime) the perception was received
+	 */
+	public void startCycle(long time)
+	{
+		startCycle(time, PerceptionScanner.NO_SIM_TIME, PerceptionScanner.PLAY_MODE_UNKNOWN);
+	}
+
+	/**
+	 * Starts a new cycle. Called by the server forwarder when a perception was
+	 * received.
+	 * @param time the time (nanoTime) the perception was received
+	 * @param simTime the sim time of the perception in ms, -1 if unknown
+	 * @param playMode the play mode when the perception was received
+	 */
+	public void startCycle(long time, int simTime, byte playMode)
+	{
+		if (mask < 0) {
+			return;
+		}
+		if (cycles == null) {
+			allocate();
+		}
+
+		long cycle = currentCycle + 1;
+		int slot = (int) (cycle & mask);
+		cycles[slot] = (int) cycle;
+		perceptionTimes[slot] = time;
+		simTimes[slot] = simTime;
+		playModes[slot] = playMode;
+		forwardTimes[slot] = NO_TIME;
+		allocatedBytes[slot] = NOT_MEASURED;
+		currentCycle = cycle;
+	}
+
+	/**
+	 * Records that the perception of the current cycle was forwarded to the
+	 * client agent.
+	 * @param time the time (nanoTime) the forward finished
+	 */
+	public void perceptionForwarded(long time)
+	{
+		long cycle = currentCycle;
+		if (cycle > 0) {
+			int slot = (int) (cycle & mask);
+			forwardTimes[slot] = micros(perceptionTimes[slot], time);
+		}
+	}
+
+	/**
+	 * Records an action forwarded to the server in the current cycle. Only
+	 * called by the client forwarder.
+	 * @param time the time (nanoTime) the action arrived from the client
+	 * @param size the number of bytes forwarded
+	 */
+	public void actionForwarded(long time, int size)
+	{
+		long cycle = currentCycle;
+		if (cycle > 0) {
+			int slot = (int) (cycle & mask);
+			char lap = lap(cycle);
+			if (actionLaps[slot] != lap) {
+				actionTimes[slot] = micros(perceptionTimes[slot], time);
+				actionBytes[slot] = size;
+				actionLaps[slot] = lap;
+			} else {
+				actionBytes[slot] += size;
+			}
+		}
+	}
+
+	/**
+	 * Records that a sync was sent to the server in the current cycle. Only
+	 * called while holding the lock of the agent proxy.
+	 * @param time the time (nanoTime) the sync was sent
+	 * @param source who sent the sync, one of the SYNC_* constants
+	 * @param missedCycle true if the agent missed to send anything this cycle
+	 */
+	public void syncSent(long time, byte source, boolean missedCycle)
+	{
+		long cycle = currentCycle;
+		if (cycle > 0) {
+			int slot = syncSlot(cycle);
+			int slotFlags = flags[slot];
+			if (syncTimes[slot] == NO_TIME) {
+				syncTimes[slot] = micros(perceptionTimes[slot], time);
+				slotFlags |= source;
+			}
+			if (missedCycle) {
+				slotFlags |= MISSED_FLAG;
+			}
+			flags[slot] = (byte) slotFlags;
+		}
+	}
+
+	/**
+	 * Records that the host jittered in the current cycle, which was missed.
+	 * Only called while holding the lock of the agent proxy.
+	 */
+	public void hostJitterDetected()
+	{
+		long cycle = currentCycle;
+		if (cycle > 0) {
+			flags[syncSlot(cycle)] |= HOST_JITTER_FLAG;
+		}
+	}
+
+	/**
+	 * @return the slot of the cycle, with the sync columns cleared if they
+	 *         were written in an earlier lap
+	 */
+	private int syncSlot(long cycle)
+	{
+		int slot = (int) (cycle & mask);
+		char lap = lap(cycle);
+		if (syncLaps[slot] != lap) {
+			syncTimes[slot] = NO_TIME;
+			flags[slot] = SYNC_NONE;
+			syncLaps[slot] = lap;
+		}
+		return slot;
+	}
+
+	/**
+	 * Records the bytes the server forwarder thread allocated in the current
+	 * cycle.
+	 * @param bytes the number of bytes allocated, kept up to 65534
+	 */
+	public void allocationMeasured(long bytes)
+	{
+		long cycle = currentCycle;
+		if (cycle > 0) {
+			allocatedBytes[(int) (cycle & mask)] = (char) Math.max(0, Math.min(MAX_ALLOCATED, bytes));
+		}
+	}
+
+	/**
+	 * Reads the completed cycles starting at the passed cycle. Can be called
+	 * from any thread without pausing the forwarders, cycles overwritten while
+	 * reading are skipped.
+	 * @param fromCycle the first cycle to read
+	 * @param consumer receives the cycles read
+	 * @return the cycle to continue reading from next time
+	 */
+	public long readCycles(long fromCycle, CycleConsumer consumer)
+	{
+		long last = currentCycle - 1;
+		long first = Math.max(Math.max(1, fromCycle), last - mask);
+		for (long cycle = first; cycle <= last; cycle++) {
+			int slot = (int) (cycle & mask);
+			long perceptionTime = perceptionTimes[slot];
+			int simTime = simTimes[slot];
+			int sync = syncLaps[slot] == lap(cycle) ? syncTimes[slot] : NO_TIME;
+			if (cycles[slot] != (int) cycle || currentCycle - cycle > mask) {
+				// overwritten while reading
+				continue;
+			}
+			consumer.accept(cycle, perceptionTime, simTime, sync == NO_TIME ? -1 : perceptionTime + sync * 1000L);
+		}
+		return Math.max(fromCycle, last + 1);
+	}
+
+	/**
+	 * Writes all completed cycles currently kept as CSV. Time offsets are in
+	 * microseconds relative to the reception of the cycle's perception, -1 if
+	 * not recorded. Allocated bytes are -1 if not measured and 65534 for 65534
+	 * or more. Forwarders are not paused while writing.
+	 * @param out the writer to write to
+	 * @param timeBase nanoTime that is reported as time 0 in the perception
+	 *        time column
+	 * @return the number of cycles written
+	 */
+	public int exportCsv(Writer out, long timeBase) throws IOException
+	{
+		PrintWriter writer = new PrintWriter(out);
+		writer.println("cycle,perceptionTime(ms),simTime(s),playMode,forward(us),action(us),sync(us),syncSource," +
+				"actionBytes,missed,allocatedBytes,hostJitter");
+
+		long last = currentCycle - 1;
+		long first = Math.max(1, last - mask);
+		int written = 0;
+		for (long cycle = first; cycle <= last; cycle++) {
+			int slot = (int) (cycle & mask);
+			long perceptionTime = perceptionTimes[slot];
+			int simTime = simTimes[slot];
+			byte playMode = playModes[slot];
+			int forward = forwardTimes[slot];
+			boolean acted = actionLaps[slot] == lap(cycle);
+			int action = acted ? actionTimes[slot] : NO_TIME;
+			int bytes = acted ? actionBytes[slot] : 0;
+			boolean synced = syncLaps[slot] == lap(cycle);
+			int sync = synced ? syncTimes[slot] : NO_TIME;
+			int slotFlags = synced ? flags[slot] : SYNC_NONE;
+			int allocated = allocatedBytes[slot] == NOT_MEASURED ? -1 : allocatedBytes[slot];
+			if (cycles[slot] != (int) cycle || currentCycle - cycle > mask) {
+				// overwritten while reading
+				continue;
+			}
+
+			writer.printf(Locale.ROOT, "%d,%.3f,%s,%s,%d,%d,%d,%s,%d,%b,%d,%b%n", cycle,
+					(perceptionTime - timeBase) / 1000000.0, PerceptionScanner.formatSimTime(simTime),
+					PerceptionScanner.getPlayModeName(playMode), forward, action, sync,
+					syncSourceName(slotFlags & SYNC_SOURCE_MASK), bytes, (slotFlags & MISSED_FLAG) != 0, allocated,
+					(slotFlags & HOST_JITTER_FLAG) != 0);
+			written++;
+		}
+		writer.flush();
+		return written;
+	}
+
+	private static int micros(long from, long to)
+	{
+		return (int) Math.min(Integer.MAX_VALUE, (to - from) / 1000);
+	}
+
+	private static String syncSourceName(int source)
+	{
+		switch (source) {
+		case SYNC_CLIENT:
+			return "client";
+		case SYNC_PROXY:
+			return "proxy";
+		default:
+			return "none";
+		}
+	}
+}
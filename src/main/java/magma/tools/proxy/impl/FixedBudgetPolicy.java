@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+/**
+ * The same think time budget for all agents.
+ *
+ * @author agent
+ */
+public class FixedBudgetPolicy implements BudgetPolicy
+{
+	/** the budget shared by all agents */
+	private final Budget budget;
+
+	private final int milliseconds;
+
+	/**
+	 * @param milliseconds the think time budget of all agents in ms
+	 */
+	public FixedBudgetPolicy(int milliseconds)
+	{
+		this.milliseconds = milliseconds;
+		budget = () -> milliseconds;
+	}
+
+	@Override
+	public Budget create(AgentProxy agent)
+	{
+		return budget;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "fixed " + milliseconds + "ms";
+	}
+}
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.util.Arrays;
+
+/**
+ * A message frame passed through a {@link FramePipeline}. A frame is a slice of
+ * a buffer that is reused for all messages of one direction. Stages can
+ * shorten the slice in place or write a rewritten message into the scratch
+ * buffer and commit it, so no arrays are allocated once the buffers have grown
+ * to the size of the largest message.
+ * <p>
+ * Received messages start at {@link #HEADER_SPACE}, so the length header can
+ * be written in front of the message when it is forwarded without copying it.
+ * Stages rewriting messages should do the same using
+ * {@link #commitScratch(int, int)}. Buffers are only allocated when the first
+ * message is received.
+ *
+ * @author agent
+ */
+public class Frame
+{
+	/** space reserved in front of messages for the length header */
+	public static final int HEADER_SPACE = 4;
+
+	/** buffer sizes are rounded up to multiples of this */
+	private static final int CAPACITY_STEP = 512;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	/** the buffer holding the current message */
+	private byte[] buffer;
+
+	/** the second buffer stages can write rewritten messages to */
+	private byte[] scratch;
+
+	/** start of the message in buffer */
+	private int offset;
+
+	/** length of the message */
+	private int length;
+
+	/** who sent a sync contained in this message (CycleTimeline.SYNC_* constants) */
+	private byte syncSource;
+
+	public Frame()
+	{
+		this(EMPTY, 0);
+	}
+
+	/**
+	 * Creates a frame on an existing message
+	 * @param buffer the buffer containing the message at offset 0
+	 * @param length the length of the message
+	 */
+	public Frame(byte[] buffer, int length)
+	{
+		this.buffer = buffer;
+		this.length = length;
+		scratch = EMPTY;
+	}
+
+	public byte[] getBuffer()
+	{
+		return buffer;
+	}
+
+	public int getOffset()
+	{
+		return offset;
+	}
+
+	public int getLength()
+	{
+		return length;
+	}
+
+	/**
+	 * Shortens the message in place.
+	 * @param length the new length of the message
+	 */
+	public void setLength(int length)
+	{
+		this.length = length;
+	}
+
+	/**
+	 * @return who sent a sync contained in this message, one of the
+	 *         CycleTimeline.SYNC_* constants
+	 */
+	public byte getSyncSource()
+	{
+		return syncSource;
+	}
+
+	public void setSyncSource(byte syncSource)
+	{
+		this.syncSource = syncSource;
+	}
+
+	/**
+	 * Returns a buffer to write a rewritten message to. The current message is
+	 * left untouched until {@link #commitScratch(int)} is called.
+	 * @param capacity the size needed for the rewritten message
+	 * @return the scratch buffer with at least the passed capacity
+	 */
+	public byte[] getScratch(int capacity)
+	{
+		if (scratch.length < capacity) {
+			scratch = new byte[roundUp(capacity)];
+		}
+		return scratch;
+	}
+
+	/**
+	 * Makes the message written to the scratch buffer the current message.
+	 * @param length the length of the message written at offset 0
+	 */
+	public void commitScratch(int length)
+	{
+		commitScratch(0, length);
+	}
+
+	/**
+	 * Makes the message written to the scratch buffer the current message.
+	 * @param offset the start of the message in the scratch buffer, should be
+	 *        {@link #HEADER_SPACE} to allow forwarding without copying
+	 * @param length the length of the message
+	 */
+	public void commitScratch(int offset, int length)
+	{
+		byte[] previous = buffer;
+		buffer = scratch;
+		scratch = previous;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * Replaces the current message by a copy of the passed message.
+	 * @param message the new message
+	 */
+	public void setMessage(byte[] message)
+	{
+		System.arraycopy(message, 0, getScratch(HEADER_SPACE + message.length), HEADER_SPACE, message.length);
+		commitScratch(HEADER_SPACE, message.length);
+	}
+
+	/**
+	 * Prepares the frame for receiving a new message.
+	 * @param capacity the length of the message to receive
+	 * @return the buffer to receive the message to at {@link #HEADER_SPACE}
+	 */
+	byte[] prepareReceive(int capacity)
+	{
+		if (buffer.length < HEADER_SPACE + capacity) {
+			buffer = new byte[roundUp(HEADER_SPACE + capacity)];
+		}
+		offset = HEADER_SPACE;
+		length = capacity;
+		syncSource = CycleTimeline.SYNC_NONE;
+		return buffer;
+	}
+
+	/**
+	 * @return the number of bytes allocated by the buffers of this frame
+	 */
+	public int getCapacity()
+	{
+		return buffer.length + scratch.length;
+	}
+
+	private static int roundUp(int capacity)
+	{
+		return (capacity + CAPACITY_STEP - 1) / CAPACITY_STEP * CAPACITY_STEP;
+	}
+
+	/**
+	 * @param bytesToFind the bytes to search for
+	 * @return the index of the first occurrence relative to the offset, -1 if
+	 *         not found
+	 */
+	public int indexOf(byte[] bytesToFind)
+	{
+		int index = AgentProxy.indexOf(buffer, offset, offset + length, bytesToFind);
+		return index < 0 ? -1 : index - offset;
+	}
+
+	/**
+	 * @return a copy of the current message
+	 */
+	public byte[] toByteArray()
+	{
+		return Arrays.copyOfRange(buffer, offset, offset + length);
+	}
+
+	@Override
+	public String toString()
+	{
+		return new String(buffer, offset, length);
+	}
+}
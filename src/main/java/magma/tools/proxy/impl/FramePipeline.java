@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * An ordered list of {@link FrameStage}s all messages of one direction of an
+ * agent proxy pass before they are forwarded. Keeps the number of calls, drops
+ * and processing time of each stage.
+ *
+ * @author agent
+ */
+public class FramePipeline
+{
+	private final FrameStage[] stages;
+
+	/** number of messages processed by each stage */
+	private final long[] calls;
+
+	/** number of messages dropped by each stage */
+	private final long[] drops;
+
+	/** sum of processing times of each stage in ns */
+	private final long[] totalTimes;
+
+	/** maximum processing time of each stage in ns */
+	private final long[] maxTimes;
+
+	public FramePipeline(FrameStage... stages)
+	{
+		this.stages = stages;
+		calls = new long[stages.length];
+		drops = new long[stages.length];
+		totalTimes = new long[stages.length];
+		maxTimes = new long[stages.length];
+	}
+
+	/**
+	 * Creates a pipeline with a new stage from each of the passed factories.
+	 * @param stageFactories the factories of the stages in processing order
+	 * @return the new pipeline
+	 */
+	public static FramePipeline create(List<Supplier<? extends FrameStage>> stageFactories)
+	{
+		FrameStage[] stages = new FrameStage[stageFactories.size()];
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = stageFactories.get(i).get();
+		}
+		return new FramePipeline(stages);
+	}
+
+	/**
+	 * @return the built-in stages for messages from the client agent
+	 */
+	public static List<Supplier<? extends FrameStage>> defaultClientStages()
+	{
+		List<Supplier<? extends FrameStage>> result = new ArrayList<>();
+		result.add(SyncStage::new);
+		result.add(MessageHookStage::client);
+		result.add(SayCheckStage::new);
+		return result;
+	}
+
+	/**
+	 * @return the built-in stages for messages from the Simspark server
+	 */
+	public static List<Supplier<? extends FrameStage>> defaultServerStages()
+	{
+		List<Supplier<? extends FrameStage>> result = new ArrayList<>();
+		result.add(MessageHookStage::server);
+		return result;
+	}
+
+	/**
+	 * Passes the frame through all stages until one drops it.
+	 * @param agent the agent proxy the message belongs to
+	 * @param frame the message
+	 * @return false if the message was dropped by a stage
+	 */
+	public boolean process(AgentProxy agent, Frame frame)
+	{
+		for (int i = 0; i < stages.length; i++) {
+			long start = System.nanoTime();
+			boolean pass = stages[i].process(agent, frame);
+			long time = System.nanoTime() - start;
+
+			calls[i]++;
+			totalTimes[i] += time;
+			if (time > maxTimes[i]) {
+				maxTimes[i] = time;
+			}
+			if (!pass) {
+				drops[i]++;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param type the class of the stage to look for
+	 * @return the first stage of the passed type, null if none
+	 */
+	public <T extends FrameStage> T getStage(Class<T> type)
+	{
+		for (FrameStage stage : stages) {
+			if (type.isInstance(stage)) {
+				return type.cast(stage);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < stages.length; i++) {
+			long count = calls[i];
+			result.append(String.format("\n  %s calls: %d drops: %d avgTime: %4.2f(us) maxTime: %4.2f(us)",
+					stages[i].getName(), count, drops[i], count > 0 ? totalTimes[i] / 1000.0 / count : 0,
+					maxTimes[i] / 1000.0));
+		}
+		return result.toString();
+	}
+}
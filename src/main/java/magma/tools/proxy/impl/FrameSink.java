@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Something messages can be sent to, either as a whole or streamed in chunks
+ * while they are read. Oversized messages a {@link Transport} receives are
+ * streamed to a sink instead of being buffered.
+ *
+ * @author agent
+ */
+public interface FrameSink
+{
+	/**
+	 * Send a part of a message buffer.
+	 * @param msg buffer containing the message in ASCII form
+	 * @param offset the start of the message in the buffer
+	 * @param length the length of the message
+	 */
+	void sendMessage(byte[] msg, int offset, int length);
+
+	/**
+	 * Sends a message read from a stream. The message is always read
+	 * completely to keep the source in sync, even if it can not be sent.
+	 * @param source the stream to read the message from
+	 * @param length the length of the message
+	 * @param chunk a buffer that can be used to copy the message through
+	 * @throws IOException if reading the message failed
+	 */
+	void streamMessage(InputStream source, int length, byte[] chunk) throws IOException;
+}
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+/**
+ * One stage of a {@link FramePipeline}. A stage gets the frame of a message
+ * and can pass it on unchanged, drop it or rewrite it, either in place or
+ * using the scratch buffer of the frame.
+ *
+ * @author agent
+ */
+public interface FrameStage
+{
+	/**
+	 * Processes one message.
+	 * @param agent the agent proxy the message belongs to
+	 * @param frame the message, can be changed by the stage
+	 * @return false if the message should be dropped
+	 */
+	boolean process(AgentProxy agent, Frame frame);
+
+	/**
+	 * @return the name of this stage used in statistics
+	 */
+	default String getName()
+	{
+		return getClass().getSimpleName();
+	}
+}
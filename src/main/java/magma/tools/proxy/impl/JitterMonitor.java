@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Measures how late the host wakes up sleeping threads, to tell missed cycles
+ * caused by the proxy host from those caused by slow agents. A probe thread
+ * sleeps {@link #INTERVAL} ms again and again like the perception forwarders
+ * do and records by how much each sleep overshoots. The overshoot includes
+ * timer slack, run queue delays and safepoint pauses of the JVM, since the
+ * probe can not return to Java code during a safepoint. Garbage collection
+ * pauses are additionally reported by the notifications of the garbage
+ * collector beans. Collectors reporting concurrent cycles instead of pauses
+ * are ignored.
+ * <p>
+ * Whenever an overshoot or a pause exceeds the threshold, the time is kept,
+ * so agent proxies can ask without locking whether the host jittered since a
+ * cycle started. Overshoots of the last {@link #WINDOW} probes are kept in a
+ * ring for the percentiles shown by the status command.
+ *
+ * @author agent
+ */
+public class JitterMonitor extends Thread
+{
+	/** time the probe sleeps in ms */
+	public static final int INTERVAL = 1;
+
+	/** the default threshold of jitter causing missed cycles in ns */
+	public static final long DEFAULT_THRESHOLD = 2000000;
+
+	/** number of probes the overshoot is kept of, power of two */
+	static final int WINDOW = 4096;
+
+	/** the clock the probe sleeps on */
+	private final ProxyClock clock;
+
+	/** overshoots and pauses longer than this are jitter, in ns */
+	private final long threshold;
+
+	/** overshoot of the last probes in microseconds */
+	private final int[] overshoots = new int[WINDOW];
+
+	/** number of probes so far, the next slot of the ring */
+	private volatile long probes;
+
+	/** the maximum overshoot of a probe in ns */
+	private volatile long maxOvershoot;
+
+	/** number of overshoots and pauses longer than the threshold */
+	private volatile long jitterCount;
+
+	/** the time (nanoTime) the host jittered last, Long.MIN_VALUE if never */
+	private volatile long lastJitterTime = Long.MIN_VALUE;
+
+	/** number of garbage collection pauses */
+	private volatile long gcPauses;
+
+	/** sum of the garbage collection pauses in ns */
+	private volatile long gcPauseTime;
+
+	/** the longest garbage collection pause in ns */
+	private volatile long maxGcPause;
+
+	/** the garbage collector beans listened to */
+	private final List<NotificationEmitter> gcEmitters = new ArrayList<>();
+
+	/** receives the garbage collection notifications */
+	private final NotificationListener gcListener = (notification, handback) -> gcNotified(notification);
+
+	/**
+	 * Statistics of the jitter measured.
+	 * @param probes number of probes so far
+	 * @param median median overshoot of the recent probes in ns
+	 * @param p99 99th percentile of the overshoot of the recent probes in ns
+	 * @param p999 99.9th percentile of the overshoot of the recent probes in ns
+	 * @param maxOvershoot maximum overshoot of all probes in ns
+	 * @param jitterCount overshoots and pauses longer than the threshold
+	 * @param gcPauses number of garbage collection pauses
+	 * @param gcPauseTime sum of the garbage collection pauses in ns
+	 * @param maxGcPause longest garbage collection pause in ns
+	 */
+	public record Statistics(long probes, long median, long p99, long p999, long maxOvershoot, long jitterCount,
+			long gcPauses, long gcPauseTime, long maxGcPause)
+	{
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.ROOT,
+					"wake-up overshoot p50: %.3f p99: %.3f p99.9: %.3f max: %.3f(ms) probes: %d jitter: %d " +
+							"gc pauses: %d total: %.1f max: %.1f(ms)",
+					median / 1000000.0, p99 / 1000000.0, p999 / 1000000.0, maxOvershoot / 1000000.0, probes,
+					jitterCount, gcPauses, gcPauseTime / 1000000.0, maxGcPause / 1000000.0);
+		}
+	}
+
+	/**
+	 * @param clock the clock the probe sleeps on
+	 * @param threshold overshoots and pauses longer than this are jitter, in ns
+	 */
+	public JitterMonitor(ProxyClock clock, long threshold)
+	{
+		super("jitter-monitor");
+		setDaemon(true);
+		this.clock = clock;
+		this.threshold = threshold;
+	}
+
+	@Override
+	public void run()
+	{
+		listenToGarbageCollectors();
+		try {
+			while (!isInterrupted()) {
+				probe();
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		} finally {
+			stopListening();
+		}
+	}
+
+	/**
+	 * Sleeps once and records the overshoot.
+	 * @throws InterruptedException if interrupted while sleeping
+	 */
+	void probe() throws InterruptedException
+	{
+		long start = clock.nanoTime();
+		clock.sleep(INTERVAL);
+		long end = clock.nanoTime();
+		long overshoot = Math.max(0, end - start - INTERVAL * 1000000L);
+
+		long probe = probes;
+		overshoots[(int) (probe & (WINDOW - 1))] = (int) Math.min(Integer.MAX_VALUE, overshoot / 1000);
+		probes = probe + 1;
+		if (overshoot > maxOvershoot) {
+			maxOvershoot = overshoot;
+		}
+		if (overshoot > threshold) {
+			jitterDetected(end);
+		}
+	}
+
+	/**
+	 * Records a garbage collection pause.
+	 * @param time the time (nanoTime) the pause was reported
+	 * @param duration the length of the pause in ns
+	 */
+	void gcPauseDetected(long time, long duration)
+	{
+		gcPauses++;
+		gcPauseTime += duration;
+		if (duration > maxGcPause) {
+			maxGcPause = duration;
+		}
+		if (duration > threshold) {
+			jitterDetected(time);
+		}
+	}
+
+	/**
+	 * Records how late another thread woke up, e.g. a perception forwarder
+	 * waiting for the sync. Lets the thread report its own lateness before the
+	 * probe, which may be woken later, noticed it.
+	 * @param time the time (nanoTime) the thread woke up
+	 * @param overshoot the time the thread woke up too late in ns
+	 */
+	public void wakeUpMeasured(long time, long overshoot)
+	{
+		if (overshoot > threshold) {
+			jitterDetected(time);
+		}
+	}
+
+	/**
+	 * Called by the probe, the notification thread and other threads.
+	 * @param time the time (nanoTime) the jitter was detected
+	 */
+	private synchronized void jitterDetected(long time)
+	{
+		jitterCount++;
+		if (time > lastJitterTime) {
+			lastJitterTime = time;
+		}
+	}
+
+	/**
+	 * Checks if the host jittered, e.g. when an agent missed a cycle. Does not
+	 * lock or allocate.
+	 * @param time the time (nanoTime) to check from, e.g. the start of the cycle
+	 * @return true if an overshoot or pause above the threshold was detected
+	 *         since the passed time
+	 */
+	public boolean jitterSince(long time)
+	{
+		return lastJitterTime >= time;
+	}
+
+	/**
+	 * @return the threshold of overshoots and pauses counted as jitter in ns
+	 */
+	public long getThreshold()
+	{
+		return threshold;
+	}
+
+	/**
+	 * Computes the percentiles of the recent probes. Reads the ring while the
+	 * probe keeps writing, so a few values may already be from newer probes.
+	 * @return the statistics of the jitter measured so far
+	 */
+	public Statistics getStatistics()
+	{
+		long probeCount = probes;
+		int size = (int) Math.min(probeCount, WINDOW);
+		int[] recent = Arrays.copyOf(overshoots, size);
+		Arrays.sort(recent);
+		return new Statistics(probeCount, percentile(recent, 0.5), percentile(recent, 0.99), percentile(recent, 0.999),
+				maxOvershoot, jitterCount, gcPauses, gcPauseTime, maxGcPause);
+	}
+
+	/**
+	 * @param sorted overshoots in microseconds in ascending order
+	 * @return the percentile in ns, 0 if there are no values
+	 */
+	private static long percentile(int[] sorted, double fraction)
+	{
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * fraction) - 1);
+		return sorted[Math.max(0, index)] * 1000L;
+	}
+
+	private void listenToGarbageCollectors()
+	{
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			// ZGC and Shenandoah report their concurrent cycles by separate beans
+			String name = bean.getName();
+			if (bean instanceof NotificationEmitter && !name.contains("Cycles") && !name.contains("Concurrent")) {
+				NotificationEmitter emitter = (NotificationEmitter) bean;
+				emitter.addNotificationListener(gcListener, null, null);
+				gcEmitters.add(emitter);
+			}
+		}
+	}
+
+	private void stopListening()
+	{
+		for (NotificationEmitter emitter : gcEmitters) {
+			try {
+				emitter.removeNotificationListener(gcListener);
+			} catch (ListenerNotFoundException e) {
+				// already removed
+			}
+		}
+		gcEmitters.clear();
+	}
+
+	private void gcNotified(Notification notification)
+	{
+		if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+			return;
+		}
+		GarbageCollectionNotificationInfo info =
+				GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+		gcPauseDetected(clock.nanoTime(), info.getGcInfo().getDuration() * 1000000L);
+	}
+}
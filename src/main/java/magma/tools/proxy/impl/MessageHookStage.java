@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+/**
+ * Built-in stage calling the {@link AgentProxy#onNewClientMessage(byte[])} or
+ * {@link AgentProxy#onNewServerMessage(byte[])} hook of agent proxy
+ * subclasses. Messages are only copied into an array if the hook is
+ * overridden.
+ *
+ * @author agent
+ */
+public class MessageHookStage implements FrameStage
+{
+	/** true for client messages, false for server messages */
+	private final boolean clientMessages;
+
+	/** 1 if the hook is overridden, 0 if not, -1 if not yet known */
+	private int overridden;
+
+	private MessageHookStage(boolean clientMessages)
+	{
+		this.clientMessages = clientMessages;
+		overridden = -1;
+	}
+
+	public static MessageHookStage client()
+	{
+		return new MessageHookStage(true);
+	}
+
+	public static MessageHookStage server()
+	{
+		return new MessageHookStage(false);
+	}
+
+	@Override
+	public boolean process(AgentProxy agent, Frame frame)
+	{
+		if (overridden < 0) {
+			overridden = overrides(agent.getClass(), clientMessages ? "onNewClientMessage" : "onNewServerMessage")
+								 ? 1
+								 : 0;
+		}
+		if (overridden == 0) {
+			return true;
+		}
+
+		byte[] message = frame.toByteArray();
+		message = clientMessages ? agent.onNewClientMessage(message) : agent.onNewServerMessage(message);
+		if (message == null) {
+			return false;
+		}
+		frame.setMessage(message);
+		return true;
+	}
+
+	private static boolean overrides(Class<?> type, String method)
+	{
+		for (Class<?> current = type; current != AgentProxy.class; current = current.getSuperclass()) {
+			try {
+				current.getDeclaredMethod(method, byte[].class);
+				return true;
+			} catch (NoSuchMethodException e) {
+				// continue with super class
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public String getName()
+	{
+		return clientMessages ? "ClientMessageHook" : "ServerMessageHook";
+	}
+}
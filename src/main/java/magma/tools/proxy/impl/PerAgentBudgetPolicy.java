@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Think time budgets that differ per agent, e.g. per team during training.
+ * The budget configured for the address of the agent is used first, then the
+ * one for the proxy port the agent connected to and finally the default
+ * budget. An agent can ask for a budget in its handshake (see
+ * {@link AgentProxy#BUDGET_REQUEST}), which is limited to the budget of its
+ * address or port rule, or to the default budget unless a higher maximum is
+ * configured for requests. So an agent can not slow down the server by asking
+ * for more than it is given.
+ *
+ * @author agent
+ */
+public class PerAgentBudgetPolicy implements BudgetPolicy
+{
+	private final int defaultBudget;
+
+	/** the largest budget in ms agents get by requesting it */
+	private int maxRequestedBudget;
+
+	/** budgets in ms by host address of agents */
+	private final Map<String, Integer> addressBudgets = new LinkedHashMap<>();
+
+	/** budgets in ms by proxy port agents connected to */
+	private final Map<Integer, Integer> portBudgets = new LinkedHashMap<>();
+
+	/**
+	 * @param defaultBudget the budget in ms of agents no rule applies to
+	 */
+	public PerAgentBudgetPolicy(int defaultBudget)
+	{
+		this.defaultBudget = defaultBudget;
+		maxRequestedBudget = defaultBudget;
+	}
+
+	/**
+	 * Sets the largest budget agents without address or port rule get by
+	 * requesting it, the default budget if not set. To be called before the
+	 * policy is used.
+	 * @param budget the budget in ms
+	 * @return this policy
+	 */
+	public PerAgentBudgetPolicy forRequests(int budget)
+	{
+		maxRequestedBudget = budget;
+		return this;
+	}
+
+	/**
+	 * Sets the budget of agents connecting from an address. To be called
+	 * before the policy is used.
+	 * @param address the host address of the agents
+	 * @param budget the budget in ms
+	 * @return this policy
+	 */
+	public PerAgentBudgetPolicy forAddress(String address, int budget)
+	{
+		addressBudgets.put(address, budget);
+		return this;
+	}
+
+	/**
+	 * Sets the budget of agents connected to a proxy port. To be called before
+	 * the policy is used.
+	 * @param proxyPort the local port of the proxy the agents connected to
+	 * @param budget the budget in ms
+	 * @return this policy
+	 */
+	public PerAgentBudgetPolicy forPort(int proxyPort, int budget)
+	{
+		portBudgets.put(proxyPort, budget);
+		return this;
+	}
+
+	/**
+	 * @return the largest budget in ms agents get by requesting it
+	 */
+	public int getMaxRequestedBudget()
+	{
+		return maxRequestedBudget;
+	}
+
+	@Override
+	public Budget create(AgentProxy agent)
+	{
+		int budget = grantRequest(agent);
+		if (budget == 0) {
+			Integer ruleBudget = ruleBudget(agent);
+			budget = ruleBudget == null ? defaultBudget : ruleBudget;
+		}
+		int milliseconds = budget;
+		return () -> milliseconds;
+	}
+
+	@Override
+	public int grantRequest(AgentProxy agent)
+	{
+		if (agent.getRequestedBudget() <= 0) {
+			return 0;
+		}
+		Integer ruleBudget = ruleBudget(agent);
+		return Math.min(agent.getRequestedBudget(), ruleBudget == null ? maxRequestedBudget : ruleBudget);
+	}
+
+	/**
+	 * @return the budget in ms of the address or port rule of the agent, null
+	 *         if no rule applies
+	 */
+	private Integer ruleBudget(AgentProxy agent)
+	{
+		if (agent.getClientAddress() != null && addressBudgets.containsKey(agent.getClientAddress())) {
+			return addressBudgets.get(agent.getClientAddress());
+		}
+		return portBudgets.get(agent.getProxyPort());
+	}
+
+	@Override
+	public String toString()
+	{
+		return "per agent " + defaultBudget + "ms requests: <=" + maxRequestedBudget + "ms addresses: " +
+				addressBudgets + " ports: " + portBudgets;
+	}
+}
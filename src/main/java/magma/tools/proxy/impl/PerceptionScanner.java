@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Pulls the simulation time {@code (time (now X))} and the play mode
+ * {@code (GS ... (pm X))} out of the start of a perception without parsing
+ * the whole message. Only the first {@link #MAX_SCAN_LENGTH} bytes are
+ * scanned and scanning stops as soon as both fields are found. Scanning does
+ * not allocate.
+ * <p>
+ * If a perception does not contain a play mode, the play mode of the last
+ * perception containing one is kept.
+ *
+ * @author agent
+ */
+public class PerceptionScanner
+{
+	/** the maximum number of bytes scanned from the start of a perception */
+	public static final int MAX_SCAN_LENGTH = 512;
+
+	/** sim time if the perception did not contain one */
+	public static final int NO_SIM_TIME = -1;
+
+	/** play mode if none was received yet or the name is not known */
+	public static final byte PLAY_MODE_UNKNOWN = 0;
+
+	/** the play modes of the Simspark soccer server, index is the play mode */
+	private static final String[] PLAY_MODES = {"unknown", "BeforeKickOff", "KickOff_Left", "KickOff_Right", "PlayOn",
+			"KickIn_Left", "KickIn_Right", "corner_kick_left", "corner_kick_right", "goal_kick_left", "goal_kick_right",
+			"offside_left", "offside_right", "GameOver", "Goal_Left", "Goal_Right", "free_kick_left",
+			"free_kick_right", "direct_free_kick_left", "direct_free_kick_right", "pass_left", "pass_right"};
+
+	private static final byte[][] PLAY_MODE_BYTES = new byte[PLAY_MODES.length][];
+
+	private static final byte[] NOW = "(now ".getBytes(StandardCharsets.US_ASCII);
+
+	private static final byte[] PLAY_MODE = "(pm ".getBytes(StandardCharsets.US_ASCII);
+
+	static {
+		for (int i = 0; i < PLAY_MODES.length; i++) {
+			PLAY_MODE_BYTES[i] = PLAY_MODES[i].getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	/** the sim time of the last scanned perception in ms */
+	private int simTime = NO_SIM_TIME;
+
+	/** the last play mode received */
+	private byte playMode = PLAY_MODE_UNKNOWN;
+
+	/**
+	 * Scans the start of a perception.
+	 * @param frame the frame containing the perception
+	 * @return true if the perception contained a sim time
+	 */
+	public boolean scan(Frame frame)
+	{
+		return scan(frame.getBuffer(), frame.getOffset(), frame.getLength());
+	}
+
+	/**
+	 * Scans the start of a perception.
+	 * @param buffer the buffer containing the perception
+	 * @param offset the start of the perception
+	 * @param length the length of the perception
+	 * @return true if the perception contained a sim time
+	 */
+	public boolean scan(byte[] buffer, int offset, int length)
+	{
+		int end = offset + Math.min(length, MAX_SCAN_LENGTH);
+		simTime = NO_SIM_TIME;
+		boolean havePlayMode = false;
+		for (int i = offset; i < end && (simTime == NO_SIM_TIME || !havePlayMode); i++) {
+			if (buffer[i] != '(') {
+				continue;
+			}
+			if (simTime == NO_SIM_TIME && startsWith(buffer, i, end, NOW)) {
+				i += NOW.length;
+				simTime = parseMillis(buffer, i, end);
+			} else if (!havePlayMode && startsWith(buffer, i, end, PLAY_MODE)) {
+				i += PLAY_MODE.length;
+				playMode = findPlayMode(buffer, i, end);
+				havePlayMode = true;
+			}
+		}
+		return simTime != NO_SIM_TIME;
+	}
+
+	/**
+	 * @return the sim time of the last scanned perception in ms,
+	 *         {@link #NO_SIM_TIME} if it did not contain one
+	 */
+	public int getSimTime()
+	{
+		return simTime;
+	}
+
+	/**
+	 * @return the last play mode received
+	 */
+	public byte getPlayMode()
+	{
+		return playMode;
+	}
+
+	/**
+	 * @param playMode a play mode returned by the scanner
+	 * @return the name of the play mode as sent by the server
+	 */
+	public static String getPlayModeName(byte playMode)
+	{
+		return playMode >= 0 && playMode < PLAY_MODES.length ? PLAY_MODES[playMode] : PLAY_MODES[PLAY_MODE_UNKNOWN];
+	}
+
+	/**
+	 * @param name the name of a play mode as sent by the server
+	 * @return the play mode, {@link #PLAY_MODE_UNKNOWN} if the name is not known
+	 */
+	public static byte getPlayMode(String name)
+	{
+		for (int mode = 1; mode < PLAY_MODES.length; mode++) {
+			if (PLAY_MODES[mode].equals(name)) {
+				return (byte) mode;
+			}
+		}
+		return PLAY_MODE_UNKNOWN;
+	}
+
+	/**
+	 * @return the number of play modes including unknown
+	 */
+	public static int getPlayModeCount()
+	{
+		return PLAY_MODES.length;
+	}
+
+	/**
+	 * @param simTime the sim time in ms
+	 * @return the sim time in seconds, "-" if not known
+	 */
+	public static String formatSimTime(int simTime)
+	{
+		if (simTime == NO_SIM_TIME) {
+			return "-";
+		}
+		int millis = simTime % 1000;
+		return simTime / 1000 + "." + (millis < 100 ? (millis < 10 ? "00" : "0") : "") + millis;
+	}
+
+	/**
+	 * Parses a positive decimal number of seconds to milliseconds. Digits after
+	 * the third decimal are ignored.
+	 */
+	private static int parseMillis(byte[] buffer, int from, int end)
+	{
+		long seconds = 0;
+		int digits = 0;
+		int i = from;
+		for (; i < end && buffer[i] >= '0' && buffer[i] <= '9'; i++) {
+			seconds = seconds * 10 + (buffer[i] - '0');
+			digits++;
+		}
+		if (digits == 0 || digits > 9) {
+			return NO_SIM_TIME;
+		}
+
+		int millis = 0;
+		int decimals = 0;
+		if (i < end && buffer[i] == '.') {
+			for (i++; i < end && buffer[i] >= '0' && buffer[i] <= '9'; i++) {
+				if (decimals < 3) {
+					millis = millis * 10 + (buffer[i] - '0');
+					decimals++;
+				}
+			}
+		}
+		for (; decimals < 3; decimals++) {
+			millis *= 10;
+		}
+		long result = seconds * 1000 + millis;
+		return result > Integer.MAX_VALUE ? NO_SIM_TIME : (int) result;
+	}
+
+	private static byte findPlayMode(byte[] buffer, int from, int end)
+	{
+		int nameEnd = from;
+		while (nameEnd < end && buffer[nameEnd] != ')') {
+			nameEnd++;
+		}
+		if (nameEnd == end) {
+			return PLAY_MODE_UNKNOWN;
+		}
+
+		for (int mode = 1; mode < PLAY_MODE_BYTES.length; mode++) {
+			byte[] name = PLAY_MODE_BYTES[mode];
+			if (name.length == nameEnd - from && startsWith(buffer, from, nameEnd, name)) {
+				return (byte) mode;
+			}
+		}
+		return PLAY_MODE_UNKNOWN;
+	}
+
+	private static boolean startsWith(byte[] buffer, int from, int end, byte[] prefix)
+	{
+		if (end - from < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (buffer[from + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+/**
+ * Source of time and sleeping used by an {@link AgentProxy}. The proxy reads
+ * all times and waits for the sync deadline through its clock, so tests can
+ * replace real time by virtual time and run many cycles without waiting.
+ *
+ * @author agent
+ */
+public interface ProxyClock
+{
+	/** the clock using {@link System#nanoTime()} and {@link Thread#sleep(long)} */
+	ProxyClock SYSTEM = new ProxyClock() {
+		@Override
+		public long nanoTime()
+		{
+			return System.nanoTime();
+		}
+
+		@Override
+		public void sleep(long millis) throws InterruptedException
+		{
+			Thread.sleep(millis);
+		}
+	};
+
+	/**
+	 * @return the current time in nanoseconds, only meaningful to compute
+	 *         differences like {@link System#nanoTime()}
+	 */
+	long nanoTime();
+
+	/**
+	 * Lets the calling thread wait.
+	 * @param millis the time to wait in milliseconds
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	void sleep(long millis) throws InterruptedException;
+}
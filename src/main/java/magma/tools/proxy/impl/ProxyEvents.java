@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events of the agent proxies, so proxy timing shows up in
+ * the same recording as GC pauses and safepoints. Events are only created
+ * while a recording is running and only filled and committed if the recording
+ * has them enabled, so the cost without a recording is a single check and
+ * forwarding does not create garbage.
+ * <p>
+ * Actions and syncs happen every cycle of every agent and have no duration a
+ * threshold could filter, so their events are disabled unless a recording
+ * enables them in its settings.
+ *
+ * @author agent
+ */
+public final class ProxyEvents
+{
+	private static final String CATEGORY = "magmaProxy";
+
+	/** true while at least one recording is running */
+	private static volatile boolean recording;
+
+	private ProxyEvents()
+	{
+	}
+
+	/**
+	 * Loads and registers all event classes. Loading the first event class
+	 * initializes the flight recorder support, which takes several hundred
+	 * milliseconds and should not delay the first agents. No events are
+	 * created before.
+	 */
+	public static void register()
+	{
+		FlightRecorder.register(PerceptionForwarded.class);
+		FlightRecorder.register(ClientActionReceived.class);
+		FlightRecorder.register(SyncSent.class);
+		FlightRecorder.register(MissedCycle.class);
+		FlightRecorder.register(InvalidSay.class);
+
+		FlightRecorder.addListener(new FlightRecorderListener() {
+			@Override
+			public void recordingStateChanged(Recording changed)
+			{
+				updateRecording();
+			}
+		});
+		updateRecording();
+	}
+
+	/**
+	 * @return true if events should be created, i.e. a recording is running
+	 */
+	public static boolean isRecording()
+	{
+		return recording;
+	}
+
+	private static void updateRecording()
+	{
+		boolean running = false;
+		if (FlightRecorder.isInitialized()) {
+			for (Recording each : FlightRecorder.getFlightRecorder().getRecordings()) {
+				running |= each.getState() == RecordingState.RUNNING;
+			}
+		}
+		recording = running;
+	}
+
+	@Name("magma.proxy.PerceptionForwarded")
+	@Label("Perception Forwarded")
+	@Description("A perception was received from the server and forwarded to the agent")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	@Threshold("1 ms")
+	public static class PerceptionForwarded extends Event
+	{
+		@Label("Agent Port")
+		public int agentPort;
+
+		@Label("Size")
+		public int size;
+
+		@Label("Sim Time")
+		@Description("Simulation time of the perception in ms, -1 if unknown")
+		public int simTime;
+	}
+
+	@Name("magma.proxy.ClientActionReceived")
+	@Label("Client Action Received")
+	@Description("An action was received from the agent and forwarded to the server")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	@Enabled(false)
+	public static class ClientActionReceived extends Event
+	{
+		@Label("Agent Port")
+		public int agentPort;
+
+		@Label("Size")
+		public int size;
+
+		@Label("Think Time")
+		@Description("Time since the perception of the cycle was received")
+		@Timespan(Timespan.NANOSECONDS)
+		public long thinkTime;
+	}
+
+	@Name("magma.proxy.SyncSent")
+	@Label("Sync Sent")
+	@Description("A sync was sent to the server")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	@Enabled(false)
+	public static class SyncSent extends Event
+	{
+		@Label("Agent Port")
+		public int agentPort;
+
+		@Label("Source")
+		@Description("client if the agent sent the sync, proxy if the proxy sent it")
+		public String source;
+
+		@Label("Latency")
+		@Description("Time since the perception of the cycle was received")
+		@Timespan(Timespan.NANOSECONDS)
+		public long latency;
+
+		@Label("Lateness")
+		@Description("Time after the maximum wait time, negative if earlier")
+		@Timespan(Timespan.NANOSECONDS)
+		public long lateness;
+	}
+
+	@Name("magma.proxy.MissedCycle")
+	@Label("Missed Cycle")
+	@Description("The agent did not send an action before the proxy sent the sync")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	public static class MissedCycle extends Event
+	{
+		@Label("Agent Port")
+		public int agentPort;
+
+		@Label("Missed Cycles")
+		@Description("Number of cycles missed by the agent so far")
+		public int missedCycles;
+
+		@Label("Sim Time")
+		@Description("Simulation time of the missed cycle in ms, -1 if unknown")
+		public int simTime;
+
+		@Label("Play Mode")
+		public String playMode;
+
+		@Label("Host Jitter")
+		@Description("The proxy host woke threads late or paused during the cycle")
+		public boolean hostJitter;
+	}
+
+	@Name("magma.proxy.InvalidSay")
+	@Label("Invalid Say")
+	@Description("An action contained an invalid say message")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	public static class InvalidSay extends Event
+	{
+		@Label("Agent Port")
+		public int agentPort;
+
+		@Label("Action Size")
+		public int size;
+
+		@Label("Removed")
+		@Description("True if the say was removed from the action")
+		public boolean removed;
+	}
+}
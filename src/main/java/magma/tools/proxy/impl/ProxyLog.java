@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logging used by the forwarding threads. Messages are put into a
+ * bounded lock-free queue and printed by a single background thread, so a
+ * forwarder never blocks on the console. If the queue is full, the message is
+ * dropped and counted instead. The writer thread parks while the queue is
+ * empty and is unparked by the producer that finds it parked, so an idle
+ * proxy does not wake it up.
+ *
+ * @author agent
+ */
+public final class ProxyLog
+{
+	/** Log levels, ordered by severity */
+	public enum Level { ERROR, WARN, INFO, DEBUG }
+
+	/** number of messages the queue can hold, power of two */
+	private static final int CAPACITY = 4096;
+
+	private static final int MASK = CAPACITY - 1;
+
+	/** sequence numbers of the queue slots */
+	private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+
+	private static final String[] messages = new String[CAPACITY];
+
+	private static final Level[] levels = new Level[CAPACITY];
+
+	/** next position to write to, shared by all producers */
+	private static final AtomicLong tail = new AtomicLong();
+
+	/** next position to read from, only used by the writer thread */
+	private static long head;
+
+	/** number of messages dropped because the queue was full */
+	private static final AtomicLong droppedCount = new AtomicLong();
+
+	/** number of drops that have already been reported */
+	private static long reportedDrops;
+
+	/** the stream the writer thread prints to */
+	private static volatile PrintStream out = System.out;
+
+	/** the maximum level that is logged */
+	private static volatile Level level = Level.INFO;
+
+	/** the thread printing the queued messages */
+	private static final Thread writer;
+
+	/** true while the writer thread parks, producers have to unpark it */
+	private static volatile boolean writerParked;
+
+	static {
+		for (int i = 0; i < CAPACITY; i++) {
+			sequences.set(i, i);
+		}
+
+		writer = new Thread(ProxyLog::writeLoop, "magmaProxy-log");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(ProxyLog::flush));
+	}
+
+	private ProxyLog()
+	{
+	}
+
+	public static void setLevel(Level newLevel)
+	{
+		level = newLevel;
+	}
+
+	public static Level getLevel()
+	{
+		return level;
+	}
+
+	/**
+	 * @param out the stream messages are printed to
+	 */
+	public static void setOutput(PrintStream out)
+	{
+		ProxyLog.out = out;
+	}
+
+	/**
+	 * @return true if messages of the passed level are logged
+	 */
+	public static boolean isEnabled(Level messageLevel)
+	{
+		return messageLevel.ordinal() <= level.ordinal();
+	}
+
+	/**
+	 * @return the number of messages dropped because the queue was full
+	 */
+	public static long getDroppedCount()
+	{
+		return droppedCount.get();
+	}
+
+	public static void error(String message)
+	{
+		log(Level.ERROR, message);
+	}
+
+	public static void warn(String message)
+	{
+		log(Level.WARN, message);
+	}
+
+	public static void info(String message)
+	{
+		log(Level.INFO, message);
+	}
+
+	public static void debug(String message)
+	{
+		log(Level.DEBUG, message);
+	}
+
+	/**
+	 * Queues a message for printing. Never blocks.
+	 * @param messageLevel the level of the message
+	 * @param message the message to print
+	 * @return false if the message was filtered or dropped
+	 */
+	public static boolean log(Level messageLevel, String message)
+	{
+		if (!isEnabled(messageLevel)) {
+			return false;
+		}
+
+		long pos = tail.get();
+		int slot;
+		while (true) {
+			slot = (int) (pos & MASK);
+			long diff = sequences.get(slot) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				// queue is full
+				droppedCount.incrementAndGet();
+				return false;
+			} else {
+				pos = tail.get();
+			}
+		}
+
+		messages[slot] = message;
+		levels[slot] = messageLevel;
+		sequences.set(slot, pos + 1);
+		if (writerParked) {
+			// the queue was empty
+			LockSupport.unpark(writer);
+		}
+		return true;
+	}
+
+	/**
+	 * Prints all queued messages. Only to be used when the forwarders are
+	 * stopped, e.g. at shutdown or in tests.
+	 */
+	public static synchronized void flush()
+	{
+		while (printNext()) {
+		}
+		out.flush();
+	}
+
+	private static void writeLoop()
+	{
+		boolean unflushed = false;
+		while (true) {
+			boolean printed;
+			synchronized (ProxyLog.class) {
+				printed = printNext();
+			}
+			if (printed) {
+				unflushed = true;
+				continue;
+			}
+			if (unflushed) {
+				out.flush();
+				unflushed = false;
+			}
+
+			// a producer either sees the flag or its message is seen here
+			writerParked = true;
+			boolean empty;
+			synchronized (ProxyLog.class) {
+				empty = isEmpty();
+			}
+			if (empty) {
+				LockSupport.park(ProxyLog.class);
+			}
+			writerParked = false;
+		}
+	}
+
+	/**
+	 * @return true if no message is queued
+	 */
+	private static boolean isEmpty()
+	{
+		return sequences.get((int) (head & MASK)) != head + 1;
+	}
+
+	/**
+	 * Prints the next message of the queue. Only called by one thread at a time.
+	 * @return false if the queue was empty
+	 */
+	private static boolean printNext()
+	{
+		long drops = droppedCount.get();
+		if (drops != reportedDrops) {
+			out.println("WARN: " + (drops - reportedDrops) + " log messages dropped");
+			reportedDrops = drops;
+		}
+
+		if (isEmpty()) {
+			return false;
+		}
+
+		int slot = (int) (head & MASK);
+
+		String message = messages[slot];
+		Level messageLevel = levels[slot];
+		messages[slot] = null;
+		sequences.set(slot, head + CAPACITY);
+		head++;
+
+		if (messageLevel == Level.INFO) {
+			out.println(message);
+		} else {
+			out.println(messageLevel + ": " + message);
+		}
+		return true;
+	}
+}
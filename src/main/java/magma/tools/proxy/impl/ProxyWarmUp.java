@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.io.IOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Runs the forwarding path of an agent proxy before agents connect, so the
+ * first cycles of a match do not run in the interpreter. A simulated server
+ * and agent exchange synthetic perceptions and actions with an agent proxy
+ * over loopback sockets. The forwarders are driven step by step by the
+ * calling thread, so the proxy does not wait for syncs.
+ * <p>
+ * Cycles are run in batches until two batches in a row pass without the JIT
+ * compiling anything or the maximum number of cycles is reached.
+ *
+ * @author agent
+ */
+public class ProxyWarmUp
+{
+	/** maximum number of cycles if not specified */
+	public static final int DEFAULT_CYCLES = 20000;
+
+	/** number of cycles after which the JIT is checked for activity */
+	static final int BATCH_SIZE = 1000;
+
+	/** number of cycles averaged for the latency at start and end */
+	private static final int LATENCY_CYCLES = 20;
+
+	/** time after which a simulated peer gives up waiting in ms */
+	private static final int RECEIVE_TIMEOUT = 1000;
+
+	/** the maximum number of cycles to run */
+	private final int maxCycles;
+
+	/** configures the agent proxy like the ones of the proxy server */
+	private final Consumer<AgentProxy> configurator;
+
+	/**
+	 * The outcome of a warm-up.
+	 * @param cycles the number of cycles run
+	 * @param duration the time the warm-up took in ns
+	 * @param coldLatency average latency of the first cycles in ns, from
+	 *        sending the perception until the action arrived at the server
+	 * @param warmLatency average latency of the last cycles in ns
+	 */
+	public record Result(int cycles, long duration, long coldLatency, long warmLatency)
+	{
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.ROOT, "%d cycles in %dms, latency of first cycles %.1fus, last cycles %.1fus",
+					cycles, duration / 1000000, coldLatency / 1000.0, warmLatency / 1000.0);
+		}
+	}
+
+	/**
+	 * @param maxCycles the maximum number of cycles to run
+	 * @param configurator configures the agent proxy like the ones of the proxy
+	 *        server, so the same stages are warmed up
+	 */
+	public ProxyWarmUp(int maxCycles, Consumer<AgentProxy> configurator)
+	{
+		this.maxCycles = maxCycles;
+		this.configurator = configurator;
+	}
+
+	/**
+	 * Runs the warm-up on the calling thread.
+	 * @return the outcome of the warm-up
+	 * @throws IOException if the loopback sockets can not be opened
+	 */
+	public Result run() throws IOException
+	{
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		try (ServerSocket serverListener = new ServerSocket(0, 1, loopback);
+				ServerSocket agentListener = new ServerSocket(0, 1, loopback);
+				Socket serverSide = new Socket(loopback, serverListener.getLocalPort());
+				Socket proxyServerSide = serverListener.accept();
+				Socket agentSide = new Socket(loopback, agentListener.getLocalPort());
+				Socket proxyAgentSide = agentListener.accept()) {
+			serverSide.setSoTimeout(RECEIVE_TIMEOUT);
+			agentSide.setSoTimeout(RECEIVE_TIMEOUT);
+
+			AgentProxy agentProxy =
+					new AgentProxy(null, loopback.getHostAddress(), serverListener.getLocalPort(), false);
+			configurator.accept(agentProxy);
+			proxyAgentSide.setTcpNoDelay(true);
+			Connection clientConnection = new Connection(
+					proxyAgentSide.getInputStream(), proxyAgentSide.getOutputStream(), "warm-up agent");
+			agentProxy.setConnections(clientConnection, new Connection(proxyServerSide));
+			return run(agentProxy, new Connection(serverSide), new Connection(agentSide));
+		}
+	}
+
+	private Result run(AgentProxy agentProxy, Connection server, Connection agent)
+	{
+		AgentProxy.ServerPerceptionsForwarder serverForwarder = agentProxy.new ServerPerceptionsForwarder();
+		AgentProxy.ClientActionsForwarder clientForwarder = agentProxy.new ClientActionsForwarder();
+		CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+		boolean monitorCompiler = compiler != null && compiler.isCompilationTimeMonitoringSupported();
+
+		long start = System.nanoTime();
+		long[] latencies = new long[LATENCY_CYCLES];
+		long coldLatency = 0;
+		long compilationTime = monitorCompiler ? compiler.getTotalCompilationTime() : 0;
+		int quietBatches = 0;
+		int cycle = 0;
+		while (cycle < maxCycles) {
+			long sendTime = System.nanoTime();
+			server.sendMessage(perception(cycle));
+			if (!serverForwarder.forwardPerception() || agent.receiveMessage() == null) {
+				break;
+			}
+			agent.sendMessage(action(cycle));
+			if (!clientForwarder.forwardAction() || server.receiveMessage() == null) {
+				break;
+			}
+			latencies[cycle % LATENCY_CYCLES] = System.nanoTime() - sendTime;
+			cycle++;
+			if (cycle == LATENCY_CYCLES) {
+				coldLatency = average(latencies, cycle);
+			}
+
+			if (monitorCompiler && cycle % BATCH_SIZE == 0) {
+				long newCompilationTime = compiler.getTotalCompilationTime();
+				quietBatches = newCompilationTime == compilationTime ? quietBatches + 1 : 0;
+				if (quietBatches == 2) {
+					break;
+				}
+				compilationTime = newCompilationTime;
+			}
+		}
+
+		long warmLatency = average(latencies, cycle);
+		if (cycle < LATENCY_CYCLES) {
+			coldLatency = warmLatency;
+		}
+		return new Result(cycle, System.nanoTime() - start, coldLatency, warmLatency);
+	}
+
+	/**
+	 * @return the average of the latencies of the last cycles
+	 */
+	private static long average(long[] latencies, int cycles)
+	{
+		int count = Math.min(cycles, latencies.length);
+		long sum = 0;
+		for (int i = 0; i < count; i++) {
+			sum += latencies[i];
+		}
+		return count == 0 ? 0 : sum / count;
+	}
+
+	/**
+	 * @return a perception like the server sends it
+	 */
+	private static byte[] perception(int cycle)
+	{
+		double time = cycle * 0.02;
+		return String.format(Locale.ROOT,
+				"(time (now %.2f))(GS (sl 0) (sr 0) (t %.2f) (pm PlayOn))(GYR (n torso) (rt 0.01 -0.02 0.03))" +
+						"(ACC (n torso) (a 0.01 -0.02 9.81))(HJ (n hj1) (ax %.2f))(HJ (n hj2) (ax -0.50))" +
+						"(See (B (pol 3.20 -12.50 -1.80)) (P (team them) (id 1) (head (pol 8.10 20.30 1.20))))" +
+						"(FRP (n lf) (c -0.01 0.02 -0.01) (f 0.10 -0.20 22.50))(hear 0 %.2f self abcdef)",
+				time, time, cycle % 90 - 45.0, time)
+				.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return an action like agents send it, with and without sync and say
+	 */
+	private static byte[] action(int cycle)
+	{
+		String say = cycle % 2 == 0 ? "(say abc" + cycle % 10 + ")" : "";
+		String sync = cycle % 3 == 0 ? "" : "(syn)";
+		return ("(he1 " + cycle % 7 + ".00)(he2 -0.50)(lle1 0.10)(rle1 -0.10)" + say + sync)
+				.getBytes(StandardCharsets.US_ASCII);
+	}
+}
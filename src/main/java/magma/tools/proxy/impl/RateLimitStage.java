@@ -0,0 +1,459 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Stage for client messages limiting the bytes and the number of actions an
+ * agent sends per server cycle with two token buckets, so a single agent
+ * flooding actions or giant say messages does not slow down the server for
+ * both teams. The buckets are refilled continuously by the limits per cycle
+ * and hold the limits of at most {@link Limits#burstCycles()} cycles. An
+ * action larger than the byte bucket passes if the bucket is full. Actions
+ * within the limits only cost a few arithmetic operations and do not
+ * allocate.
+ * <p>
+ * Actions exceeding a limit are handled by the {@link Policy} of the limits.
+ * A sync contained in a throttled action is always forwarded in time, since
+ * the server waits for it. A delayed action sends its sync ahead before
+ * waiting.
+ *
+ * @author agent
+ */
+public class RateLimitStage implements FrameStage
+{
+	/** the duration of a server cycle in ns */
+	public static final long CYCLE_TIME = 20000000;
+
+	/** the longest an action is delayed in ms, longer delays drop it */
+	public static final int MAX_DELAY = 20;
+
+	/** maximum number of bytes of merged actions kept if bytes are unlimited */
+	private static final int MAX_PENDING = 64 * 1024;
+
+	/** number of buckets of the histograms */
+	private static final int HISTOGRAM_SIZE = 10;
+
+	/** upper bound of the first bucket of the size histogram in bytes */
+	private static final long FIRST_SIZE = 64;
+
+	/** upper bound of the first bucket of the delay histogram in ns */
+	private static final long FIRST_DELAY = 125000;
+
+	/** What to do with actions exceeding a limit */
+	public enum Policy {
+		/** wait until the buckets have refilled, at most {@link #MAX_DELAY} */
+		DELAY,
+		/** keep the action and send it together with the next one in limits */
+		MERGE,
+		/** drop the action */
+		DROP
+	}
+
+	/**
+	 * The limits of one agent.
+	 * @param bytesPerCycle the number of action bytes per cycle, 0 for no limit
+	 * @param framesPerCycle the number of actions per cycle, 0 for no limit
+	 * @param burstCycles the number of cycles of unused limits that are saved
+	 * @param policy what to do with actions exceeding a limit
+	 */
+	public record Limits(int bytesPerCycle, int framesPerCycle, int burstCycles, Policy policy)
+	{
+		/** cycles of unused limits saved if not specified */
+		public static final int DEFAULT_BURST_CYCLES = 2;
+
+		public Limits
+		{
+			if (bytesPerCycle < 0 || framesPerCycle < 0 || burstCycles < 1) {
+				throw new IllegalArgumentException(
+						"Invalid rate limits: " + bytesPerCycle + "," + framesPerCycle + "," + burstCycles);
+			}
+		}
+	}
+
+	private final Limits limits;
+
+	/** bytes that can be sent now */
+	private double byteTokens;
+
+	/** actions that can be sent now */
+	private double frameTokens;
+
+	/** the time (nanoTime) the buckets were last refilled, 0 before first use */
+	private long lastRefill;
+
+	/** throttled actions waiting to be merged into the next action */
+	private byte[] pending = new byte[0];
+
+	/** number of bytes in pending */
+	private int pendingLength;
+
+	/** number of actions in pending */
+	private int pendingFrames;
+
+	/** number of actions that exceeded a limit */
+	private long throttledFrames;
+
+	/** number of bytes of actions that exceeded a limit */
+	private long throttledBytes;
+
+	/** number of actions forwarded after a delay */
+	private long delayedFrames;
+
+	/** sum of all delays in ns */
+	private long totalDelay;
+
+	/** number of actions forwarded together with a later action */
+	private long mergedFrames;
+
+	/** number of actions dropped */
+	private long droppedFrames;
+
+	/** number of bytes of actions dropped */
+	private long droppedBytes;
+
+	/** number of throttled actions by size, bucket i up to FIRST_SIZE << i */
+	private final long[] sizeHistogram = new long[HISTOGRAM_SIZE];
+
+	/** number of delayed actions by delay, bucket i up to FIRST_DELAY << i */
+	private final long[] delayHistogram = new long[HISTOGRAM_SIZE];
+
+	public RateLimitStage(Limits limits)
+	{
+		this.limits = limits;
+		byteTokens = byteCapacity();
+		frameTokens = frameCapacity();
+	}
+
+	@Override
+	public boolean process(AgentProxy agent, Frame frame)
+	{
+		ProxyClock clock = agent.getClock();
+		refill(clock.nanoTime());
+		int length = frame.getLength();
+		if (conforms(pendingLength + length)) {
+			if (pendingLength > 0) {
+				mergePending(frame);
+			}
+			consume(frame.getLength());
+			return true;
+		}
+
+		throttledFrames++;
+		throttledBytes += length;
+		sizeHistogram[bucket(length, FIRST_SIZE)]++;
+
+		switch (limits.policy()) {
+		case DELAY:
+			if (frame.getSyncSource() != CycleTimeline.SYNC_NONE) {
+				// the server waits for the sync, so only the rest is delayed
+				agent.sendClientSyncAhead();
+				removeSyncs(frame);
+				length = frame.getLength();
+				if (length == 0) {
+					return false;
+				}
+			}
+			long delay = timeToConform(length);
+			if (delay <= MAX_DELAY * 1000000L && delay(clock, delay)) {
+				delayedFrames++;
+				totalDelay += delay;
+				delayHistogram[bucket(delay, FIRST_DELAY)]++;
+				consume(length);
+				return true;
+			}
+			break;
+
+		case MERGE:
+			keepPending(frame);
+			return forwardSyncOnly(frame);
+
+		default:
+			break;
+		}
+
+		droppedFrames++;
+		droppedBytes += length;
+		return forwardSyncOnly(frame);
+	}
+
+	private double byteCapacity()
+	{
+		return (double) limits.bytesPerCycle() * limits.burstCycles();
+	}
+
+	private double frameCapacity()
+	{
+		return (double) limits.framesPerCycle() * limits.burstCycles();
+	}
+
+	private void refill(long now)
+	{
+		if (lastRefill != 0) {
+			double cycles = (now - lastRefill) / (double) CYCLE_TIME;
+			byteTokens = Math.min(byteCapacity(), byteTokens + cycles * limits.bytesPerCycle());
+			frameTokens = Math.min(frameCapacity(), frameTokens + cycles * limits.framesPerCycle());
+		}
+		lastRefill = now;
+	}
+
+	private boolean conforms(int length)
+	{
+		boolean bytesOk = limits.bytesPerCycle() == 0 || length <= byteTokens || byteTokens >= byteCapacity();
+		boolean framesOk = limits.framesPerCycle() == 0 || frameTokens >= 1;
+		return bytesOk && framesOk;
+	}
+
+	private void consume(int length)
+	{
+		byteTokens -= length;
+		frameTokens -= 1;
+	}
+
+	/**
+	 * @return the time in ns until an action of the passed length conforms
+	 */
+	private long timeToConform(int length)
+	{
+		double cycles = 0;
+		if (limits.bytesPerCycle() > 0) {
+			double needed = Math.min(length, byteCapacity());
+			cycles = Math.max(cycles, (needed - byteTokens) / limits.bytesPerCycle());
+		}
+		if (limits.framesPerCycle() > 0) {
+			cycles = Math.max(cycles, (1 - frameTokens) / limits.framesPerCycle());
+		}
+		return (long) Math.ceil(cycles * CYCLE_TIME);
+	}
+
+	/**
+	 * Lets the forwarder thread wait for the passed time.
+	 * @return false if interrupted
+	 */
+	private boolean delay(ProxyClock clock, long delay)
+	{
+		try {
+			clock.sleep((delay + 999999) / 1000000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		refill(clock.nanoTime());
+		return true;
+	}
+
+	/**
+	 * Appends the action to the pending actions without sync commands, since
+	 * the sync is forwarded right away. If the pending actions get too long,
+	 * the older ones are dropped.
+	 */
+	private void keepPending(Frame frame)
+	{
+		int length = frame.getLength();
+		int maxPending = limits.bytesPerCycle() > 0 ? (int) byteCapacity() : MAX_PENDING;
+		if (pendingLength + length > maxPending) {
+			droppedFrames += pendingFrames;
+			droppedBytes += pendingLength;
+			pendingLength = 0;
+			pendingFrames = 0;
+			if (length > maxPending) {
+				droppedFrames++;
+				droppedBytes += length;
+				return;
+			}
+		}
+		if (pending.length < pendingLength + length) {
+			pending = Arrays.copyOf(pending, Math.max(2 * pending.length, pendingLength + length));
+		}
+
+		pendingLength += copyWithoutSyncs(frame, pending, pendingLength);
+		pendingFrames++;
+	}
+
+	/**
+	 * Prefixes the action with the pending actions, so newer commands of the
+	 * action override older ones. A leading sync of the action stays in front.
+	 */
+	private void mergePending(Frame frame)
+	{
+		byte[] buffer = frame.getBuffer();
+		byte[] sync = AgentProxy.SYNC_BYTES;
+		int offset = frame.getOffset();
+		boolean leadingSync = frame.getLength() >= sync.length &&
+				AgentProxy.indexOf(buffer, offset, offset + sync.length, sync) == offset;
+		int head = leadingSync ? sync.length : 0;
+		int length = pendingLength + frame.getLength();
+		byte[] target = frame.getScratch(Frame.HEADER_SPACE + length);
+		System.arraycopy(buffer, offset, target, Frame.HEADER_SPACE, head);
+		System.arraycopy(pending, 0, target, Frame.HEADER_SPACE + head, pendingLength);
+		System.arraycopy(buffer, offset + head, target, Frame.HEADER_SPACE + head + pendingLength,
+				frame.getLength() - head);
+		frame.commitScratch(Frame.HEADER_SPACE, length);
+		mergedFrames += pendingFrames;
+		pendingLength = 0;
+		pendingFrames = 0;
+	}
+
+	/**
+	 * Removes all sync commands from the action, e.g. after its sync has been
+	 * sent ahead.
+	 */
+	private static void removeSyncs(Frame frame)
+	{
+		byte[] target = frame.getScratch(Frame.HEADER_SPACE + frame.getLength());
+		int length = copyWithoutSyncs(frame, target, Frame.HEADER_SPACE);
+		frame.commitScratch(Frame.HEADER_SPACE, length);
+		frame.setSyncSource(CycleTimeline.SYNC_NONE);
+	}
+
+	/**
+	 * Copies the action without its sync commands.
+	 * @param frame the frame containing the action
+	 * @param target the buffer to copy to, has to be large enough for the
+	 *        whole action
+	 * @param targetOffset the position in the target to copy to
+	 * @return the number of bytes copied
+	 */
+	private static int copyWithoutSyncs(Frame frame, byte[] target, int targetOffset)
+	{
+		byte[] buffer = frame.getBuffer();
+		byte[] sync = AgentProxy.SYNC_BYTES;
+		int start = frame.getOffset();
+		int end = start + frame.getLength();
+		int position = targetOffset;
+		while (start < end) {
+			int syncStart = AgentProxy.indexOf(buffer, start, end, sync);
+			int copyEnd = syncStart < 0 ? end : syncStart;
+			System.arraycopy(buffer, start, target, position, copyEnd - start);
+			position += copyEnd - start;
+			start = syncStart < 0 ? end : syncStart + sync.length;
+		}
+		return position - targetOffset;
+	}
+
+	/**
+	 * Replaces a throttled action by a sync if it contained one.
+	 * @return false if the action had no sync, i.e. nothing is left to forward
+	 */
+	private static boolean forwardSyncOnly(Frame frame)
+	{
+		if (frame.getSyncSource() == CycleTimeline.SYNC_NONE) {
+			return false;
+		}
+		frame.setMessage(AgentProxy.SYNC_BYTES);
+		return true;
+	}
+
+	private static int bucket(long value, long firstLimit)
+	{
+		int bucket = 0;
+		while (bucket < HISTOGRAM_SIZE - 1 && value > firstLimit << bucket) {
+			bucket++;
+		}
+		return bucket;
+	}
+
+	public Limits getLimits()
+	{
+		return limits;
+	}
+
+	/**
+	 * @return the number of actions that exceeded a limit
+	 */
+	public long getThrottledFrames()
+	{
+		return throttledFrames;
+	}
+
+	/**
+	 * @return the number of actions forwarded after a delay
+	 */
+	public long getDelayedFrames()
+	{
+		return delayedFrames;
+	}
+
+	/**
+	 * @return the number of actions forwarded together with a later action
+	 */
+	public long getMergedFrames()
+	{
+		return mergedFrames;
+	}
+
+	/**
+	 * @return the number of actions dropped
+	 */
+	public long getDroppedFrames()
+	{
+		return droppedFrames;
+	}
+
+	/**
+	 * @return a copy of the number of throttled actions by size, bucket i
+	 *         counts sizes up to 64 bytes << i, the last bucket all larger
+	 */
+	public long[] getSizeHistogram()
+	{
+		return sizeHistogram.clone();
+	}
+
+	/**
+	 * @return a copy of the number of delayed actions by delay, bucket i
+	 *         counts delays up to 125us << i, the last bucket all longer
+	 */
+	public long[] getDelayHistogram()
+	{
+		return delayHistogram.clone();
+	}
+
+	@Override
+	public String toString()
+	{
+		long delayed = delayedFrames;
+		return String.format(Locale.ROOT,
+				"%d frames %d bytes delayed: %d avg: %.2f(ms) merged: %d dropped: %d frames %d bytes" +
+						"\n  sizes(bytes):%s\n  delays(ms):%s",
+				throttledFrames, throttledBytes, delayed, delayed == 0 ? 0 : totalDelay / 1000000.0 / delayed,
+				mergedFrames, droppedFrames, droppedBytes, histogram(sizeHistogram, FIRST_SIZE, 1),
+				histogram(delayHistogram, FIRST_DELAY, 1000000));
+	}
+
+	private static String histogram(long[] counts, long firstLimit, double unit)
+	{
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				String bound = i < counts.length - 1 ? "<=" : ">";
+				long limit = firstLimit << Math.min(i, counts.length - 2);
+				result.append(String.format(Locale.ROOT, " %s%s:%d", bound, format(limit / unit), counts[i]));
+			}
+		}
+		return result.toString();
+	}
+
+	private static String format(double value)
+	{
+		return value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value);
+	}
+}
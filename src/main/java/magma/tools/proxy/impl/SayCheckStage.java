@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+/**
+ * Built-in stage for client messages checking say messages. Invalid say
+ * messages are counted. If say sanitizing is switched on for the agent proxy,
+ * an invalid say element is removed by compacting the frame in place and the
+ * message is prefixed with (syn) to avoid the server from hanging. Valid
+ * actions are not touched.
+ *
+ * @author agent
+ */
+public class SayCheckStage implements FrameStage
+{
+	/** The start of a say-message */
+	private static final byte[] SAY_BYTES = "(say".getBytes();
+
+	private static final byte[] CLOSING_BRACKET = ")".getBytes();
+
+	@Override
+	public boolean process(AgentProxy agent, Frame frame)
+	{
+		byte[] action = frame.getBuffer();
+		int offset = frame.getOffset();
+		int length = frame.getLength();
+		int end = offset + length;
+
+		int initSay = AgentProxy.indexOf(action, offset, end, SAY_BYTES);
+		if (initSay == -1) {
+			return true;
+		}
+
+		boolean wrongMsgComposition = false;
+		int endSay = AgentProxy.indexOf(action, initSay, end, CLOSING_BRACKET);
+		byte nextCharAfterSay = '(';
+		if (endSay < end - 1) {
+			nextCharAfterSay = action[endSay < 0 ? offset : endSay + 1];
+		}
+
+		if (nextCharAfterSay != '(' && nextCharAfterSay != '\0') {
+			endSay = AgentProxy.indexOf(action, endSay < 0 ? offset : endSay + 1, end, CLOSING_BRACKET);
+			wrongMsgComposition = true;
+		} else {
+			for (int i = initSay + 5; i < endSay; i++) {
+				int ascii = action[i] & 0xFF;
+				// check for invalid character range
+				// the \" is not checked since it is not explicitly
+				// forbidden in the manual
+				if (ascii > 126 || ascii < 32 || ascii == 40 || ascii == 41 || ascii == 32 /* || ascii == 34 */) {
+					wrongMsgComposition = true;
+					break;
+				}
+			}
+		}
+
+		if (wrongMsgComposition) {
+			agent.invalidSayReceived(length);
+			if (agent.isSanitizeSay()) {
+				removeSay(agent, frame, initSay, endSay);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes the say element between initSay and endSay (inclusive) by moving
+	 * the rest of the message to the left. If the removed part is large enough,
+	 * (syn) is inserted at the start unless the message already starts with it.
+	 */
+	private static void removeSay(AgentProxy agent, Frame frame, int initSay, int endSay)
+	{
+		byte[] action = frame.getBuffer();
+		int offset = frame.getOffset();
+		int length = frame.getLength();
+		int messageEnd = offset + length;
+		byte[] sync = AgentProxy.SYNC_BYTES;
+
+		int end = endSay < initSay ? messageEnd : endSay + 1;
+		int removed = end - initSay;
+		boolean insertSync = removed >= sync.length && frame.indexOf(sync) != 0;
+		int shift = insertSync ? sync.length : 0;
+
+		System.arraycopy(action, end, action, initSay + shift, messageEnd - end);
+		if (insertSync) {
+			System.arraycopy(action, offset, action, offset + shift, initSay - offset);
+			System.arraycopy(sync, 0, action, offset, shift);
+			agent.clientSyncReceived();
+			if (frame.getSyncSource() == CycleTimeline.SYNC_NONE) {
+				frame.setSyncSource(CycleTimeline.SYNC_PROXY);
+			}
+		}
+		frame.setLength(length - removed + shift);
+	}
+}
@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import magma.tools.proxy.client.ProxyClient;
+import magma.tools.proxy.client.SharedMemoryRing;
+import magma.tools.proxy.client.SharedMemoryRing.WaitStrategy;
+
+/**
+ * Transport to an agent on the same machine using a pair of
+ * {@link SharedMemoryRing}s in a file under /dev/shm. The agent asks for it on
+ * its TCP connection (see {@link ProxyClient}), which is then only used to
+ * detect if the agent died and must not carry any further data. The file is
+ * only accessible by its owner and removed as soon as the agent sent its
+ * first message through the rings, so no files are left behind.
+ * <p>
+ * Messages are limited by the capacity of the rings. Oversized messages within
+ * that capacity can still be streamed through, copied once through a temporary
+ * buffer since they are rare. A received length beyond the capacity can only
+ * be written by a broken or hostile agent, so the agent is disconnected.
+ *
+ * @author agent
+ */
+public class SharedMemoryConnection implements Transport
+{
+	/** the directory the files of the rings are created in */
+	public static final Path DIRECTORY = Paths.get("/dev/shm");
+
+	private static final byte[] REQUEST = ProxyClient.SHARED_MEMORY_REQUEST.getBytes(StandardCharsets.US_ASCII);
+
+	/** the connection the agent asked for shared memory on */
+	private final Connection control;
+
+	/** the file of the rings */
+	private final Path path;
+
+	private final MappedByteBuffer sharedMemory;
+
+	/** the ring messages from the agent are received from */
+	private final SharedMemoryRing in;
+
+	/** the ring messages to the agent are sent to */
+	private final SharedMemoryRing out;
+
+	private volatile boolean connected;
+
+	/** true after the file has been removed */
+	private boolean removed;
+
+	/** true if message starts should be printed */
+	private boolean messageDisplay;
+
+	/** messages longer than this are rejected */
+	private int maxFrameSize;
+
+	/** where oversized messages are streamed to, null to reject them */
+	private FrameSink streamTarget;
+
+	/** number of received messages rejected for their size */
+	private volatile int rejectedFrames;
+
+	/** number of received messages streamed through for their size */
+	private volatile int streamedFrames;
+
+	private SharedMemoryConnection(Connection control, Path path, WaitStrategy waitStrategy) throws IOException
+	{
+		this.control = control;
+		this.path = path;
+		sharedMemory = SharedMemoryRing.create(path, SharedMemoryRing.DEFAULT_CAPACITY);
+		in = new SharedMemoryRing(sharedMemory, SharedMemoryRing.TO_PROXY, waitStrategy, control::isPeerAlive);
+		out = new SharedMemoryRing(sharedMemory, SharedMemoryRing.TO_AGENT, waitStrategy, control::isPeerAlive);
+		maxFrameSize = in.getMaxMessageLength();
+		connected = true;
+	}
+
+	/**
+	 * @param frame a received message
+	 * @return true if the message is an agent asking for shared memory
+	 */
+	public static boolean isRequest(Frame frame)
+	{
+		return frame.getLength() == REQUEST.length &&
+				AgentProxy.indexOf(frame.getBuffer(), frame.getOffset(), frame.getOffset() + frame.getLength(),
+						REQUEST) == frame.getOffset();
+	}
+
+	/**
+	 * Creates the rings for an agent and answers its request.
+	 * @param control the connection the agent asked for shared memory on
+	 * @param name used in the file name, e.g. the client port
+	 * @param waitStrategy how to wait on the rings, null to refuse
+	 * @return the new transport, null if refused
+	 */
+	public static SharedMemoryConnection accept(Connection control, String name, WaitStrategy waitStrategy)
+	{
+		if (waitStrategy == null || !Files.isDirectory(DIRECTORY)) {
+			control.sendMessage(ProxyClient.SHARED_MEMORY_REFUSED.getBytes(StandardCharsets.US_ASCII));
+			return null;
+		}
+
+		Path path = DIRECTORY.resolve("magmaproxy-" + name + "-" + System.nanoTime());
+		try {
+			SharedMemoryConnection result = new SharedMemoryConnection(control, path, waitStrategy);
+			control.sendMessage((ProxyClient.SHARED_MEMORY_REPLY + path + ")").getBytes(StandardCharsets.US_ASCII));
+			return result;
+		} catch (IOException e) {
+			ProxyLog.warn("Can not create shared memory " + path + ": " + e);
+			control.sendMessage(ProxyClient.SHARED_MEMORY_REFUSED.getBytes(StandardCharsets.US_ASCII));
+			return null;
+		}
+	}
+
+	@Override
+	public boolean isConnected()
+	{
+		return connected;
+	}
+
+	@Override
+	public void disconnect()
+	{
+		if (connected) {
+			connected = false;
+			SharedMemoryRing.close(sharedMemory);
+			control.disconnect();
+			removeFile();
+		}
+	}
+
+	@Override
+	public void sendMessage(byte[] msg, int offset, int length)
+	{
+		if (!connected) {
+			return;
+		}
+
+		// do not send empty messages
+		if (length == 0) {
+			if (messageDisplay) {
+				ProxyLog.info("<empty message>");
+			}
+			return;
+		}
+
+		if (messageDisplay && ProxyLog.isEnabled(ProxyLog.Level.INFO)) {
+			ProxyLog.info(new String(msg, offset, Math.min(40, length)));
+		}
+
+		if (length > out.getMaxMessageLength()) {
+			ProxyLog.error("Message of " + length + " bytes too long for shared memory, dropped");
+			return;
+		}
+		if (!out.write(msg, offset, length)) {
+			disconnect();
+		}
+	}
+
+	@Override
+	public void sendMessage(Frame frame)
+	{
+		sendMessage(frame.getBuffer(), frame.getOffset(), frame.getLength());
+	}
+
+	/**
+	 * Sends a message read from a stream. The rings only take complete
+	 * messages, so the message is read to a temporary buffer first. Messages
+	 * longer than the ring capacity are dropped.
+	 */
+	@Override
+	public void streamMessage(InputStream source, int length, byte[] chunk) throws IOException
+	{
+		if (!connected || length > out.getMaxMessageLength()) {
+			if (connected) {
+				ProxyLog.error("Message of " + length + " bytes too long for shared memory, dropped");
+			}
+			source.skipNBytes(length);
+			return;
+		}
+		byte[] message = new byte[length];
+		if (source.readNBytes(message, 0, length) < length) {
+			throw new EOFException("End of stream within message");
+		}
+		sendMessage(message, 0, length);
+	}
+
+	@Override
+	public byte[] receiveMessage()
+	{
+		Frame frame = new Frame();
+		return receiveMessage(frame) ? frame.toByteArray() : null;
+	}
+
+	@Override
+	public boolean receiveMessage(Frame frame)
+	{
+		if (!connected) {
+			return false;
+		}
+
+		while (true) {
+			int length = in.awaitMessage();
+			if (length < 0) {
+				disconnect();
+				return false;
+			}
+			if (!removed) {
+				// the agent has mapped the file
+				removeFile();
+			}
+			if (length > in.getMaxMessageLength()) {
+				// the agent writes the length, a message can not be longer than the ring
+				ProxyLog.error("Corrupt shared memory ring on " + this + ", message length " + length);
+				disconnect();
+				return false;
+			}
+			if (length <= maxFrameSize) {
+				byte[] buffer = frame.prepareReceive(length);
+				in.readMessage(buffer, frame.getOffset());
+				return true;
+			}
+
+			if (streamTarget == null) {
+				rejectedFrames++;
+				ProxyLog.warn("Rejected message of " + length + " bytes on " + this + ", maximum is " + maxFrameSize);
+				disconnect();
+				return false;
+			}
+			streamedFrames++;
+			byte[] message = new byte[length];
+			in.readMessage(message, 0);
+			streamTarget.sendMessage(message, 0, length);
+		}
+	}
+
+	@Override
+	public boolean inputAvailable()
+	{
+		return in.isMessageAvailable();
+	}
+
+	@Override
+	public void toggleMessageDisplay()
+	{
+		messageDisplay = !messageDisplay;
+	}
+
+	/**
+	 * Limits the length of received messages, can not be more than the
+	 * capacity of the rings.
+	 * @param maxFrameSize the maximum length of a received message
+	 * @param streamTarget where oversized messages are streamed to, null to
+	 *        reject them
+	 */
+	@Override
+	public void setMaxFrameSize(int maxFrameSize, FrameSink streamTarget)
+	{
+		this.maxFrameSize = Math.min(maxFrameSize, in.getMaxMessageLength());
+		this.streamTarget = streamTarget;
+	}
+
+	@Override
+	public int getRejectedFrames()
+	{
+		return rejectedFrames;
+	}
+
+	@Override
+	public int getStreamedFrames()
+	{
+		return streamedFrames;
+	}
+
+	private void removeFile()
+	{
+		removed = true;
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			ProxyLog.warn("Can not remove shared memory " + path + ": " + e);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "shm:" + path + " (" + control + ")";
+	}
+}
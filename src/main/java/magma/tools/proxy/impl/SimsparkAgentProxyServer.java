@@ -19,10 +19,32 @@
  *******************************************************************************/
 package magma.tools.proxy.impl;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.ConnectException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import magma.tools.proxy.client.SharedMemoryRing.WaitStrategy;
+import magma.tools.proxy.impl.AgentProxy.FrameLimits;
 
 /**
  * This class represents a Simspark agent proxy server. The proxy server itself
@@ -31,17 +53,59 @@ import java.util.ArrayList;
  * incoming connection is forwarded to an own {@link AgentProxy} instance, which
  * handles the synchronization of one specific agent with the server. The proxy
  * server and all its connections can be shut down using the shutdown method.
+ * <p>
+ * Setting up an agent proxy (connecting, starting its threads) is done by an
+ * onboarding executor, so the proxy thread keeps accepting while a burst of
+ * agents connects at kickoff. The executor has a thread for each agent of a
+ * team plus a margin and a bounded queue, connections beyond that are closed.
+ * <p>
+ * Optionally the proxy server also listens on a Unix domain socket. Agents on
+ * the same machine can connect there to avoid the loopback TCP stack. Messages
+ * have the same framing as on TCP.
+ * <p>
+ * With earliest deadline first scheduling, the proxy syncs of all agents are
+ * sent by one {@link SyncScheduler} instead of each perception forwarder
+ * waiting for its own deadline.
+ * <p>
+ * Optionally a {@link JitterMonitor} measures how late the host wakes up
+ * threads, so missed cycles caused by the host can be told from those caused
+ * by the agents.
+ * <p>
+ * Optionally the summary of each agent is kept in a {@link StatsStore} when
+ * its proxy closes, to compare the timing of agents across matches. A match
+ * starts when the first agent connects and ends when all agents are closed.
  *
  * @author Stefan Glaser
  */
 public class SimsparkAgentProxyServer extends Thread
 {
+	/** mask of the file type in a Unix file mode */
+	private static final int S_IFMT = 0170000;
+
+	/** file type of a socket in a Unix file mode */
+	private static final int S_IFSOCK = 0140000;
+
+	/** number of agents set up at the same time, a team plus a margin */
+	private static final int ONBOARDING_THREADS = 16;
+
+	/** number of accepted agents waiting for an onboarding thread */
+	private static final int ONBOARDING_QUEUE_CAPACITY = 64;
+
 	/** The proxy server socket */
 	private ServerSocket proxySocket;
 
 	/** The proxy server port */
 	private final int proxyPort;
 
+	/** The path of the Unix domain socket to listen on, null if none */
+	private final String proxySocketPath;
+
+	/** The Unix domain socket agents can connect to */
+	private ServerSocketChannel unixSocket;
+
+	/** Thread accepting connections on the Unix domain socket */
+	private Thread unixListener;
+
 	/** Simspark server IP */
 	protected final String ssHost;
 
@@ -49,19 +113,97 @@ public class SimsparkAgentProxyServer extends Thread
 	protected final int ssPort;
 
 	/** List of agent proxies */
-	protected final ArrayList<AgentProxy> agentProxies;
+	protected final List<AgentProxy> agentProxies;
+
+	/** Executor setting up new agent proxies */
+	private final ExecutorService onboardingExecutor;
+
+	/** Finds the agents holding up the server */
+	private final CycleAligner cycleAligner;
+
+	/** Sends the proxy syncs in deadline order, null if each forwarder waits */
+	private final SyncScheduler syncScheduler;
+
+	/** Measures the jitter of the host, null if not monitored */
+	private final JitterMonitor jitterMonitor;
+
+	/** keeps the summaries of closed agent proxies, null if not kept */
+	private final StatsStore statsStore;
+
+	/** the time the current match started (epoch ms), 0 if no match runs */
+	private long matchStart;
+
+	/** CPU time and traffic of agent proxies that have been removed */
+	private CpuUsage retiredUsage = CpuUsage.NONE;
 
 	/** true if messages should be printed from start */
 	protected boolean showMessages;
 
+	/** true if invalid say messages should be removed */
+	protected boolean sanitizeSay;
+
+	/** number of cycles kept in the timeline of each agent proxy */
+	protected int timelineCapacity;
+
+	/** how agent proxies wait on shared memory, null to refuse shared memory */
+	protected WaitStrategy sharedMemoryWait;
+
+	/** the maximum length of messages received by agent proxies */
+	protected FrameLimits frameLimits;
+
+	/** number of the newest backlogged perceptions forwarded, 0 for all */
+	protected int catchUpDepth;
+
+	/** maximum number of cycles of the JIT warm-up, 0 to skip it */
+	protected int warmUpCycles;
+
+	/** decides the think time budgets of the agents */
+	protected volatile BudgetPolicy budgetPolicy;
+
+	/** factories of the stages messages from client agents pass */
+	protected final List<Supplier<? extends FrameStage>> clientStages;
+
+	/** factories of the stages messages from the Simspark server pass */
+	protected final List<Supplier<? extends FrameStage>> serverStages;
+
 	public SimsparkAgentProxyServer(SimsparkAgentProxyServerParameter parameterObject)
 	{
 		this.proxyPort = parameterObject.proxyPort();
+		this.proxySocketPath = parameterObject.proxySocketPath();
 		this.ssHost = parameterObject.ssHost();
 		this.ssPort = parameterObject.ssPort();
 		this.showMessages = parameterObject.showMessages();
+		this.sanitizeSay = parameterObject.sanitizeSay();
+		this.timelineCapacity = parameterObject.timelineCapacity();
+		this.sharedMemoryWait = parameterObject.sharedMemoryWait();
+		this.frameLimits = parameterObject.frameLimits();
+		this.catchUpDepth = parameterObject.catchUpDepth();
+		this.warmUpCycles = parameterObject.warmUpCycles();
+		this.budgetPolicy =
+				parameterObject.budgetPolicy() == null ? BudgetPolicy.DEFAULT : parameterObject.budgetPolicy();
 
-		agentProxies = new ArrayList<>();
+		agentProxies = new CopyOnWriteArrayList<>();
+		AtomicInteger onboardingThreads = new AtomicInteger();
+		ThreadPoolExecutor onboardingPool = new ThreadPoolExecutor(ONBOARDING_THREADS, ONBOARDING_THREADS, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<>(ONBOARDING_QUEUE_CAPACITY), runnable -> {
+					Thread thread = new Thread(runnable, "agent-onboarding-" + onboardingThreads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		onboardingPool.allowCoreThreadTimeOut(true);
+		onboardingExecutor = onboardingPool;
+		cycleAligner = new CycleAligner(agentProxies, ProxyClock.SYSTEM);
+		syncScheduler = parameterObject.edfScheduling() ? new SyncScheduler(ProxyClock.SYSTEM) : null;
+		long jitterThreshold = parameterObject.jitterThreshold() * 1000L;
+		jitterMonitor = jitterThreshold > 0 ? new JitterMonitor(ProxyClock.SYSTEM, jitterThreshold) : null;
+		statsStore = openStatsStore(parameterObject.statsDir());
+		cycleAligner.setMatchListener(this::matchFinished);
+		clientStages = FramePipeline.defaultClientStages();
+		RateLimitStage.Limits rateLimits = parameterObject.rateLimits();
+		if (rateLimits != null) {
+			clientStages.add(() -> new RateLimitStage(rateLimits));
+		}
+		serverStages = FramePipeline.defaultServerStages();
 	}
 
 	@Override
@@ -69,51 +211,342 @@ public class SimsparkAgentProxyServer extends Thread
 	{
 		try {
 			proxySocket = new ServerSocket(proxyPort);
+			ProxyEvents.register();
 
-			System.out.println("Proxy server listening on port: " + proxyPort);
+			ProxyLog.info("Proxy server listening on port: " + proxySocket.getLocalPort());
+			cycleAligner.start();
+			if (syncScheduler != null) {
+				syncScheduler.start();
+			}
+			if (jitterMonitor != null) {
+				jitterMonitor.start();
+			}
+			if (proxySocketPath != null) {
+				startUnixListener();
+			}
 
 			while (true) {
 				// wait for new clients (agents)
 				Socket clientSocket = proxySocket.accept();
+				long acceptTime = System.nanoTime();
 
-				// remove obsolete agent proxies
-				for (int i = agentProxies.size() - 1; i >= 0; i--) {
-					if (!agentProxies.get(i).isActive()) {
-						agentProxies.remove(i);
-					}
-				}
-
-				// create new agent proxy
-				AgentProxy agentProxy = createAgentProxy(clientSocket);
-				if (agentProxy != null) {
-					agentProxies.add(agentProxy);
+				// set up the agent proxy in the background and keep accepting
+				try {
+					onboardingExecutor.execute(() -> onboard(() -> createAgentProxy(clientSocket, acceptTime)));
+				} catch (RejectedExecutionException e) {
+					refuse(clientSocket);
 				}
 			}
 		} catch (IOException e) {
-			System.out.println("Proxy server socket closed!");
+			ProxyLog.info("Proxy server socket closed!");
 		}
 
 		proxySocket = null;
+		stopUnixListener();
+		onboardingExecutor.shutdown();
+		try {
+			onboardingExecutor.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			ProxyLog.warn("Interrupted while waiting for onboarding of agents: " + e);
+		}
 
 		// shutdown and remove all agent proxies
 		for (AgentProxy proxy : agentProxies) {
 			proxy.stopProxy();
 		}
+
+		if (syncScheduler != null) {
+			syncScheduler.interrupt();
+			ProxyLog.info("Sync scheduler " + syncScheduler.getStatistics());
+		}
+		if (jitterMonitor != null) {
+			jitterMonitor.interrupt();
+			ProxyLog.info("Host jitter " + jitterMonitor.getStatistics());
+		}
+
+		// align the remaining cycles and log the summary of the match
+		cycleAligner.interrupt();
+		try {
+			cycleAligner.join();
+		} catch (InterruptedException e) {
+			ProxyLog.warn("Interrupted while waiting for cycle aligner: " + e);
+		}
+		cycleAligner.finish(System.nanoTime());
+		ProxyLog.info("Proxy CPU " + getCpuUsage());
+		if (statsStore != null) {
+			try {
+				statsStore.close();
+				ProxyLog.info("Kept " + statsStore.getWrittenCount() + " agent summaries in " +
+						statsStore.getDirectory());
+			} catch (IOException e) {
+				ProxyLog.warn("Exception when closing statistics store: " + e);
+			}
+		}
 		agentProxies.clear();
 	}
 
+	private static StatsStore openStatsStore(String statsDir)
+	{
+		if (statsDir == null) {
+			return null;
+		}
+		try {
+			return new StatsStore(Paths.get(statsDir));
+		} catch (IOException e) {
+			ProxyLog.error("Can not open statistics store " + statsDir + ": " + e);
+			return null;
+		}
+	}
+
 	/**
-	 * Factory method to create agent proxy
+	 * Starts a new match unless one is running. Called by the onboarding
+	 * threads.
+	 */
+	private synchronized void startMatch()
+	{
+		if (matchStart == 0) {
+			matchStart = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Ends the match and keeps the summaries of its agents with their final
+	 * straggler statistics. Called by the cycle aligner.
+	 * @param match the final straggler statistics of the match
+	 * @param agents the agent proxies of the match
+	 */
+	private void matchFinished(CycleAligner.Snapshot match, List<AgentProxy> agents)
+	{
+		long start;
+		synchronized (this) {
+			start = matchStart;
+			matchStart = 0;
+		}
+		if (statsStore == null) {
+			return;
+		}
+		for (AgentProxy proxy : agents) {
+			long agentStart = start == 0 ? proxy.getCloseTime() : start;
+			statsStore.append(AgentSummary.of(proxy, match.getAgent(proxy), agentStart));
+		}
+	}
+
+	/**
+	 * Removes the closed agent proxies the cycle aligner has read all cycles
+	 * of, keeping their CPU usage. Called by the onboarding threads.
+	 */
+	private synchronized void retireClosedAgents()
+	{
+		for (AgentProxy proxy : agentProxies) {
+			if (proxy.isClosed() && cycleAligner.isDrained(proxy) && agentProxies.remove(proxy)) {
+				retiredUsage = retiredUsage.add(CpuUsage.of(proxy));
+			}
+		}
+	}
+
+	/**
+	 * Binds the Unix domain socket and starts accepting connections on it. A
+	 * file left at the path, e.g. by a previous run, is replaced. If binding
+	 * fails, only the TCP port is used.
+	 */
+	private void startUnixListener()
+	{
+		Path path = Paths.get(proxySocketPath);
+		try {
+			removeStaleSocket(path);
+			unixSocket = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+			unixSocket.bind(UnixDomainSocketAddress.of(path));
+		} catch (IOException | UnsupportedOperationException e) {
+			ProxyLog.error("Can not listen on Unix domain socket " + path + ": " + e);
+			unixSocket = null;
+			return;
+		}
+
+		unixListener = new Thread(this::acceptUnixConnections, "unix-listener");
+		unixListener.setDaemon(true);
+		unixListener.start();
+		ProxyLog.info("Proxy server listening on Unix domain socket: " + path);
+	}
+
+	/**
+	 * Removes the socket file left behind by a proxy that did not shut down.
+	 * The path is only removed if it is a socket and connecting to it is
+	 * refused, so neither other files nor the socket of a running proxy are
+	 * deleted.
+	 *
+	 * @param path the path of the Unix domain socket
+	 * @throws IOException if the path is not a socket or still in use
+	 */
+	static void removeStaleSocket(Path path) throws IOException
+	{
+		if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+			return;
+		}
+		if (!isSocket(path)) {
+			throw new IOException(path + " exists and is not a socket");
+		}
+		try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(path))) {
+			throw new IOException(path + " is in use");
+		} catch (ConnectException e) {
+			// no one listens anymore
+		}
+		Files.delete(path);
+	}
+
+	private static boolean isSocket(Path path) throws IOException
+	{
+		try {
+			int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+			return (mode & S_IFMT) == S_IFSOCK;
+		} catch (UnsupportedOperationException e) {
+			// without Unix file modes sockets are reported as other files
+			return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+		}
+	}
+
+	private void acceptUnixConnections()
+	{
+		int connections = 0;
+		try {
+			while (true) {
+				SocketChannel clientChannel = unixSocket.accept();
+				long acceptTime = System.nanoTime();
+				int clientId = ++connections;
+				Supplier<AgentProxy> factory = () -> createAgentProxy(clientChannel, clientId, acceptTime);
+				try {
+					onboardingExecutor.execute(() -> onboard(factory));
+				} catch (RejectedExecutionException e) {
+					refuse(clientChannel);
+				}
+			}
+		} catch (IOException e) {
+			ProxyLog.info("Proxy server Unix domain socket closed!");
+		}
+	}
+
+	private void stopUnixListener()
+	{
+		if (unixSocket == null) {
+			return;
+		}
+		try {
+			unixSocket.close();
+			unixListener.join();
+			Files.deleteIfExists(Paths.get(proxySocketPath));
+		} catch (IOException | InterruptedException e) {
+			ProxyLog.warn("Exception when closing Unix domain socket: " + e);
+		}
+		unixSocket = null;
+	}
+
+	/**
+	 * Creates and registers the agent proxy of a new connection. Called by the
+	 * onboarding executor.
+	 * @param factory creates and starts the agent proxy
+	 */
+	private void onboard(Supplier<AgentProxy> factory)
+	{
+		// remove obsolete agent proxies
+		retireClosedAgents();
+		startMatch();
+
+		// create new agent proxy
+		AgentProxy agentProxy = factory.get();
+		if (agentProxy != null) {
+			agentProxies.add(agentProxy);
+		}
+	}
+
+	/**
+	 * Closes the connection of an agent the onboarding executor rejected,
+	 * either because it is shut down or because too many agents connect at
+	 * once.
+	 * @param connection the connection of the agent
+	 */
+	private void refuse(Closeable connection)
+	{
+		if (!onboardingExecutor.isShutdown()) {
+			ProxyLog.warn("Too many agents waiting for onboarding, closing connection " + connection);
+		}
+		try {
+			connection.close();
+		} catch (IOException e) {
+			// the agent is disconnected anyway
+		}
+	}
+
+	/**
+	 * Factory method to create and start an agent proxy. Called by an
+	 * onboarding thread, so connections of different agents are set up in
+	 * parallel.
 	 * @param clientSocket the socket the agent proxy works on
+	 * @param acceptTime the time (nanoTime) the connection was accepted
 	 * @return a new instance of agent proxy
 	 */
-	protected AgentProxy createAgentProxy(Socket clientSocket)
+	protected AgentProxy createAgentProxy(Socket clientSocket, long acceptTime)
 	{
 		AgentProxy agentProxy = new AgentProxy(clientSocket, ssHost, ssPort, showMessages);
+		configure(agentProxy);
+		agentProxy.setAcceptTime(acceptTime);
 		agentProxy.start(clientSocket, ssHost, ssPort, showMessages);
 		return agentProxy;
 	}
 
+	/**
+	 * Factory method to create and start an agent proxy for a connection on the
+	 * Unix domain socket.
+	 * @param clientChannel the channel the agent proxy works on
+	 * @param clientId the running number of the connection, used instead of
+	 *        the client port
+	 * @param acceptTime the time (nanoTime) the connection was accepted
+	 * @return a new instance of agent proxy
+	 */
+	protected AgentProxy createAgentProxy(SocketChannel clientChannel, int clientId, long acceptTime)
+	{
+		AgentProxy agentProxy = new AgentProxy(null, ssHost, ssPort, showMessages);
+		configure(agentProxy);
+		agentProxy.setAcceptTime(acceptTime);
+		Connection clientConnection = new Connection(ChannelStreams.input(clientChannel),
+				ChannelStreams.output(clientChannel), "unix:" + proxySocketPath + "#" + clientId);
+		agentProxy.start(clientConnection, clientId, ssHost, ssPort, showMessages);
+		return agentProxy;
+	}
+
+	private void configure(AgentProxy agentProxy)
+	{
+		agentProxy.setSanitizeSay(sanitizeSay);
+		agentProxy.setTimelineCapacity(timelineCapacity);
+		agentProxy.setSharedMemoryWait(sharedMemoryWait);
+		agentProxy.setSyncScheduler(syncScheduler);
+		agentProxy.setJitterMonitor(jitterMonitor);
+		agentProxy.setFrameLimits(frameLimits);
+		agentProxy.setCatchUpDepth(catchUpDepth);
+		agentProxy.setBudgetPolicy(budgetPolicy);
+		agentProxy.setPipelines(FramePipeline.create(clientStages), FramePipeline.create(serverStages));
+	}
+
+	/**
+	 * Runs the forwarding path of an agent proxy configured like the ones of
+	 * this server until it is compiled by the JIT. To be called before the
+	 * server is started, so the first cycles of agents are not slowed down.
+	 * @return the outcome of the warm-up, null if switched off or failed
+	 */
+	public ProxyWarmUp.Result warmUp()
+	{
+		if (warmUpCycles <= 0) {
+			return null;
+		}
+
+		try {
+			ProxyWarmUp.Result result = new ProxyWarmUp(warmUpCycles, this::configure).run();
+			ProxyLog.info("JIT warm-up: " + result);
+			return result;
+		} catch (IOException e) {
+			ProxyLog.warn("JIT warm-up failed: " + e);
+			return null;
+		}
+	}
+
 	/**
 	 * Shutdown proxy server and all active agent-proxy instances.
 	 */
@@ -123,23 +556,555 @@ public class SimsparkAgentProxyServer extends Thread
 			try {
 				proxySocket.close();
 			} catch (IOException e) {
-				e.printStackTrace();
+				ProxyLog.warn("Exception when closing proxy server socket: " + e);
 			}
 		}
 	}
 
 	/**
-	 * Retrieve the current list of agent proxies.
+	 * @return the port the proxy server is listening on, -1 if not listening
+	 */
+	public int getLocalPort()
+	{
+		ServerSocket socket = proxySocket;
+		return socket == null ? -1 : socket.getLocalPort();
+	}
+
+	/**
+	 * Retrieve the stages messages from client agents pass in new agent proxies.
+	 * Stages can be added, removed or reordered before agents connect. Each
+	 * agent proxy gets own stage instances created by the factories.
+	 *
+	 * @return the modifiable list of stage factories
+	 */
+	public List<Supplier<? extends FrameStage>> getClientStages()
+	{
+		return clientStages;
+	}
+
+	/**
+	 * Retrieve the stages messages from the Simspark server pass in new agent
+	 * proxies.
+	 *
+	 * @return the modifiable list of stage factories
+	 * @see #getClientStages()
+	 */
+	public List<Supplier<? extends FrameStage>> getServerStages()
+	{
+		return serverStages;
+	}
+
+	/**
+	 * Replaces the policy deciding the think time budgets of all connected and
+	 * future agents. Can be called while agents are running.
+	 *
+	 * @param budgetPolicy the policy to use
+	 */
+	public void setBudgetPolicy(BudgetPolicy budgetPolicy)
+	{
+		this.budgetPolicy = budgetPolicy;
+		for (AgentProxy proxy : agentProxies) {
+			proxy.setBudgetPolicy(budgetPolicy);
+		}
+	}
+
+	/**
+	 * @return the policy deciding the think time budgets of the agents
+	 */
+	public BudgetPolicy getBudgetPolicy()
+	{
+		return budgetPolicy;
+	}
+
+	/**
+	 * @return the aligner finding the agents the server waits for
+	 */
+	public CycleAligner getCycleAligner()
+	{
+		return cycleAligner;
+	}
+
+	/**
+	 * @return the scheduler sending the proxy syncs, null if each perception
+	 *         forwarder waits for its own deadline
+	 */
+	public SyncScheduler getSyncScheduler()
+	{
+		return syncScheduler;
+	}
+
+	/**
+	 * @return the monitor measuring the jitter of the host, null if not
+	 *         monitored
+	 */
+	public JitterMonitor getJitterMonitor()
+	{
+		return jitterMonitor;
+	}
+
+	/**
+	 * CPU time the proxy used for agents, for capacity planning of the hosts
+	 * running agents and proxy.
+	 * @param agents the number of agent proxies
+	 * @param cycles the number of cycles of all agent proxies
+	 * @param cpuTime the CPU time in ns used for the agents
+	 * @param forwardedBytes the number of perception and action bytes forwarded
+	 */
+	public record CpuUsage(int agents, long cycles, long cpuTime, long forwardedBytes)
+	{
+		/** no usage */
+		public static final CpuUsage NONE = new CpuUsage(0, 0, 0, 0);
+
+		/**
+		 * @param proxy the agent proxy to read the usage of
+		 * @return the usage of the agent proxy so far
+		 */
+		public static CpuUsage of(AgentProxy proxy)
+		{
+			return new CpuUsage(1, proxy.getCycle(), proxy.getCpuTime(), proxy.getForwardedBytes());
+		}
+
+		/**
+		 * @return the sum of this and the other usage
+		 */
+		public CpuUsage add(CpuUsage other)
+		{
+			return new CpuUsage(agents + other.agents, cycles + other.cycles, cpuTime + other.cpuTime,
+					forwardedBytes + other.forwardedBytes);
+		}
+
+		/**
+		 * @return the CPU time in us used per agent cycle
+		 */
+		public double cpuMicrosPerCycle()
+		{
+			return cycles == 0 ? 0 : cpuTime / 1000.0 / cycles;
+		}
+
+		/**
+		 * @return the CPU time in us used per KB forwarded
+		 */
+		public double cpuMicrosPerKilobyte()
+		{
+			return forwardedBytes == 0 ? 0 : cpuTime / 1000.0 / (forwardedBytes / 1024.0);
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.ROOT,
+					"agents: %d cycles: %d cpu: %.1f(ms) per cycle: %.1f(us) per KB: %.1f(us)", agents, cycles,
+					cpuTime / 1000000.0, cpuMicrosPerCycle(), cpuMicrosPerKilobyte());
+		}
+	}
+
+	/**
+	 * Sums up the CPU time used for the connected agents and for the agents
+	 * that have been removed since the proxy server started.
+	 *
+	 * @return the CPU time used for all agents
+	 */
+	public synchronized CpuUsage getCpuUsage()
+	{
+		CpuUsage result = retiredUsage;
+		for (AgentProxy proxy : agentProxies) {
+			result = result.add(CpuUsage.of(proxy));
+		}
+		return result;
+	}
+
+	/**
+	 * Retrieve the current list of agent proxies. The list can be iterated
+	 * while agents connect. Since agents are onboarded concurrently this is a
+	 * copy-on-write list and no longer an {@code ArrayList}.
 	 *
 	 * @return current list of agent proxies
 	 */
-	public ArrayList<AgentProxy> getAgentProxies()
+	public List<AgentProxy> getAgentProxies()
 	{
 		return agentProxies;
 	}
 
-	public record SimsparkAgentProxyServerParameter(
-			int proxyPort, String ssHost, int ssPort, boolean showMessages, boolean daemon)
+	/**
+	 * The parameters of a proxy server. Optional parameters are set with a
+	 * {@link Builder}, all others keep their defaults.
+	 */
+	public static final class SimsparkAgentProxyServerParameter
 	{
+		private final int proxyPort;
+		private final String ssHost;
+		private final int ssPort;
+		private final boolean showMessages;
+		private final boolean daemon;
+		private final boolean sanitizeSay;
+		private final int timelineCapacity;
+		private final String proxySocketPath;
+		private final WaitStrategy sharedMemoryWait;
+		private final boolean edfScheduling;
+		private final FrameLimits frameLimits;
+		private final int catchUpDepth;
+		private final int warmUpCycles;
+		private final RateLimitStage.Limits rateLimits;
+		private final BudgetPolicy budgetPolicy;
+		private final int jitterThreshold;
+		private final int adminPort;
+		private final String statsDir;
+
+		/**
+		 * Creates parameters with default values for all optional parameters.
+		 */
+		public SimsparkAgentProxyServerParameter(int proxyPort, String ssHost, int ssPort)
+		{
+			this(new Builder(proxyPort, ssHost, ssPort));
+		}
+
+		/**
+		 * Creates parameters with default values for all parameters added after
+		 * version 3.0.0.
+		 */
+		public SimsparkAgentProxyServerParameter(
+				int proxyPort, String ssHost, int ssPort, boolean showMessages, boolean daemon)
+		{
+			this(new Builder(proxyPort, ssHost, ssPort).showMessages(showMessages).daemon(daemon));
+		}
+
+		private SimsparkAgentProxyServerParameter(Builder builder)
+		{
+			proxyPort = builder.proxyPort;
+			ssHost = builder.ssHost;
+			ssPort = builder.ssPort;
+			showMessages = builder.showMessages;
+			daemon = builder.daemon;
+			sanitizeSay = builder.sanitizeSay;
+			timelineCapacity = builder.timelineCapacity;
+			proxySocketPath = builder.proxySocketPath;
+			sharedMemoryWait = builder.sharedMemoryWait;
+			edfScheduling = builder.edfScheduling;
+			frameLimits = builder.frameLimits;
+			catchUpDepth = builder.catchUpDepth;
+			warmUpCycles = builder.warmUpCycles;
+			rateLimits = builder.rateLimits;
+			budgetPolicy = builder.budgetPolicy;
+			jitterThreshold = builder.jitterThreshold;
+			adminPort = builder.adminPort;
+			statsDir = builder.statsDir;
+		}
+
+		public int proxyPort()
+		{
+			return proxyPort;
+		}
+
+		public String ssHost()
+		{
+			return ssHost;
+		}
+
+		public int ssPort()
+		{
+			return ssPort;
+		}
+
+		public boolean showMessages()
+		{
+			return showMessages;
+		}
+
+		public boolean daemon()
+		{
+			return daemon;
+		}
+
+		public boolean sanitizeSay()
+		{
+			return sanitizeSay;
+		}
+
+		public int timelineCapacity()
+		{
+			return timelineCapacity;
+		}
+
+		public String proxySocketPath()
+		{
+			return proxySocketPath;
+		}
+
+		public WaitStrategy sharedMemoryWait()
+		{
+			return sharedMemoryWait;
+		}
+
+		public boolean edfScheduling()
+		{
+			return edfScheduling;
+		}
+
+		public FrameLimits frameLimits()
+		{
+			return frameLimits;
+		}
+
+		public int catchUpDepth()
+		{
+			return catchUpDepth;
+		}
+
+		public int warmUpCycles()
+		{
+			return warmUpCycles;
+		}
+
+		public RateLimitStage.Limits rateLimits()
+		{
+			return rateLimits;
+		}
+
+		public BudgetPolicy budgetPolicy()
+		{
+			return budgetPolicy;
+		}
+
+		public int jitterThreshold()
+		{
+			return jitterThreshold;
+		}
+
+		public int adminPort()
+		{
+			return adminPort;
+		}
+
+		public String statsDir()
+		{
+			return statsDir;
+		}
+
+		/**
+		 * Collects the parameters of a proxy server. Parameters that are not set
+		 * keep their defaults.
+		 */
+		public static final class Builder
+		{
+			private int proxyPort;
+			private String ssHost;
+			private int ssPort;
+			private boolean showMessages;
+			private boolean daemon;
+			private boolean sanitizeSay;
+			private int timelineCapacity = CycleTimeline.DEFAULT_CAPACITY;
+			private String proxySocketPath;
+			private WaitStrategy sharedMemoryWait = WaitStrategy.PARK;
+			private boolean edfScheduling;
+			private FrameLimits frameLimits = FrameLimits.DEFAULT;
+			private int catchUpDepth;
+			private int warmUpCycles;
+			private RateLimitStage.Limits rateLimits;
+			private BudgetPolicy budgetPolicy;
+			private int jitterThreshold;
+			private int adminPort;
+			private String statsDir;
+
+			/**
+			 * @param proxyPort port agents connect to
+			 * @param ssHost host of the Simspark server
+			 * @param ssPort port of the Simspark server
+			 */
+			public Builder(int proxyPort, String ssHost, int ssPort)
+			{
+				this.proxyPort = proxyPort;
+				this.ssHost = ssHost;
+				this.ssPort = ssPort;
+			}
+
+			/**
+			 * @param proxyPort port agents connect to
+			 * @return this builder
+			 */
+			public Builder proxyPort(int proxyPort)
+			{
+				this.proxyPort = proxyPort;
+				return this;
+			}
+
+			/**
+			 * @param ssHost host of the Simspark server
+			 * @return this builder
+			 */
+			public Builder ssHost(String ssHost)
+			{
+				this.ssHost = ssHost;
+				return this;
+			}
+
+			/**
+			 * @param ssPort port of the Simspark server
+			 * @return this builder
+			 */
+			public Builder ssPort(int ssPort)
+			{
+				this.ssPort = ssPort;
+				return this;
+			}
+
+			/**
+			 * @param showMessages true if all messages should be printed
+			 * @return this builder
+			 */
+			public Builder showMessages(boolean showMessages)
+			{
+				this.showMessages = showMessages;
+				return this;
+			}
+
+			/**
+			 * @param daemon true if running without command line interface
+			 * @return this builder
+			 */
+			public Builder daemon(boolean daemon)
+			{
+				this.daemon = daemon;
+				return this;
+			}
+
+			/**
+			 * @param sanitizeSay true if invalid say messages should be removed
+			 * @return this builder
+			 */
+			public Builder sanitizeSay(boolean sanitizeSay)
+			{
+				this.sanitizeSay = sanitizeSay;
+				return this;
+			}
+
+			/**
+			 * @param timelineCapacity number of cycles kept per agent for the timeline
+			 * @return this builder
+			 */
+			public Builder timelineCapacity(int timelineCapacity)
+			{
+				this.timelineCapacity = timelineCapacity;
+				return this;
+			}
+
+			/**
+			 * @param proxySocketPath path of the Unix domain socket to accept agents on, null for none
+			 * @return this builder
+			 */
+			public Builder proxySocketPath(String proxySocketPath)
+			{
+				this.proxySocketPath = proxySocketPath;
+				return this;
+			}
+
+			/**
+			 * @param sharedMemoryWait wait strategy for shared memory connections, null for none
+			 * @return this builder
+			 */
+			public Builder sharedMemoryWait(WaitStrategy sharedMemoryWait)
+			{
+				this.sharedMemoryWait = sharedMemoryWait;
+				return this;
+			}
+
+			/**
+			 * @param edfScheduling true if missing syncs are sent by the earliest deadline
+			 *        scheduler
+			 * @return this builder
+			 */
+			public Builder edfScheduling(boolean edfScheduling)
+			{
+				this.edfScheduling = edfScheduling;
+				return this;
+			}
+
+			/**
+			 * @param frameLimits limits of message lengths
+			 * @return this builder
+			 */
+			public Builder frameLimits(FrameLimits frameLimits)
+			{
+				this.frameLimits = frameLimits;
+				return this;
+			}
+
+			/**
+			 * @param catchUpDepth number of the newest backlogged perceptions forwarded, 0 for all
+			 * @return this builder
+			 */
+			public Builder catchUpDepth(int catchUpDepth)
+			{
+				this.catchUpDepth = catchUpDepth;
+				return this;
+			}
+
+			/**
+			 * @param warmUpCycles number of warm-up cycles
+			 * @return this builder
+			 */
+			public Builder warmUpCycles(int warmUpCycles)
+			{
+				this.warmUpCycles = warmUpCycles;
+				return this;
+			}
+
+			/**
+			 * @param rateLimits rate limits of agents, null for none
+			 * @return this builder
+			 */
+			public Builder rateLimits(RateLimitStage.Limits rateLimits)
+			{
+				this.rateLimits = rateLimits;
+				return this;
+			}
+
+			/**
+			 * @param budgetPolicy think time budget policy, null for the default
+			 * @return this builder
+			 */
+			public Builder budgetPolicy(BudgetPolicy budgetPolicy)
+			{
+				this.budgetPolicy = budgetPolicy;
+				return this;
+			}
+
+			/**
+			 * @param jitterThreshold host jitter threshold (us), 0 for none
+			 * @return this builder
+			 */
+			public Builder jitterThreshold(int jitterThreshold)
+			{
+				this.jitterThreshold = jitterThreshold;
+				return this;
+			}
+
+			/**
+			 * @param adminPort port of the command line interface, 0 for none
+			 * @return this builder
+			 */
+			public Builder adminPort(int adminPort)
+			{
+				this.adminPort = adminPort;
+				return this;
+			}
+
+			/**
+			 * @param statsDir directory of the statistics store, null for none
+			 * @return this builder
+			 */
+			public Builder statsDir(String statsDir)
+			{
+				this.statsDir = statsDir;
+				return this;
+			}
+
+			/**
+			 * @return the parameters set so far
+			 */
+			public SimsparkAgentProxyServerParameter build()
+			{
+				return new SimsparkAgentProxyServerParameter(this);
+			}
+		}
 	}
 }
@@ -0,0 +1,359 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Append-only store of the {@link AgentSummary} of each agent and match in a
+ * directory, kept across proxy runs. Summaries are appended to
+ * {@link #DATA_FILE}, each prefixed by its length. For each summary an entry
+ * with team, client address and date of the match is appended to
+ * {@link #INDEX_FILE}, so queries read the small index and only the
+ * summaries they need.
+ * <p>
+ * Summaries are written by a single background thread, so closing agent
+ * proxies never wait for the disk. The index entry is written after the
+ * summary, entries of summaries not completely written, e.g. after a crash,
+ * are ignored when reading. When the store is opened again, such entries are
+ * cut off the index, so new entries are appended to the last complete one.
+ * <p>
+ * Only one proxy can write to a directory at a time, it holds a lock on
+ * {@link #LOCK_FILE} while the store is open.
+ *
+ * @author agent
+ */
+public class StatsStore implements Closeable
+{
+	/** name of the file containing the summaries */
+	public static final String DATA_FILE = "summaries.dat";
+
+	/** name of the file containing the index entries */
+	public static final String INDEX_FILE = "summaries.idx";
+
+	/** name of the file locked while the store is open */
+	public static final String LOCK_FILE = "summaries.lock";
+
+	/** time close waits for the pending summaries to be written in s */
+	private static final int CLOSE_TIMEOUT = 5;
+
+	/** the directory of the store */
+	private final Path directory;
+
+	/** the lock file, open while the store is open */
+	private final FileChannel lockChannel;
+
+	/** thread writing the summaries */
+	private final ExecutorService writer;
+
+	/** the summaries, only used by the writer thread */
+	private final DataOutputStream data;
+
+	/** the index entries, only used by the writer thread */
+	private final DataOutputStream index;
+
+	/** the length of the data file, only used by the writer thread */
+	private long dataLength;
+
+	/** number of summaries written */
+	private volatile int writtenCount;
+
+	/**
+	 * Index entry of one summary.
+	 * @param offset the position of the summary in the data file
+	 * @param length the number of bytes of the summary
+	 * @param date the local date the match started
+	 * @param team the team name of the agent, empty if unknown
+	 * @param clientAddress the address of the client agent, empty if unknown
+	 */
+	public record IndexEntry(long offset, int length, LocalDate date, String team, String clientAddress)
+	{
+		/** the number of bytes of an entry with empty team and address */
+		static final int MIN_SIZE = Long.BYTES + Integer.BYTES + Long.BYTES + 2 * Short.BYTES;
+
+		/**
+		 * @return the position after the summary in the data file
+		 */
+		public long end()
+		{
+			return offset + length;
+		}
+	}
+
+	/**
+	 * Opens the store in the passed directory, creating it if necessary.
+	 * Entries not completely written are cut off the index.
+	 * @param directory the directory of the store
+	 * @throws IOException if the files can not be opened or another process
+	 *         has opened the store
+	 */
+	public StatsStore(Path directory) throws IOException
+	{
+		this.directory = directory;
+		Files.createDirectories(directory);
+		lockChannel = lock(directory);
+		try {
+			Path dataPath = directory.resolve(DATA_FILE);
+			dataLength = truncate(directory);
+			data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataPath.toFile(), true)));
+			index = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(directory.resolve(INDEX_FILE).toFile(), true)));
+		} catch (IOException e) {
+			lockChannel.close();
+			throw e;
+		}
+		writer = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "stats-store");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Locks the lock file of the store.
+	 * @return the channel of the locked file, closing it releases the lock
+	 * @throws IOException if the store is locked by another process
+	 */
+	private static FileChannel lock(Path directory) throws IOException
+	{
+		FileChannel channel =
+				FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			if (channel.tryLock() != null) {
+				return channel;
+			}
+		} catch (OverlappingFileLockException e) {
+			// locked by another store of this process
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		channel.close();
+		throw new IOException("Statistics store " + directory + " is used by another process");
+	}
+
+	/**
+	 * Cuts off the index entries not completely written and the data of
+	 * summaries without index entry.
+	 * @return the length of the data file
+	 */
+	private static long truncate(Path directory) throws IOException
+	{
+		Path indexPath = directory.resolve(INDEX_FILE);
+		Path dataPath = directory.resolve(DATA_FILE);
+		long dataLength = Files.exists(dataPath) ? Files.size(dataPath) : 0;
+		byte[] bytes = Files.exists(indexPath) ? Files.readAllBytes(indexPath) : new byte[0];
+		List<IndexEntry> entries = new ArrayList<>();
+		int[] ends = new int[1 + bytes.length / IndexEntry.MIN_SIZE];
+		readEntries(bytes, entries, ends);
+		int kept = entries.size();
+		while (kept > 0 && entries.get(kept - 1).end() > dataLength) {
+			kept--;
+		}
+		long indexLength = kept > 0 ? ends[kept - 1] : 0;
+		long usedLength = kept > 0 ? entries.get(kept - 1).end() : 0;
+		if (indexLength < bytes.length) {
+			ProxyLog.warn("Cutting off incomplete index entries of statistics store " + directory);
+			try (FileChannel file = FileChannel.open(indexPath, StandardOpenOption.WRITE)) {
+				file.truncate(indexLength);
+			}
+		}
+		if (usedLength < dataLength) {
+			try (FileChannel file = FileChannel.open(dataPath, StandardOpenOption.WRITE)) {
+				file.truncate(usedLength);
+			}
+		}
+		return usedLength;
+	}
+
+	/**
+	 * @return the directory of the store
+	 */
+	public Path getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * @return the number of summaries written since the store was opened
+	 */
+	public int getWrittenCount()
+	{
+		return writtenCount;
+	}
+
+	/**
+	 * Queues a summary for writing. Never blocks.
+	 * @param summary the summary to append
+	 */
+	public void append(AgentSummary summary)
+	{
+		try {
+			writer.execute(() -> write(summary));
+		} catch (RejectedExecutionException e) {
+			ProxyLog.warn("Statistics store closed, summary not kept: " + summary);
+		}
+	}
+
+	/**
+	 * Writes one summary and its index entry. Called by the writer thread.
+	 */
+	private void write(AgentSummary summary)
+	{
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			summary.write(new DataOutputStream(bytes));
+			data.writeInt(bytes.size());
+			bytes.writeTo(data);
+			data.flush();
+			long offset = dataLength + Integer.BYTES;
+			dataLength = offset + bytes.size();
+
+			index.writeLong(offset);
+			index.writeInt(bytes.size());
+			index.writeLong(summary.matchDate().toEpochDay());
+			index.writeUTF(summary.team());
+			index.writeUTF(summary.clientAddress());
+			index.flush();
+			writtenCount++;
+		} catch (IOException e) {
+			ProxyLog.error("Can not write to statistics store " + directory + ": " + e);
+		}
+	}
+
+	/**
+	 * Writes the pending summaries and closes the files.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		writer.shutdown();
+		try {
+			if (!writer.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS)) {
+				ProxyLog.warn("Statistics store " + directory + " closed before all summaries were written");
+			}
+		} catch (InterruptedException e) {
+			ProxyLog.warn("Interrupted while waiting for statistics store: " + e);
+		}
+		data.close();
+		index.close();
+		lockChannel.close();
+	}
+
+	/**
+	 * Reads the index of a store. Can be called while the store is written.
+	 * @param directory the directory of the store
+	 * @return all complete index entries in the order written
+	 * @throws IOException if the index can not be read
+	 */
+	public static List<IndexEntry> readIndex(Path directory) throws IOException
+	{
+		List<IndexEntry> result = new ArrayList<>();
+		Path indexPath = directory.resolve(INDEX_FILE);
+		if (!Files.exists(indexPath)) {
+			return result;
+		}
+
+		readEntries(Files.readAllBytes(indexPath), result, null);
+		return result;
+	}
+
+	/**
+	 * Reads the complete index entries.
+	 * @param bytes the content of the index file
+	 * @param result the list to add the entries to
+	 * @param ends if not null, receives the position in the index after each
+	 *        entry
+	 */
+	private static void readEntries(byte[] bytes, List<IndexEntry> result, int[] ends) throws IOException
+	{
+		ByteArrayInputStream buffer = new ByteArrayInputStream(bytes);
+		DataInputStream in = new DataInputStream(buffer);
+		try {
+			while (true) {
+				long offset = in.readLong();
+				int length = in.readInt();
+				LocalDate date = LocalDate.ofEpochDay(in.readLong());
+				result.add(new IndexEntry(offset, length, date, in.readUTF(), in.readUTF()));
+				if (ends != null) {
+					ends[result.size() - 1] = bytes.length - buffer.available();
+				}
+			}
+		} catch (EOFException e) {
+			// end of index, possibly an entry partly written
+		}
+	}
+
+	/**
+	 * Reads the summaries the filter accepts the index entry of. Can be called
+	 * while the store is written.
+	 * @param directory the directory of the store
+	 * @param filter decides by the index entry which summaries to read
+	 * @return the summaries accepted in the order written
+	 * @throws IOException if the store can not be read
+	 */
+	public static List<AgentSummary> query(Path directory, Predicate<IndexEntry> filter) throws IOException
+	{
+		List<AgentSummary> result = new ArrayList<>();
+		List<IndexEntry> entries = readIndex(directory);
+		if (entries.isEmpty()) {
+			return result;
+		}
+
+		try (RandomAccessFile file = new RandomAccessFile(directory.resolve(DATA_FILE).toFile(), "r")) {
+			long length = file.length();
+			byte[] buffer = new byte[256];
+			for (IndexEntry entry : entries) {
+				if (entry.end() > length || !filter.test(entry)) {
+					continue;
+				}
+				if (buffer.length < entry.length) {
+					buffer = new byte[entry.length];
+				}
+				file.seek(entry.offset);
+				file.readFully(buffer, 0, entry.length);
+				result.add(AgentSummary.read(new DataInputStream(new ByteArrayInputStream(buffer, 0, entry.length))));
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,458 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends the proxy syncs of all agent proxies of a proxy server from a single
+ * thread in earliest deadline first order. Without it each perception
+ * forwarder sleeps until its own deadline, and on an overloaded host the
+ * operating system wakes the sleeping forwarders in any order, so an agent
+ * whose deadline has passed may wait behind one with time left.
+ * <p>
+ * The deadline of a cycle is the reception of its perception plus the think
+ * time budget of the agent, see {@link BudgetPolicy}. Forwarding perceptions
+ * stays with the forwarders: it is not bound to the deadline, so perceptions
+ * are served in order of arrival even if budgets differ between agents.
+ * <p>
+ * Each agent proxy owns one {@link Task} that is rescheduled every cycle, so
+ * scheduling does not create garbage. Pending tasks are kept in a binary heap
+ * ordered by deadline and in a list ordered by scheduling, which tells if a
+ * sync is sent before one scheduled earlier.
+ * <p>
+ * The scheduler thread only takes the due tasks off the heap. Sending a sync
+ * can block if the server does not read or a forwarder writes to the same
+ * connection, so the syncs are handed to a few sender threads in deadline
+ * order. A blocked connection then only holds up the syncs of its own agent.
+ * The CPU time a sender spends on a sync is accounted to the agent proxy it
+ * is sent for.
+ *
+ * @author agent
+ */
+public class SyncScheduler extends Thread
+{
+	/** syncs sent later than this after their deadline are counted late in ns */
+	public static final long LATE_TOLERANCE = 1000000;
+
+	/** maximum time to wait if no sync is pending in ns */
+	private static final long IDLE_WAIT = 100000000;
+
+	/** number of threads sending the syncs handed off by the scheduler */
+	private static final int SENDER_THREADS = 4;
+
+	/**
+	 * capacity of the queue of the sender threads, each task is queued at most
+	 * once, so it only fills up with more agents than a match has
+	 */
+	private static final int SENDER_QUEUE_CAPACITY = 64;
+
+	/** the clock deadlines are compared to */
+	private final ProxyClock clock;
+
+	/** sends the syncs of the due tasks */
+	private final Executor sender;
+
+	/** pending tasks, a binary heap ordered by deadline */
+	private Task[] heap = new Task[16];
+
+	/** number of pending tasks */
+	private int size;
+
+	/** number of tasks scheduled so far, orders tasks of equal deadline */
+	private long sequence;
+
+	/** the pending task scheduled first, null if none is pending */
+	private Task oldest;
+
+	/** the pending task scheduled last, null if none is pending */
+	private Task newest;
+
+	/** number of syncs sent at most {@link #LATE_TOLERANCE} after deadline */
+	private long onTime;
+
+	/** number of syncs sent later than {@link #LATE_TOLERANCE} after deadline */
+	private long late;
+
+	/** number of syncs sent before a sync that was scheduled earlier */
+	private long reordered;
+
+	/** the maximum time a sync was sent after its deadline in ns */
+	private long maxLateness;
+
+	/**
+	 * The pending sync of one agent proxy. It is handed to the sender when it
+	 * is due.
+	 */
+	public static final class Task implements Runnable
+	{
+		private final SyncScheduler scheduler;
+
+		private final AgentProxy proxy;
+
+		/** the time (nanoTime) the sync has to be sent */
+		private long deadline;
+
+		/** the cycle of the agent proxy the sync belongs to */
+		private long cycle;
+
+		/** orders tasks of equal deadline */
+		private long sequence;
+
+		/** position in the heap, -1 if not pending */
+		private int index = -1;
+
+		/** the pending tasks scheduled before and after this one */
+		private Task older;
+
+		private Task newer;
+
+		/** true while handed to the sender and not yet sent */
+		private boolean handedOff;
+
+		/** deadline, cycle and reordering of the sync handed to the sender */
+		private long dueDeadline;
+
+		private long dueCycle;
+
+		private boolean dueReordered;
+
+		Task(SyncScheduler scheduler, AgentProxy proxy)
+		{
+			this.scheduler = scheduler;
+			this.proxy = proxy;
+		}
+
+		@Override
+		public void run()
+		{
+			long deadline;
+			long cycle;
+			boolean jumpedQueue;
+			synchronized (scheduler) {
+				deadline = dueDeadline;
+				cycle = dueCycle;
+				jumpedQueue = dueReordered;
+				handedOff = false;
+			}
+
+			// the work is accounted to the agent like the work of its forwarders
+			long cpuStart = ThreadCpuTime.currentThreadNanos();
+			boolean sent = proxy.scheduledSyncDue(cycle);
+			if (cpuStart >= 0) {
+				proxy.pooledWorkDone(ThreadCpuTime.currentThreadNanos() - cpuStart);
+			}
+			if (sent) {
+				scheduler.syncSent(scheduler.clock.nanoTime() - deadline, jumpedQueue);
+			}
+		}
+	}
+
+	/**
+	 * Counters of the syncs sent by the scheduler.
+	 * @param onTime syncs sent at most {@link #LATE_TOLERANCE} after deadline
+	 * @param late syncs sent later than that
+	 * @param reordered syncs sent before a sync that was scheduled earlier, i.e.
+	 *        the number of times the deadline order differed from the order of
+	 *        scheduling
+	 * @param maxLateness the maximum time a sync was sent after its deadline in
+	 *        ns
+	 */
+	public record Statistics(long onTime, long late, long reordered, long maxLateness)
+	{
+		@Override
+		public String toString()
+		{
+			return String.format(Locale.ROOT, "on time: %d late: %d reordered: %d max lateness: %.2f(ms)", onTime,
+					late, reordered, maxLateness / 1000000.0);
+		}
+	}
+
+	/**
+	 * Creates a scheduler with its own sender threads. They are stopped with
+	 * the scheduler.
+	 * @param clock the clock deadlines are compared to
+	 */
+	public SyncScheduler(ProxyClock clock)
+	{
+		this(clock, createSender());
+	}
+
+	/**
+	 * @param clock the clock deadlines are compared to
+	 * @param sender sends the syncs of the due tasks in the order they are
+	 *        passed
+	 */
+	public SyncScheduler(ProxyClock clock, Executor sender)
+	{
+		super("sync-scheduler");
+		setDaemon(true);
+		this.clock = clock;
+		this.sender = sender;
+	}
+
+	private static ExecutorService createSender()
+	{
+		AtomicInteger senderThreads = new AtomicInteger();
+		// if the queue is full the scheduler sends the sync itself
+		return new ThreadPoolExecutor(SENDER_THREADS, SENDER_THREADS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(SENDER_QUEUE_CAPACITY), runnable -> {
+					Thread thread = new Thread(runnable, "sync-sender-" + senderThreads.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	@Override
+	public void run()
+	{
+		while (!isInterrupted()) {
+			long wait = fireDue(clock.nanoTime());
+			LockSupport.parkNanos(this, Math.min(wait, IDLE_WAIT));
+		}
+		if (sender instanceof ExecutorService service) {
+			service.shutdown();
+		}
+	}
+
+	/**
+	 * @param proxy the agent proxy to create the task for
+	 * @return the task to schedule the syncs of the agent proxy with
+	 */
+	public Task createTask(AgentProxy proxy)
+	{
+		return new Task(this, proxy);
+	}
+
+	/**
+	 * Schedules the sync of a cycle. If the task is still pending for an
+	 * earlier cycle, it is moved to the new deadline.
+	 * @param task the task of the agent proxy
+	 * @param deadline the time (nanoTime) the sync has to be sent
+	 * @param cycle the cycle of the agent proxy the sync belongs to
+	 */
+	public void schedule(Task task, long deadline, long cycle)
+	{
+		boolean first;
+		synchronized (this) {
+			task.deadline = deadline;
+			task.cycle = cycle;
+			task.sequence = sequence++;
+			if (task.index < 0) {
+				if (size == heap.length) {
+					heap = Arrays.copyOf(heap, size * 2);
+				}
+				task.index = size;
+				heap[size++] = task;
+			} else {
+				unlink(task);
+			}
+			link(task);
+			siftDown(siftUp(task.index));
+			first = heap[0] == task;
+		}
+		if (first) {
+			// the scheduler might sleep until a later deadline
+			LockSupport.unpark(this);
+		}
+	}
+
+	/**
+	 * Removes the task of an agent proxy if pending.
+	 * @param task the task to remove
+	 */
+	public synchronized void cancel(Task task)
+	{
+		if (task.index >= 0) {
+			remove(task.index);
+		}
+	}
+
+	/**
+	 * Hands the syncs of all tasks due to the sender in deadline order. Only to
+	 * be called by one thread at a time.
+	 * @param now the current time (nanoTime)
+	 * @return the time until the next deadline in ns
+	 */
+	long fireDue(long now)
+	{
+		while (true) {
+			Task task;
+			boolean handOff;
+			synchronized (this) {
+				if (size == 0) {
+					return IDLE_WAIT;
+				}
+				task = heap[0];
+				if (task.deadline > now) {
+					return task.deadline - now;
+				}
+				task.dueDeadline = task.deadline;
+				task.dueCycle = task.cycle;
+				task.dueReordered = task != oldest;
+				remove(0);
+				// a task still waiting for the sender sends the sync of the new cycle
+				handOff = !task.handedOff;
+				task.handedOff = true;
+			}
+			if (handOff) {
+				sender.execute(task);
+			}
+		}
+	}
+
+	/**
+	 * Counts a sync sent by the sender.
+	 * @param lateness the time the sync was sent after its deadline in ns
+	 * @param jumpedQueue true if a sync scheduled earlier was still pending
+	 */
+	private synchronized void syncSent(long lateness, boolean jumpedQueue)
+	{
+		if (lateness > LATE_TOLERANCE) {
+			late++;
+		} else {
+			onTime++;
+		}
+		if (lateness > maxLateness) {
+			maxLateness = lateness;
+		}
+		if (jumpedQueue) {
+			reordered++;
+		}
+	}
+
+	/**
+	 * @return the counters of the syncs sent so far
+	 */
+	public synchronized Statistics getStatistics()
+	{
+		return new Statistics(onTime, late, reordered, maxLateness);
+	}
+
+	/**
+	 * @return the number of pending tasks
+	 */
+	public synchronized int getPendingCount()
+	{
+		return size;
+	}
+
+	/**
+	 * Appends a task to the list of pending tasks in the order of scheduling.
+	 */
+	private void link(Task task)
+	{
+		task.older = newest;
+		if (newest == null) {
+			oldest = task;
+		} else {
+			newest.newer = task;
+		}
+		newest = task;
+	}
+
+	private void unlink(Task task)
+	{
+		if (task.older == null) {
+			oldest = task.newer;
+		} else {
+			task.older.newer = task.newer;
+		}
+		if (task.newer == null) {
+			newest = task.older;
+		} else {
+			task.newer.older = task.older;
+		}
+		task.older = null;
+		task.newer = null;
+	}
+
+	private void remove(int index)
+	{
+		Task removed = heap[index];
+		removed.index = -1;
+		unlink(removed);
+		size--;
+		if (index < size) {
+			Task last = heap[size];
+			heap[index] = last;
+			last.index = index;
+			siftDown(siftUp(index));
+		}
+		heap[size] = null;
+	}
+
+	/**
+	 * @return the new index of the task at the passed index
+	 */
+	private int siftUp(int index)
+	{
+		Task task = heap[index];
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (!isBefore(task, heap[parent])) {
+				break;
+			}
+			move(heap[parent], index);
+			index = parent;
+		}
+		move(task, index);
+		return index;
+	}
+
+	private void siftDown(int index)
+	{
+		Task task = heap[index];
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && isBefore(heap[child + 1], heap[child])) {
+				child++;
+			}
+			if (!isBefore(heap[child], task)) {
+				break;
+			}
+			move(heap[child], index);
+			index = child;
+		}
+		move(task, index);
+	}
+
+	private void move(Task task, int index)
+	{
+		heap[index] = task;
+		task.index = index;
+	}
+
+	private static boolean isBefore(Task task, Task other)
+	{
+		return task.deadline < other.deadline || (task.deadline == other.deadline && task.sequence < other.sequence);
+	}
+}
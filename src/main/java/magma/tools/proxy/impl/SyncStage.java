@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+/**
+ * Built-in stage for client messages detecting a sync-command. If an action
+ * contains a sync, the agent proxy is informed and the action is prefixed with
+ * (syn) to avoid problems of hanging server in case of bad formed say messages.
+ *
+ * @author agent
+ */
+public class SyncStage implements FrameStage
+{
+	@Override
+	public boolean process(AgentProxy agent, Frame frame)
+	{
+		if (frame.indexOf(AgentProxy.SYNC_BYTES) < 0) {
+			return true;
+		}
+
+		agent.clientSyncReceived();
+		frame.setSyncSource(CycleTimeline.SYNC_CLIENT);
+		prependSyn(frame);
+		return true;
+	}
+
+	/**
+	 * Prefixes the message of the frame with a (syn) using the scratch buffer.
+	 * @param frame the frame containing the action
+	 */
+	public static void prependSyn(Frame frame)
+	{
+		byte[] sync = AgentProxy.SYNC_BYTES;
+		int length = sync.length + frame.getLength();
+		int start = Frame.HEADER_SPACE;
+		byte[] target = frame.getScratch(start + length);
+		System.arraycopy(sync, 0, target, start, sync.length);
+		System.arraycopy(frame.getBuffer(), frame.getOffset(), target, start + sync.length, frame.getLength());
+		frame.commitScratch(start, length);
+	}
+}
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.util.Arrays;
+
+/**
+ * Counts the think times of an agent, i.e. the time from forwarding a
+ * perception until the first action of the cycle arrived, in buckets of one
+ * millisecond. Think times of {@link #BUCKETS} - 1 ms and more share the last
+ * bucket. Cycles without action are not counted, they are missed cycles.
+ * <p>
+ * Only written by one thread, readers get a copy that may be slightly behind.
+ * Histograms of many agents and matches are summed up by adding the counts.
+ *
+ * @author agent
+ */
+public class ThinkTimeHistogram
+{
+	/** number of buckets, the last one counts all longer think times */
+	public static final int BUCKETS = 41;
+
+	/** number of think times per millisecond */
+	private final int[] counts = new int[BUCKETS];
+
+	/**
+	 * @param thinkTime the time from perception to first action in ns
+	 */
+	public void record(long thinkTime)
+	{
+		counts[bucket(thinkTime)]++;
+	}
+
+	/**
+	 * Starts counting from scratch. Only called by the thread recording.
+	 */
+	public void reset()
+	{
+		Arrays.fill(counts, 0);
+	}
+
+	/**
+	 * Adds the counts of another histogram, e.g. before it is reset. Only
+	 * called by the thread recording the other histogram.
+	 * @param other the histogram to add
+	 */
+	public void add(ThinkTimeHistogram other)
+	{
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+	}
+
+	/**
+	 * @return a copy of the counts per millisecond
+	 */
+	public int[] getCounts()
+	{
+		return counts.clone();
+	}
+
+	/**
+	 * @param thinkTime a think time in ns
+	 * @return the index of the bucket counting the think time
+	 */
+	static int bucket(long thinkTime)
+	{
+		return (int) Math.max(0, Math.min(BUCKETS - 1, thinkTime / 1000000));
+	}
+
+	/**
+	 * @param counts counts per millisecond, e.g. of a histogram or a sum of
+	 *        histograms
+	 * @param percentile the percentile to calculate (0 - 100)
+	 * @return the upper bound of the bucket the percentile falls into in ms, 0
+	 *         if nothing was counted
+	 */
+	public static int percentile(long[] counts, double percentile)
+	{
+		long total = 0;
+		for (long count : counts) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long sum = 0;
+		for (int i = 0; i < counts.length; i++) {
+			sum += counts[i];
+			if (sum >= Math.max(1, rank)) {
+				return i + 1;
+			}
+		}
+		return counts.length;
+	}
+}
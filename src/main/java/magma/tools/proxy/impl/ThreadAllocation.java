@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Reads the number of bytes allocated by the calling thread from the JVM.
+ * Reading the counter of the calling thread is cheap and does not allocate,
+ * so forwarders can read it every cycle.
+ *
+ * @author agent
+ */
+public final class ThreadAllocation
+{
+	/** the bean to read the counters from, null if not supported */
+	private static final com.sun.management.ThreadMXBean threads = createBean();
+
+	private ThreadAllocation()
+	{
+	}
+
+	private static com.sun.management.ThreadMXBean createBean()
+	{
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return null;
+		}
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		if (!threadBean.isThreadAllocatedMemorySupported()) {
+			return null;
+		}
+		if (!threadBean.isThreadAllocatedMemoryEnabled()) {
+			threadBean.setThreadAllocatedMemoryEnabled(true);
+		}
+		return threadBean;
+	}
+
+	/**
+	 * @return true if allocated bytes can be measured in this JVM
+	 */
+	public static boolean isSupported()
+	{
+		return threads != null;
+	}
+
+	/**
+	 * @return the number of bytes allocated by the calling thread since it
+	 *         started, -1 if not supported
+	 */
+	public static long currentThreadBytes()
+	{
+		return threads == null ? -1 : threads.getCurrentThreadAllocatedBytes();
+	}
+}
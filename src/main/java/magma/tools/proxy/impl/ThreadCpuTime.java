@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads the CPU time used by the calling thread from the JVM. Forwarders read
+ * it once per cycle to account the CPU time the proxy spends on each agent,
+ * shared threads read it around the work they do for an agent.
+ *
+ * @author agent
+ */
+public final class ThreadCpuTime
+{
+	/** the bean to read the CPU time from, null if not supported */
+	private static final ThreadMXBean threads = createBean();
+
+	private ThreadCpuTime()
+	{
+	}
+
+	private static ThreadMXBean createBean()
+	{
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!bean.isCurrentThreadCpuTimeSupported()) {
+			return null;
+		}
+		if (!bean.isThreadCpuTimeEnabled()) {
+			bean.setThreadCpuTimeEnabled(true);
+		}
+		return bean;
+	}
+
+	/**
+	 * @return true if the CPU time of threads can be measured in this JVM
+	 */
+	public static boolean isSupported()
+	{
+		return threads != null;
+	}
+
+	/**
+	 * @return the CPU time in ns used by the calling thread since it started,
+	 *         -1 if not supported
+	 */
+	public static long currentThreadNanos()
+	{
+		return threads == null ? -1 : threads.getCurrentThreadCpuTime();
+	}
+}
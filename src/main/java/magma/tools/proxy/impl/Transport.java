@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+/**
+ * A bidirectional transport of length prefixed messages between the proxy and
+ * an agent or the server. {@link Connection} is the default transport using
+ * sockets or streams.
+ * <p>
+ * A transport an agent switches to after connecting, like
+ * {@link SharedMemoryConnection}, keeps the connection the agent connected on
+ * only to notice if the agent died. After the switch, that connection must not
+ * carry any data: the liveness check ({@link Connection#isPeerAlive()}) drops
+ * whatever it reads.
+ *
+ * @author agent
+ */
+public interface Transport extends FrameSink
+{
+	/**
+	 * @return true if this transport is connected
+	 */
+	boolean isConnected();
+
+	/**
+	 * Closes the transport.
+	 */
+	void disconnect();
+
+	/**
+	 * Send a message.
+	 * @param msg message in ASCII form
+	 */
+	default void sendMessage(byte[] msg)
+	{
+		sendMessage(msg, 0, msg.length);
+	}
+
+	/**
+	 * Send the message of a frame.
+	 * @param frame the frame containing the message
+	 */
+	void sendMessage(Frame frame);
+
+	/**
+	 * Receive a message. Blocking call.
+	 * @return the next, complete received message, or null if the transport
+	 *         was closed
+	 */
+	byte[] receiveMessage();
+
+	/**
+	 * Receive a message into the passed frame. Blocking call.
+	 * @param frame the frame to receive the message to, its buffer is reused
+	 * @return true if a complete message was received, false if the
+	 *         transport was closed
+	 */
+	boolean receiveMessage(Frame frame);
+
+	/**
+	 * @return true if a message can be received without blocking
+	 */
+	boolean inputAvailable();
+
+	/**
+	 * Switches on/off printing the start of sent messages.
+	 */
+	void toggleMessageDisplay();
+
+	/**
+	 * Limits the length of received messages. Has to be called before
+	 * receiving.
+	 * @param maxFrameSize the maximum length of a received message
+	 * @param streamTarget where oversized messages are streamed to, null to
+	 *        reject them
+	 */
+	void setMaxFrameSize(int maxFrameSize, FrameSink streamTarget);
+
+	/**
+	 * @return the number of received messages rejected for their length
+	 */
+	int getRejectedFrames();
+
+	/**
+	 * @return the number of received messages streamed through for their
+	 *         length
+	 */
+	int getStreamedFrames();
+}
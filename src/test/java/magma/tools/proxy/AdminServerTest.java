@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import magma.tools.proxy.impl.AgentProxy;
+import magma.tools.proxy.impl.SimsparkAgentProxyServer;
+import magma.tools.proxy.impl.SimsparkAgentProxyServer.SimsparkAgentProxyServerParameter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs commands through the admin socket of a proxy server without agents.
+ */
+public class AdminServerTest
+{
+	private AdminServer testee;
+
+	private SimsparkAgentProxyServer proxy;
+
+	private CommandInterpreter interpreter;
+
+	private final CountDownLatch shutdown = new CountDownLatch(1);
+
+	private Socket socket;
+
+	private BufferedReader in;
+
+	private PrintWriter out;
+
+	@BeforeEach
+	public void setUp() throws IOException
+	{
+		proxy = new SimsparkAgentProxyServer(new SimsparkAgentProxyServerParameter(0, "127.0.0.1", 3100));
+		interpreter = new CommandInterpreter(proxy);
+		testee = new AdminServer(0, interpreter, shutdown::countDown);
+		testee.start();
+
+		socket = new Socket(InetAddress.getLoopbackAddress(), testee.getLocalPort());
+		in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		out = new PrintWriter(socket.getOutputStream(), true);
+	}
+
+	@AfterEach
+	public void tearDown() throws IOException
+	{
+		socket.close();
+		testee.close();
+	}
+
+	@Test
+	public void testCommands() throws IOException
+	{
+		List<String> status = execute("status");
+		assertEquals("Proxy thread alive: false", status.get(0));
+		assertEquals("All agents (0):", status.get(status.size() - 1));
+
+		List<String> json = execute("json");
+		assertEquals(1, json.size());
+		assertTrue(json.get(0).startsWith("{\"time\":"));
+		assertTrue(json.get(0).endsWith(",\"agents\":[]}"));
+
+		assertEquals(List.of("Statistics of 0 agents reset with their next cycle"), execute("reset"));
+		assertTrue(execute("unknown").contains("Known commands:"));
+		assertEquals(1, shutdown.getCount());
+	}
+
+	@Test
+	public void testDump() throws IOException
+	{
+		AgentProxy agent = new AgentProxy(null, "127.0.0.1", 3100, false);
+		agent.setTimelineCapacity(16);
+		proxy.getAgentProxies().add(agent);
+
+		// an agent that is not active is only dumped if selected
+		assertEquals(List.of(), execute("dump"));
+		List<String> dump = execute("dump 1");
+		assertEquals("# 1. " + agent, dump.get(0));
+		assertTrue(dump.get(1).startsWith("cycle,"), dump.get(1));
+		assertEquals(List.of(), execute("dump 2"));
+		assertEquals(List.of("Invalid agent: x"), execute("dump x"));
+	}
+
+	@Test
+	public void testSlowSessionDoesNotBlockOthers() throws Exception
+	{
+		// a session whose output can not be written until released
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch writing = new CountDownLatch(1);
+		Writer blocked = new Writer() {
+			@Override
+			public void write(char[] buffer, int offset, int length) throws IOException
+			{
+				writing.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+
+			@Override
+			public void flush()
+			{
+			}
+
+			@Override
+			public void close()
+			{
+			}
+		};
+		Thread slow = new Thread(() -> interpreter.execute("status", new PrintWriter(blocked)));
+		slow.start();
+		assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+		try {
+			assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+				assertEquals(List.of("Statistics of 0 agents reset with their next cycle"), execute("reset"));
+			});
+		} finally {
+			release.countDown();
+			slow.join(5000);
+		}
+	}
+
+	@Test
+	public void testQuit() throws Exception
+	{
+		assertEquals(List.of(), execute("quit"));
+		assertTrue(shutdown.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testSessionsLimited() throws Exception
+	{
+		assertEquals(List.of("Statistics of 0 agents reset with their next cycle"), execute("reset"));
+		List<Socket> sessions = new ArrayList<>();
+		try {
+			for (int i = 1; i < AdminServer.MAX_SESSIONS; i++) {
+				Socket session = connect();
+				sessions.add(session);
+				assertEquals(List.of("Statistics of 0 agents reset with their next cycle"), execute(session, "reset"));
+			}
+
+			try (Socket refused = connect()) {
+				BufferedReader refusedIn = reader(refused);
+				assertTrue(refusedIn.readLine().startsWith("Too many admin connections"));
+				assertEquals("", refusedIn.readLine());
+				assertNull(refusedIn.readLine());
+			}
+
+			// a closed session makes room for another one
+			sessions.remove(0).close();
+			assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+				while (true) {
+					try (Socket session = connect()) {
+						if (execute(session, "reset").get(0).startsWith("Statistics")) {
+							break;
+						}
+					}
+					Thread.sleep(10);
+				}
+			});
+		} finally {
+			for (Socket session : sessions) {
+				session.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the lines of the output of the command up to the empty line
+	 */
+	private List<String> execute(String command) throws IOException
+	{
+		out.println(command);
+		return readOutput(in);
+	}
+
+	private static List<String> execute(Socket session, String command) throws IOException
+	{
+		new PrintWriter(session.getOutputStream(), true).println(command);
+		return readOutput(reader(session));
+	}
+
+	private static List<String> readOutput(BufferedReader reader) throws IOException
+	{
+		List<String> result = new ArrayList<>();
+		String line;
+		while (!(line = reader.readLine()).isEmpty()) {
+			result.add(line);
+		}
+		return result;
+	}
+
+	private Socket connect() throws IOException
+	{
+		return new Socket(InetAddress.getLoopbackAddress(), testee.getLocalPort());
+	}
+
+	private static BufferedReader reader(Socket session) throws IOException
+	{
+		return new BufferedReader(new InputStreamReader(session.getInputStream(), StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import magma.tools.proxy.client.SharedMemoryRing.WaitStrategy;
+import magma.tools.proxy.impl.ProxyLog;
+import magma.tools.proxy.impl.RateLimitStage;
+import org.junit.jupiter.api.Test;
+
+public class MagmaProxyTest
+{
+	@Test
+	public void testInvalidLogLevelIsUnknown()
+	{
+		List<String> unknown = new ArrayList<>();
+		MagmaProxy.parseParameters(new String[] {"--loglevel=verbose", "--proxyport=3111"}, unknown);
+
+		assertEquals(List.of("--loglevel=verbose"), unknown);
+		assertEquals(ProxyLog.Level.INFO, ProxyLog.getLevel());
+	}
+
+	@Test
+	public void testInvalidSharedMemoryWaitIsUnknown()
+	{
+		List<String> unknown = new ArrayList<>();
+		assertEquals(WaitStrategy.PARK,
+				MagmaProxy.parseParameters(new String[] {"--shm=sleep"}, unknown).sharedMemoryWait());
+		assertEquals(List.of("--shm=sleep"), unknown);
+	}
+
+	@Test
+	public void testInvalidThrottleIsUnknown()
+	{
+		List<String> unknown = new ArrayList<>();
+		RateLimitStage.Limits limits = MagmaProxy
+				.parseParameters(new String[] {"--ratelimit=2000", "--throttle=wait"}, unknown).rateLimits();
+
+		assertEquals(List.of("--throttle=wait"), unknown);
+		assertEquals(RateLimitStage.Policy.DELAY, limits.policy());
+	}
+
+	@Test
+	public void testThrottleWithoutRateLimitIgnored()
+	{
+		List<String> unknown = new ArrayList<>();
+		assertNull(MagmaProxy.parseParameters(new String[] {"--throttle=drop"}, unknown).rateLimits());
+		assertEquals(List.of(), unknown);
+	}
+
+	@Test
+	public void testInvalidBudgetIsUnknown()
+	{
+		List<String> unknown = new ArrayList<>();
+		String[] args = {"--budget=fast", "--budget=0", "--budget=20,:3111"};
+		assertNull(MagmaProxy.parseParameters(args, unknown).budgetPolicy());
+		assertEquals(List.of(args), unknown);
+	}
+
+	@Test
+	public void testSpinOnlyWithSeveralCores()
+	{
+		List<String> unknown = new ArrayList<>();
+		WaitStrategy expected = Runtime.getRuntime().availableProcessors() > 1 ? WaitStrategy.SPIN : WaitStrategy.PARK;
+		assertEquals(expected, MagmaProxy.parseParameters(new String[] {"--shm=spin"}, unknown).sharedMemoryWait());
+		assertEquals(List.of(), unknown);
+	}
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import magma.tools.proxy.impl.AgentProxy.ClientActionsForwarder;
+import magma.tools.proxy.impl.AgentProxy.ServerPerceptionsForwarder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that forwarding does not create garbage once the buffers have grown
+ * and the forwarding path is compiled. The forwarders are driven step by step
+ * by the test thread and only the allocations within the forwarding steps are
+ * counted, not those of the simulated server and agent.
+ */
+public class AgentProxyAllocationTest
+{
+	/** cycles run before measuring */
+	private static final int WARM_UP_CYCLES = 20000;
+
+	/** cycles measured */
+	private static final int CYCLES = 5000;
+
+	/**
+	 * maximum bytes allocated per cycle in steady state, allows a few stray
+	 * objects over all measured cycles but not one per cycle
+	 */
+	private static final double BYTES_PER_CYCLE_BUDGET = 0.1;
+
+	/** perceptions with different sim times, so the scanner sees changes */
+	private final byte[][] perceptions = new byte[50][];
+
+	/** actions with and without sync and say */
+	private final byte[][] actions = {"(he1 0.00)(he2 -0.50)(say abc)(syn)".getBytes(StandardCharsets.US_ASCII),
+			"(he1 1.00)(he2 -0.50)".getBytes(StandardCharsets.US_ASCII),
+			"(he1 2.00)(syn)(he2 -0.50)(say 1)".getBytes(StandardCharsets.US_ASCII)};
+
+	/** actions of an agent never syncing, null for cycles without action */
+	private final byte[][] actionsWithoutSync = {"(he1 0.00)(he2 -0.50)(say abc)".getBytes(StandardCharsets.US_ASCII),
+			"(he1 1.00)(he2 -0.50)".getBytes(StandardCharsets.US_ASCII), null};
+
+	private AgentProxy testee;
+
+	private ServerPerceptionsForwarder serverForwarder;
+
+	private ClientActionsForwarder clientForwarder;
+
+	/** the server end of the server connection */
+	private Connection server;
+
+	/** the agent end of the client connection */
+	private Connection agent;
+
+	/** frame the simulated server and agent receive to */
+	private final Frame received = new Frame();
+
+	@BeforeEach
+	public void setUp()
+	{
+		for (int i = 0; i < perceptions.length; i++) {
+			perceptions[i] = String.format(Locale.ROOT,
+					"(time (now %.2f))(GS (t %.2f) (pm PlayOn))(HJ (n hj1) (ax %d.00))(hear 0 %.2f self abc)",
+					i * 0.02, i * 0.02, i, i * 0.02).getBytes(StandardCharsets.US_ASCII);
+		}
+		testee = new AgentProxy(null, "localhost", 3100, false);
+		testee.setSanitizeSay(true);
+		MemoryPipe fromServer = new MemoryPipe();
+		MemoryPipe fromAgent = new MemoryPipe();
+		MemoryPipe toServer = new MemoryPipe();
+		MemoryPipe toAgent = new MemoryPipe();
+		testee.setConnections(new Connection(fromAgent.in, toAgent.out, "client"),
+				new Connection(fromServer.in, toServer.out, "server"));
+		server = new Connection(toServer.in, fromServer.out, "simulated server");
+		agent = new Connection(toAgent.in, fromAgent.out, "simulated agent");
+		serverForwarder = testee.new ServerPerceptionsForwarder();
+		clientForwarder = testee.new ClientActionsForwarder();
+	}
+
+	@Test
+	public void testSteadyStateIsGarbageFree()
+	{
+		assumeTrue(ThreadAllocation.isSupported());
+		runCycles(actions, WARM_UP_CYCLES, false);
+		long allocated = runCycles(actions, CYCLES, false);
+
+		double bytesPerCycle = allocated / (double) CYCLES;
+		ProxyLog.info("Allocated per cycle: " + bytesPerCycle + " bytes");
+		assertTrue(bytesPerCycle <= BYTES_PER_CYCLE_BUDGET, "bytes per cycle: " + bytesPerCycle);
+	}
+
+	@Test
+	public void testProxySyncIsGarbageFree()
+	{
+		assumeTrue(ThreadAllocation.isSupported());
+		// the proxy waits for the sync, so the time has to be virtual
+		testee.setClock(new VirtualClock());
+		runCycles(actionsWithoutSync, WARM_UP_CYCLES, true);
+		long allocated = runCycles(actionsWithoutSync, CYCLES, true);
+
+		double bytesPerCycle = allocated / (double) CYCLES;
+		ProxyLog.info("Allocated per cycle with proxy syncs: " + bytesPerCycle + " bytes");
+		assertTrue(bytesPerCycle <= BYTES_PER_CYCLE_BUDGET, "bytes per cycle: " + bytesPerCycle);
+		// every third cycle is missed
+		assertEquals(WARM_UP_CYCLES / 3 + CYCLES / 3, testee.getMissedCycles());
+	}
+
+	/**
+	 * @param agentActions the actions the agent sends in turn
+	 * @param awaitSync true to let the proxy wait for the sync of each cycle,
+	 *        sending it itself if the agent does not
+	 * @return the number of bytes allocated within the forwarding steps
+	 */
+	private long runCycles(byte[][] agentActions, int cycles, boolean awaitSync)
+	{
+		long allocated = 0;
+		for (int cycle = 0; cycle < cycles; cycle++) {
+			server.sendMessage(perceptions[cycle % perceptions.length]);
+			long before = ThreadAllocation.currentThreadBytes();
+			assertTrue(serverForwarder.forwardPerception());
+			allocated += ThreadAllocation.currentThreadBytes() - before;
+			assertTrue(agent.receiveMessage(received));
+
+			byte[] action = agentActions[cycle % agentActions.length];
+			if (action != null) {
+				agent.sendMessage(action);
+				before = ThreadAllocation.currentThreadBytes();
+				assertTrue(clientForwarder.forwardAction());
+				allocated += ThreadAllocation.currentThreadBytes() - before;
+				assertTrue(server.receiveMessage(received));
+			}
+
+			if (awaitSync) {
+				before = ThreadAllocation.currentThreadBytes();
+				assertTrue(serverForwarder.awaitSyncUnlessBacklogged());
+				allocated += ThreadAllocation.currentThreadBytes() - before;
+				// the sync sent by the proxy
+				assertTrue(server.receiveMessage(received));
+			}
+		}
+		return allocated;
+	}
+}
@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import magma.tools.proxy.impl.SimsparkAgentProxyServer.SimsparkAgentProxyServerParameter;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the memory each connected agent costs against the per agent budget.
+ * Relies on the heap being committed and touched at JVM start, so growth of
+ * the resident set size is memory outside the heap, mainly thread stacks.
+ * Therefore it only runs in the footprint profile ({@code mvn test -Pfootprint})
+ * which starts the test JVM with a fixed, pre-touched heap.
+ */
+@Tag("footprint")
+public class AgentProxyFootprintTest
+{
+	/** number of synthetic agents */
+	private static final int AGENTS = 500;
+
+	/**
+	 * maximum heap growth per agent in bytes, about 40 KB of it is the cycle
+	 * timeline of the default size. Runs measure between 48 and 60 KB, since
+	 * the heap is only accounted in chunks, so the budget leaves headroom.
+	 */
+	private static final long HEAP_BUDGET = 72 * 1024;
+
+	/**
+	 * maximum growth of resident memory outside the heap per agent in bytes,
+	 * mainly the touched pages of the two forwarder thread stacks
+	 */
+	private static final long NATIVE_BUDGET = 256 * 1024;
+
+	private static final byte[] SCENE = "(scene rsg/agent/nao/nao.rsg)".getBytes();
+
+	private static final byte[] ACTION = "(he1 0)(he2 0)(lae1 0)(rae1 0)(say abc)(syn)".getBytes();
+
+	@Test
+	public void testMemoryPerAgent() throws Exception
+	{
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		assumeTrue(os instanceof UnixOperatingSystemMXBean);
+		assumeTrue(((UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount() > AGENTS * 4 + 200);
+		Path status = Paths.get("/proc/self/status");
+		assumeTrue(Files.exists(status));
+
+		try (StandInServer server = new StandInServer()) {
+			SimsparkAgentProxyServer proxy = new SimsparkAgentProxyServer(
+					new SimsparkAgentProxyServerParameter(0, "127.0.0.1", server.getPort()));
+			proxy.start();
+			while (proxy.getLocalPort() <= 0) {
+				Thread.sleep(10);
+			}
+
+			// load and compile everything used per agent before measuring
+			closeAll(connectAgents(proxy, 20));
+			Thread.sleep(200);
+
+			long heapBefore = usedHeap();
+			long residentBefore = residentSize(status);
+
+			List<Socket> agents = connectAgents(proxy, AGENTS);
+			Thread.sleep(500);
+
+			long heapPerAgent = (usedHeap() - heapBefore) / AGENTS;
+			long nativePerAgent = (residentSize(status) - residentBefore) / AGENTS;
+			ProxyLog.info("Memory per agent: heap " + heapPerAgent + " bytes, native " + nativePerAgent + " bytes");
+
+			closeAll(agents);
+			proxy.shutdown();
+
+			assertTrue(heapPerAgent <= HEAP_BUDGET, "heap per agent: " + heapPerAgent);
+			assertTrue(nativePerAgent <= NATIVE_BUDGET, "native memory per agent: " + nativePerAgent);
+		}
+	}
+
+	/**
+	 * Connects agents that send their scene, wait for the first perception and
+	 * answer it with an action.
+	 */
+	private static List<Socket> connectAgents(SimsparkAgentProxyServer proxy, int count) throws IOException
+	{
+		List<Socket> agents = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			Socket agent = new Socket("127.0.0.1", proxy.getLocalPort());
+			agent.setSoTimeout(10000);
+			agents.add(agent);
+			DataOutputStream out = new DataOutputStream(agent.getOutputStream());
+			DataInputStream in = new DataInputStream(agent.getInputStream());
+
+			out.writeInt(SCENE.length);
+			out.write(SCENE);
+			in.readFully(new byte[in.readInt()]);
+			out.writeInt(ACTION.length);
+			out.write(ACTION);
+		}
+		return agents;
+	}
+
+	private static void closeAll(List<Socket> agents) throws IOException
+	{
+		for (Socket agent : agents) {
+			agent.close();
+		}
+	}
+
+	private static long usedHeap() throws InterruptedException
+	{
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static long residentSize(Path status) throws IOException
+	{
+		for (String line : Files.readAllLines(status)) {
+			if (line.startsWith("VmRSS:")) {
+				return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+			}
+		}
+		throw new IOException("No VmRSS in " + status);
+	}
+
+	/**
+	 * Simspark stand-in serving all connections from one thread. Answers the
+	 * first message of each connection with a perception and ignores all
+	 * further messages.
+	 */
+	private static class StandInServer extends Thread implements AutoCloseable
+	{
+		private final ServerSocketChannel serverChannel;
+
+		private final Selector selector;
+
+		private final ByteBuffer perception;
+
+		private volatile boolean running = true;
+
+		StandInServer() throws IOException
+		{
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+			serverChannel.configureBlocking(false);
+			selector = Selector.open();
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+			StringBuilder message = new StringBuilder("(time (now 0.00))(GS (t 0.00) (pm BeforeKickOff))");
+			while (message.length() < 1000) {
+				message.append("(HJ (n hj1) (ax 0.00))");
+			}
+			byte[] bytes = message.toString().getBytes();
+			perception = ByteBuffer.allocate(4 + bytes.length);
+			perception.putInt(bytes.length).put(bytes).flip();
+
+			setDaemon(true);
+			start();
+		}
+
+		int getPort()
+		{
+			return serverChannel.socket().getLocalPort();
+		}
+
+		@Override
+		public void run()
+		{
+			ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+			try {
+				while (running) {
+					selector.select();
+					for (SelectionKey key : selector.selectedKeys()) {
+						if (key.isAcceptable()) {
+							SocketChannel channel = serverChannel.accept();
+							if (channel != null) {
+								channel.configureBlocking(false);
+								channel.register(selector, SelectionKey.OP_READ, Boolean.FALSE);
+							}
+						} else if (key.isReadable()) {
+							SocketChannel channel = (SocketChannel) key.channel();
+							readBuffer.clear();
+							if (channel.read(readBuffer) < 0) {
+								key.cancel();
+								channel.close();
+							} else if (key.attachment() == Boolean.FALSE) {
+								key.attach(Boolean.TRUE);
+								channel.write(perception.duplicate());
+							}
+						}
+					}
+					selector.selectedKeys().clear();
+				}
+				selector.close();
+				serverChannel.close();
+			} catch (IOException e) {
+				// closed
+			}
+		}
+
+		@Override
+		public void close()
+		{
+			running = false;
+			selector.wakeup();
+			try {
+				join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,391 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.function.IntFunction;
+import magma.tools.proxy.impl.AgentProxy.ClientActionsForwarder;
+import magma.tools.proxy.impl.AgentProxy.ServerPerceptionsForwarder;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the sync logic of an agent proxy against a simulated server and agent
+ * in virtual time. The forwarders are driven step by step by the test thread,
+ * so thousands of cycles run deterministically in milliseconds.
+ */
+public class AgentProxySyncTest
+{
+	private static final int CYCLES = 5000;
+
+	private static final long MS = 1000000;
+
+	private VirtualClock clock;
+
+	private AgentProxy testee;
+
+	private ServerPerceptionsForwarder serverForwarder;
+
+	private ClientActionsForwarder clientForwarder;
+
+	/** the server end of the server connection */
+	private Connection server;
+
+	/** the agent end of the client connection */
+	private Connection agent;
+
+	/** number of messages containing a sync-message received by the server */
+	private int syncs;
+
+	/** number of messages received by the server */
+	private int serverMessages;
+
+	/** the reaction of the agent in one cycle, action null if not reacting */
+	private record Reaction(long thinkTime, String action)
+	{
+	}
+
+	@BeforeEach
+	public void setUp()
+	{
+		clock = new VirtualClock();
+		testee = new AgentProxy(null, "localhost", 3100, false);
+		testee.setClock(clock);
+
+		MemoryPipe fromServer = new MemoryPipe();
+		MemoryPipe fromAgent = new MemoryPipe();
+		MemoryPipe toServer = new MemoryPipe();
+		MemoryPipe toAgent = new MemoryPipe();
+		testee.setConnections(
+				new Connection(fromAgent.in, toAgent.out, "client"), new Connection(fromServer.in, toServer.out, "server"));
+		server = new Connection(toServer.in, fromServer.out, "simulated server");
+		agent = new Connection(toAgent.in, fromAgent.out, "simulated agent");
+
+		serverForwarder = testee.new ServerPerceptionsForwarder();
+		clientForwarder = testee.new ClientActionsForwarder();
+	}
+
+	@Test
+	public void testAgentSyncingWithinHalfCycle()
+	{
+		simulate(cycle -> new Reaction(4 * MS, "(he1 0)(syn)"));
+
+		assertEquals(0, testee.getMissedCycles());
+		assertEquals(CYCLES, serverMessages);
+		assertEquals(CYCLES, syncs);
+		// the proxy stops waiting after half of the cycle
+		assertEquals(CYCLES * 10 * MS, clock.nanoTime());
+	}
+
+	@Test
+	public void testAgentNotSyncing()
+	{
+		simulate(cycle -> new Reaction(15 * MS, "(he1 0)"));
+
+		assertEquals(0, testee.getMissedCycles());
+		// one action and one proxy sync per cycle
+		assertEquals(2 * CYCLES, serverMessages);
+		assertEquals(CYCLES, syncs);
+		assertEquals(CYCLES * 20 * MS, clock.nanoTime());
+	}
+
+	@Test
+	public void testAgentSkippingCycles()
+	{
+		simulate(cycle -> new Reaction(5 * MS, cycle % 4 == 0 ? null : "(he1 0)"));
+
+		assertEquals(CYCLES / 4, testee.getMissedCycles());
+		assertEquals(CYCLES / 4, testee.getMissedCycles(PerceptionScanner.getPlayMode("PlayOn")));
+		assertEquals(CYCLES, syncs);
+	}
+
+	@Test
+	public void testMissedCyclesTaggedWithHostJitter()
+	{
+		JitterMonitor monitor = new JitterMonitor(clock, 2 * MS);
+		testee.setJitterMonitor(monitor);
+		simulate(cycle -> {
+			if (cycle % 8 == 0) {
+				monitor.gcPauseDetected(clock.nanoTime(), 5 * MS);
+			}
+			return new Reaction(5 * MS, cycle % 4 == 0 ? null : "(he1 0)");
+		});
+
+		// only every second missed cycle had a pause
+		assertEquals(CYCLES / 4, testee.getMissedCycles());
+		assertEquals(CYCLES / 8, testee.getHostJitterMissedCycles());
+	}
+
+	@Test
+	public void testResetStatistics()
+	{
+		simulate(cycle -> new Reaction(5 * MS, cycle % 4 == 0 ? null : "(he1 0)"));
+		testee.resetStatistics();
+
+		// the counters are reset by the forwarders with the next cycle
+		AgentProxy.Statistics statistics = testee.getStatistics();
+		assertEquals(CYCLES, statistics.cycle());
+		assertEquals(CYCLES / 4, statistics.missedCycles());
+
+		simulate(cycle -> new Reaction(5 * MS, cycle % 2 == 0 ? null : "(he1 0)"));
+		statistics = testee.getStatistics();
+		assertEquals(2 * CYCLES, statistics.cycle());
+		assertEquals(CYCLES, statistics.perceptions());
+		assertEquals(CYCLES / 2, statistics.actions());
+		assertEquals(CYCLES / 2, statistics.missedCycles());
+
+		// the counters of the whole match are kept for the statistics store
+		AgentProxy.MatchCounters counters = testee.getMatchCounters();
+		assertEquals(2 * CYCLES, counters.perceptions());
+		assertEquals(CYCLES * 3 / 4 + CYCLES / 2, counters.actions());
+		assertEquals(CYCLES / 4 + CYCLES / 2, counters.missedCycles());
+		assertEquals(CYCLES * 3 / 4 + CYCLES / 2 - 1, counters.thinkTimes()[5]);
+	}
+
+	@Test
+	public void testTeamNameAndThinkTimes()
+	{
+		simulate(cycle -> new Reaction(cycle % 2 == 0 ? 3 * MS : 7 * MS,
+				cycle == 0 ? "(init (unum 3)(teamname magma))" : "(he1 0)"));
+
+		assertEquals("magma", testee.getTeamName());
+		int[] thinkTimes = testee.getThinkTimes();
+		// the think time of a cycle is counted when the next cycle starts
+		assertEquals(CYCLES / 2, thinkTimes[3]);
+		assertEquals(CYCLES / 2 - 1, thinkTimes[7]);
+	}
+
+	@Test
+	public void testLateActionsCountForNextCycle()
+	{
+		simulate(cycle -> new Reaction(25 * MS, "(he1 0)"));
+
+		// each action arrives in the cycle after its perception, so only the
+		// first cycle is missed
+		assertEquals(1, testee.getMissedCycles());
+		assertEquals(CYCLES, syncs);
+	}
+
+	@Test
+	public void testAdaptiveBudgetSyncsEarly()
+	{
+		testee.setBudgetPolicy(new AdaptiveBudgetPolicy(AgentProxy.MAX_WAIT_TIME));
+		simulate(cycle -> new Reaction(5 * MS, "(he1 0)"));
+
+		assertEquals(0, testee.getMissedCycles());
+		assertEquals(CYCLES, syncs);
+		// 20ms while learning, then 5ms think time plus 1ms margin
+		assertEquals(6, testee.getCycleBudget());
+		int learning = AdaptiveBudgetPolicy.MIN_SAMPLES;
+		assertEquals(learning * 20 * MS + (CYCLES - learning) * 6 * MS, clock.nanoTime());
+	}
+
+	@Test
+	public void testRequestedBudget()
+	{
+		testee.setBudgetPolicy(new PerAgentBudgetPolicy(AgentProxy.MAX_WAIT_TIME));
+		agent.sendMessage("(magmaProxyBudget 8)".getBytes(StandardCharsets.US_ASCII));
+		agent.sendMessage("(scene rsg/agent/nao/nao.rsg)".getBytes(StandardCharsets.US_ASCII));
+		assertTrue(clientForwarder.forwardFirstAction());
+		receiveAtServer();
+
+		// the request is not forwarded to the server
+		assertEquals(1, serverMessages);
+		assertEquals(8, testee.getRequestedBudget());
+
+		simulate(cycle -> new Reaction(15 * MS, "(he1 0)"));
+
+		// the action arrives after the budget, so it counts for the next cycle
+		assertEquals(1, testee.getMissedCycles());
+		assertEquals(CYCLES * 8 * MS, clock.nanoTime());
+	}
+
+	@Test
+	public void testRequestedBudgetLimited()
+	{
+		testee.setBudgetPolicy(new PerAgentBudgetPolicy(AgentProxy.MAX_WAIT_TIME).forRequests(30));
+		agent.sendMessage("(magmaProxyBudget 50)".getBytes(StandardCharsets.US_ASCII));
+		agent.sendMessage("(scene rsg/agent/nao/nao.rsg)".getBytes(StandardCharsets.US_ASCII));
+		assertTrue(clientForwarder.forwardFirstAction());
+		receiveAtServer();
+
+		assertEquals(50, testee.getRequestedBudget());
+		simulate(cycle -> new Reaction(45 * MS, "(he1 0)"));
+		assertEquals(CYCLES * 30 * MS, clock.nanoTime());
+	}
+
+	@Test
+	public void testRequestedBudgetLimitedByRule()
+	{
+		testee.setClientEndpoint(null, 3111);
+		testee.setBudgetPolicy(BudgetPolicy.parse("20,:3111=15,request=40"));
+		agent.sendMessage("(magmaProxyBudget 30)".getBytes(StandardCharsets.US_ASCII));
+		agent.sendMessage("(scene rsg/agent/nao/nao.rsg)".getBytes(StandardCharsets.US_ASCII));
+		assertTrue(clientForwarder.forwardFirstAction());
+		receiveAtServer();
+
+		// agents with a rule can only ask for less
+		assertEquals(15, testee.getBudgetPolicy().grantRequest(testee));
+		simulate(cycle -> new Reaction(25 * MS, "(he1 0)"));
+		assertEquals(CYCLES * 15 * MS, clock.nanoTime());
+	}
+
+	@Test
+	public void testRequestIgnoredByFixedBudget()
+	{
+		testee.setBudgetPolicy(new FixedBudgetPolicy(12));
+		agent.sendMessage("(magmaProxyBudget 8)".getBytes(StandardCharsets.US_ASCII));
+		agent.sendMessage("(scene rsg/agent/nao/nao.rsg)".getBytes(StandardCharsets.US_ASCII));
+		assertTrue(clientForwarder.forwardFirstAction());
+		receiveAtServer();
+
+		assertEquals(0, testee.getBudgetPolicy().grantRequest(testee));
+		simulate(cycle -> new Reaction(15 * MS, "(he1 0)"));
+		assertEquals(CYCLES * 12 * MS, clock.nanoTime());
+	}
+
+	@Test
+	public void testTimelineInVirtualTime() throws IOException
+	{
+		simulate(cycle -> new Reaction(15 * MS, "(he1 0)"));
+
+		StringWriter out = new StringWriter();
+		assertEquals(CycleTimeline.DEFAULT_CAPACITY - 1, testee.exportTimeline(out));
+		String[] lines = out.toString().split("\\R");
+		String[] columns = lines[lines.length - 1].split(",");
+		assertEquals(String.valueOf(CYCLES - 1), columns[0]);
+		assertEquals("99.960", columns[2]);
+		assertEquals("PlayOn", columns[3]);
+		assertEquals("15000", columns[5]);
+		assertEquals("20000", columns[6]);
+		assertEquals("proxy", columns[7]);
+		assertEquals("false", columns[9]);
+	}
+
+	@Test
+	public void testCatchUpForwardsNewestPerceptions()
+	{
+		testee.setCatchUpDepth(3);
+		for (int cycle = 0; cycle < 10; cycle++) {
+			server.sendMessage(perception(cycle));
+		}
+
+		for (int cycle = 7; cycle < 10; cycle++) {
+			assertTrue(serverForwarder.forwardPerception());
+			assertArrayEquals(perception(cycle), agent.receiveMessage());
+		}
+		assertFalse(serverForwarder.isBacklogged());
+		assertEquals(7, testee.getSkippedPerceptions());
+	}
+
+	@Test
+	public void testCatchUpTime()
+	{
+		// the agent parses each perception, so it takes longer to act on the
+		// newest the more perceptions it gets
+		assertEquals(20 * MS, catchUpAfterStall(0));
+		assertEquals(0, testee.getSkippedPerceptions());
+
+		setUp();
+		assertEquals(2 * MS, catchUpAfterStall(1));
+		assertEquals(9, testee.getSkippedPerceptions());
+		assertEquals(1, testee.getCatchUps());
+	}
+
+	/**
+	 * Lets the server send ten perceptions while the agent stalled.
+	 * @param catchUpDepth the number of newest perceptions to forward
+	 * @return the time from the first perception until the agent acted again
+	 */
+	private long catchUpAfterStall(int catchUpDepth)
+	{
+		testee.setCatchUpDepth(catchUpDepth);
+		clock.advanceTo(100 * MS);
+		for (int cycle = 0; cycle < 10; cycle++) {
+			server.sendMessage(perception(cycle));
+		}
+
+		int received = 0;
+		do {
+			assertTrue(serverForwarder.forwardPerception());
+			while (agent.inputAvailable()) {
+				assertTrue(agent.receiveMessage() != null);
+				received++;
+			}
+			if (!serverForwarder.isBacklogged()) {
+				clock.schedule(received * 2 * MS, () -> {
+					agent.sendMessage("(he1 0)".getBytes(StandardCharsets.US_ASCII));
+					assertTrue(clientForwarder.forwardAction());
+				});
+			}
+		} while (!serverForwarder.awaitSyncUnlessBacklogged());
+		return testee.getAverageCatchUpTime();
+	}
+
+	/**
+	 * Runs the simulation. The server sends the next perception as soon as the
+	 * proxy sent the sync of the current cycle.
+	 * @param behavior the reaction of the agent to the perception of a cycle
+	 */
+	private void simulate(IntFunction<Reaction> behavior)
+	{
+		for (int cycle = 0; cycle < CYCLES; cycle++) {
+			server.sendMessage(perception(cycle));
+			assertTrue(serverForwarder.forwardPerception());
+			assertTrue(agent.receiveMessage() != null);
+
+			Reaction reaction = behavior.apply(cycle);
+			if (reaction.action() != null) {
+				clock.schedule(reaction.thinkTime(), () -> {
+					agent.sendMessage(reaction.action().getBytes(StandardCharsets.US_ASCII));
+					assertTrue(clientForwarder.forwardAction());
+				});
+			}
+
+			serverForwarder.awaitSync();
+			receiveAtServer();
+		}
+	}
+
+	private static byte[] perception(int cycle)
+	{
+		return String.format(Locale.ROOT, "(time (now %.2f))(GS (t %.2f) (pm PlayOn))", cycle * 0.02, cycle * 0.02)
+				.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private void receiveAtServer()
+	{
+		while (server.inputAvailable()) {
+			byte[] message = server.receiveMessage();
+			serverMessages++;
+			if (AgentProxy.indexOf(message, 0, message.length, AgentProxy.SYNC_BYTES) >= 0) {
+				syncs++;
+			}
+		}
+	}
+}
@@ -20,8 +20,9 @@
 package magma.tools.proxy.impl;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
-import magma.tools.proxy.impl.AgentProxy.ClientActionsForwarder;
+import java.nio.charset.StandardCharsets;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -38,64 +39,177 @@ public class AgentProxyTest
 	@Test
 	public void testCheckSay()
 	{
-		ClientActionsForwarder forwarder = testee.new ClientActionsForwarder();
 		String msg = "(say b056200199200000000h)";
 		byte[] action = msg.getBytes();
-		forwarder.checkSay(action);
+		checkSay(action);
 		assertEquals(0, testee.getInvalidSayMessageCount());
 
 		// test invalid messages
 		msg = "(say b056200199200000000h)(syn)";
 		action = msg.getBytes();
-		forwarder.checkSay(action);
+		checkSay(action);
 		assertEquals(0, testee.getInvalidSayMessageCount());
 
 		msg = "(say b056200199200000000h))";
 		action = msg.getBytes();
-		forwarder.checkSay(action);
+		checkSay(action);
 		assertEquals(1, testee.getInvalidSayMessageCount());
 
 		msg = "(say b0562001992000000 00h)";
 		action = msg.getBytes();
-		forwarder.checkSay(action);
+		checkSay(action);
 		assertEquals(2, testee.getInvalidSayMessageCount());
 
 		msg = "(say b0562001992000000(00h)";
 		action = msg.getBytes();
-		forwarder.checkSay(action);
+		checkSay(action);
 		assertEquals(3, testee.getInvalidSayMessageCount());
 	}
 
 	@Test
 	public void testRegressionBug2()
 	{
-		ClientActionsForwarder forwarder = testee.new ClientActionsForwarder();
 		String msg = "(lae1 0)(rae1 0)(lae2 0)(rae2 0)(lae3 0)(rae3 0)(lae4 0)"
 					 + "(rae4 0)(lle1 0)(rle1 0)(lle2 0)(rle2 0)(lle3 0)(rle3 -0.347824)"
 					 + "(lle4 0)(rle4 0.322004)(lle5 0)(rle5 0)(lle6 0)(rle6 0)(lle7 0)"
 					 + "(rle7 0)(he1 -6)(he2 0)(say u11rc03.92947)";
 		byte[] action = msg.getBytes();
-		forwarder.checkSay(action);
+		checkSay(action);
 		assertEquals(0, testee.getInvalidSayMessageCount());
 	}
 
 	@Test
 	public void testRegressionBug3()
 	{
-		ClientActionsForwarder forwarder = testee.new ClientActionsForwarder();
 		String msg = "(say \"b056200199200000000h\")";
 		byte[] action = msg.getBytes();
-		forwarder.checkSay(action);
+		checkSay(action);
 		assertEquals(0, testee.getInvalidSayMessageCount());
 	}
 
 	@Test
 	public void testPrependSyn()
 	{
-		ClientActionsForwarder forwarder = testee.new ClientActionsForwarder();
 		String msg = "testMessage";
 		byte[] action = msg.getBytes();
-		byte[] result = forwarder.prependSyn(action);
-		assertEquals("(syn)testMessage", new String(result));
+		Frame frame = new Frame(action, action.length);
+		SyncStage.prependSyn(frame);
+		assertEquals("(syn)testMessage", frame.toString());
+	}
+
+	@Test
+	public void testSanitizeSayKeepsValidMessages()
+	{
+		testee.setSanitizeSay(true);
+		byte[] action = "(he1 0)(say b056200199200000000h)(syn)".getBytes();
+		assertSame(action, checkSay(action));
+		assertEquals(0, testee.getInvalidSayMessageCount());
+	}
+
+	@Test
+	public void testSanitizeSayEquivalence()
+	{
+		testee.setSanitizeSay(true);
+		String[] messages = {"(say b056200199200000000h)", "(say b056200199200000000h)(syn)",
+				"(say b056200199200000000h))", "(say b0562001992000000 00h)", "(say b0562001992000000(00h)",
+				"(lae1 0)(rae1 0)(lae2 0)(rae2 0)(lae3 0)(rae3 0)(lae4 0)(rae4 0)(he1 -6)(he2 0)(say u11rc03.92947)",
+				"(say \"b056200199200000000h\")", "(he1 0)(say ab cd)(he2 1)", "(he1 0)(say ab\u00e4cd)(he2 1)"};
+
+		int expectedInvalid = 0;
+		for (String msg : messages) {
+			String expected = legacySanitize(msg);
+			if (!expected.equals(msg)) {
+				expectedInvalid++;
+			}
+			assertEquals(expected, sanitize(msg), msg);
+		}
+		assertEquals(expectedInvalid, testee.getInvalidSayMessageCount());
+		assertEquals(5, expectedInvalid);
+	}
+
+	@Test
+	public void testSanitizeSayKeepsSingleLeadingSync()
+	{
+		testee.setSanitizeSay(true);
+		String msg = "(syn)(he1 0)(say a(b)(he2 1)";
+
+		// the former implementation prepended a second sync
+		assertEquals("(syn)(syn)(he1 0)(he2 1)", legacySanitize(msg));
+		assertEquals("(syn)(he1 0)(he2 1)", sanitize(msg));
+		assertEquals(1, testee.getInvalidSayMessageCount());
+	}
+
+	@Test
+	public void testSanitizeSayRemovesUnterminatedSay()
+	{
+		testee.setSanitizeSay(true);
+		String msg = " (he1 0)(say";
+
+		// the former implementation found the closing parenthesis before the
+		// say, so it kept the say and only prepended a sync
+		assertEquals("(syn) (he1 0)(say", legacySanitize(msg));
+		assertEquals(" (he1 0)", sanitize(msg));
+		assertEquals(1, testee.getInvalidSayMessageCount());
+	}
+
+	/**
+	 * Checks the say message of the passed action in place.
+	 * @return the action message, shortened if an invalid say was removed
+	 */
+	private byte[] checkSay(byte[] action)
+	{
+		Frame frame = new Frame(action, action.length);
+		new SayCheckStage().process(testee, frame);
+		return frame.getLength() == action.length ? action : frame.toByteArray();
+	}
+
+	private String sanitize(String msg)
+	{
+		return new String(checkSay(msg.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The removal of invalid say messages of the former implementation, which
+	 * was switched off there, ported verbatim.
+	 */
+	private static String legacySanitize(String msg)
+	{
+		boolean wrongMsgComposition = false;
+
+		int initSay = msg.indexOf("(say");
+		int endSay;
+
+		if (initSay != -1) {
+			char nextCharAfterSay;
+			endSay = msg.indexOf(")", initSay);
+			nextCharAfterSay = '(';
+			if (endSay < msg.length() - 1) {
+				nextCharAfterSay = msg.charAt(endSay + 1);
+			}
+
+			if (nextCharAfterSay != '(' && nextCharAfterSay != '\0') {
+				endSay = msg.indexOf(")", endSay + 1);
+				wrongMsgComposition = true;
+			} else {
+				for (int i = initSay + 5; i < endSay; i++) {
+					int ascii = msg.charAt(i);
+					// check for invalid character range
+					// the \" is not checked since it is not explicitly
+					// forbidden in the manual
+					if (ascii > 126 || ascii < 32 || ascii == 40 || ascii == 41 ||
+							ascii == 32 /* || ascii == 34 */) {
+						wrongMsgComposition = true;
+						break;
+					}
+				}
+			}
+			if (wrongMsgComposition) {
+				StringBuffer s = new StringBuffer(msg);
+				s.delete(initSay, endSay + 1);
+				s.insert(0, "(syn)");
+				msg = s.toString();
+			}
+		}
+		return msg;
 	}
 }
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import magma.tools.proxy.impl.BudgetPolicy.Budget;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the think time budget policies without running agents.
+ */
+public class BudgetPolicyTest
+{
+	private static final long MS = 1000000;
+
+	@Test
+	public void testParse()
+	{
+		AgentProxy agent = agent("192.168.1.5", 3110);
+		assertEquals(30, BudgetPolicy.parse("30").create(agent).nextBudget());
+		assertEquals(40, BudgetPolicy.parse("adaptive:40").create(agent).nextBudget());
+		assertEquals(AgentProxy.MAX_WAIT_TIME, BudgetPolicy.parse("adaptive").create(agent).nextBudget());
+		assertEquals(25, BudgetPolicy.parse("20,192.168.1.5=25").create(agent).nextBudget());
+
+		assertThrows(IllegalArgumentException.class, () -> BudgetPolicy.parse("0"));
+		assertThrows(IllegalArgumentException.class, () -> BudgetPolicy.parse("20,:3111"));
+		assertThrows(IllegalArgumentException.class, () -> BudgetPolicy.parse("fast"));
+	}
+
+	@Test
+	public void testPerAgent()
+	{
+		BudgetPolicy testee = BudgetPolicy.parse("20,192.168.1.5=30,:3111=15");
+		assertEquals(30, testee.create(agent("192.168.1.5", 3111)).nextBudget());
+		assertEquals(15, testee.create(agent("192.168.1.6", 3111)).nextBudget());
+		assertEquals(20, testee.create(agent("192.168.1.6", 3110)).nextBudget());
+		assertEquals(20, testee.create(agent(null, -1)).nextBudget());
+		assertEquals(20, ((PerAgentBudgetPolicy) testee).getMaxRequestedBudget());
+		assertEquals(40, ((PerAgentBudgetPolicy) BudgetPolicy.parse("20,request=40")).getMaxRequestedBudget());
+
+		// no requests without handshake, fixed and adaptive budgets ignore them
+		assertEquals(0, testee.grantRequest(agent("192.168.1.5", 3111)));
+		assertEquals(0, BudgetPolicy.parse("30").grantRequest(agent(null, -1)));
+	}
+
+	@Test
+	public void testAdaptiveLearnsPercentile()
+	{
+		Budget testee = new AdaptiveBudgetPolicy(20).create(null);
+		for (int cycle = 0; cycle < AdaptiveBudgetPolicy.MIN_SAMPLES - 1; cycle++) {
+			testee.cycleFinished(3 * MS);
+			assertEquals(20, testee.nextBudget());
+		}
+		testee.cycleFinished(3 * MS);
+		assertEquals(4, testee.nextBudget());
+
+		// three slow cycles of 250 are more than the one percent allowed
+		for (int cycle = 0; cycle < AdaptiveBudgetPolicy.WINDOW; cycle++) {
+			testee.cycleFinished(cycle % 100 == 0 ? 9 * MS + 1 : 3 * MS);
+		}
+		assertEquals(11, testee.nextBudget());
+
+		// a cycle without action is as bad as the maximum
+		for (int cycle = 0; cycle < AdaptiveBudgetPolicy.WINDOW; cycle++) {
+			testee.cycleFinished(cycle % 50 == 0 ? -1 : 3 * MS);
+		}
+		assertEquals(20, testee.nextBudget());
+
+		// old think times leave the window
+		for (int cycle = 0; cycle < AdaptiveBudgetPolicy.WINDOW; cycle++) {
+			testee.cycleFinished(MS / 2);
+		}
+		assertEquals(2, testee.nextBudget());
+	}
+
+	private static AgentProxy agent(String address, int proxyPort)
+	{
+		AgentProxy agent = new AgentProxy(null, "localhost", 3100, false);
+		agent.setClientEndpoint(address, proxyPort);
+		return agent;
+	}
+}
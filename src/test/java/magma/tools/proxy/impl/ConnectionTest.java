@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * Receives messages from prepared streams to check end of stream and
+ * oversized message handling.
+ */
+@Timeout(5)
+public class ConnectionTest
+{
+	@Test
+	public void testEndOfStream() throws IOException
+	{
+		Connection testee = connection(frame(message(10)));
+		Frame frame = new Frame();
+		assertTrue(testee.receiveMessage(frame));
+		assertEquals(10, frame.getLength());
+		assertFalse(testee.receiveMessage(frame));
+		assertFalse(testee.isConnected());
+	}
+
+	@Test
+	public void testEndOfStreamWithinMessage() throws IOException
+	{
+		byte[] truncated = Arrays.copyOf(frame(message(100)), 50);
+		Connection testee = connection(truncated);
+		assertNull(testee.receiveMessage());
+		assertFalse(testee.isConnected());
+		assertEquals(0, testee.getRejectedFrames());
+	}
+
+	@Test
+	public void testOversizedMessageRejected()
+	{
+		// headers asking for 2GB and for 4GB - 1
+		for (int length : new int[] {Integer.MAX_VALUE, -1}) {
+			Connection testee = connection(new byte[] {(byte) (length >> 24), (byte) (length >> 16),
+					(byte) (length >> 8), (byte) length, 1, 2, 3});
+			testee.setMaxFrameSize(1024, null);
+			Frame frame = new Frame();
+			assertFalse(testee.receiveMessage(frame));
+			assertFalse(testee.isConnected());
+			assertEquals(1, testee.getRejectedFrames());
+			assertEquals(0, frame.getCapacity());
+		}
+	}
+
+	@Test
+	public void testOversizedMessageStreamed() throws IOException
+	{
+		byte[] large = message(3 * Connection.STREAM_CHUNK_SIZE + 17);
+		ByteArrayOutputStream target = new ByteArrayOutputStream();
+		Connection testee = connection(concat(frame(large), frame(message(20))));
+		testee.setMaxFrameSize(1024, new Connection(new ByteArrayInputStream(new byte[0]), target, "target"));
+
+		Frame frame = new Frame();
+		assertTrue(testee.receiveMessage(frame));
+		assertEquals(20, frame.getLength());
+		assertEquals(1, testee.getStreamedFrames());
+		assertTrue(frame.getCapacity() < 1024);
+		assertArrayEquals(frame(large), target.toByteArray());
+	}
+
+	private static Connection connection(byte[] input)
+	{
+		return new Connection(new ByteArrayInputStream(input), new ByteArrayOutputStream(), "test");
+	}
+
+	private static byte[] message(int length)
+	{
+		byte[] result = new byte[length];
+		for (int i = 0; i < length; i++) {
+			result[i] = (byte) ('a' + i % 26);
+		}
+		return result;
+	}
+
+	private static byte[] frame(byte[] message) throws IOException
+	{
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(result);
+		out.writeInt(message.length);
+		out.write(message);
+		return result.toByteArray();
+	}
+
+	private static byte[] concat(byte[] first, byte[] second)
+	{
+		byte[] result = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
+}
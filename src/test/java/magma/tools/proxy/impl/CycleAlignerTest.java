@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import magma.tools.proxy.impl.CycleAligner.AgentStats;
+import magma.tools.proxy.impl.CycleAligner.Snapshot;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class CycleAlignerTest
+{
+	private static final long MS = 1000000;
+
+	private static final long START = 1000 * MS;
+
+	private AgentProxy fast;
+
+	private AgentProxy slow;
+
+	private AgentProxy medium;
+
+	private CycleAligner testee;
+
+	@BeforeEach
+	public void setUp()
+	{
+		fast = new AgentProxy(null, "localhost", 3100, false);
+		slow = new AgentProxy(null, "localhost", 3100, false);
+		medium = new AgentProxy(null, "localhost", 3100, false);
+		testee = new CycleAligner(List.of(fast, slow, medium), new VirtualClock());
+	}
+
+	@Test
+	public void testStraggler()
+	{
+		// perceptions of a server cycle arrive within a few hundred microseconds
+		record(fast, 0, 5 * MS, 100);
+		record(slow, 300000, 15 * MS, 100);
+		record(medium, 600000, 8 * MS, 100);
+
+		testee.align(START + 100 * 20 * MS + CycleAligner.HOLD_BACK);
+
+		// the last cycle of each agent is not completed yet
+		Snapshot snapshot = testee.getCurrent();
+		assertEquals(99, snapshot.cycles());
+		AgentStats straggler = snapshot.agents().get(0);
+		assertEquals(0, straggler.port());
+		assertEquals(99, straggler.cycles());
+		assertEquals(99, straggler.stragglerCycles());
+		assertEquals(99 * (15300000 - 8600000), straggler.heldUpTime());
+		assertEquals(15300000 - 8600000, straggler.maxHeldUpTime());
+		assertEquals(99 * ((15300000 - 5000000) + (15300000 - 8600000)), snapshot.waitTime());
+		assertEquals(0, snapshot.agents().get(1).stragglerCycles());
+	}
+
+	@Test
+	public void testCyclesAreHeldBackUntilCompleted()
+	{
+		record(fast, 0, 5 * MS, 100);
+		record(slow, 0, 15 * MS, 100);
+
+		testee.align(START + 50 * 20 * MS + CycleAligner.HOLD_BACK);
+		assertEquals(51, testee.getCurrent().cycles());
+
+		testee.align(START + 100 * 20 * MS + CycleAligner.HOLD_BACK);
+		assertEquals(99, testee.getCurrent().cycles());
+	}
+
+	@Test
+	public void testMatchSummary()
+	{
+		record(fast, 0, 5 * MS, 10);
+		record(slow, 100000, 15 * MS, 10);
+		record(medium, 200000, 8 * MS, 10);
+		testee.align(START);
+		assertEquals(0, testee.getCurrent().cycles());
+
+		fast.stopProxy();
+		slow.stopProxy();
+		medium.stopProxy();
+		testee.align(START);
+
+		// all agents disconnected, so all cycles are aligned and the match ends
+		assertEquals(0, testee.getCurrent().cycles());
+		assertEquals(9, testee.getLastMatch().cycles());
+		assertEquals(3, testee.getLastMatch().agents().size());
+	}
+
+	@Test
+	public void testAgentsIdentifiedByProxy()
+	{
+		// all agents have the same port, e.g. the running numbers of the Unix domain socket
+		record(fast, 0, 5 * MS, 10);
+		record(slow, 100000, 15 * MS, 10);
+		testee.align(START + 10 * 20 * MS + CycleAligner.HOLD_BACK);
+
+		Snapshot snapshot = testee.getCurrent();
+		assertEquals(9, snapshot.getAgent(slow).stragglerCycles());
+		assertEquals(0, snapshot.getAgent(fast).stragglerCycles());
+		assertNull(snapshot.getAgent(medium));
+	}
+
+	@Test
+	public void testClosedAgentKeptUntilDrained()
+	{
+		List<AgentProxy> agentProxies = new CopyOnWriteArrayList<>(List.of(fast, slow));
+		testee = new CycleAligner(agentProxies, new VirtualClock());
+		record(fast, 0, 5 * MS, 10);
+		record(slow, 100000, 15 * MS, 10);
+		slow.stopProxy();
+		assertFalse(testee.isDrained(slow));
+		assertFalse(testee.isDrained(fast));
+
+		testee.align(START);
+		assertTrue(testee.isDrained(slow));
+		assertFalse(testee.isDrained(fast));
+
+		// the cycles read before the proxy was removed are still aligned
+		agentProxies.remove(slow);
+		testee.align(START + 10 * 20 * MS + CycleAligner.HOLD_BACK);
+		assertEquals(9, testee.getCurrent().getAgent(slow).stragglerCycles());
+		assertFalse(testee.isDrained(slow));
+	}
+
+	@Test
+	public void testMatchListener()
+	{
+		List<AgentProxy> agentProxies = new CopyOnWriteArrayList<>(List.of(fast, slow, medium));
+		testee = new CycleAligner(agentProxies, new VirtualClock());
+		List<Snapshot> matches = new ArrayList<>();
+		List<List<AgentProxy>> matchAgents = new ArrayList<>();
+		testee.setMatchListener((match, agents) -> {
+			matches.add(match);
+			matchAgents.add(agents);
+		});
+		record(fast, 0, 5 * MS, 10);
+		record(slow, 100000, 15 * MS, 10);
+		record(medium, 200000, 8 * MS, 10);
+
+		// the straggler leaves first and is retired before the match ends
+		slow.stopProxy();
+		testee.align(START);
+		agentProxies.remove(slow);
+		fast.stopProxy();
+		testee.align(START);
+		assertTrue(matches.isEmpty());
+
+		medium.stopProxy();
+		testee.align(START);
+		assertEquals(1, matches.size());
+		assertEquals(List.of(fast, slow, medium), matchAgents.get(0));
+		assertEquals(9, matches.get(0).getAgent(slow).stragglerCycles());
+		assertEquals(Snapshot.EMPTY, testee.getCurrent());
+	}
+
+	@Test
+	public void testFinishWithOpenAgents()
+	{
+		List<List<AgentProxy>> matchAgents = new ArrayList<>();
+		testee.setMatchListener((match, agents) -> matchAgents.add(agents));
+		record(fast, 0, 5 * MS, 10);
+		testee.align(START);
+		assertTrue(matchAgents.isEmpty());
+
+		testee.finish(START);
+		assertEquals(List.of(List.of(fast, slow, medium)), matchAgents);
+	}
+
+	/**
+	 * Records cycles of 20ms in the timeline of an agent proxy.
+	 * @param proxy the agent proxy
+	 * @param offset time from the server cycle start until the perception
+	 *        arrived
+	 * @param syncTime time from the perception until the agent synced
+	 * @param count number of cycles
+	 */
+	private void record(AgentProxy proxy, long offset, long syncTime, int count)
+	{
+		CycleTimeline timeline = proxy.getTimeline();
+		for (int i = 0; i < count; i++) {
+			long perception = START + i * 20 * MS + offset;
+			timeline.startCycle(perception);
+			timeline.syncSent(perception + syncTime, CycleTimeline.SYNC_CLIENT, false);
+		}
+	}
+}
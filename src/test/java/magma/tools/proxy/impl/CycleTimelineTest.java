@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class CycleTimelineTest
+{
+	private CycleTimeline testee;
+
+	@BeforeEach
+	public void setUp()
+	{
+		testee = new CycleTimeline(4);
+	}
+
+	@Test
+	public void testCapacity()
+	{
+		assertEquals(4, testee.getCapacity());
+		assertEquals(8, new CycleTimeline(5).getCapacity());
+	}
+
+	@Test
+	public void testExportCompletedCycles() throws IOException
+	{
+		testee.startCycle(1000000, 12340, PerceptionScanner.getPlayMode("PlayOn"));
+		testee.perceptionForwarded(1100000);
+		testee.actionForwarded(5000000, 42);
+		testee.syncSent(5000000, CycleTimeline.SYNC_CLIENT, false);
+		testee.startCycle(21000000);
+		testee.hostJitterDetected();
+		testee.syncSent(41000000, CycleTimeline.SYNC_PROXY, true);
+		testee.allocationMeasured(0);
+		testee.startCycle(61000000);
+
+		String[] lines = export(2);
+		assertEquals("1,1.000,12.340,PlayOn,100,4000,4000,client,42,false,-1,false", lines[1]);
+		assertEquals("2,21.000,-,unknown,-1,-1,20000,proxy,0,true,0,true", lines[2]);
+	}
+
+	@Test
+	public void testExportAfterWrapAround() throws IOException
+	{
+		for (int i = 0; i < 10; i++) {
+			testee.startCycle(i * 20000000L);
+		}
+
+		String[] lines = export(3);
+		assertTrue(lines[1].startsWith("7,"));
+		assertTrue(lines[3].startsWith("9,"));
+	}
+
+	@Test
+	public void testColumnsOfEarlierLapNotReported() throws IOException
+	{
+		testee.startCycle(1000000);
+		testee.actionForwarded(5000000, 42);
+		testee.syncSent(5000000, CycleTimeline.SYNC_CLIENT, false);
+		for (int i = 1; i < 5; i++) {
+			testee.startCycle(1000000 + i * 20000000L);
+		}
+		testee.startCycle(101000000);
+
+		// cycle 5 reuses the slot of cycle 1, but got no action and no sync
+		String[] lines = export(3);
+		assertEquals("5,81.000,-,unknown,-1,-1,-1,none,0,false,-1,false", lines[3]);
+	}
+
+	@Test
+	public void testColumnsNotRecordedAfterLapStampsWrap() throws IOException
+	{
+		// the lap stamps wrap after 65535 laps of the 4 slots
+		for (long cycle = 1; cycle <= 4 * 65535 + 3; cycle++) {
+			testee.startCycle(cycle * 20000000L);
+		}
+
+		// columns never written must not look like written in the current lap
+		String[] lines = export(3);
+		assertTrue(lines[1].startsWith("262140,"), lines[1]);
+		assertTrue(lines[3].endsWith(",-1,-1,-1,none,0,false,-1,false"), lines[3]);
+	}
+
+	private String[] export(int expectedCycles) throws IOException
+	{
+		StringWriter out = new StringWriter();
+		assertEquals(expectedCycles, testee.exportCsv(out, 0));
+		String[] lines = out.toString().split("\\R");
+		assertEquals(expectedCycles + 1, lines.length);
+		return lines;
+	}
+}
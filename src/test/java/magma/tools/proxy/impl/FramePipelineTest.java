@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class FramePipelineTest
+{
+	private AgentProxy agent;
+
+	@BeforeEach
+	public void setUp()
+	{
+		agent = new AgentProxy(null, "localhost", 3100, false);
+	}
+
+	@Test
+	public void testDefaultClientStages()
+	{
+		FramePipeline testee = FramePipeline.create(FramePipeline.defaultClientStages());
+		Frame frame = frame("(he1 0)(say ab cd)(syn)");
+		agent.setSanitizeSay(true);
+
+		assertTrue(testee.process(agent, frame));
+		assertEquals("(syn)(he1 0)(syn)", frame.toString());
+		assertEquals(CycleTimeline.SYNC_CLIENT, frame.getSyncSource());
+		assertEquals(1, agent.getInvalidSayMessageCount());
+	}
+
+	@Test
+	public void testSayRemovalInsertsSync()
+	{
+		FramePipeline testee = FramePipeline.create(FramePipeline.defaultClientStages());
+		Frame frame = frame("(he1 0)(say ab cd)");
+		agent.setSanitizeSay(true);
+
+		assertTrue(testee.process(agent, frame));
+		assertEquals("(syn)(he1 0)", frame.toString());
+		assertEquals(CycleTimeline.SYNC_PROXY, frame.getSyncSource());
+	}
+
+	@Test
+	public void testDropAndRewrite()
+	{
+		FrameStage upperCase = (proxy, frame) -> {
+			byte[] target = frame.getScratch(frame.getLength());
+			for (int i = 0; i < frame.getLength(); i++) {
+				target[i] = (byte) Character.toUpperCase(frame.getBuffer()[frame.getOffset() + i]);
+			}
+			frame.commitScratch(frame.getLength());
+			return true;
+		};
+		FrameStage dropEmpty = (proxy, frame) -> frame.getLength() > 2;
+		FramePipeline testee = new FramePipeline(dropEmpty, upperCase);
+
+		Frame frame = frame("(he1 0)");
+		assertTrue(testee.process(agent, frame));
+		assertEquals("(HE1 0)", frame.toString());
+
+		assertFalse(testee.process(agent, frame("()")));
+		String stats = testee.toString();
+		assertTrue(stats.contains("calls: 2 drops: 1"), stats);
+		assertTrue(stats.contains("calls: 1 drops: 0"), stats);
+	}
+
+	@Test
+	public void testScratchBuffersAreReused()
+	{
+		Frame frame = new Frame();
+		byte[] buffer = frame.prepareReceive(10);
+		byte[] scratch = frame.getScratch(10);
+		frame.commitScratch(5);
+		assertSame(scratch, frame.getBuffer());
+		assertSame(buffer, frame.getScratch(10));
+	}
+
+	@Test
+	public void testOverriddenMessageHook()
+	{
+		AgentProxy hooked = new AgentProxy(null, "localhost", 3100, false) {
+			@Override
+			public byte[] onNewClientMessage(byte[] message)
+			{
+				return message.length > 10 ? null : "(he2 1)".getBytes();
+			}
+		};
+		FramePipeline testee = FramePipeline.create(FramePipeline.defaultClientStages());
+
+		Frame frame = frame("(he1 0)");
+		assertTrue(testee.process(hooked, frame));
+		assertEquals("(he2 1)", frame.toString());
+		assertFalse(testee.process(hooked, frame("(he1 0)(he2 0)")));
+	}
+
+	private static Frame frame(String message)
+	{
+		byte[] bytes = message.getBytes();
+		Frame frame = new Frame();
+		System.arraycopy(bytes, 0, frame.prepareReceive(bytes.length), Frame.HEADER_SPACE, bytes.length);
+		return frame;
+	}
+}
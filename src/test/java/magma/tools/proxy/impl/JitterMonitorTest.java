@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Probes the jitter in virtual time, where a sleep only overshoots if an event
+ * advances the clock beyond its wake up time.
+ */
+public class JitterMonitorTest
+{
+	private static final long MS = 1000000;
+
+	private VirtualClock clock;
+
+	private JitterMonitor testee;
+
+	@BeforeEach
+	public void setUp()
+	{
+		clock = new VirtualClock();
+		clock.advanceTo(1000 * MS);
+		testee = new JitterMonitor(clock, 2 * MS);
+	}
+
+	@Test
+	public void testNoJitter() throws InterruptedException
+	{
+		for (int i = 0; i < 100; i++) {
+			testee.probe();
+		}
+
+		JitterMonitor.Statistics statistics = testee.getStatistics();
+		assertEquals(100, statistics.probes());
+		assertEquals(0, statistics.p999());
+		assertEquals(0, statistics.jitterCount());
+		assertFalse(testee.jitterSince(0));
+	}
+
+	@Test
+	public void testOvershoot() throws InterruptedException
+	{
+		for (int i = 0; i < 1000; i++) {
+			if (i % 100 == 0) {
+				// the host stalls the probe while it sleeps
+				long stall = i == 500 ? 5 * MS : MS;
+				clock.schedule(MS / 2, () -> clock.advanceTo(clock.nanoTime() + stall));
+			}
+			testee.probe();
+		}
+
+		JitterMonitor.Statistics statistics = testee.getStatistics();
+		// one probe in a hundred overshoots
+		assertEquals(0, statistics.p99());
+		assertEquals(MS / 2, statistics.p999());
+		assertEquals(9 * MS / 2, statistics.maxOvershoot());
+		assertEquals(1, statistics.jitterCount());
+		assertTrue(testee.jitterSince(1000 * MS + 500 * MS));
+		assertFalse(testee.jitterSince(clock.nanoTime() - 100 * MS));
+	}
+
+	@Test
+	public void testGcPauses()
+	{
+		testee.gcPauseDetected(clock.nanoTime(), MS);
+		assertFalse(testee.jitterSince(0));
+		testee.gcPauseDetected(clock.nanoTime(), 3 * MS);
+		assertTrue(testee.jitterSince(clock.nanoTime()));
+
+		JitterMonitor.Statistics statistics = testee.getStatistics();
+		assertEquals(2, statistics.gcPauses());
+		assertEquals(4 * MS, statistics.gcPauseTime());
+		assertEquals(3 * MS, statistics.maxGcPause());
+	}
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * In-memory byte pipe for single threaded tests. Reading never blocks: if no
+ * data is available, the input stream reports end of stream, so only read
+ * after checking {@link InputStream#available()}.
+ */
+public class MemoryPipe
+{
+	private byte[] data = new byte[1024];
+
+	/** the position of the next byte to read */
+	private int head;
+
+	/** the position of the next byte to write */
+	private int tail;
+
+	/** the reading end of the pipe */
+	public final InputStream in = new InputStream() {
+		@Override
+		public int read()
+		{
+			return head < tail ? data[head++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len)
+		{
+			if (len == 0) {
+				return 0;
+			}
+			if (head == tail) {
+				return -1;
+			}
+			int count = Math.min(len, tail - head);
+			System.arraycopy(data, head, b, off, count);
+			head += count;
+			return count;
+		}
+
+		@Override
+		public int available()
+		{
+			return tail - head;
+		}
+	};
+
+	/** the writing end of the pipe */
+	public final OutputStream out = new OutputStream() {
+		@Override
+		public void write(int b)
+		{
+			// without allocating, so allocations of the proxy can be measured
+			if (head == tail) {
+				head = 0;
+				tail = 0;
+			}
+			if (tail == data.length) {
+				data = Arrays.copyOf(data, 2 * data.length);
+			}
+			data[tail++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			if (head == tail) {
+				head = 0;
+				tail = 0;
+			}
+			if (tail + len > data.length) {
+				data = Arrays.copyOf(data, Math.max(2 * data.length, tail + len));
+			}
+			System.arraycopy(b, off, data, tail, len);
+			tail += len;
+		}
+	};
+}
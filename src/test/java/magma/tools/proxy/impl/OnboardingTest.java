@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import magma.tools.proxy.impl.SimsparkAgentProxyServer.SimsparkAgentProxyServerParameter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * Onboards several agents at once through a proxy server that is slow to set
+ * up each agent proxy.
+ */
+@Timeout(10)
+public class OnboardingTest
+{
+	private static final int AGENTS = 8;
+
+	private static final long SETUP_DELAY = 300;
+
+	@Test
+	public void testConcurrentOnboarding() throws Exception
+	{
+		try (ServerSocket simspark = new ServerSocket(0)) {
+			SlowProxyServer proxy = new SlowProxyServer(simspark.getLocalPort());
+			proxy.start();
+			waitFor(() -> proxy.getLocalPort() > 0);
+
+			List<Socket> agents = new ArrayList<>();
+			try {
+				long start = System.nanoTime();
+				for (int i = 0; i < AGENTS; i++) {
+					agents.add(new Socket("127.0.0.1", proxy.getLocalPort()));
+				}
+				waitFor(() -> proxy.getAgentProxies().size() == AGENTS);
+				long elapsed = (System.nanoTime() - start) / 1000000;
+
+				// sequential onboarding would take AGENTS * SETUP_DELAY
+				assertTrue(elapsed < AGENTS * SETUP_DELAY / 2, "took " + elapsed + "ms");
+				assertEquals(AGENTS, proxy.getAgentProxies().size());
+			} finally {
+				for (Socket agent : agents) {
+					agent.close();
+				}
+				proxy.shutdown();
+				proxy.join(5000);
+			}
+		}
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException
+	{
+		for (int i = 0; i < 500 && !condition.getAsBoolean(); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(condition.getAsBoolean());
+	}
+
+	/**
+	 * Proxy server taking a while to set up each agent proxy, like one with a
+	 * slow connection to the Simspark server.
+	 */
+	private static class SlowProxyServer extends SimsparkAgentProxyServer
+	{
+		SlowProxyServer(int ssPort)
+		{
+			super(new SimsparkAgentProxyServerParameter(0, "127.0.0.1", ssPort));
+		}
+
+		@Override
+		protected AgentProxy createAgentProxy(Socket clientSocket, long acceptTime)
+		{
+			try {
+				Thread.sleep(SETUP_DELAY);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.createAgentProxy(clientSocket, acceptTime);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class PerceptionScannerTest
+{
+	private static final String PERCEPTION = "(time (now 104.42))(GS (unum 7) (team left) (t 0.00) (pm BeforeKickOff))"
+											 + "(GYR (n torso) (rt 0.01 0.07 0.46))(ACC (n torso) (a 0.00 -0.00 9.81))";
+
+	private PerceptionScanner testee;
+
+	@BeforeEach
+	public void setUp()
+	{
+		testee = new PerceptionScanner();
+	}
+
+	@Test
+	public void testScan()
+	{
+		assertTrue(scan(PERCEPTION));
+		assertEquals(104420, testee.getSimTime());
+		assertEquals("BeforeKickOff", PerceptionScanner.getPlayModeName(testee.getPlayMode()));
+	}
+
+	@Test
+	public void testPlayModeIsKept()
+	{
+		scan("(time (now 1.5))(GS (t 0.00) (pm PlayOn))");
+		assertTrue(scan("(time (now 1.52))(GS (t 0.02))"));
+		assertEquals(1520, testee.getSimTime());
+		assertEquals(PerceptionScanner.getPlayMode("PlayOn"), testee.getPlayMode());
+
+		scan("(time (now 1.54))(GS (t 0.04) (pm some_new_mode))");
+		assertEquals(PerceptionScanner.PLAY_MODE_UNKNOWN, testee.getPlayMode());
+	}
+
+	@Test
+	public void testNumbers()
+	{
+		scan("(time (now 7))");
+		assertEquals(7000, testee.getSimTime());
+		scan("(time (now 0.123456))");
+		assertEquals(123, testee.getSimTime());
+		assertFalse(scan("(time (now x))"));
+		assertEquals(PerceptionScanner.NO_SIM_TIME, testee.getSimTime());
+		assertEquals("-", PerceptionScanner.formatSimTime(testee.getSimTime()));
+		assertEquals("3.050", PerceptionScanner.formatSimTime(3050));
+	}
+
+	@Test
+	public void testScanIsBounded()
+	{
+		String padding = "(x)".repeat(PerceptionScanner.MAX_SCAN_LENGTH / 3);
+		assertFalse(scan(padding + "(time (now 1.00))"));
+
+		// the message end is respected
+		byte[] message = "(time (now 12.34))".getBytes(StandardCharsets.US_ASCII);
+		assertTrue(testee.scan(message, 0, message.length - 4));
+		assertEquals(12000, testee.getSimTime());
+	}
+
+	@Test
+	public void testScanDoesNotAllocate()
+	{
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+		byte[] message = PERCEPTION.getBytes(StandardCharsets.US_ASCII);
+		long threadId = Thread.currentThread().getId();
+		for (int i = 0; i < 20000; i++) {
+			testee.scan(message, 0, message.length);
+		}
+
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < 100000; i++) {
+			testee.scan(message, 0, message.length);
+		}
+		long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+		// allow for the measurement itself
+		assertTrue(allocated < 1000, "allocated " + allocated + " bytes");
+	}
+
+	private boolean scan(String perception)
+	{
+		byte[] message = perception.getBytes(StandardCharsets.US_ASCII);
+		return testee.scan(message, 0, message.length);
+	}
+}
@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import org.junit.jupiter.api.Test;
+
+public class ProxyEventsTest
+{
+	@Test
+	public void testEventsOfEachCycleDisabledByDefault() throws Exception
+	{
+		ProxyEvents.register();
+		try (Recording recording = new Recording(Configuration.getConfiguration("default"))) {
+			recording.start();
+			assertTrue(ProxyEvents.isRecording());
+			assertTrue(new ProxyEvents.MissedCycle().isEnabled());
+			assertFalse(new ProxyEvents.SyncSent().isEnabled());
+			assertFalse(new ProxyEvents.ClientActionReceived().isEnabled());
+		}
+		assertFalse(ProxyEvents.isRecording());
+	}
+}
@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Logs messages through the writer thread of the proxy log.
+ */
+public class ProxyLogTest
+{
+	@AfterEach
+	public void tearDown()
+	{
+		ProxyLog.setOutput(System.out);
+	}
+
+	@Test
+	public void testIdleWriterWokenByMessage() throws Exception
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ProxyLog.setOutput(new PrintStream(bytes, false, StandardCharsets.US_ASCII));
+		for (int i = 1; i <= 3; i++) {
+			// let the writer park on the empty queue
+			Thread.sleep(50);
+			assertTrue(ProxyLog.log(ProxyLog.Level.WARN, "message " + i));
+			String expected = "WARN: message " + i + System.lineSeparator();
+			for (int wait = 0; wait < 500 && !bytes.toString(StandardCharsets.US_ASCII).endsWith(expected); wait++) {
+				Thread.sleep(10);
+			}
+			assertTrue(bytes.toString(StandardCharsets.US_ASCII).endsWith(expected));
+		}
+	}
+}
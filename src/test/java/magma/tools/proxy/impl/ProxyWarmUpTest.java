@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+/**
+ * Runs short warm-ups over loopback sockets.
+ */
+@Timeout(10)
+public class ProxyWarmUpTest
+{
+	@Test
+	public void testWarmUp() throws IOException
+	{
+		AtomicReference<AgentProxy> configured = new AtomicReference<>();
+		ProxyWarmUp.Result result = new ProxyWarmUp(100, agentProxy -> {
+			agentProxy.setTimelineCapacity(16);
+			configured.set(agentProxy);
+		}).run();
+
+		assertEquals(100, result.cycles());
+		assertTrue(result.coldLatency() > 0);
+		assertTrue(result.warmLatency() > 0);
+		assertEquals(100, configured.get().getTimeline().getCurrentCycle());
+		assertEquals(0, configured.get().getInvalidSayMessageCount());
+	}
+
+	@Test
+	public void testWarmUpSwitchedOff()
+	{
+		SimsparkAgentProxyServer testee =
+				new SimsparkAgentProxyServer(new SimsparkAgentProxyServer.SimsparkAgentProxyServerParameter(0, "", 0));
+		assertNull(testee.warmUp());
+		assertTrue(testee.getAgentProxies().isEmpty());
+	}
+}
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import magma.tools.proxy.impl.RateLimitStage.Limits;
+import magma.tools.proxy.impl.RateLimitStage.Policy;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Sends actions through the rate limit in virtual time.
+ */
+public class RateLimitStageTest
+{
+	private static final long MS = 1000000;
+
+	/** an action of 50 bytes */
+	private static final String ACTION = "(he1 0.00)(he2 0.00)(lae1 0.00)(say abcdefghijkl)";
+
+	private VirtualClock clock;
+
+	private AgentProxy agent;
+
+	@BeforeEach
+	public void setUp()
+	{
+		clock = new VirtualClock();
+		clock.advanceTo(1000 * MS);
+		agent = new AgentProxy(null, "localhost", 3100, false);
+		agent.setClock(clock);
+	}
+
+	@Test
+	public void testWithinLimits()
+	{
+		RateLimitStage testee = new RateLimitStage(new Limits(100, 2, 1, Policy.DROP));
+		for (int cycle = 0; cycle < 100; cycle++) {
+			for (int i = 0; i < 2; i++) {
+				Frame frame = frame(ACTION);
+				assertTrue(testee.process(agent, frame));
+				assertEquals(ACTION, frame.toString());
+			}
+			clock.sleep(20);
+		}
+		assertEquals(0, testee.getThrottledFrames());
+	}
+
+	@Test
+	public void testDrop()
+	{
+		RateLimitStage testee = new RateLimitStage(new Limits(100, 0, 1, Policy.DROP));
+		assertTrue(testee.process(agent, frame(ACTION)));
+		assertTrue(testee.process(agent, frame(ACTION)));
+		assertFalse(testee.process(agent, frame(ACTION)));
+
+		// the sync of a dropped action is still forwarded
+		Frame frame = frame(ACTION + "(syn)");
+		frame.setSyncSource(CycleTimeline.SYNC_CLIENT);
+		assertTrue(testee.process(agent, frame));
+		assertEquals("(syn)", frame.toString());
+
+		assertEquals(2, testee.getThrottledFrames());
+		assertEquals(2, testee.getDroppedFrames());
+		assertEquals(2, testee.getSizeHistogram()[0]);
+		assertTrue(testee.toString().contains("sizes(bytes): <=64:2"), testee.toString());
+
+		// refilled after a cycle
+		clock.sleep(20);
+		assertTrue(testee.process(agent, frame(ACTION)));
+	}
+
+	@Test
+	public void testFrameLimit()
+	{
+		RateLimitStage testee = new RateLimitStage(new Limits(0, 1, 1, Policy.DROP));
+		assertTrue(testee.process(agent, frame(ACTION)));
+		assertFalse(testee.process(agent, frame("(he1 0)")));
+		clock.sleep(20);
+		assertTrue(testee.process(agent, frame("(he1 0)")));
+	}
+
+	@Test
+	public void testDelay()
+	{
+		RateLimitStage testee = new RateLimitStage(new Limits(100, 0, 1, Policy.DELAY));
+		assertTrue(testee.process(agent, frame(ACTION)));
+		assertTrue(testee.process(agent, frame(ACTION)));
+
+		// has to wait for 50 bytes, half a cycle
+		long start = clock.nanoTime();
+		Frame frame = frame(ACTION);
+		assertTrue(testee.process(agent, frame));
+		assertEquals(ACTION, frame.toString());
+		assertEquals(10 * MS, clock.nanoTime() - start);
+		assertEquals(1, testee.getDelayedFrames());
+		assertEquals(1, testee.getDelayHistogram()[7]);
+
+		// larger than the bucket waits until it is full
+		start = clock.nanoTime();
+		assertTrue(testee.process(agent, frame(ACTION + ACTION + ACTION)));
+		assertEquals(20 * MS, clock.nanoTime() - start);
+
+		// waiting longer than a cycle is dropped
+		assertFalse(testee.process(agent, frame(ACTION + ACTION)));
+		assertEquals(1, testee.getDroppedFrames());
+	}
+
+	@Test
+	public void testDelaySendsSyncAhead()
+	{
+		MemoryPipe toServer = new MemoryPipe();
+		agent.setConnections(new Connection(new MemoryPipe().in, new MemoryPipe().out, "client"),
+				new Connection(new MemoryPipe().in, toServer.out, "server"));
+		Connection server = new Connection(toServer.in, new MemoryPipe().out, "simulated server");
+		RateLimitStage testee = new RateLimitStage(new Limits(100, 0, 1, Policy.DELAY));
+		assertTrue(testee.process(agent, frame(ACTION)));
+		assertTrue(testee.process(agent, frame(ACTION)));
+
+		// the server gets the sync before the action is delayed
+		boolean[] syncBeforeDelay = new boolean[1];
+		clock.schedule(MS, () -> syncBeforeDelay[0] = server.inputAvailable());
+		long start = clock.nanoTime();
+		Frame frame = frame("(syn)" + ACTION + "(syn)");
+		frame.setSyncSource(CycleTimeline.SYNC_CLIENT);
+		assertTrue(testee.process(agent, frame));
+		assertTrue(syncBeforeDelay[0]);
+		assertArrayEquals(AgentProxy.SYNC_BYTES, server.receiveMessage());
+
+		// only the rest of the action is delayed, half a cycle for 50 bytes
+		assertEquals(ACTION, frame.toString());
+		assertEquals(CycleTimeline.SYNC_NONE, frame.getSyncSource());
+		assertEquals(10 * MS, clock.nanoTime() - start);
+		assertEquals(1, testee.getDelayedFrames());
+	}
+
+	@Test
+	public void testMerge()
+	{
+		RateLimitStage testee = new RateLimitStage(new Limits(100, 0, 1, Policy.MERGE));
+		assertTrue(testee.process(agent, frame(ACTION)));
+		assertTrue(testee.process(agent, frame(ACTION)));
+
+		Frame throttled = frame("(syn)(he1 1.00)(syn)");
+		throttled.setSyncSource(CycleTimeline.SYNC_CLIENT);
+		assertTrue(testee.process(agent, throttled));
+		assertEquals("(syn)", throttled.toString());
+		assertFalse(testee.process(agent, frame("(he2 1.00)")));
+
+		clock.sleep(20);
+		Frame frame = frame("(he1 2.00)");
+		assertTrue(testee.process(agent, frame));
+		assertEquals("(he1 1.00)(he2 1.00)(he1 2.00)", frame.toString());
+
+		// pending actions are merged behind the leading sync
+		assertTrue(testee.process(agent, frame(ACTION)));
+		assertFalse(testee.process(agent, frame(ACTION)));
+		clock.sleep(20);
+		frame = frame("(syn)(he2 4.00)");
+		frame.setSyncSource(CycleTimeline.SYNC_CLIENT);
+		assertTrue(testee.process(agent, frame));
+		assertEquals("(syn)" + ACTION + "(he2 4.00)", frame.toString());
+		assertEquals(3, testee.getMergedFrames());
+		assertEquals(0, testee.getDroppedFrames());
+	}
+
+	@Test
+	public void testWithinLimitsDoesNotAllocate()
+	{
+		RateLimitStage testee = new RateLimitStage(new Limits(1000, 10, 2, Policy.MERGE));
+		Frame frame = frame(ACTION);
+		long allocated = 0;
+		for (int i = 0; i < 20000; i++) {
+			long before = ThreadAllocation.currentThreadBytes();
+			assertTrue(testee.process(agent, frame));
+			if (i >= 10000) {
+				allocated += ThreadAllocation.currentThreadBytes() - before;
+			}
+			clock.advanceTo(clock.nanoTime() + 5 * MS);
+		}
+		assertEquals(0, testee.getThrottledFrames());
+		assertEquals(0, allocated);
+	}
+
+	private static Frame frame(String message)
+	{
+		byte[] bytes = message.getBytes(StandardCharsets.US_ASCII);
+		return new Frame(bytes, bytes.length);
+	}
+}
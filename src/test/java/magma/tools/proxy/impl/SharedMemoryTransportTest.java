@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import magma.tools.proxy.client.ProxyClient;
+import magma.tools.proxy.client.SharedMemoryRing;
+import magma.tools.proxy.client.SharedMemoryRing.WaitStrategy;
+import magma.tools.proxy.impl.AgentProxy.FrameLimits;
+import magma.tools.proxy.impl.SimsparkAgentProxyServer.SimsparkAgentProxyServerParameter;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Connects a {@link ProxyClient} through a proxy server to a stand-in Simspark
+ * server, once using shared memory and once falling back to TCP.
+ */
+public class SharedMemoryTransportTest
+{
+	@Test
+	public void testForwardingOverSharedMemory() throws Exception
+	{
+		assumeTrue(Files.isDirectory(SharedMemoryConnection.DIRECTORY));
+
+		try (ServerSocket simspark = new ServerSocket(0)) {
+			SimsparkAgentProxyServer proxy = startProxy(simspark, WaitStrategy.PARK);
+			ProxyClient agent = new ProxyClient("127.0.0.1", proxy.getLocalPort(), WaitStrategy.PARK);
+			try {
+				assertTrue(agent.isSharedMemory());
+				Path rings = agent.getSharedMemoryPath();
+				assertTrue(Files.exists(rings));
+				if (Files.getFileStore(rings).supportsFileAttributeView("posix")) {
+					assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(rings));
+				}
+
+				try (Socket serverSide = exchangeMessages(agent, simspark)) {
+					// the agent has mapped the rings, so the file is gone
+					assertFalse(Files.exists(rings));
+
+					// the proxy notices the agent is gone through the TCP connection
+					agent.close();
+					assertNull(new Connection(serverSide).receiveMessage());
+				}
+			} finally {
+				agent.close();
+				proxy.shutdown();
+				proxy.join(5000);
+			}
+		}
+	}
+
+	@Test
+	public void testFallbackToTcp() throws Exception
+	{
+		try (ServerSocket simspark = new ServerSocket(0)) {
+			SimsparkAgentProxyServer proxy = startProxy(simspark, null);
+			try (ProxyClient agent = new ProxyClient("127.0.0.1", proxy.getLocalPort(), WaitStrategy.PARK)) {
+				assertFalse(agent.isSharedMemory());
+				exchangeMessages(agent, simspark).close();
+			} finally {
+				proxy.shutdown();
+				proxy.join(5000);
+			}
+		}
+	}
+
+	@Test
+	public void testOversizedMessagesStreamedOverSharedMemory() throws Exception
+	{
+		assumeTrue(Files.isDirectory(SharedMemoryConnection.DIRECTORY));
+
+		try (ServerSocket simspark = new ServerSocket(0)) {
+			SimsparkAgentProxyServer proxy = startProxy(
+					parameters(simspark, WaitStrategy.PARK).frameLimits(new FrameLimits(1024, 1024, true)).build());
+			try (ProxyClient agent = new ProxyClient("127.0.0.1", proxy.getLocalPort(), WaitStrategy.PARK)) {
+				assertTrue(agent.isSharedMemory());
+				try (Socket serverSide = exchangeMessages(agent, simspark)) {
+					Connection server = new Connection(serverSide);
+					byte[] action = oversized("(he1 0)", 3000);
+					agent.send(action);
+					assertArrayEquals(action, server.receiveMessage());
+
+					byte[] perception = oversized("(time (now 0.04))", 5000);
+					server.sendMessage(perception);
+					assertArrayEquals(perception, agent.receive());
+				}
+			} finally {
+				proxy.shutdown();
+				proxy.join(5000);
+			}
+		}
+	}
+
+	@Test
+	public void testForgedLengthDisconnects() throws Exception
+	{
+		assumeTrue(Files.isDirectory(SharedMemoryConnection.DIRECTORY));
+
+		try (ServerSocket simspark = new ServerSocket(0)) {
+			SimsparkAgentProxyServer proxy = startProxy(
+					parameters(simspark, WaitStrategy.PARK).frameLimits(new FrameLimits(1024, 1024, true)).build());
+			try (ProxyClient agent = new ProxyClient("127.0.0.1", proxy.getLocalPort(), WaitStrategy.PARK)) {
+				assertTrue(agent.isSharedMemory());
+				MappedByteBuffer rings = SharedMemoryRing.open(agent.getSharedMemoryPath());
+				try (Socket serverSide = exchangeMessages(agent, simspark)) {
+					forgeLength(rings, Integer.MAX_VALUE);
+
+					// neither allocated nor streamed, the proxy closes both connections
+					assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+						assertNull(agent.receive());
+						assertNull(new Connection(serverSide).receiveMessage());
+					});
+				}
+			} finally {
+				proxy.shutdown();
+				proxy.join(5000);
+			}
+		}
+	}
+
+	/**
+	 * Publishes a message header of the passed length in the ring to the proxy
+	 * as a broken agent could, bypassing the checks of
+	 * {@link SharedMemoryRing#write(byte[], int, int)}. Depends on the layout of
+	 * the rings: a header of 64 bytes with the capacity at 8, the control block
+	 * of the ring to the proxy with the write position at 64 and its data after
+	 * both control blocks of 128 bytes.
+	 */
+	private static void forgeLength(MappedByteBuffer rings, int length)
+	{
+		VarHandle longs = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+		VarHandle ints = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+		int capacity = (int) ints.get(rings, 8);
+		long position = (long) longs.getAcquire(rings, 64);
+		ints.set(rings, 64 + 2 * 128 + (int) (position & (capacity - 1)), length);
+		longs.setRelease(rings, 64, position + 8);
+	}
+
+	private static SimsparkAgentProxyServerParameter.Builder parameters(
+			ServerSocket simspark, WaitStrategy sharedMemoryWait)
+	{
+		return new SimsparkAgentProxyServerParameter.Builder(0, "127.0.0.1", simspark.getLocalPort())
+				.timelineCapacity(16)
+				.sharedMemoryWait(sharedMemoryWait);
+	}
+
+	private static SimsparkAgentProxyServer startProxy(ServerSocket simspark, WaitStrategy sharedMemoryWait)
+			throws InterruptedException
+	{
+		return startProxy(parameters(simspark, sharedMemoryWait).build());
+	}
+
+	private static SimsparkAgentProxyServer startProxy(SimsparkAgentProxyServerParameter parameters)
+			throws InterruptedException
+	{
+		SimsparkAgentProxyServer proxy = new SimsparkAgentProxyServer(parameters);
+		proxy.start();
+		for (int i = 0; i < 500 && proxy.getLocalPort() <= 0; i++) {
+			Thread.sleep(10);
+		}
+		return proxy;
+	}
+
+	/**
+	 * Sends the first action, a perception and an action through the proxy.
+	 * @return the server side socket of the proxy's server connection
+	 */
+	private static Socket exchangeMessages(ProxyClient agent, ServerSocket simspark) throws IOException
+	{
+		// the proxy connects to the server with the first action
+		agent.send(bytes("(scene rsg/agent/nao/nao.rsg)"));
+		Socket serverSide = simspark.accept();
+		Connection server = new Connection(serverSide);
+		assertArrayEquals(bytes("(scene rsg/agent/nao/nao.rsg)"), server.receiveMessage());
+		assertArrayEquals(AgentProxy.SYNC_BYTES, server.receiveMessage());
+
+		server.sendMessage(bytes("(time (now 0.02))"));
+		assertArrayEquals(bytes("(time (now 0.02))"), agent.receive());
+
+		agent.send(bytes("(he1 0)(syn)"));
+		byte[] action = server.receiveMessage();
+		assertTrue(AgentProxy.indexOf(action, 0, action.length, AgentProxy.SYNC_BYTES) >= 0);
+		return serverSide;
+	}
+
+	/**
+	 * @return the message padded with spaces to the given length
+	 */
+	private static byte[] oversized(String message, int length)
+	{
+		return (message + " ".repeat(length - message.length())).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static byte[] bytes(String message)
+	{
+		return message.getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class StatsStoreTest
+{
+	private static final long DAY = 24 * 3600 * 1000L;
+
+	@TempDir
+	Path directory;
+
+	@Test
+	public void testQueryByTeam() throws IOException
+	{
+		try (StatsStore testee = new StatsStore(directory)) {
+			for (int match = 0; match < 10; match++) {
+				testee.append(summary(match * DAY, "magma", "192.168.1.5", match));
+				testee.append(summary(match * DAY, "other", "192.168.1.6", 0));
+			}
+		}
+
+		List<AgentSummary> result = StatsStore.query(directory, entry -> entry.team().equals("magma"));
+		assertEquals(10, result.size());
+		AgentSummary.Totals totals = new AgentSummary.Totals();
+		result.forEach(totals::add);
+		assertEquals(10, totals.getMatches());
+		assertEquals(45, totals.getMissedCycles());
+		assertEquals(4, totals.thinkTimePercentile(50));
+
+		AgentSummary first = result.get(0);
+		assertEquals("192.168.1.5", first.clientAddress());
+		assertEquals(100, first.perceptions());
+		assertEquals(100, first.thinkTimes()[3]);
+	}
+
+	@Test
+	public void testAppendToExistingStore() throws IOException
+	{
+		try (StatsStore testee = new StatsStore(directory)) {
+			testee.append(summary(0, "magma", "192.168.1.5", 1));
+		}
+		try (StatsStore testee = new StatsStore(directory)) {
+			testee.append(summary(DAY, "magma", "192.168.1.5", 2));
+		}
+
+		List<AgentSummary> result = StatsStore.query(directory, entry -> true);
+		assertEquals(2, result.size());
+		assertEquals(2, result.get(1).missedCycles());
+	}
+
+	@Test
+	public void testPartlyWrittenEntriesIgnored() throws IOException
+	{
+		try (StatsStore testee = new StatsStore(directory)) {
+			testee.append(summary(0, "magma", "192.168.1.5", 1));
+			testee.append(summary(0, "magma", "192.168.1.5", 2));
+		}
+		// an index entry cut off and one of a summary not written completely
+		try (OutputStream out = Files.newOutputStream(directory.resolve(StatsStore.INDEX_FILE),
+				StandardOpenOption.APPEND)) {
+			out.write(new byte[] {0, 0, 0, 0, 0, 0, 0x10, 0, 0, 0, 0, 0x40, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+			out.write(new byte[] {0, 0, 0});
+		}
+
+		assertEquals(3, StatsStore.readIndex(directory).size());
+		List<AgentSummary> result = StatsStore.query(directory, entry -> true);
+		assertEquals(2, result.size());
+
+		// reopening cuts off the incomplete entries, so new entries can be read
+		try (StatsStore testee = new StatsStore(directory)) {
+			testee.append(summary(DAY, "other", "192.168.1.6", 3));
+		}
+		List<StatsStore.IndexEntry> entries = StatsStore.readIndex(directory);
+		assertEquals(3, entries.size());
+		assertEquals("other", entries.get(2).team());
+		assertEquals(Files.size(directory.resolve(StatsStore.DATA_FILE)), entries.get(2).end());
+		result = StatsStore.query(directory, entry -> true);
+		assertEquals(3, result.size());
+		assertEquals(3, result.get(2).missedCycles());
+	}
+
+	@Test
+	public void testPartlyWrittenSummaryRemoved() throws IOException
+	{
+		try (StatsStore testee = new StatsStore(directory)) {
+			testee.append(summary(0, "magma", "192.168.1.5", 1));
+		}
+		// a summary whose index entry was not written
+		try (OutputStream out = Files.newOutputStream(directory.resolve(StatsStore.DATA_FILE),
+				StandardOpenOption.APPEND)) {
+			out.write(new byte[] {0, 0, 0, 0x40, 1, 2, 3});
+		}
+
+		try (StatsStore testee = new StatsStore(directory)) {
+			testee.append(summary(DAY, "magma", "192.168.1.5", 2));
+		}
+		List<AgentSummary> result = StatsStore.query(directory, entry -> true);
+		assertEquals(2, result.size());
+		assertEquals(2, result.get(1).missedCycles());
+	}
+
+	@Test
+	public void testOnlyOneStoreOpen() throws IOException
+	{
+		try (StatsStore testee = new StatsStore(directory)) {
+			assertThrows(IOException.class, () -> new StatsStore(directory));
+			testee.append(summary(0, "magma", "192.168.1.5", 1));
+		}
+		// the lock is released when closed
+		try (StatsStore testee = new StatsStore(directory)) {
+			testee.append(summary(DAY, "magma", "192.168.1.5", 2));
+		}
+		assertEquals(2, StatsStore.query(directory, entry -> true).size());
+	}
+
+	@Test
+	public void testQueryEmptyStore() throws IOException
+	{
+		assertTrue(StatsStore.query(directory, entry -> true).isEmpty());
+	}
+
+	private static AgentSummary summary(long matchStart, String team, String address, int missedCycles)
+	{
+		int[] thinkTimes = new int[ThinkTimeHistogram.BUCKETS];
+		thinkTimes[3] = 100 - missedCycles;
+		return new AgentSummary(matchStart, matchStart + 600000, team, address, 40000, 100, 100, 100 - missedCycles,
+				missedCycles, 0, 0, 0, 100, 10, 1000000, 50000000, 1000000, thinkTimes);
+	}
+}
@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import magma.tools.proxy.impl.AgentProxy.ClientActionsForwarder;
+import magma.tools.proxy.impl.AgentProxy.ServerPerceptionsForwarder;
+import magma.tools.proxy.impl.SyncScheduler.Statistics;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Lets a sync scheduler send the syncs of simulated agents in virtual time.
+ */
+public class SyncSchedulerTest
+{
+	private static final long MS = 1000000;
+
+	private VirtualClock clock;
+
+	private SyncScheduler testee;
+
+	private SimulatedAgent agentA;
+
+	private SimulatedAgent agentB;
+
+	/**
+	 * An agent proxy connected to a simulated server and agent.
+	 */
+	private class SimulatedAgent
+	{
+		final AgentProxy proxy = new AgentProxy(null, "localhost", 3100, false);
+
+		final ServerPerceptionsForwarder serverForwarder;
+
+		final ClientActionsForwarder clientForwarder;
+
+		/** the server end of the server connection */
+		final Connection server;
+
+		/** the agent end of the client connection */
+		final Connection agent;
+
+		SimulatedAgent()
+		{
+			proxy.setClock(clock);
+			proxy.setSyncScheduler(testee);
+			MemoryPipe fromServer = new MemoryPipe();
+			MemoryPipe fromAgent = new MemoryPipe();
+			MemoryPipe toServer = new MemoryPipe();
+			MemoryPipe toAgent = new MemoryPipe();
+			proxy.setConnections(new Connection(fromAgent.in, toAgent.out, "client"),
+					new Connection(fromServer.in, toServer.out, "server"));
+			server = new Connection(toServer.in, fromServer.out, "simulated server");
+			agent = new Connection(toAgent.in, fromAgent.out, "simulated agent");
+			serverForwarder = proxy.new ServerPerceptionsForwarder();
+			clientForwarder = proxy.new ClientActionsForwarder();
+		}
+
+		void perceive()
+		{
+			server.sendMessage("(time (now 0.02))".getBytes(StandardCharsets.US_ASCII));
+			assertTrue(serverForwarder.forwardPerception());
+			assertTrue(agent.receiveMessage() != null);
+		}
+
+		void act(String action)
+		{
+			agent.sendMessage(action.getBytes(StandardCharsets.US_ASCII));
+			assertTrue(clientForwarder.forwardAction());
+		}
+
+		/**
+		 * @return the number of messages of the proxy received by the server
+		 *         that only contain a sync
+		 */
+		int receiveProxySyncs()
+		{
+			int syncs = 0;
+			while (server.inputAvailable()) {
+				byte[] message = server.receiveMessage();
+				if (message.length == AgentProxy.SYNC_BYTES.length) {
+					syncs++;
+				}
+			}
+			return syncs;
+		}
+	}
+
+	@BeforeEach
+	public void setUp()
+	{
+		clock = new VirtualClock();
+		testee = new SyncScheduler(clock, Runnable::run);
+		agentA = new SimulatedAgent();
+		agentB = new SimulatedAgent();
+	}
+
+	@Test
+	public void testEarliestDeadlineFirst()
+	{
+		agentA.perceive();
+		clock.advanceTo(5 * MS);
+		agentB.perceive();
+
+		// the forwarder of A is late, B schedules its sync first
+		agentB.serverForwarder.awaitSync();
+		agentA.serverForwarder.awaitSync();
+		assertEquals(2, testee.getPendingCount());
+
+		clock.advanceTo(20 * MS);
+		assertEquals(5 * MS, testee.fireDue(clock.nanoTime()));
+		assertEquals(1, agentA.receiveProxySyncs());
+		assertEquals(0, agentB.receiveProxySyncs());
+
+		clock.advanceTo(25 * MS);
+		testee.fireDue(clock.nanoTime());
+		assertEquals(1, agentB.receiveProxySyncs());
+		assertEquals(new Statistics(2, 0, 1, 0), testee.getStatistics());
+		assertEquals(0, testee.getPendingCount());
+	}
+
+	@Test
+	public void testBlockedSendDoesNotHoldUpOthers()
+	{
+		List<Runnable> handedOff = new ArrayList<>();
+		testee = new SyncScheduler(clock, handedOff::add);
+		agentA = new SimulatedAgent();
+		agentB = new SimulatedAgent();
+		agentA.perceive();
+		agentA.serverForwarder.awaitSync();
+		agentB.perceive();
+		agentB.serverForwarder.awaitSync();
+
+		clock.advanceTo(20 * MS);
+		testee.fireDue(clock.nanoTime());
+		assertEquals(2, handedOff.size());
+		assertEquals(0, agentA.receiveProxySyncs());
+
+		// the sender of A blocks, another sender sends the sync of B
+		handedOff.get(1).run();
+		assertEquals(1, agentB.receiveProxySyncs());
+
+		// the task of A is not handed off again while it waits for its sender
+		agentA.perceive();
+		agentA.serverForwarder.awaitSync();
+		clock.advanceTo(40 * MS);
+		testee.fireDue(clock.nanoTime());
+		assertEquals(2, handedOff.size());
+		handedOff.get(0).run();
+		assertEquals(1, agentA.receiveProxySyncs());
+		assertEquals(new Statistics(2, 0, 0, 0), testee.getStatistics());
+	}
+
+	@Test
+	public void testSyncCpuTimeAccountedToAgent()
+	{
+		assumeTrue(ThreadCpuTime.isSupported());
+		for (int cycle = 1; cycle <= 1000; cycle++) {
+			agentA.perceive();
+			agentA.serverForwarder.awaitSync();
+			clock.advanceTo(cycle * 20 * MS);
+			testee.fireDue(clock.nanoTime());
+			agentA.receiveProxySyncs();
+		}
+
+		// the forwarders are driven by the test, so only the syncs are measured
+		assertTrue(agentA.proxy.getCpuTime() > 0);
+		assertEquals(0, agentB.proxy.getCpuTime());
+		assertEquals(1000 * "(time (now 0.02))".length(), agentA.proxy.getForwardedBytes());
+		assertEquals(agentA.proxy.getCpuTime() / 1000.0 / 1000, agentA.proxy.getCpuMicrosPerCycle(), 1e-9);
+	}
+
+	@Test
+	public void testLateSyncs()
+	{
+		agentA.perceive();
+		agentA.serverForwarder.awaitSync();
+		agentB.perceive();
+		agentB.serverForwarder.awaitSync();
+
+		clock.advanceTo(30 * MS);
+		testee.fireDue(clock.nanoTime());
+		assertEquals(1, agentA.receiveProxySyncs());
+		assertEquals(1, agentB.receiveProxySyncs());
+		assertEquals(new Statistics(0, 2, 0, 10 * MS), testee.getStatistics());
+		assertEquals(1, agentA.proxy.getMissedCycles());
+	}
+
+	@Test
+	public void testNoSyncIfAgentSynced()
+	{
+		agentA.perceive();
+		agentA.serverForwarder.awaitSync();
+		clock.advanceTo(4 * MS);
+		agentA.act("(he1 0)(syn)");
+
+		clock.advanceTo(20 * MS);
+		testee.fireDue(clock.nanoTime());
+		assertEquals(0, agentA.receiveProxySyncs());
+		assertEquals(new Statistics(0, 0, 0, 0), testee.getStatistics());
+	}
+
+	@Test
+	public void testRescheduleForNextCycle()
+	{
+		agentA.perceive();
+		agentA.serverForwarder.awaitSync();
+		agentA.act("(he1 0)(syn)");
+
+		// the next cycle starts before the sync of the last one was due
+		clock.advanceTo(10 * MS);
+		agentA.perceive();
+		clock.advanceTo(20 * MS);
+		testee.fireDue(clock.nanoTime());
+		assertEquals(0, agentA.receiveProxySyncs());
+
+		agentA.serverForwarder.awaitSync();
+		assertEquals(1, testee.getPendingCount());
+		clock.advanceTo(30 * MS);
+		testee.fireDue(clock.nanoTime());
+		assertEquals(1, agentA.receiveProxySyncs());
+
+		agentA.serverForwarder.awaitSync();
+		agentA.proxy.stopProxy();
+		assertEquals(0, testee.getPendingCount());
+	}
+}
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import magma.tools.proxy.client.SharedMemoryRing;
+import magma.tools.proxy.client.SharedMemoryRing.WaitStrategy;
+
+/**
+ * Compares the round trip latency of messages between an agent and the proxy
+ * over loopback TCP, over a Unix domain socket and over shared memory rings
+ * with both wait strategies. Socket ends use {@link Connection}, so framing
+ * and buffers are the same as in the proxy. An echo thread sends each message
+ * back. Not run as part of the tests, start the main method from the test
+ * classpath.
+ */
+public class TransportLatencyBenchmark
+{
+	private static final int WARMUP = 50000;
+
+	private static final int ROUND_TRIPS = 100000;
+
+	/** typical sizes of an action and of a perception */
+	private static final int[] SIZES = {200, 2000};
+
+	public static void main(String[] args) throws Exception
+	{
+		for (int size : SIZES) {
+			report("tcp ", size, measureTcp(size));
+			report("unix", size, measureUnix(size));
+			if (Files.isDirectory(SharedMemoryConnection.DIRECTORY)) {
+				report("park", size, measureSharedMemory(size, WaitStrategy.PARK));
+				if (Runtime.getRuntime().availableProcessors() > 1) {
+					// with one core a spinning thread waits for its time slice to end
+					report("spin", size, measureSharedMemory(size, WaitStrategy.SPIN));
+				}
+			}
+		}
+	}
+
+	private static long[] measureTcp(int size) throws Exception
+	{
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+				Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+				Socket echo = server.accept()) {
+			return measure(new Connection(client), new Connection(echo), size);
+		}
+	}
+
+	private static long[] measureUnix(int size) throws Exception
+	{
+		Path path = Files.createTempDirectory("transport").resolve("bench.sock");
+		try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			server.bind(UnixDomainSocketAddress.of(path));
+			try (SocketChannel client = SocketChannel.open(UnixDomainSocketAddress.of(path));
+					SocketChannel echo = server.accept()) {
+				return measure(connection(client), connection(echo), size);
+			}
+		} finally {
+			Files.deleteIfExists(path);
+			Files.deleteIfExists(path.getParent());
+		}
+	}
+
+	/**
+	 * @return the round trip times in ns
+	 */
+	private static long[] measureSharedMemory(int size, WaitStrategy waitStrategy) throws Exception
+	{
+		Path path = SharedMemoryConnection.DIRECTORY.resolve("magmaproxy-bench-" + System.nanoTime());
+		MappedByteBuffer buffer = SharedMemoryRing.create(path, SharedMemoryRing.DEFAULT_CAPACITY);
+		Files.delete(path);
+		// each side needs its own rings, they keep the position of their side
+		SharedMemoryRing toProxy = new SharedMemoryRing(buffer, SharedMemoryRing.TO_PROXY, waitStrategy, () -> true);
+		SharedMemoryRing toAgent = new SharedMemoryRing(buffer, SharedMemoryRing.TO_AGENT, waitStrategy, () -> true);
+		SharedMemoryRing echoIn = new SharedMemoryRing(buffer, SharedMemoryRing.TO_PROXY, waitStrategy, () -> true);
+		SharedMemoryRing echoOut = new SharedMemoryRing(buffer, SharedMemoryRing.TO_AGENT, waitStrategy, () -> true);
+
+		Thread echoThread = new Thread(() -> {
+			byte[] frame = new byte[echoIn.getMaxMessageLength()];
+			int length;
+			while ((length = echoIn.awaitMessage()) >= 0) {
+				echoIn.readMessage(frame, 0);
+				echoOut.write(frame, 0, length);
+			}
+		});
+		echoThread.start();
+
+		byte[] message = new byte[size];
+		byte[] answer = new byte[size];
+		long[] times = new long[ROUND_TRIPS];
+		for (int i = -WARMUP; i < ROUND_TRIPS; i++) {
+			long start = System.nanoTime();
+			toProxy.write(message, 0, size);
+			if (toAgent.awaitMessage() < 0) {
+				throw new IllegalStateException("echo closed");
+			}
+			toAgent.readMessage(answer, 0);
+			if (i >= 0) {
+				times[i] = System.nanoTime() - start;
+			}
+		}
+
+		SharedMemoryRing.close(buffer);
+		echoThread.join();
+		return times;
+	}
+
+	private static Connection connection(SocketChannel channel)
+	{
+		return new Connection(ChannelStreams.input(channel), ChannelStreams.output(channel), channel.toString());
+	}
+
+	/**
+	 * @return the round trip times in ns
+	 */
+	private static long[] measure(Connection client, Connection echo, int size) throws InterruptedException
+	{
+		Thread echoThread = new Thread(() -> {
+			Frame frame = new Frame();
+			while (echo.receiveMessage(frame)) {
+				echo.sendMessage(frame);
+			}
+		});
+		echoThread.start();
+
+		Frame message = new Frame();
+		message.setMessage(new byte[size]);
+		Frame answer = new Frame();
+		long[] times = new long[ROUND_TRIPS];
+		for (int i = -WARMUP; i < ROUND_TRIPS; i++) {
+			long start = System.nanoTime();
+			client.sendMessage(message);
+			if (!client.receiveMessage(answer)) {
+				throw new IllegalStateException("echo closed");
+			}
+			if (i >= 0) {
+				times[i] = System.nanoTime() - start;
+			}
+		}
+
+		client.disconnect();
+		echoThread.join();
+		return times;
+	}
+
+	private static void report(String transport, int size, long[] times)
+	{
+		Arrays.sort(times);
+		double mean = Arrays.stream(times).average().orElse(0);
+		System.out.printf(Locale.ROOT, "%s %5d bytes: mean %6.1f us  p50 %6.1f us  p99 %6.1f us  p99.9 %7.1f us%n",
+				transport, size, mean / 1000, percentile(times, 0.5), percentile(times, 0.99),
+				percentile(times, 0.999));
+	}
+
+	private static double percentile(long[] sorted, double p)
+	{
+		return sorted[(int) Math.min(sorted.length - 1, p * sorted.length)] / 1000.0;
+	}
+}
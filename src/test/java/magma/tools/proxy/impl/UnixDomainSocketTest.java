@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.BooleanSupplier;
+import magma.tools.proxy.impl.SimsparkAgentProxyServer.SimsparkAgentProxyServerParameter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Connects an agent through the Unix domain socket of a proxy server to a
+ * stand-in Simspark server.
+ */
+public class UnixDomainSocketTest
+{
+	@TempDir
+	Path directory;
+
+	@Test
+	public void testForwardingOverUnixDomainSocket() throws Exception
+	{
+		assumeTrue(unixDomainSocketsSupported());
+		Path socketPath = directory.resolve("proxy.sock");
+
+		try (ServerSocket simspark = new ServerSocket(0)) {
+			SimsparkAgentProxyServer proxy = new SimsparkAgentProxyServer(
+					new SimsparkAgentProxyServerParameter.Builder(0, "127.0.0.1", simspark.getLocalPort())
+							.proxySocketPath(socketPath.toString())
+							.timelineCapacity(16)
+							.sharedMemoryWait(null)
+							.build());
+			proxy.start();
+			waitFor(() -> Files.exists(socketPath));
+
+			try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+				Connection agent =
+						new Connection(ChannelStreams.input(channel), ChannelStreams.output(channel), "agent");
+
+				// the proxy connects to the server with the first action
+				agent.sendMessage(bytes("(scene rsg/agent/nao/nao.rsg)"));
+				try (Socket serverSide = simspark.accept()) {
+					Connection server = new Connection(serverSide);
+					assertArrayEquals(bytes("(scene rsg/agent/nao/nao.rsg)"), server.receiveMessage());
+					assertArrayEquals(AgentProxy.SYNC_BYTES, server.receiveMessage());
+
+					server.sendMessage(bytes("(time (now 0.02))"));
+					assertArrayEquals(bytes("(time (now 0.02))"), agent.receiveMessage());
+
+					agent.sendMessage(bytes("(he1 0)(syn)"));
+					byte[] action = server.receiveMessage();
+					assertTrue(AgentProxy.indexOf(action, 0, action.length, AgentProxy.SYNC_BYTES) >= 0);
+				}
+			}
+
+			proxy.shutdown();
+			proxy.join(5000);
+			assertFalse(Files.exists(socketPath));
+		}
+	}
+
+	@Test
+	public void testStaleSocketRemoved() throws Exception
+	{
+		assumeTrue(unixDomainSocketsSupported());
+		Path socketPath = directory.resolve("proxy.sock");
+		ServerSocketChannel previous = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		previous.bind(UnixDomainSocketAddress.of(socketPath));
+
+		// the socket of a running proxy is kept
+		assertThrows(IOException.class, () -> SimsparkAgentProxyServer.removeStaleSocket(socketPath));
+		assertTrue(Files.exists(socketPath));
+
+		// closing does not remove the socket file
+		previous.close();
+		assertTrue(Files.exists(socketPath));
+		SimsparkAgentProxyServer.removeStaleSocket(socketPath);
+		assertFalse(Files.exists(socketPath));
+
+		// nothing to remove
+		SimsparkAgentProxyServer.removeStaleSocket(socketPath);
+	}
+
+	@Test
+	public void testOtherFileKept() throws Exception
+	{
+		Path path = Files.writeString(directory.resolve("proxy.sock"), "no socket");
+
+		assertThrows(IOException.class, () -> SimsparkAgentProxyServer.removeStaleSocket(path));
+		assertEquals("no socket", Files.readString(path));
+	}
+
+	private static boolean unixDomainSocketsSupported()
+	{
+		try {
+			SocketChannel.open(StandardProtocolFamily.UNIX).close();
+			return true;
+		} catch (IOException | UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException
+	{
+		for (int i = 0; i < 500 && !condition.getAsBoolean(); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(condition.getAsBoolean());
+	}
+
+	private static byte[] bytes(String message)
+	{
+		return message.getBytes(StandardCharsets.US_ASCII);
+	}
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright 2008, 2015 Hochschule Offenburg
+ * Klaus Dorer, Stefan Glaser
+ *
+ * This file is part of magma Simspark Agent Proxy.
+ *
+ * Simspark Agent Proxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Simspark Agent Proxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with it. If not, see <http://www.gnu.org/licenses/>.
+ *******************************************************************************/
+package magma.tools.proxy.impl;
+
+import java.util.PriorityQueue;
+
+/**
+ * Discrete event clock for tests. Time only advances when a thread sleeps on
+ * this clock. Sleeping runs all events scheduled until the wake up time in
+ * time order, each at its scheduled time. Not thread safe, the simulation has
+ * to be driven by a single thread.
+ */
+public class VirtualClock implements ProxyClock
+{
+	/** the current virtual time in nanoseconds */
+	private long now;
+
+	/** number of events scheduled so far, keeps events of equal time ordered */
+	private long sequence;
+
+	/** the events not run yet */
+	private final PriorityQueue<Event> events = new PriorityQueue<>();
+
+	@Override
+	public long nanoTime()
+	{
+		return now;
+	}
+
+	@Override
+	public void sleep(long millis)
+	{
+		advanceTo(now + millis * 1000000L);
+	}
+
+	/**
+	 * Schedules an action to run when the time is reached.
+	 * @param delay nanoseconds from now until the action is run
+	 * @param action the action to run
+	 */
+	public void schedule(long delay, Runnable action)
+	{
+		events.add(new Event(now + Math.max(0, delay), sequence++, action));
+	}
+
+	/**
+	 * Runs all events scheduled until the passed time and sets the clock to it.
+	 * @param time the virtual time to advance to
+	 */
+	public void advanceTo(long time)
+	{
+		while (!events.isEmpty() && events.peek().time <= time) {
+			Event event = events.poll();
+			now = Math.max(now, event.time);
+			event.action.run();
+		}
+		now = Math.max(now, time);
+	}
+
+	/**
+	 * @return the number of events not run yet
+	 */
+	public int getPendingEvents()
+	{
+		return events.size();
+	}
+
+	private record Event(long time, long sequence, Runnable action) implements Comparable<Event>
+	{
+		@Override
+		public int compareTo(Event other)
+		{
+			int result = Long.compare(time, other.time);
+			return result != 0 ? result : Long.compare(sequence, other.sequence);
+		}
+	}
+}